@@ -17,20 +17,23 @@
 package com.android.emailcommon.internet;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Base64;
-import android.util.Base64OutputStream;
 
 import com.android.emailcommon.mail.Address;
 import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.utility.CountingOutputStream;
+import com.android.emailcommon.utility.EOLConvertingOutputStream;
 
 import com.android.mail.utils.LogUtils;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
 
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
@@ -54,6 +57,26 @@ import java.util.regex.Pattern;
 public class Rfc822Output {
     private static final String TAG = "Email";
 
+    /**
+     * For {@link #writeTo}: text may be sent as it is, labelled 7bit or 8bit, rather than in
+     * base64, where its lines allow.  Its line endings are left for the caller to make CRLF,
+     * unless {@link #ALLOW_BINARY} is also given.
+     */
+    public static final int ALLOW_8BIT = 1 << 0;
+    /**
+     * For {@link #writeTo}: attachments may be sent as they are, labelled binary, rather than in
+     * base64.  As the caller mustn't then touch the line endings, everything else has its line
+     * endings made CRLF here.
+     */
+    public static final int ALLOW_BINARY = 1 << 1;
+
+    /** The longest a line may be, not counting its CRLF (RFC 5322 2.1.1) */
+    private static final int MAX_LINE_LENGTH = 998;
+    /** The bytes of an attachment in each line of its base64, which is 76 characters long */
+    private static final int BASE64_LINE_BYTES = 57;
+    /** The lines of base64 encoded at a time */
+    private static final int BASE64_LINES_PER_CHUNK = 256;
+
     // In MIME, en_US-like date format should be used. In other words "MMM" should be encoded to
     // "Jan", not the other localized format like "Ene" (meaning January in locale es).
     private static final SimpleDateFormat DATE_FORMAT =
@@ -123,13 +146,83 @@ public class Rfc822Output {
     public static void writeTo(Context context, Message message, OutputStream out,
             boolean useSmartReply, boolean sendBcc, List<Attachment> attachments)
                     throws IOException, MessagingException {
+        writeTo(context, message, out, useSmartReply, sendBcc, attachments, 0);
+    }
+
+    /**
+     * Like {@link #writeTo(Context, Message, OutputStream, boolean, boolean, List)}, but parts
+     * may be sent in other encodings than base64, as allowed by the transport.
+     *
+     * @param encodings any of {@link #ALLOW_8BIT} and {@link #ALLOW_BINARY}
+     */
+    public static void writeTo(Context context, Message message, OutputStream out,
+            boolean useSmartReply, boolean sendBcc, List<Attachment> attachments, int encodings)
+                    throws IOException, MessagingException {
+        writeTo(context, message, out, useSmartReply, sendBcc, attachments, encodings, null);
+    }
+
+    /**
+     * Like {@link #writeTo(Context, Message, OutputStream, boolean, boolean, List, int)}, but
+     * with the given multipart boundary, so that the message is written just as
+     * {@link #getSize} measured it.
+     *
+     * @param boundary from {@link #getNextBoundary}, or null to get a new one
+     */
+    public static void writeTo(Context context, Message message, OutputStream out,
+            boolean useSmartReply, boolean sendBcc, List<Attachment> attachments, int encodings,
+            String boundary) throws IOException, MessagingException {
+        write(context, message, out, useSmartReply, sendBcc, attachments, encodings, boundary,
+                true);
+    }
+
+    /**
+     * Works out the size of the message, as {@link #writeTo(Context, Message, OutputStream,
+     * boolean, boolean, List, int, String)} will write it once its line endings are made CRLF,
+     * without reading its attachments: the size of each one, and a little base64 math, are
+     * enough.  Everything else is rendered, and counted.
+     *
+     * @param boundary the multipart boundary it will be written with
+     * @return the size, or -1 if an attachment's size can't be known without reading it
+     */
+    public static long getSize(Context context, Message message, boolean useSmartReply,
+            boolean sendBcc, List<Attachment> attachments, int encodings, String boundary)
+                    throws IOException, MessagingException {
+        if (attachments == null) {
+            attachments =
+                    Arrays.asList(Attachment.restoreAttachmentsWithMessageId(context, message.mId));
+        }
+        final boolean binary = (encodings & ALLOW_BINARY) != 0;
+        long payloadSize = 0;
+        for (final Attachment att : attachments) {
+            final long length = getAttachmentLength(context, att);
+            if (length < 0) {
+                return -1;
+            }
+            payloadSize += binary ? length : getBase64Length(length);
+        }
+        final CountingOutputStream counter = new CountingOutputStream(new NullOutputStream());
+        write(context, message, binary ? counter : new EOLConvertingOutputStream(counter),
+                useSmartReply, sendBcc, attachments, encodings, boundary, false);
+        return counter.getCount() + payloadSize;
+    }
+
+    /**
+     * Writes the message, or, for {@link #getSize}, all of it but its attachments' payloads.
+     */
+    private static void write(Context context, Message message, OutputStream out,
+            boolean useSmartReply, boolean sendBcc, List<Attachment> attachments, int encodings,
+            String boundary, boolean withPayloads) throws IOException, MessagingException {
         if (message == null) {
             // throw something?
             return;
         }
 
+        final boolean binary = (encodings & ALLOW_BINARY) != 0;
         final OutputStream stream = new BufferedOutputStream(out, 1024);
-        final Writer writer = new OutputStreamWriter(stream);
+        // Binary attachments are written to stream as they are; everything else goes through
+        // textStream
+        final OutputStream textStream = binary ? new EOLConvertingOutputStream(stream) : stream;
+        final Writer writer = new OutputStreamWriter(textStream);
 
         // Write the fixed headers.  Ordering is arbitrary (the legacy code iterated through a
         // hashmap here).
@@ -166,10 +259,10 @@ public class Rfc822Output {
 
         // Simplified case for no multipart - just emit text and be done.
         if (!multipart) {
-            writeTextWithHeaders(writer, stream, bodyText);
+            writeTextWithHeaders(writer, textStream, bodyText, encodings);
         } else {
             // continue with multipart headers, then into multipart body
-            final String multipartBoundary = getNextBoundary();
+            final String multipartBoundary = boundary != null ? boundary : getNextBoundary();
             String multipartType = "mixed";
 
             // Move to the first attachment; this must succeed because multipart is true
@@ -190,13 +283,13 @@ public class Rfc822Output {
             // first multipart element is the body
             if (bodyText[INDEX_BODY_TEXT] != null || bodyText[INDEX_BODY_HTML] != null) {
                 writeBoundary(writer, multipartBoundary, false);
-                writeTextWithHeaders(writer, stream, bodyText);
+                writeTextWithHeaders(writer, textStream, bodyText, encodings);
             }
 
             // Write out the attachments until we run out
             for (final Attachment att: attachments) {
                 writeBoundary(writer, multipartBoundary, false);
-                writeOneAttachment(context, writer, stream, att);
+                writeOneAttachment(context, writer, stream, att, binary, withPayloads);
                 writer.write("\r\n");
             }
 
@@ -210,12 +303,16 @@ public class Rfc822Output {
 
     /**
      * Write a single attachment and its payload
+     *
+     * @param binary whether to write the payload as it is, rather than in base64
+     * @param withPayload false to leave out the payload, whose size {@link #getSize} works out
      */
     private static void writeOneAttachment(Context context, Writer writer, OutputStream out,
-            Attachment attachment) throws IOException, MessagingException {
+            Attachment attachment, boolean binary, boolean withPayload)
+                    throws IOException, MessagingException {
         writeHeader(writer, "Content-Type",
                 attachment.mMimeType + ";\n name=\"" + attachment.mFileName + "\"");
-        writeHeader(writer, "Content-Transfer-Encoding", "base64");
+        writeHeader(writer, "Content-Transfer-Encoding", binary ? "binary" : "base64");
         // Most attachments (real files) will send Content-Disposition.  The suppression option
         // is used when sending calendar invites.
         if ((attachment.mFlags & Attachment.FLAG_ICS_ALTERNATIVE_PART) == 0) {
@@ -233,7 +330,9 @@ public class Rfc822Output {
         InputStream inStream = null;
         try {
             // Use content, if provided; otherwise, use the contentUri
-            if (attachment.mContentBytes != null) {
+            if (!withPayload) {
+                // Nothing to read
+            } else if (attachment.mContentBytes != null) {
                 inStream = new ByteArrayInputStream(attachment.mContentBytes);
             } else {
                 // First try the cached file
@@ -259,15 +358,18 @@ public class Rfc822Output {
             }
             // switch to output stream for base64 text output
             writer.flush();
-            Base64OutputStream base64Out = new Base64OutputStream(
-                out, Base64.CRLF | Base64.NO_CLOSE);
-            // copy base64 data and close up
-            IOUtils.copy(inStream, base64Out);
-            base64Out.close();
+            if (!withPayload) {
+                // Only the size of the payload is wanted, and getSize works that out
+            } else if (binary) {
+                IOUtils.copy(inStream, out);
+            } else {
+                writeBase64(inStream, out);
+            }
 
             // The old Base64OutputStream wrote an extra CRLF after
             // the output.  It's not required by the base-64 spec; not
-            // sure if it's required by RFC 822 or not.
+            // sure if it's required by RFC 822 or not.  (Binary output
+            // needs it, as the CRLF before a boundary belongs to the boundary.)
             out.write('\r');
             out.write('\n');
             out.flush();
@@ -284,6 +386,91 @@ public class Rfc822Output {
         }
     }
 
+    /**
+     * Writes content in base64, in lines of 76 characters, but for the last, which may be
+     * shorter, each ending in CRLF; so its size is just what {@link #getBase64Length} says.
+     */
+    private static void writeBase64(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BASE64_LINE_BYTES * BASE64_LINES_PER_CHUNK];
+        int count;
+        do {
+            // Each chunk is filled, short of the end, so that only the last line is short
+            count = 0;
+            int read;
+            while (count < buffer.length
+                    && (read = in.read(buffer, count, buffer.length - count)) >= 0) {
+                count += read;
+            }
+            if (count > 0) {
+                out.write(Base64.encode(buffer, 0, count, Base64.CRLF));
+            }
+        } while (count == buffer.length);
+    }
+
+    /**
+     * @return the size of the base64 of the given number of bytes, as written by
+     *     {@link #writeBase64}
+     */
+    /*package*/ static long getBase64Length(long length) {
+        // 4 characters for 3 bytes or fewer, and CRLF for each line
+        return (length + 2) / 3 * 4 + (length + BASE64_LINE_BYTES - 1) / BASE64_LINE_BYTES * 2;
+    }
+
+    /**
+     * @return the size of an attachment's content, from where
+     *     {@link #writeOneAttachment} will read it, or -1 if it can't be known without reading it
+     */
+    private static long getAttachmentLength(Context context, Attachment attachment) {
+        if (attachment.mContentBytes != null) {
+            return attachment.mContentBytes.length;
+        }
+        final String cachedFile = attachment.getCachedFileUri();
+        if (!TextUtils.isEmpty(cachedFile)) {
+            try {
+                return getLength(context, Uri.parse(cachedFile));
+            } catch (FileNotFoundException e) {
+                // As in writeOneAttachment, fall back to the original content uri
+            }
+        }
+        final String contentUri = attachment.getContentUri();
+        if (TextUtils.isEmpty(contentUri)) {
+            return -1;
+        }
+        try {
+            return getLength(context, Uri.parse(contentUri));
+        } catch (FileNotFoundException e) {
+            // It would be written as empty, with no CRLF after; that's left to writeTo
+            return -1;
+        }
+    }
+
+    /**
+     * @return the size of what {@link android.content.ContentResolver#openInputStream} reads
+     *     from the given uri, or -1 if it isn't known
+     */
+    private static long getLength(Context context, Uri uri) throws FileNotFoundException {
+        final AssetFileDescriptor fd =
+                context.getContentResolver().openAssetFileDescriptor(uri, "r");
+        if (fd == null) {
+            return -1;
+        }
+        try {
+            final long length = fd.getLength();
+            if (length != AssetFileDescriptor.UNKNOWN_LENGTH) {
+                return length;
+            }
+            // Read to the end of the file, if it's a file
+            final long fileSize = fd.getParcelFileDescriptor().getStatSize();
+            return fileSize >= 0 ? fileSize - fd.getStartOffset() : -1;
+        } finally {
+            try {
+                fd.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+
     /**
      * Write a single header with no wrapping or encoding
      *
@@ -354,16 +541,16 @@ public class Rfc822Output {
     /**
      * Write the body text.
      *
-     * Note this always uses base64, even when not required.  Slightly less efficient for
-     * US-ASCII text, but handles all formats even when non-ascii chars are involved.  A small
-     * optimization might be to prescan the string for safety and send raw if possible.
+     * Note this uses base64 unless {@link #ALLOW_8BIT} is given and the text's lines allow it
+     * to be sent as it is; see {@link #getTextEncoding}.
      *
      * @param writer the output writer
      * @param out the output stream inside the writer (used for byte[] access)
      * @param bodyText Plain text and HTML versions of the original text of the message
+     * @param encodings as for {@link #writeTo}
      */
-    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText)
-            throws IOException {
+    private static void writeTextWithHeaders(Writer writer, OutputStream out, String[] bodyText,
+            int encodings) throws IOException {
         boolean html = false;
         String text = bodyText[INDEX_BODY_TEXT];
         if (TextUtils.isEmpty(text)) {
@@ -376,18 +563,55 @@ public class Rfc822Output {
             // first multipart element is the body
             final String mimeType = "text/" + (html ? "html" : "plain");
             writeHeader(writer, "Content-Type", mimeType + "; charset=utf-8");
-            writeHeader(writer, "Content-Transfer-Encoding", "base64");
-            writer.write("\r\n");
             final byte[] textBytes = text.getBytes("UTF-8");
+            final String encoding = (encodings & ALLOW_8BIT) != 0
+                    ? getTextEncoding(textBytes) : null;
+            writeHeader(writer, "Content-Transfer-Encoding",
+                    encoding != null ? encoding : "base64");
+            writer.write("\r\n");
             writer.flush();
-            out.write(Base64.encode(textBytes, Base64.CRLF));
+            if (encoding != null) {
+                out.write(textBytes);
+                if (textBytes[textBytes.length - 1] != '\n') {
+                    out.write('\r');
+                    out.write('\n');
+                }
+            } else {
+                out.write(Base64.encode(textBytes, Base64.CRLF));
+            }
+        }
+    }
+
+    /**
+     * Works out whether text can be sent as it is, rather than in base64.
+     *
+     * @param bytes the text, in UTF-8
+     * @return "7bit" or "8bit" if it can; null if it has NULs, bare CRs or overlong lines
+     */
+    /*package*/ static String getTextEncoding(byte[] bytes) {
+        boolean eightBit = false;
+        int lineLength = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            final byte b = bytes[i];
+            if (b == '\n') {
+                lineLength = 0;
+            } else if (b == '\r') {
+                if (i + 1 == bytes.length || bytes[i + 1] != '\n') {
+                    return null;
+                }
+            } else if (b == 0 || ++lineLength > MAX_LINE_LENGTH) {
+                return null;
+            } else if (b < 0) {
+                eightBit = true;
+            }
         }
+        return eightBit ? "8bit" : "7bit";
     }
 
     /**
      * Returns a unique boundary string.
      */
-    /*package*/ static String getNextBoundary() {
+    public static String getNextBoundary() {
         final StringBuilder boundary = new StringBuilder();
         boundary.append("--_com.android.email_").append(System.nanoTime());
         synchronized (Rfc822Output.class) {
@@ -718,6 +718,17 @@ public abstract class EmailContent {
         public static Uri DELETED_CONTENT_URI;
         public static Uri UPDATED_CONTENT_URI;
         public static Uri NOTIFIER_URI;
+        /**
+         * Searches the messages stored on the device for the words in the
+         * {@link #SEARCH_PARAMETER_QUERY} parameter, optionally in one account or mailbox, see
+         * {@link #SEARCH_PARAMETER_ACCOUNT} and {@link #SEARCH_PARAMETER_MAILBOX}.  The results
+         * are the ids of the matching messages, newest first, and may be limited with
+         * {@link EmailContent#PARAMETER_LIMIT}.
+         */
+        public static Uri SEARCH_URI;
+        public static final String SEARCH_PARAMETER_QUERY = "query";
+        public static final String SEARCH_PARAMETER_ACCOUNT = "account";
+        public static final String SEARCH_PARAMETER_MAILBOX = "mailbox";
 
         public static void initMessage() {
             CONTENT_URI = Uri.parse(EmailContent.CONTENT_URI + "/message");
@@ -732,6 +743,7 @@ public abstract class EmailContent {
                     Uri.parse(EmailContent.CONTENT_URI + "/updatedMessage");
             NOTIFIER_URI =
                     Uri.parse(EmailContent.CONTENT_NOTIFIER_URI + "/message");
+            SEARCH_URI = Uri.parse(EmailContent.CONTENT_URI + "/messageSearch");
         }
 
         public static final int CONTENT_ID_COLUMN = 0;
@@ -1795,6 +1807,11 @@ public abstract class EmailContent {
         public static final String HIERARCHICAL_NAME = "hierarchicalName";
         // The last time that we did a full sync. Set from SystemClock.elapsedRealtime().
         public static final String LAST_FULL_SYNC_TIME = "lastFullSyncTime";
+        // Cached count of messages not yet seen (e.g. in a notification)
+        public static final String UNSEEN_COUNT = "unseenCount";
+        // The state of the mailbox on the server at the last sync, for CONDSTORE servers, as
+        // "UIDVALIDITY:HIGHESTMODSEQ"
+        public static final String SYNC_MOD_SEQ = "syncModSeq";
     }
 
     public interface HostAuthColumns extends BaseColumns {
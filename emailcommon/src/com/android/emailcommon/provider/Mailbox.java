@@ -175,6 +175,7 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
     public int mTotalCount;
     public String mHierarchicalName;
     public long mLastFullSyncTime;
+    public String mSyncModSeq;
 
     public static final int CONTENT_ID_COLUMN = 0;
     public static final int CONTENT_DISPLAY_NAME_COLUMN = 1;
@@ -197,6 +198,7 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
     public static final int CONTENT_TOTAL_COUNT_COLUMN = 18;
     public static final int CONTENT_HIERARCHICAL_NAME_COLUMN = 19;
     public static final int CONTENT_LAST_FULL_SYNC_COLUMN = 20;
+    public static final int CONTENT_SYNC_MOD_SEQ_COLUMN = 21;
 
     /**
      * <em>NOTE</em>: If fields are added or removed, the method {@link #getHashes()}
@@ -223,7 +225,8 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
             MailboxColumns.UI_LAST_SYNC_RESULT,
             MailboxColumns.TOTAL_COUNT,
             MailboxColumns.HIERARCHICAL_NAME,
-            MailboxColumns.LAST_FULL_SYNC_TIME
+            MailboxColumns.LAST_FULL_SYNC_TIME,
+            MailboxColumns.SYNC_MOD_SEQ
     };
 
     /** Selection by server pathname for a given account */
@@ -596,6 +599,7 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         mTotalCount = cursor.getInt(CONTENT_TOTAL_COUNT_COLUMN);
         mHierarchicalName = cursor.getString(CONTENT_HIERARCHICAL_NAME_COLUMN);
         mLastFullSyncTime = cursor.getInt(CONTENT_LAST_FULL_SYNC_COLUMN);
+        mSyncModSeq = cursor.getString(CONTENT_SYNC_MOD_SEQ_COLUMN);
     }
 
     @Override
@@ -621,6 +625,7 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         values.put(MailboxColumns.TOTAL_COUNT, mTotalCount);
         values.put(MailboxColumns.HIERARCHICAL_NAME, mHierarchicalName);
         values.put(MailboxColumns.LAST_FULL_SYNC_TIME, mLastFullSyncTime);
+        values.put(MailboxColumns.SYNC_MOD_SEQ, mSyncModSeq);
         return values;
     }
 
@@ -652,6 +657,20 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         }
     }
 
+    /**
+     * Store the server's state at the last sync in the database.
+     * @param c Makes provider calls
+     * @param syncModSeq New "UIDVALIDITY:HIGHESTMODSEQ", or null
+     */
+    public void updateSyncModSeq(final Context c, final String syncModSeq) {
+        if (!TextUtils.equals(syncModSeq, mSyncModSeq)) {
+            final ContentValues values = new ContentValues(1);
+            values.put(MailboxColumns.SYNC_MOD_SEQ, syncModSeq);
+            update(c, values);
+            mSyncModSeq = syncModSeq;
+        }
+    }
+
     /**
      * Convenience method to return the id of a given type of Mailbox for a given Account; the
      * common Mailbox types (Inbox, Outbox, Sent, Drafts, Trash, and Search) are all cached by
@@ -826,6 +845,7 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         dest.writeInt(mTotalCount);
         dest.writeString(mHierarchicalName);
         dest.writeLong(mLastFullSyncTime);
+        dest.writeString(mSyncModSeq);
     }
 
     public Mailbox(Parcel in) {
@@ -851,6 +871,7 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
         mTotalCount = in.readInt();
         mHierarchicalName = in.readString();
         mLastFullSyncTime = in.readLong();
+        mSyncModSeq = in.readString();
     }
 
     public static final Parcelable.Creator<Mailbox> CREATOR = new Parcelable.Creator<Mailbox>() {
@@ -974,7 +995,8 @@ public class Mailbox extends EmailContent implements EmailContent.MailboxColumns
                     .build());
             ops.add(ContentProviderOperation.newUpdate(
                     ContentUris.withAppendedId(Mailbox.CONTENT_URI, mailboxId))
-                    .withValue(MailboxColumns.SYNC_KEY, "0").build());
+                    .withValue(MailboxColumns.SYNC_KEY, "0")
+                    .withValue(MailboxColumns.SYNC_MOD_SEQ, null).build());
 
             cr.applyBatch(AUTHORITY, ops);
             final Bundle extras = createSyncBundle(mailboxId);
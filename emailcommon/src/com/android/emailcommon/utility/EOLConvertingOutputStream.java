@@ -38,6 +38,28 @@ public class EOLConvertingOutputStream extends FilterOutputStream {
         lastChar = oneByte;
     }
 
+    /**
+     * Writes the array a run at a time, between the LFs which need a CR, rather than a byte at a
+     * time as FilterOutputStream would.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        final int end = offset + count;
+        int start = offset;
+        int last = lastChar;
+        for (int i = offset; i < end; i++) {
+            final int b = buffer[i];
+            if (b == '\n' && last != '\r') {
+                out.write(buffer, start, i - start);
+                out.write('\r');
+                start = i;
+            }
+            last = b;
+        }
+        out.write(buffer, start, end - start);
+        lastChar = last;
+    }
+
     @Override
     public void flush() throws IOException {
         if (lastChar == '\r') {
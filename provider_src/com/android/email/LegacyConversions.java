@@ -175,24 +175,30 @@ public class LegacyConversions {
             final EmailContent.Message localMessage, final ArrayList<Part> inlineAttachments)
             throws MessagingException, IOException {
         for (final Part inlinePart : inlineAttachments) {
-            final String disposition = MimeUtility.getHeaderParameter(
-                    MimeUtility.unfoldAndDecode(inlinePart.getDisposition()), null);
-            if (!TextUtils.isEmpty(disposition)) {
-                // Treat inline parts as attachments
+            if (isInlineAttachment(inlinePart)) {
                 addOneAttachment(context, localMessage, inlinePart);
             }
         }
     }
 
     /**
-     * Convert a MIME Part object into an Attachment object. Separated for unit testing.
+     * @param viewable a viewable part of a message
+     * @return whether the part also has a disposition, and so is to be treated as an attachment
+     */
+    public static boolean isInlineAttachment(final Part viewable) throws MessagingException {
+        final String disposition = MimeUtility.getHeaderParameter(
+                MimeUtility.unfoldAndDecode(viewable.getDisposition()), null);
+        return !TextUtils.isEmpty(disposition);
+    }
+
+    /**
+     * Convert a MIME Part object into an Attachment object.
      *
      * @param part MIME part object to convert
      * @return Populated Account object
      * @throws MessagingException
      */
-    @VisibleForTesting
-    protected static Attachment mimePartToAttachment(final Part part) throws MessagingException {
+    public static Attachment mimePartToAttachment(final Part part) throws MessagingException {
         // Transfer fields from mime format to provider format
         final String contentType = MimeUtility.unfoldAndDecode(part.getContentType());
 
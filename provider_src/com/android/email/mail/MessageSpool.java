@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.Rfc822Output;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.utility.EOLConvertingOutputStream;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Keeps outgoing messages rendered (by {@link Rfc822Output}) in files, so that a message is
+ * rendered once, and its attachments read and base64-encoded once, for sending it with SMTP,
+ * trying again if that fails, and appending it to the Sent folder.  A file's size is known
+ * before it's sent, and its line endings are all CRLF already.
+ *
+ * A file is named for the message's id, the version of its content (see {@link #getVersion}),
+ * and the encodings it was rendered with, so a message which has changed since is rendered
+ * again.  Once a message has reached the Sent folder, or been deleted after sending, its file
+ * is deleted by {@link #evict}.  Files left behind, e.g. by messages deleted from the outbox,
+ * are deleted once they're {@link #MAX_AGE} old.
+ *
+ * The rendering leaves out the Bcc header, as SMTP mustn't send it; the copy for the Sent
+ * folder gets it from {@link #getSentCopyHeaders}.
+ */
+public final class MessageSpool {
+    private static final String TAG = LogUtils.TAG;
+
+    private static final String SPOOL_DIR = "spool";
+    private static final String EXT = ".eml";
+    private static final String TEMP_PREFIX = "tmp_";
+    private static final long MAX_AGE = DateUtils.WEEK_IN_MILLIS;
+
+    private MessageSpool() {
+    }
+
+    private static File getDir(Context context) {
+        return new File(context.getCacheDir(), SPOOL_DIR);
+    }
+
+    /**
+     * Gets the rendered message, rendering it first if it isn't already, or has changed since.
+     *
+     * @param encodings the encodings which may be used, as for {@link Rfc822Output#writeTo}; a
+     *     file rendered with fewer of them is fine, but not one rendered with others
+     * @return the file, which mustn't be changed
+     */
+    public static File get(Context context, Message message, int encodings)
+            throws IOException, MessagingException {
+        final String version = getVersion(context, message);
+        final File found = find(context, message, version, encodings);
+        if (found != null) {
+            return found;
+        }
+
+        final File dir = getDir(context);
+        final String prefix = Long.toString(message.mId) + "_";
+        final File[] files = dir.listFiles();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Not named like a rendering, so that evict() below leaves it alone
+        final File temp = File.createTempFile(TEMP_PREFIX + prefix, null, dir);
+        try {
+            final OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                // Only binary rendering has its line endings made CRLF by Rfc822Output itself
+                final OutputStream out = (encodings & Rfc822Output.ALLOW_BINARY) != 0
+                        ? fileOut : new EOLConvertingOutputStream(fileOut);
+                Rfc822Output.writeTo(context, message, out,
+                        false /* do not use smart reply */,
+                        false /* do not send BCC */,
+                        null  /* attachments are in the message itself */,
+                        encodings);
+                out.flush();
+            } finally {
+                fileOut.close();
+            }
+            // Other renderings of the message are of no more use
+            evict(context, message.mId);
+            final File file = new File(dir, prefix + version + "_" + encodings + EXT);
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            LogUtils.d(TAG, "Rendered message %d: %d bytes", message.mId, file.length());
+            deleteOldFiles(files);
+            return file;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Gets the rendered message, if it's rendered already, as for {@link #get}.
+     *
+     * @return the file, which mustn't be changed, or null if there's none
+     */
+    public static File find(Context context, Message message, int encodings) {
+        return find(context, message, getVersion(context, message), encodings);
+    }
+
+    private static File find(Context context, Message message, String version, int encodings) {
+        final File[] files = getDir(context).listFiles();
+        if (files == null) {
+            return null;
+        }
+        final String prefix = Long.toString(message.mId) + "_";
+        for (File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(EXT)) {
+                final String[] parts = name.substring(0, name.length() - EXT.length()).split("_");
+                if (parts.length == 3 && parts[1].equals(version)
+                        && (Integer.parseInt(parts[2]) & ~encodings) == 0) {
+                    return file;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Deletes the rendered message, once it's of no more use.
+     */
+    public static void evict(Context context, long messageId) {
+        final File[] files = getDir(context).listFiles();
+        if (files == null) {
+            return;
+        }
+        final String prefix = Long.toString(messageId) + "_";
+        for (File file : files) {
+            if (file.getName().startsWith(prefix)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void deleteOldFiles(File[] files) {
+        if (files == null) {
+            return;
+        }
+        final long oldest = System.currentTimeMillis() - MAX_AGE;
+        for (File file : files) {
+            if (file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the headers which the copy of the message for the Sent folder has, but the
+     *     rendered message doesn't, i.e. Bcc, to be sent before it; empty if there are none
+     */
+    public static byte[] getSentCopyHeaders(Message message) throws IOException {
+        if (TextUtils.isEmpty(message.mBcc)) {
+            return new byte[0];
+        }
+        final String header = "Bcc: "
+                + MimeUtility.fold(Address.reformatToHeader(message.mBcc), "Bcc: ".length())
+                + "\r\n";
+        // As in the rendered message, every line ends in CRLF
+        return header.replace("\r\n", "\n").replace("\n", "\r\n").getBytes("UTF-8");
+    }
+
+    /**
+     * @return a string which changes whenever anything that goes into the rendered message
+     *     does: its headers, bodies, and attachments
+     */
+    @VisibleForTesting
+    static String getVersion(Context context, Message message) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        update(digest, Long.toString(message.mTimeStamp));
+        update(digest, message.mSubject);
+        update(digest, message.mMessageId);
+        update(digest, message.mFrom);
+        update(digest, message.mTo);
+        update(digest, message.mCc);
+        update(digest, message.mReplyTo);
+        final Body body = Body.restoreBodyWithMessageId(context, message.mId);
+        if (body != null) {
+            update(digest, body.mTextContent);
+            update(digest, body.mHtmlContent);
+        }
+        for (Attachment attachment :
+                Attachment.restoreAttachmentsWithMessageId(context, message.mId)) {
+            update(digest, Long.toString(attachment.mId));
+            update(digest, Long.toString(attachment.mSize));
+            update(digest, Integer.toString(attachment.mFlags));
+            update(digest, attachment.mFileName);
+            update(digest, attachment.mMimeType);
+            update(digest, attachment.mContentId);
+            update(digest, attachment.getContentUri());
+            update(digest, attachment.getCachedFileUri());
+            if (attachment.mContentBytes != null) {
+                digest.update(attachment.mContentBytes);
+            }
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format(Locale.US, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        // Kept apart, so that e.g. moving text from one field to the next makes a difference
+        digest.update((byte) (value == null ? 0 : 1));
+        if (value != null) {
+            try {
+                digest.update(value.getBytes("UTF-8"));
+            } catch (IOException e) {
+                // UTF-8 is always supported
+            }
+        }
+        digest.update((byte) 0);
+    }
+}
@@ -121,5 +121,19 @@ public abstract class Sender {
 
     public abstract void sendMessage(long messageId) throws MessagingException;
 
+    /**
+     * Begins sending a batch of messages.  Until {@link #endSession} is called, the sender may
+     * keep its connection open from one {@link #sendMessage} to the next, rather than making a
+     * new one for each message.
+     */
+    public void beginSession() {
+    }
+
+    /**
+     * Ends a batch of messages begun by {@link #beginSession}, closing any connection kept for it.
+     */
+    public void endSession() {
+    }
+
     public abstract void close() throws MessagingException;
 }
@@ -36,8 +36,10 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -58,9 +60,28 @@ class ImapConnection {
     public static final int CAPABILITY_STARTTLS  = 1 << 2;
     /** UIDPLUS capability per RFC 4315 */
     public static final int CAPABILITY_UIDPLUS   = 1 << 3;
+    /** CONDSTORE capability per RFC 7162 */
+    public static final int CAPABILITY_CONDSTORE = 1 << 4;
+    /** QRESYNC capability per RFC 7162 */
+    public static final int CAPABILITY_QRESYNC   = 1 << 5;
+    /** IDLE capability per RFC 2177 */
+    public static final int CAPABILITY_IDLE      = 1 << 6;
+    /** COMPRESS=DEFLATE capability per RFC 4978 */
+    public static final int CAPABILITY_COMPRESS  = 1 << 7;
+    /** MOVE capability per RFC 6851 */
+    public static final int CAPABILITY_MOVE      = 1 << 8;
+    /** LITERAL+ capability per RFC 7888 */
+    public static final int CAPABILITY_LITERAL_PLUS  = 1 << 9;
+    /** LITERAL- capability per RFC 7888 */
+    public static final int CAPABILITY_LITERAL_MINUS = 1 << 10;
+
+    /** The largest literal which may be non-synchronizing with LITERAL- (RFC 7888 3) */
+    static final int LITERAL_MINUS_MAX_SIZE = 4096;
 
     /** The capabilities supported; a set of CAPABILITY_* values. */
     private int mCapabilities;
+    /** Whether QRESYNC has been enabled on the current session. */
+    private boolean mQresyncEnabled;
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
     MailTransport mTransport;
     private ImapResponseParser mParser;
@@ -134,6 +155,7 @@ class ImapConnection {
             return;
         }
 
+        mQresyncEnabled = false;
         try {
             // copy configuration into a clean transport, if necessary
             if (mTransport == null) {
@@ -171,11 +193,37 @@ class ImapConnection {
             // LOGIN
             doLogin();
 
-            // NAMESPACE (only valid in the Authenticated state)
-            doGetNamespace(isCapable(CAPABILITY_NAMESPACE));
+            // COMPRESS (only valid in the Authenticated state)
+            doCompress(isCapable(CAPABILITY_COMPRESS));
+
+            // NAMESPACE, the path separator and ENABLE QRESYNC (all only valid in the
+            // Authenticated state) don't depend on one another, so they're pipelined.
+            final List<PipelinedCommand> setupCommands = new ArrayList<PipelinedCommand>();
+            final PipelinedCommand namespace = (isCapable(CAPABILITY_NAMESPACE)
+                    && !mImapStore.isUserPrefixSet())
+                    ? addCommand(setupCommands, ImapConstants.NAMESPACE) : null;
+            final PipelinedCommand pathSeparator = mImapStore.isUserPrefixSet()
+                    ? addCommand(setupCommands, ImapConstants.LIST + " \"\" \"\"") : null;
+            final PipelinedCommand enable = isCapable(CAPABILITY_QRESYNC)
+                    ? addCommand(setupCommands, ImapConstants.ENABLE + " " + ImapConstants.QRESYNC)
+                    : null;
+            // A command which fails is only skipped (see getOptionalResponses), but a pipeline
+            // broken off partway leaves responses unread, so the connection can't be used.
+            try {
+                executePipelined(setupCommands);
+            } catch (IOException ioe) {
+                mTransport.close();
+                throw ioe;
+            }
+
+            // NAMESPACE
+            doGetNamespace(namespace);
 
             // Gets the path separator from the server
-            doGetPathSeparator();
+            doGetPathSeparator(pathSeparator);
+
+            // ENABLE QRESYNC
+            doEnableQresync(enable);
 
             mImapStore.ensurePrefixIsValid();
         } catch (SSLException e) {
@@ -202,6 +250,14 @@ class ImapConnection {
      */
     void close() {
         if (mTransport != null) {
+            if (mTransport.isCompressed()) {
+                // Bytes on the wire vs. bytes of IMAP, to measure what compression saves
+                LogUtils.d(Logging.LOG_TAG, "COMPRESS: read %d/%d bytes, wrote %d/%d bytes",
+                        mTransport.getCompressedBytesRead(),
+                        mTransport.getUncompressedBytesRead(),
+                        mTransport.getCompressedBytesWritten(),
+                        mTransport.getUncompressedBytesWritten());
+            }
             mTransport.close();
             mTransport = null;
         }
@@ -213,16 +269,24 @@ class ImapConnection {
     /**
      * Returns whether or not the specified capability is supported by the server.
      */
-    private boolean isCapable(int capability) {
+    boolean isCapable(int capability) {
         return (mCapabilities & capability) != 0;
     }
 
+    /**
+     * Returns whether QRESYNC was successfully enabled on this session, in which case the
+     * server reports expunged messages with VANISHED rather than EXPUNGE responses.
+     */
+    boolean isQresyncEnabled() {
+        return mQresyncEnabled;
+    }
+
     /**
      * Sets the capability flags according to the response provided by the server.
      * Note: We only set the capability flags that we are interested in. There are many IMAP
      * capabilities that we do not track.
      */
-    private void setCapabilities(ImapResponse capabilities) {
+    private void setCapabilities(ImapList capabilities) {
         if (capabilities.contains(ImapConstants.ID)) {
             mCapabilities |= CAPABILITY_ID;
         }
@@ -235,6 +299,28 @@ class ImapConnection {
         if (capabilities.contains(ImapConstants.STARTTLS)) {
             mCapabilities |= CAPABILITY_STARTTLS;
         }
+        if (capabilities.contains(ImapConstants.CONDSTORE)) {
+            mCapabilities |= CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.QRESYNC)) {
+            // QRESYNC implies CONDSTORE
+            mCapabilities |= CAPABILITY_QRESYNC | CAPABILITY_CONDSTORE;
+        }
+        if (capabilities.contains(ImapConstants.IDLE)) {
+            mCapabilities |= CAPABILITY_IDLE;
+        }
+        if (capabilities.contains(ImapConstants.COMPRESS_DEFLATE)) {
+            mCapabilities |= CAPABILITY_COMPRESS;
+        }
+        if (capabilities.contains(ImapConstants.MOVE)) {
+            mCapabilities |= CAPABILITY_MOVE;
+        }
+        if (capabilities.contains(ImapConstants.LITERAL_PLUS)) {
+            mCapabilities |= CAPABILITY_LITERAL_PLUS;
+        }
+        if (capabilities.contains(ImapConstants.LITERAL_MINUS)) {
+            mCapabilities |= CAPABILITY_LITERAL_MINUS;
+        }
     }
 
     /**
@@ -263,6 +349,63 @@ class ImapConnection {
         return mParser.readResponse();
     }
 
+    /** @see ImapResponseParser#readResponse(ImapResponseParser.StreamingCallback) */
+    ImapResponse readResponse(ImapResponseParser.StreamingCallback callback)
+            throws IOException, MessagingException {
+        return mParser.readResponse(callback);
+    }
+
+    /**
+     * Reads a response, waiting no longer than {@code timeoutMillis} for it to start.  Used
+     * while idling, when the server only speaks up when something changes.  Once it has
+     * started, the rest of the response is read with the usual timeout, so that the parser is
+     * never left halfway through a response.
+     *
+     * @return the response, or null if none arrived in time
+     */
+    ImapResponse readResponse(int timeoutMillis) throws IOException, MessagingException {
+        final MailTransport transport = mTransport;
+        if (transport == null) {
+            throw new IOException("Null transport");
+        }
+        transport.setSoTimeout(timeoutMillis);
+        try {
+            mParser.waitForResponse();
+        } catch (SocketTimeoutException e) {
+            return null;
+        } finally {
+            // Unless abort() closed the transport meanwhile
+            if (transport.isOpen()) {
+                transport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+            }
+        }
+        return mParser.readResponse();
+    }
+
+    /**
+     * Sends the "DONE" that ends an IDLE command (RFC 2177).  It isn't a command of its own, so
+     * it doesn't get a tag.
+     */
+    void sendDone() throws IOException {
+        if (mTransport == null) {
+            throw new IOException("Null transport");
+        }
+        mTransport.writeLine(ImapConstants.DONE, null);
+        mDiscourse.addSentCommand(ImapConstants.DONE);
+    }
+
+    /**
+     * Closes the underlying socket, so that a read blocked on it (e.g. while idling) fails with
+     * an {@link IOException}.  Unlike {@link #close()}, this may be called from any thread; the
+     * thread using the connection is left to clean up.
+     */
+    void abort() {
+        final MailTransport transport = mTransport;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
     /**
      * Send a single command to the server.  The command will be preceded by an IMAP command
      * tag and followed by \r\n (caller need not supply them).
@@ -273,19 +416,38 @@ class ImapConnection {
      */
     String sendCommand(String command, boolean sensitive)
             throws MessagingException, IOException {
+        return sendCommand(command, sensitive, true);
+    }
+
+    /**
+     * Like {@link #sendCommand(String, boolean)}, but if {@code flush} is false the command may
+     * stay buffered until the transport's output stream is next flushed, e.g. after a
+     * non-synchronizing literal written after it.
+     */
+    String sendCommand(String command, boolean sensitive, boolean flush)
+            throws MessagingException, IOException {
         LogUtils.d(Logging.LOG_TAG, "sendCommand %s", (sensitive ? IMAP_REDACTED_LOG : command));
         open();
-        return sendCommandInternal(command, sensitive);
+        return sendCommandInternal(command, sensitive, flush);
     }
 
     String sendCommandInternal(String command, boolean sensitive)
             throws MessagingException, IOException {
+        return sendCommandInternal(command, sensitive, true);
+    }
+
+    /**
+     * Like {@link #sendCommandInternal(String, boolean)}, but if {@code flush} is false the
+     * command may stay buffered until the transport's output stream is next flushed.
+     */
+    private String sendCommandInternal(String command, boolean sensitive, boolean flush)
+            throws MessagingException, IOException {
         if (mTransport == null) {
             throw new IOException("Null transport");
         }
         String tag = Integer.toString(mNextCommandTag.incrementAndGet());
         String commandToSend = tag + " " + command;
-        mTransport.writeLine(commandToSend, sensitive ? IMAP_REDACTED_LOG : null);
+        mTransport.writeLine(commandToSend, sensitive ? IMAP_REDACTED_LOG : null, flush);
         mDiscourse.addSentCommand(sensitive ? IMAP_REDACTED_LOG : commandToSend);
         return tag;
     }
@@ -343,20 +505,174 @@ class ImapConnection {
         } while (!response.isTagged());
 
         if (!response.isOk()) {
-            final String toString = response.toString();
-            final String status = response.getStatusOrEmpty().getString();
-            final String alert = response.getAlertTextOrEmpty().getString();
-            final String responseCode = response.getResponseCodeOrEmpty().getString();
+            final MessagingException e = getCommandException(response);
             destroyResponses();
+            throw e;
+        }
+        return responses;
+    }
+
+    /**
+     * Returns the exception to throw for a command which failed with the given tagged response.
+     */
+    private static MessagingException getCommandException(ImapResponse response) {
+        final String toString = response.toString();
+        final String status = response.getStatusOrEmpty().getString();
+        final String alert = response.getAlertTextOrEmpty().getString();
+        final String responseCode = response.getResponseCodeOrEmpty().getString();
+
+        // if the response code indicates an error occurred within the server, indicate that
+        if (ImapConstants.UNAVAILABLE.equals(responseCode)) {
+            return new MessagingException(MessagingException.SERVER_ERROR, alert);
+        }
+
+        return new ImapException(toString, status, alert, responseCode);
+    }
+
+    /**
+     * A command to be executed in a pipeline by {@link #executePipelined(List)}, which then
+     * holds its results.
+     */
+    static class PipelinedCommand {
+        private final List<String> mParts;
+        private final boolean mSensitive;
+        private final List<ImapResponse> mResponses = new ArrayList<ImapResponse>();
+        private MessagingException mException;
+        private boolean mComplete;
+
+        /**
+         * @param command the command, sent in a single line of text
+         * @param sensitive whether the command should be redacted in logs
+         */
+        PipelinedCommand(String command, boolean sensitive) {
+            this(Collections.singletonList(command), sensitive);
+        }
+
+        /**
+         * A command which must be sent in several parts, each after a continuation request.
+         * Rather than being pipelined, it's sent once every command before it has completed.
+         *
+         * @param parts the strings that comprise the command
+         * @param sensitive whether the command should be redacted in logs
+         */
+        PipelinedCommand(List<String> parts, boolean sensitive) {
+            mParts = parts;
+            mSensitive = sensitive;
+        }
+
+        boolean isComplete() {
+            return mComplete;
+        }
+
+        private boolean needsContinuation() {
+            return mParts.size() > 1;
+        }
+
+        private void addResponse(ImapResponse response) {
+            mResponses.add(response);
+            if (response.isTagged()) {
+                mComplete = true;
+                if (!response.isOk()) {
+                    mException = getCommandException(response);
+                }
+            }
+        }
 
-            // if the response code indicates an error occurred within the server, indicate that
-            if (ImapConstants.UNAVAILABLE.equals(responseCode)) {
-                throw new MessagingException(MessagingException.SERVER_ERROR, alert);
+        /**
+         * Returns the responses to the command, as {@link #executeSimpleCommand} would.  Untagged
+         * responses are attributed to the oldest command which hadn't completed when they
+         * arrived.  They're only valid until {@link #destroyResponses()} is called.
+         *
+         * @throws MessagingException if the command failed, or was never executed
+         */
+        List<ImapResponse> getResponses() throws MessagingException {
+            if (!mComplete) {
+                throw new MessagingException("Command not executed");
             }
+            if (mException != null) {
+                throw mException;
+            }
+            return mResponses;
+        }
+    }
 
-            throw new ImapException(toString, status, alert, responseCode);
+    /**
+     * Executes several commands at once: rather than waiting for the responses to each command
+     * before sending the next, all of them are sent together, so that the batch costs a single
+     * round trip.  Responses are matched to their commands by tag, and the failure of one
+     * command doesn't affect the others; their results are available from
+     * {@link PipelinedCommand#getResponses()}.
+     *
+     * <p>Commands which need continuation requests can't be pipelined; each is sent once all of
+     * the commands before it have completed, after which pipelining resumes.
+     */
+    void executePipelined(List<PipelinedCommand> commands)
+            throws IOException, MessagingException {
+        open();
+        // The commands sent but not yet completed, by tag, oldest first
+        final LinkedHashMap<String, PipelinedCommand> running =
+                new LinkedHashMap<String, PipelinedCommand>();
+        final int count = commands.size();
+        int next = 0;
+        while (next < count) {
+            final PipelinedCommand command = commands.get(next);
+            if (command.needsContinuation()) {
+                // The continuation requests must not be mixed up with other responses
+                readPipelinedResponses(running);
+                running.put(sendComplexCommand(command.mParts, command.mSensitive), command);
+                next++;
+                continue;
+            }
+            // Send every command up to the next one which needs continuation, in one go
+            do {
+                final PipelinedCommand simple = commands.get(next++);
+                LogUtils.d(Logging.LOG_TAG, "sendCommand %s (pipelined)",
+                        (simple.mSensitive ? IMAP_REDACTED_LOG : simple.mParts.get(0)));
+                running.put(sendCommandInternal(simple.mParts.get(0), simple.mSensitive, false),
+                        simple);
+            } while (next < count && !commands.get(next).needsContinuation());
+            mTransport.getOutputStream().flush();
+        }
+        readPipelinedResponses(running);
+    }
+
+    /**
+     * Sends several simple commands at once, without waiting for the responses to one before
+     * sending the next.  Unlike {@link #executePipelined(List)}, this leaves reading the
+     * responses to the caller, e.g. so that they can be streamed.
+     *
+     * @return the tags of the commands
+     */
+    List<String> sendCommandsPipelined(List<String> commands)
+            throws IOException, MessagingException {
+        open();
+        final ArrayList<String> tags = new ArrayList<String>(commands.size());
+        for (String command : commands) {
+            LogUtils.d(Logging.LOG_TAG, "sendCommand %s (pipelined)", command);
+            tags.add(sendCommandInternal(command, false, false));
+        }
+        mTransport.getOutputStream().flush();
+        return tags;
+    }
+
+    /**
+     * Reads responses until every running command has completed.
+     */
+    private void readPipelinedResponses(LinkedHashMap<String, PipelinedCommand> running)
+            throws IOException, MessagingException {
+        while (!running.isEmpty()) {
+            final ImapResponse response = mParser.readResponse();
+            final PipelinedCommand command;
+            if (response.isTagged()) {
+                command = running.remove(response.getTag());
+                if (command == null) {
+                    throw new MessagingException("Unexpected tag: " + response.getTag());
+                }
+            } else {
+                command = running.values().iterator().next();
+            }
+            command.addResponse(response);
         }
-        return responses;
     }
 
     /**
@@ -454,41 +770,88 @@ class ImapConnection {
         }
     }
 
+    private static PipelinedCommand addCommand(List<PipelinedCommand> commands, String command) {
+        final PipelinedCommand pipelined = new PipelinedCommand(command, false);
+        commands.add(pipelined);
+        return pipelined;
+    }
+
+    /**
+     * Returns the responses to one of the optional commands sent while opening the connection,
+     * or an empty list if it wasn't sent, didn't complete or failed.
+     */
+    private static List<ImapResponse> getOptionalResponses(PipelinedCommand command)
+            throws MessagingException {
+        if (command == null || !command.isComplete()) {
+            return Collections.emptyList();
+        }
+        try {
+            return command.getResponses();
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+            return Collections.emptyList();
+        }
+    }
+
     /**
      * Gets the user's Personal Namespace from the IMAP server per RFC 2342. If the user
      * explicitly sets a namespace (using setup UI) or if the server does not support the
-     * namespace command, this will perform no operation.
+     * namespace command, {@code namespace} is null and this will perform no operation.
      */
-    private void doGetNamespace(boolean hasNamespaceCapability) throws MessagingException {
+    private void doGetNamespace(PipelinedCommand namespace) throws MessagingException {
         // user did not specify a hard-coded prefix; try to get it from the server
-        if (hasNamespaceCapability && !mImapStore.isUserPrefixSet()) {
-            List<ImapResponse> responseList = Collections.emptyList();
-
-            try {
-                responseList = executeSimpleCommand(ImapConstants.NAMESPACE);
-            } catch (ImapException ie) {
-                // Log for debugging, but this is not a fatal problem.
-                if (DebugUtils.DEBUG) {
-                    LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+        for (ImapResponse response: getOptionalResponses(namespace)) {
+            if (response.isDataResponse(0, ImapConstants.NAMESPACE)) {
+                ImapList namespaceList = response.getListOrEmpty(1);
+                ImapList personal = namespaceList.getListOrEmpty(0);
+                String namespaceString = personal.getStringOrEmpty(0).getString();
+                if (!TextUtils.isEmpty(namespaceString)) {
+                    mImapStore.setPathPrefix(ImapStore.decodeFolderName(namespaceString, null));
+                    mImapStore.setPathSeparator(personal.getStringOrEmpty(1).getString());
                 }
-            } catch (IOException ioe) {
-                // Special case to handle malformed OK responses and ignore them.
             }
+        }
+    }
 
-            for (ImapResponse response: responseList) {
-                if (response.isDataResponse(0, ImapConstants.NAMESPACE)) {
-                    ImapList namespaceList = response.getListOrEmpty(1);
-                    ImapList namespace = namespaceList.getListOrEmpty(0);
-                    String namespaceString = namespace.getStringOrEmpty(0).getString();
-                    if (!TextUtils.isEmpty(namespaceString)) {
-                        mImapStore.setPathPrefix(ImapStore.decodeFolderName(namespaceString, null));
-                        mImapStore.setPathSeparator(namespace.getStringOrEmpty(1).getString());
-                    }
-                }
+    /**
+     * Enables QRESYNC per RFC 7162, so that every SELECT reports HIGHESTMODSEQ and UID FETCH
+     * may ask for the messages expunged since a given mod-sequence. If the server does not
+     * support QRESYNC, {@code enable} is null and this will perform no operation.
+     */
+    private void doEnableQresync(PipelinedCommand enable) throws MessagingException {
+        for (ImapResponse response : getOptionalResponses(enable)) {
+            if (response.isDataResponse(0, ImapConstants.ENABLED)
+                    && response.contains(ImapConstants.QRESYNC)) {
+                mQresyncEnabled = true;
             }
         }
     }
 
+    /**
+     * Compresses the rest of the session per RFC 4978, if the server supports it.  Since the
+     * server won't send anything until our next command, there are no compressed bytes in the
+     * parser's buffer when it's replaced.
+     */
+    private void doCompress(boolean hasCompressCapability)
+            throws IOException, MessagingException {
+        if (!hasCompressCapability) return;
+
+        try {
+            executeSimpleCommand(ImapConstants.COMPRESS + " " + ImapConstants.DEFLATE);
+        } catch (ImapException ie) {
+            // Log for debugging, but this is not a fatal problem; carry on uncompressed.
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
+            }
+            return;
+        }
+        mTransport.startCompression();
+        createParser();
+    }
+
     /**
      * Logs into the IMAP server
      */
@@ -499,7 +862,15 @@ class ImapConnection {
                 // authentication supported is OAuth.
                 doSASLAuth();
             } else {
-                executeSimpleCommand(getLoginPhrase(), true);
+                // Servers may announce more capabilities once logged in
+                for (ImapResponse response : executeSimpleCommand(getLoginPhrase(), true)) {
+                    if (response.isDataResponse(0, ImapConstants.CAPABILITY)) {
+                        setCapabilities(response);
+                    } else if (response.isTagged() && response.getResponseCodeOrEmpty().is(
+                            ImapConstants.CAPABILITY)) {
+                        setCapabilities(response.getListOrEmpty(1));
+                    }
+                }
             }
         } catch (ImapException ie) {
             if (DebugUtils.DEBUG) {
@@ -579,29 +950,13 @@ class ImapConnection {
 
     /**
      * Gets the path separator per the LIST command in RFC 3501. If the path separator
-     * was obtained while obtaining the namespace or there is no prefix defined, this
-     * will perform no operation.
+     * was obtained while obtaining the namespace or there is no prefix defined,
+     * {@code pathSeparator} is null and this will perform no operation.
      */
-    private void doGetPathSeparator() throws MessagingException {
-        // user did not specify a hard-coded prefix; try to get it from the server
-        if (mImapStore.isUserPrefixSet()) {
-            List<ImapResponse> responseList = Collections.emptyList();
-
-            try {
-                responseList = executeSimpleCommand(ImapConstants.LIST + " \"\" \"\"");
-            } catch (ImapException ie) {
-                // Log for debugging, but this is not a fatal problem.
-                if (DebugUtils.DEBUG) {
-                    LogUtils.d(Logging.LOG_TAG, ie, "ImapException");
-                }
-            } catch (IOException ioe) {
-                // Special case to handle malformed OK responses and ignore them.
-            }
-
-            for (ImapResponse response: responseList) {
-                if (response.isDataResponse(0, ImapConstants.LIST)) {
-                    mImapStore.setPathSeparator(response.getStringOrEmpty(2).getString());
-                }
+    private void doGetPathSeparator(PipelinedCommand pathSeparator) throws MessagingException {
+        for (ImapResponse response: getOptionalResponses(pathSeparator)) {
+            if (response.isDataResponse(0, ImapConstants.LIST)) {
+                mImapStore.setPathSeparator(response.getStringOrEmpty(2).getString());
             }
         }
     }
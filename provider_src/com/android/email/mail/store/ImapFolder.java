@@ -17,6 +17,7 @@
 package com.android.email.mail.store;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Base64DataException;
 
@@ -26,9 +27,11 @@ import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapElement;
 import com.android.email.mail.store.imap.ImapList;
+import com.android.email.mail.store.imap.ImapListBuilder;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
 import com.android.email.mail.store.imap.ImapUtility;
+import com.android.email.mail.store.imap.UidSet;
 import com.android.email.service.ImapService;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.internet.BinaryTempFileBody;
@@ -46,7 +49,6 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.service.SearchParams;
-import com.android.emailcommon.utility.CountingOutputStream;
 import com.android.emailcommon.utility.EOLConvertingOutputStream;
 import com.android.emailcommon.utility.Utility;
 import com.android.mail.utils.LogUtils;
@@ -57,6 +59,7 @@ import org.apache.commons.io.IOUtils;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -65,12 +68,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
 
-class ImapFolder extends Folder {
+public class ImapFolder extends Folder {
     private final static Flag[] PERMANENT_FLAGS =
         { Flag.DELETED, Flag.SEEN, Flag.FLAGGED, Flag.ANSWERED };
     private static final int COPY_BUFFER_SIZE = 16*1024;
@@ -81,6 +88,10 @@ class ImapFolder extends Folder {
     private ImapConnection mConnection;
     private OpenMode mMode;
     private boolean mExists;
+    /** UIDVALIDITY reported by the last SELECT, or -1 if none was reported */
+    private long mUidValidity = -1;
+    /** HIGHESTMODSEQ reported by the last SELECT (RFC 7162), or 0 if none was reported */
+    private long mHighestModSeq;
     /** The local mailbox associated with this remote folder */
     Mailbox mMailbox;
     /** A set of hashes that can be used to track dirtiness */
@@ -269,78 +280,116 @@ class ImapFolder extends Folder {
                     String.format(Locale.US, ImapConstants.UID_COPY + " %s \"%s\"",
                             ImapStore.joinMessageUids(messages),
                             ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
-            // Build a message map for faster UID matching
-            HashMap<String, Message> messageMap = new HashMap<String, Message>();
-            boolean handledUidPlus = false;
-            for (Message m : messages) {
-                messageMap.put(m.getUid(), m);
-            }
-            // Process response to get the new UIDs
-            for (ImapResponse response : responseList) {
-                // All "BAD" responses are bad. Only "NO", tagged responses are bad.
-                if (response.isBad() || (response.isNo() && response.isTagged())) {
-                    String responseText = response.getStatusResponseTextOrEmpty().getString();
-                    throw new MessagingException(responseText);
-                }
-                // Skip untagged responses; they're just status
-                if (!response.isTagged()) {
-                    continue;
-                }
-                // No callback provided to report of UID changes; nothing more to do here
-                // NOTE: We check this here to catch any server errors
-                if (callbacks == null) {
-                    continue;
+            reportCopiedUids(responseList, messages, folder, callbacks);
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Moves messages to another folder: with UID MOVE (RFC 6851) if the server supports it, and
+     * otherwise by copying them, then deleting and expunging them here.
+     */
+    public void moveMessages(Message[] messages, Folder folder,
+            MessageUpdateCallbacks callbacks) throws MessagingException {
+        checkOpen();
+        if (!mConnection.isCapable(ImapConnection.CAPABILITY_MOVE)) {
+            copyMessages(messages, folder, callbacks);
+            setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            expunge();
+            return;
+        }
+        try {
+            List<ImapResponse> responseList = mConnection.executeSimpleCommand(
+                    String.format(Locale.US, ImapConstants.UID_MOVE + " %s \"%s\"",
+                            ImapStore.joinMessageUids(messages),
+                            ImapStore.encodeFolderName(folder.getName(), mStore.mPathPrefix)));
+            handleUntaggedResponses(responseList);
+            reportCopiedUids(responseList, messages, folder, callbacks);
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Processes the responses to a UID COPY or UID MOVE, reporting the new UIDs of the messages
+     * to {@code callbacks}: from the COPYUID response code if the server supports UIDPLUS, and
+     * otherwise by searching the destination folder for them.
+     */
+    private void reportCopiedUids(List<ImapResponse> responseList, Message[] messages,
+            Folder folder, MessageUpdateCallbacks callbacks)
+            throws IOException, MessagingException {
+        // Build a message map for faster UID matching
+        HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        boolean handledUidPlus = false;
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        // Process response to get the new UIDs
+        for (ImapResponse response : responseList) {
+            // All "BAD" responses are bad. Only "NO", tagged responses are bad.
+            if (response.isBad() || (response.isNo() && response.isTagged())) {
+                String responseText = response.getStatusResponseTextOrEmpty().getString();
+                throw new MessagingException(responseText);
+            }
+            // Skip anything but OK responses; UID MOVE sends COPYUID in an untagged one
+            if (!response.isOk()) {
+                continue;
+            }
+            // No callback provided to report of UID changes; nothing more to do here
+            // NOTE: We check this here to catch any server errors
+            if (callbacks == null) {
+                continue;
+            }
+            ImapList copyResponse = response.getListOrEmpty(1);
+            String responseCode = copyResponse.getStringOrEmpty(0).getString();
+            if (ImapConstants.COPYUID.equals(responseCode)) {
+                handledUidPlus = true;
+                String origIdSet = copyResponse.getStringOrEmpty(2).getString();
+                String newIdSet = copyResponse.getStringOrEmpty(3).getString();
+                String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
+                String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
+                // There has to be a 1:1 mapping between old and new IDs
+                if (origIdArray.length != newIdArray.length) {
+                    throw new MessagingException("Set length mis-match; orig IDs \"" +
+                            origIdSet + "\"  new IDs \"" + newIdSet + "\"");
                 }
-                ImapList copyResponse = response.getListOrEmpty(1);
-                String responseCode = copyResponse.getStringOrEmpty(0).getString();
-                if (ImapConstants.COPYUID.equals(responseCode)) {
-                    handledUidPlus = true;
-                    String origIdSet = copyResponse.getStringOrEmpty(2).getString();
-                    String newIdSet = copyResponse.getStringOrEmpty(3).getString();
-                    String[] origIdArray = ImapUtility.getImapSequenceValues(origIdSet);
-                    String[] newIdArray = ImapUtility.getImapSequenceValues(newIdSet);
-                    // There has to be a 1:1 mapping between old and new IDs
-                    if (origIdArray.length != newIdArray.length) {
-                        throw new MessagingException("Set length mis-match; orig IDs \"" +
-                                origIdSet + "\"  new IDs \"" + newIdSet + "\"");
-                    }
-                    for (int i = 0; i < origIdArray.length; i++) {
-                        final String id = origIdArray[i];
-                        final Message m = messageMap.get(id);
-                        if (m != null) {
-                            callbacks.onMessageUidChange(m, newIdArray[i]);
-                        }
+                for (int i = 0; i < origIdArray.length; i++) {
+                    final String id = origIdArray[i];
+                    final Message m = messageMap.get(id);
+                    if (m != null) {
+                        callbacks.onMessageUidChange(m, newIdArray[i]);
                     }
                 }
             }
-            // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
-            if (callbacks != null && !handledUidPlus) {
-                final ImapFolder newFolder = (ImapFolder)folder;
-                try {
-                    // Temporarily select the destination folder
-                    newFolder.open(OpenMode.READ_WRITE);
-                    // Do the search(es) ...
-                    for (Message m : messages) {
-                        final String searchString =
-                                "HEADER Message-Id \"" + m.getMessageId() + "\"";
-                        final String[] newIdArray = newFolder.searchForUids(searchString);
-                        if (newIdArray.length == 1) {
-                            callbacks.onMessageUidChange(m, newIdArray[0]);
-                        }
+        }
+        // If the server doesn't support UIDPLUS, try a different way to get the new UID(s)
+        if (callbacks != null && !handledUidPlus) {
+            final ImapFolder newFolder = (ImapFolder)folder;
+            try {
+                // Temporarily select the destination folder
+                newFolder.open(OpenMode.READ_WRITE);
+                // Do the search(es) ...
+                for (Message m : messages) {
+                    final String searchString =
+                            "HEADER Message-Id \"" + m.getMessageId() + "\"";
+                    final String[] newIdArray = newFolder.searchForUids(searchString);
+                    if (newIdArray.length == 1) {
+                        callbacks.onMessageUidChange(m, newIdArray[0]);
                     }
-                } catch (MessagingException e) {
-                    // Log, but, don't abort; failures here don't need to be propagated
-                    LogUtils.d(Logging.LOG_TAG, "Failed to find message", e);
-                } finally {
-                    newFolder.close(false);
                 }
-                // Re-select the original folder
-                doSelect();
+            } catch (MessagingException e) {
+                // Log, but, don't abort; failures here don't need to be propagated
+                LogUtils.d(Logging.LOG_TAG, "Failed to find message", e);
+            } finally {
+                newFolder.close(false);
             }
-        } catch (IOException ioe) {
-            throw ioExceptionHandler(mConnection, ioe);
-        } finally {
-            destroyResponses();
+            // Re-select the original folder
+            doSelect();
         }
     }
 
@@ -675,6 +724,8 @@ class ImapFolder extends Folder {
             }
         }
 
+        final FetchResponseConsumer consumer =
+                new FetchResponseConsumer(messageMap, fp, fetchPart, listener);
         try {
             mConnection.sendCommand(String.format(Locale.US,
                     ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
@@ -682,113 +733,508 @@ class ImapFolder extends Folder {
                     ), false);
             ImapResponse response;
             do {
-                response = null;
                 try {
-                    response = mConnection.readResponse();
+                    // FETCH responses are handed to the consumer while they're being parsed.
+                    response = mConnection.readResponse(consumer);
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
 
-                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-                        continue; // Ignore
-                    }
-                    final ImapList fetchList = response.getListOrEmpty(2);
-                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
-                            .getString();
-                    if (TextUtils.isEmpty(uid)) continue;
-
-                    ImapMessage message = (ImapMessage) messageMap.get(uid);
-                    if (message == null) continue;
-
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
+    /**
+     * Fetches parts of many messages at once, decoding each into its {@link Part}.  A single
+     * FETCH can't ask for different sections of different messages, so the messages are grouped
+     * by the sections wanted, and there's one UID FETCH per group; these are pipelined, so the
+     * whole batch takes a single round trip.
+     *
+     * @param parts the parts to fetch, by message.  Parts without a section id (from
+     *     BODYSTRUCTURE) are skipped.
+     */
+    public void fetchParts(Map<Message, List<Part>> parts) throws MessagingException {
+        if (parts.isEmpty()) {
+            return;
+        }
+        checkOpen();
+        // The parts to fetch, by UID and then by (upper case) section
+        final HashMap<String, HashMap<String, Part>> partMap =
+                new HashMap<String, HashMap<String, Part>>();
+        // The messages wanting each set of sections, by FETCH items
+        final LinkedHashMap<String, ArrayList<Message>> groups =
+                new LinkedHashMap<String, ArrayList<Message>>();
+        for (Map.Entry<Message, List<Part>> entry : parts.entrySet()) {
+            // Sorted, so that messages wanting the same sections end up in the same group
+            final TreeMap<String, Part> sections = new TreeMap<String, Part>();
+            for (Part part : entry.getValue()) {
+                final String[] partIds =
+                        part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+                if (partIds != null) {
+                    sections.put(partIds[0].toUpperCase(Locale.US), part);
+                }
+            }
+            if (sections.isEmpty()) {
+                continue;
+            }
+            final Message message = entry.getKey();
+            partMap.put(message.getUid(), new HashMap<String, Part>(sections));
+            final StringBuilder fetchFields = new StringBuilder(ImapConstants.UID);
+            for (String section : sections.keySet()) {
+                fetchFields.append(' ').append(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE)
+                        .append('[').append(section).append(']');
+            }
+            final String key = fetchFields.toString();
+            ArrayList<Message> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Message>();
+                groups.put(key, group);
+            }
+            group.add(message);
+        }
+        if (groups.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<String> commands = new ArrayList<String>(groups.size());
+        for (Map.Entry<String, ArrayList<Message>> group : groups.entrySet()) {
+            final ArrayList<Message> messages = group.getValue();
+            commands.add(String.format(Locale.US, ImapConstants.UID_FETCH + " %s (%s)",
+                    ImapStore.joinMessageUids(messages.toArray(new Message[messages.size()])),
+                    group.getKey()));
+        }
+        final PartResponseConsumer consumer = new PartResponseConsumer(partMap);
+        try {
+            int remaining = mConnection.sendCommandsPipelined(commands).size();
+            while (remaining > 0) {
+                try {
+                    // FETCH responses are handed to the consumer while they're being parsed.
+                    if (mConnection.readResponse(consumer).isTagged()) {
+                        remaining--;
                     }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
+                } finally {
+                    destroyResponses();
+                }
+            }
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Returns the UIDVALIDITY of the folder, as reported when it was opened, or -1 if unknown.
+     */
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * Returns the HIGHESTMODSEQ of the folder, as reported when it was opened, or 0 if the
+     * server doesn't support CONDSTORE for this folder.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
+    /**
+     * Fetches the flags of every message which has changed since the mod-sequence
+     * {@code changedSince}, per RFC 7162.  Changed messages found in {@code messages} are
+     * updated in place; other changed messages are returned as new messages.  Messages whose
+     * flags haven't changed are left alone.  If QRESYNC is enabled, the UIDs of messages
+     * expunged since {@code changedSince} are added to {@code vanishedUids}.
+     *
+     * @return the messages whose flags have been fetched.
+     */
+    public List<Message> fetchChangedFlags(Message[] messages, long changedSince,
+            UidSet vanishedUids) throws MessagingException {
+        checkOpen();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        for (Message m : messages) {
+            messageMap.put(m.getUid(), m);
+        }
+        final ArrayList<Message> changedMessages = new ArrayList<Message>();
+        final FetchProfile fp = new FetchProfile();
+        fp.add(FetchProfile.Item.FLAGS);
+        final FetchResponseConsumer consumer = new FetchResponseConsumer(messageMap, fp, null,
+                new MessageRetrievalListener() {
+                    @Override
+                    public void messageRetrieved(Message message) {
+                        changedMessages.add(message);
                     }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                if (Logging.LOGD) {
-                                    LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
-                                }
-                                message.setBody(null);
-                            }
-                        }
+
+                    @Override
+                    public void loadAttachmentProgress(int progress) {
                     }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
+                }) {
+            @Override
+            Message getMessage(String uid) {
+                Message message = messageMap.get(uid);
+                if (message == null) {
+                    message = new ImapMessage(uid, ImapFolder.this);
+                    messageMap.put(uid, message);
+                }
+                return message;
+            }
+        };
+        final boolean qresync = mConnection.isQresyncEnabled();
+        try {
+            // Ask for every message, rather than the given ones; the server only returns
+            // the changed ones anyway, so this saves sending a potentially huge UID set.
+            mConnection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " 1:* (" + ImapConstants.UID + " "
+                    + ImapConstants.FLAGS + ") (" + ImapConstants.CHANGEDSINCE + " %d%s)",
+                    changedSince, qresync ? " " + ImapConstants.VANISHED : ""), false);
+            ImapResponse response;
+            do {
+                try {
+                    response = mConnection.readResponse(consumer);
+                    if (response.isDataResponse(0, ImapConstants.VANISHED)) {
+                        // * VANISHED (EARLIER) 41,43:116
+                        final String uidSet =
+                                response.getStringOrEmpty(response.size() - 1).getString();
+                        vanishedUids.addAll(UidSet.parse(uidSet));
+                    } else if (response.isTagged() && !response.isOk()) {
+                        throw new MessagingException("Can't fetch changed flags: "
+                                + response.getStatusResponseTextOrEmpty());
                     }
-                    if (fetchPart != null) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+        } catch (IOException ioe) {
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+        return changedMessages;
+    }
 
-                        try {
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
-                                    fetchPart.getSize(), listener));
-                        } catch(Exception e) {
-                            // TODO: Figure out what kinds of exceptions might actually be thrown
-                            // from here. This blanket catch-all is because we're not sure what to
-                            // do if we don't have a contentTransferEncoding, and we don't have
-                            // time to figure out what exceptions might be thrown.
-                            LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
-                        }
-                    }
+    /**
+     * Returns whether the server supports IDLE (RFC 2177).  The folder must be open.
+     */
+    public boolean canIdle() {
+        return mConnection != null && mConnection.isCapable(ImapConnection.CAPABILITY_IDLE);
+    }
 
-                    if (listener != null) {
-                        listener.messageRetrieved(message);
+    /**
+     * Waits in IDLE (RFC 2177) until the server reports a change to this folder, or until
+     * {@code timeoutMillis} has passed.  Servers may drop clients which have been idle for 30
+     * minutes, so callers should idle again well before then.
+     *
+     * @return whether a change (EXISTS, EXPUNGE, FETCH or VANISHED) was reported.
+     */
+    public boolean idle(long timeoutMillis) throws MessagingException {
+        checkOpen();
+        boolean changed = false;
+        try {
+            mConnection.sendCommand(ImapConstants.IDLE, false);
+            ImapResponse response;
+            // Wait for the server to accept the IDLE
+            do {
+                try {
+                    response = mConnection.readResponse();
+                    changed |= handleIdleResponse(response);
+                    if (response.isTagged()) {
+                        throw new MessagingException("Can't idle: "
+                                + response.getStatusResponseTextOrEmpty());
                     }
                 } finally {
                     destroyResponses();
                 }
+            } while (!response.isContinuationRequest());
+
+            final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            long remaining;
+            while (!changed && (remaining = deadline - SystemClock.elapsedRealtime()) > 0) {
+                try {
+                    response = mConnection.readResponse((int) remaining);
+                    changed = response != null && handleIdleResponse(response);
+                } finally {
+                    destroyResponses();
+                }
+            }
+
+            // End the IDLE, and read anything else the server has to say before it completes
+            mConnection.sendDone();
+            do {
+                try {
+                    response = mConnection.readResponse();
+                    changed |= handleIdleResponse(response);
+                } finally {
+                    destroyResponses();
+                }
             } while (!response.isTagged());
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         }
+        return changed;
+    }
+
+    /**
+     * Aborts a pending {@link #idle}, which will fail with an IO error.  Unlike the other
+     * methods, this may be called from any thread.
+     */
+    public void abortIdle() {
+        final ImapConnection connection = mConnection;
+        if (connection != null) {
+            connection.abort();
+        }
+    }
+
+    /**
+     * Handles an untagged response received while idling.
+     *
+     * @return whether the response reports a change to the folder.
+     */
+    private boolean handleIdleResponse(ImapResponse response) {
+        handleUntaggedResponse(response);
+        return response.isDataResponse(1, ImapConstants.EXISTS)
+                || response.isDataResponse(1, ImapConstants.EXPUNGE)
+                || response.isDataResponse(1, ImapConstants.FETCH)
+                || response.isDataResponse(0, ImapConstants.VANISHED);
+    }
+
+    /**
+     * Applies FETCH responses to the messages being fetched.
+     *
+     * <p>When the UID of a message is already known, "BODY[]" and the requested part are decoded
+     * directly from the connection, rather than first being copied into a literal.  Everything
+     * else is applied once the whole response has been parsed.
+     */
+    private static class FetchResponseConsumer extends ImapListBuilder {
+        private final HashMap<String, Message> mMessageMap;
+        private final FetchProfile mFetchProfile;
+        private final Part mFetchPart;
+        private final MessageRetrievalListener mListener;
+
+        /**
+         * Whether "BODY[]" may be parsed as soon as it arrives.  If the envelope or structure
+         * is also fetched, the body must be parsed after them, so it's buffered instead.
+         */
+        private final boolean mCanStreamBody;
+
+        /** Whether the body/part of the current response has already been consumed. */
+        private boolean mBodyConsumed;
+        private boolean mPartConsumed;
+
+        FetchResponseConsumer(HashMap<String, Message> messageMap, FetchProfile fp,
+                Part fetchPart, MessageRetrievalListener listener) {
+            mMessageMap = messageMap;
+            mFetchProfile = fp;
+            mFetchPart = fetchPart;
+            mListener = listener;
+            mCanStreamBody = (fp.contains(FetchProfile.Item.BODY)
+                    || fp.contains(FetchProfile.Item.BODY_SANE))
+                    && !fp.contains(FetchProfile.Item.ENVELOPE)
+                    && !fp.contains(FetchProfile.Item.STRUCTURE);
+        }
+
+        /** Returns the message with the given UID, or null if it isn't being fetched. */
+        Message getMessage(String uid) {
+            return mMessageMap.get(uid);
+        }
+
+        @Override
+        protected boolean consumeLiteral(ImapList list, InputStream in, int size)
+                throws IOException, MessagingException {
+            final int keyIndex = list.size() - 1;
+            if (!list.is(keyIndex, "BODY[", true)
+                    || list.is(keyIndex, ImapConstants.BODY_BRACKET_HEADER, true)) {
+                return false;
+            }
+            final ImapMessage message = (ImapMessage) getMessage(
+                    list.getKeyedStringOrEmpty(ImapConstants.UID).getString());
+            if (message == null) {
+                // The UID hasn't been seen yet; buffer the literal and handle it at the end.
+                return false;
+            }
+            if (mCanStreamBody && !mBodyConsumed && list.is(keyIndex, "BODY[]", true)) {
+                message.parse(in);
+                mBodyConsumed = true;
+                return true;
+            }
+            if (mFetchPart != null && !mPartConsumed) {
+                decodePart(mFetchPart, in, mListener);
+                mPartConsumed = true;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        protected void onResponseBuilt(ImapResponse response, ImapList elements)
+                throws IOException, MessagingException {
+            final boolean bodyConsumed = mBodyConsumed;
+            final boolean partConsumed = mPartConsumed;
+            mBodyConsumed = false;
+            mPartConsumed = false;
+
+            final ImapList fetchList = elements.getListOrEmpty(0);
+            final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                    .getString();
+            if (TextUtils.isEmpty(uid)) return;
+
+            ImapMessage message = (ImapMessage) getMessage(uid);
+            if (message == null) return;
+
+            final FetchProfile fp = mFetchProfile;
+            if (fp.contains(FetchProfile.Item.FLAGS)) {
+                final ImapList flags =
+                    fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+                for (int i = 0, count = flags.size(); i < count; i++) {
+                    final ImapString flag = flags.getStringOrEmpty(i);
+                    if (flag.is(ImapConstants.FLAG_DELETED)) {
+                        message.setFlagInternal(Flag.DELETED, true);
+                    } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                        message.setFlagInternal(Flag.ANSWERED, true);
+                    } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                        message.setFlagInternal(Flag.SEEN, true);
+                    } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                        message.setFlagInternal(Flag.FLAGGED, true);
+                    }
+                }
+            }
+            if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+                final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                        ImapConstants.INTERNALDATE).getDateOrNull();
+                final int size = fetchList.getKeyedStringOrEmpty(
+                        ImapConstants.RFC822_SIZE).getNumberOrZero();
+                final String header = fetchList.getKeyedStringOrEmpty(
+                        ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+                message.setInternalDate(internalDate);
+                message.setSize(size);
+                message.parse(Utility.streamFromAsciiString(header));
+            }
+            if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+                ImapList bs = fetchList.getKeyedListOrEmpty(
+                        ImapConstants.BODYSTRUCTURE);
+                if (!bs.isEmpty()) {
+                    try {
+                        parseBodyStructure(bs, message, ImapConstants.TEXT);
+                    } catch (MessagingException e) {
+                        if (Logging.LOGD) {
+                            LogUtils.v(Logging.LOG_TAG, e, "Error handling message");
+                        }
+                        message.setBody(null);
+                    }
+                }
+            }
+            if ((fp.contains(FetchProfile.Item.BODY)
+                    || fp.contains(FetchProfile.Item.BODY_SANE)) && !bodyConsumed) {
+                // Body is keyed by "BODY[]...".
+                // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+                // TODO Should we accept "RFC822" as well??
+                ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+                InputStream bodyStream = body.getAsStream();
+                message.parse(bodyStream);
+            }
+            if (mFetchPart != null && !partConsumed) {
+                decodePart(mFetchPart,
+                        fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream(), mListener);
+            }
+
+            if (mListener != null) {
+                mListener.messageRetrieved(message);
+            }
+        }
+    }
+
+    /**
+     * Applies the FETCH responses of {@link #fetchParts}, each of which may carry several
+     * sections of a message.  Sections are decoded directly from the connection when the UID
+     * of the message is already known, and otherwise once the whole response has been parsed.
+     */
+    private static class PartResponseConsumer extends ImapListBuilder {
+        private final HashMap<String, HashMap<String, Part>> mPartMap;
+        /** The keys (e.g. "BODY[1]") of the sections of the current response already decoded */
+        private final HashSet<String> mConsumedKeys = new HashSet<String>();
+
+        PartResponseConsumer(HashMap<String, HashMap<String, Part>> partMap) {
+            mPartMap = partMap;
+        }
+
+        /**
+         * Returns the part a FETCH item is for, or null if it isn't one being fetched.
+         */
+        private Part getPart(String uid, String key) {
+            final HashMap<String, Part> parts = mPartMap.get(uid);
+            if (parts == null || !key.regionMatches(true, 0, "BODY[", 0, 5)
+                    || !key.endsWith("]")) {
+                return null;
+            }
+            return parts.get(key.substring(5, key.length() - 1).toUpperCase(Locale.US));
+        }
+
+        @Override
+        protected boolean consumeLiteral(ImapList list, InputStream in, int size)
+                throws IOException, MessagingException {
+            final String key = list.getStringOrEmpty(list.size() - 1).getString();
+            final Part part = getPart(
+                    list.getKeyedStringOrEmpty(ImapConstants.UID).getString(), key);
+            if (part == null) {
+                return false;
+            }
+            decodePart(part, in, null);
+            mConsumedKeys.add(key);
+            return true;
+        }
+
+        @Override
+        protected void onResponseBuilt(ImapResponse response, ImapList elements)
+                throws IOException, MessagingException {
+            try {
+                final ImapList fetchList = elements.getListOrEmpty(0);
+                final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                        .getString();
+                if (TextUtils.isEmpty(uid)) return;
+
+                for (int i = 0, count = fetchList.size() - 1; i < count; i += 2) {
+                    final String key = fetchList.getStringOrEmpty(i).getString();
+                    if (mConsumedKeys.contains(key)) {
+                        continue;
+                    }
+                    final Part part = getPart(uid, key);
+                    if (part != null) {
+                        decodePart(part, fetchList.getStringOrEmpty(i + 1).getAsStream(), null);
+                    }
+                }
+            } finally {
+                mConsumedKeys.clear();
+            }
+        }
+    }
+
+    /**
+     * Decodes the fetched content of {@code fetchPart} and sets it as the part's body.
+     */
+    private static void decodePart(Part fetchPart, InputStream bodyStream,
+            MessageRetrievalListener listener) throws MessagingException {
+        String encodings[] = fetchPart.getHeader(
+                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+
+        String contentTransferEncoding = null;
+        if (encodings != null && encodings.length > 0) {
+            contentTransferEncoding = encodings[0];
+        } else {
+            // According to http://tools.ietf.org/html/rfc2045#section-6.1
+            // "7bit" is the default.
+            contentTransferEncoding = "7bit";
+        }
+
+        try {
+            // TODO Don't create 2 temp files.
+            // decodeBody creates BinaryTempFileBody, but we could avoid this
+            // if we implement ImapStringBody.
+            // (We'll need to share a temp file.  Protect it with a ref-count.)
+            fetchPart.setBody(decodeBody(bodyStream, contentTransferEncoding,
+                    fetchPart.getSize(), listener));
+        } catch(Exception e) {
+            // TODO: Figure out what kinds of exceptions might actually be thrown
+            // from here. This blanket catch-all is because we're not sure what to
+            // do if we don't have a contentTransferEncoding, and we don't have
+            // time to figure out what exceptions might be thrown.
+            LogUtils.e(Logging.LOG_TAG, "Error fetching body %s", e);
+        }
     }
 
     /**
@@ -1038,6 +1484,7 @@ class ImapFolder extends Folder {
     public void appendMessage(final Context context, final Message message, final boolean noTimeout)
             throws MessagingException {
         checkOpen();
+        File tempFile = null;
         try {
             // Create temp file
             /**
@@ -1046,23 +1493,116 @@ class ImapFolder extends Folder {
              * operation. So we write the contents to a temp file while measuring the size,
              * and then use that temp file and size to do the actual upsync.
              * For context, most classic email clients would store the message in RFC822 format
-             * internally, and so would not need to do this on-the-fly.
+             * internally, and so would not need to do this on-the-fly.  (Sent messages are
+             * kept rendered like that for a while; see MessageSpool.  A message which can
+             * be measured without being rendered is better appended as a MessageContent,
+             * but the body of this one can only be read once.)
              */
             final File tempDir = context.getExternalCacheDir();
-            final File tempFile = File.createTempFile("IMAPupsync", ".eml", tempDir);
-            // Delete here so we don't leave the file lingering. We've got a handle to it so we
-            // can still use it.
-            final boolean deleteSuccessful = tempFile.delete();
-            if (!deleteSuccessful) {
+            tempFile = File.createTempFile("IMAPupsync", ".eml", tempDir);
+            final OutputStream tempOut = new FileOutputStream(tempFile);
+            try {
+                final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(tempOut);
+                message.writeTo(eolOut);
+                eolOut.flush();
+            } finally {
+                tempOut.close();
+            }
+        } catch (IOException ioe) {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+        try {
+            appendMessage(context, message, tempFile, null, noTimeout);
+        } finally {
+            if (!tempFile.delete()) {
                 LogUtils.w(LogUtils.TAG, "Could not delete temp file %s",
                         tempFile.getAbsolutePath());
             }
-            final OutputStream tempOut = new FileOutputStream(tempFile);
-            // Create output count while writing temp file
-            final CountingOutputStream out = new CountingOutputStream(tempOut);
-            final EOLConvertingOutputStream eolOut = new EOLConvertingOutputStream(out);
-            message.writeTo(eolOut);
-            eolOut.flush();
+        }
+    }
+
+    /**
+     * Appends a message which has already been rendered, with CRLF line endings, to the
+     * selected folder, as {@link #appendMessage(Context, Message, boolean)} does.
+     *
+     * @param message holds the flags and Message-ID of the message, and is given its new UID
+     * @param content the rendered message
+     * @param headers more headers to send before the rendered message, or null if none
+     * @param noTimeout Set to true on manual syncs, disables the timeout after sending the message
+     *                  content to the server
+     */
+    public void appendMessage(final Context context, final Message message, final File content,
+            final byte[] headers, final boolean noTimeout) throws MessagingException {
+        appendMessage(context, message, new MessageContent() {
+            @Override
+            public long getSize() {
+                return content.length() + (headers != null ? headers.length : 0);
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                if (headers != null) {
+                    out.write(headers);
+                }
+                final InputStream in = new FileInputStream(content);
+                try {
+                    IOUtils.copyLarge(in, out);
+                } finally {
+                    in.close();
+                }
+            }
+        }, noTimeout);
+    }
+
+    /**
+     * The content of a message to append, whose size is known before it's written, so that it
+     * can be written straight to the server.
+     */
+    public interface MessageContent {
+        /**
+         * @return the size of the content, exactly as {@link #writeTo} will write it
+         */
+        long getSize() throws IOException, MessagingException;
+
+        /**
+         * Writes the content, with CRLF line endings.
+         */
+        void writeTo(OutputStream out) throws IOException, MessagingException;
+    }
+
+    /**
+     * Thrown, as the cause of a {@link MessagingException}, when the content of a message being
+     * appended doesn't come to the size given for it.  The connection has been dropped, and the
+     * folder closed, by then; the message may be appended again in some other way once the
+     * folder is opened again.
+     */
+    public static class LiteralSizeException extends IOException {
+        LiteralSizeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Appends a message to the selected folder, as {@link #appendMessage(Context, Message,
+     * boolean)} does, writing its content as it's rendered.  If it doesn't come to the size
+     * given for it, the connection is dropped, rather than the server being left with a
+     * message cut short, or a command made of the rest, and the {@link MessagingException}
+     * thrown has a {@link LiteralSizeException} as its cause.
+     *
+     * @param message holds the flags and Message-ID of the message, and is given its new UID
+     * @param noTimeout Set to true on manual syncs, disables the timeout after sending the message
+     *                  content to the server
+     */
+    public void appendMessage(final Context context, final Message message,
+            final MessageContent content, final boolean noTimeout) throws MessagingException {
+        checkOpen();
+        // Whether the command has been sent, but not yet answered
+        boolean inCommand = false;
+        try {
+            final long size = content.getSize();
             // Create flag list (most often this will be "\SEEN")
             String flagList = "";
             Flag[] flags = message.getFlags();
@@ -1080,11 +1620,23 @@ class ImapFolder extends Folder {
                 }
             }
 
+            // A non-synchronizing literal follows the command straight away, rather than after
+            // the server asks for it, which saves a round trip
+            final boolean nonSync = mConnection.isCapable(ImapConnection.CAPABILITY_LITERAL_PLUS)
+                    || (mConnection.isCapable(ImapConnection.CAPABILITY_LITERAL_MINUS)
+                            && size <= ImapConnection.LITERAL_MINUS_MAX_SIZE);
+            inCommand = true;
             mConnection.sendCommand(
-                    String.format(Locale.US, ImapConstants.APPEND + " \"%s\" (%s) {%d}",
+                    String.format(Locale.US, ImapConstants.APPEND + " \"%s\" (%s) {%d%s}",
                             ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
                             flagList,
-                            out.getCount()), false);
+                            size,
+                            nonSync ? "+" : ""), false, !nonSync);
+            boolean written = false;
+            if (nonSync) {
+                writeLiteral(content, size);
+                written = true;
+            }
             ImapResponse response;
             do {
                 final int socketTimeout = mConnection.mTransport.getSoTimeout();
@@ -1098,12 +1650,10 @@ class ImapFolder extends Folder {
                     }
                     response = mConnection.readResponse();
                     if (response.isContinuationRequest()) {
-                        final OutputStream transportOutputStream =
-                                mConnection.mTransport.getOutputStream();
-                        IOUtils.copyLarge(new FileInputStream(tempFile), transportOutputStream);
-                        transportOutputStream.write('\r');
-                        transportOutputStream.write('\n');
-                        transportOutputStream.flush();
+                        if (!written) {
+                            writeLiteral(content, size);
+                            written = true;
+                        }
                     } else if (!response.isTagged()) {
                         handleUntaggedResponse(response);
                     }
@@ -1111,6 +1661,7 @@ class ImapFolder extends Folder {
                     mConnection.mTransport.setSoTimeout(socketTimeout);
                 }
             } while (!response.isTagged());
+            inCommand = false;
 
             // TODO Why not check the response?
 
@@ -1152,10 +1703,68 @@ class ImapFolder extends Folder {
         } catch (IOException ioe) {
             throw ioExceptionHandler(mConnection, ioe);
         } finally {
+            if (inCommand && mConnection != null) {
+                // Failed after sending the command, e.g. while rendering the literal, which may
+                // be cut short; the server would take whatever is sent next for the rest of it
+                dropConnection(mConnection);
+            }
             destroyResponses();
         }
     }
 
+    /**
+     * Writes the literal of an APPEND command, and the CRLF which ends the command.
+     */
+    private void writeLiteral(MessageContent content, long size)
+            throws IOException, MessagingException {
+        final OutputStream transportOutputStream = mConnection.mTransport.getOutputStream();
+        final LiteralOutputStream literalOut =
+                new LiteralOutputStream(transportOutputStream, size);
+        content.writeTo(literalOut);
+        literalOut.finish();
+        transportOutputStream.write('\r');
+        transportOutputStream.write('\n');
+        transportOutputStream.flush();
+    }
+
+    /**
+     * Passes on exactly as many bytes as a literal was said to have, and fails if there are
+     * more or fewer of them; as the server reads the literal by its size, anything else would
+     * be taken for part of the message, or the start of the next command.
+     */
+    private static class LiteralOutputStream extends FilterOutputStream {
+        private long mRemaining;
+
+        LiteralOutputStream(OutputStream out, long size) {
+            super(out);
+            mRemaining = size;
+        }
+
+        @Override
+        public void write(int oneByte) throws IOException {
+            if (mRemaining < 1) {
+                throw new LiteralSizeException("Message is longer than its literal");
+            }
+            out.write(oneByte);
+            mRemaining--;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            if (mRemaining < count) {
+                throw new LiteralSizeException("Message is longer than its literal");
+            }
+            out.write(buffer, offset, count);
+            mRemaining -= count;
+        }
+
+        void finish() throws IOException {
+            if (mRemaining != 0) {
+                throw new LiteralSizeException("Message is shorter than its literal");
+            }
+        }
+    }
+
     @Override
     public Message[] expunge() throws MessagingException {
         checkOpen();
@@ -1229,12 +1838,18 @@ class ImapFolder extends Folder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
+        // Once QRESYNC is enabled, every SELECT reports HIGHESTMODSEQ; otherwise ask for it.
+        final boolean condstore = mConnection.isCapable(ImapConnection.CAPABILITY_CONDSTORE)
+                && !mConnection.isQresyncEnabled();
         final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"",
-                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix)));
+                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"%s",
+                        ImapStore.encodeFolderName(mName, mStore.mPathPrefix),
+                        condstore ? " (" + ImapConstants.CONDSTORE + ")" : ""));
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = OpenMode.READ_WRITE;
+        mUidValidity = -1;
+        mHighestModSeq = 0;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -1245,6 +1860,14 @@ class ImapFolder extends Folder {
                     mMode = OpenMode.READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = OpenMode.READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    // * OK [UIDVALIDITY 3857529045] UIDs valid
+                    mUidValidity = parseResponseCodeNumber(response, -1);
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    // * OK [HIGHESTMODSEQ 715194045007]
+                    mHighestModSeq = parseResponseCodeNumber(response, 0);
+                } else if (responseCode.is(ImapConstants.NOMODSEQ)) {
+                    mHighestModSeq = 0;
                 }
             } else if (response.isTagged()) { // Not OK
                 throw new MessagingException("Can't open mailbox: "
@@ -1258,6 +1881,19 @@ class ImapFolder extends Folder {
         mExists = true;
     }
 
+    /**
+     * Returns the numeric argument of the response code of {@code response}, such as the
+     * 715194045007 in "* OK [HIGHESTMODSEQ 715194045007]", or {@code defaultValue} if it's
+     * missing or malformed.  These values may not fit in an int.
+     */
+    private static long parseResponseCodeNumber(ImapResponse response, long defaultValue) {
+        try {
+            return Long.parseLong(response.getListOrEmpty(1).getStringOrEmpty(1).getString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     private void checkOpen() throws MessagingException {
         if (!isOpen()) {
             throw new MessagingException("Folder " + mName + " is not open.");
@@ -1268,12 +1904,19 @@ class ImapFolder extends Folder {
         if (DebugUtils.DEBUG) {
             LogUtils.d(Logging.LOG_TAG, "IO Exception detected: ", ioe);
         }
+        dropConnection(connection);
+        return new MessagingException(MessagingException.IOERROR, "IO Error", ioe);
+    }
+
+    /**
+     * Closes a connection which can't be used any more, rather than returning it to the pool.
+     */
+    private void dropConnection(ImapConnection connection) {
         connection.close();
         if (connection == mConnection) {
             mConnection = null; // To prevent close() from returning the connection to the pool.
             close(false);
         }
-        return new MessagingException(MessagingException.IOERROR, "IO Error", ioe);
     }
 
     @Override
@@ -29,6 +29,7 @@ import com.android.email.mail.Store;
 import com.android.email.mail.store.imap.ImapConstants;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapString;
+import com.android.email.mail.store.imap.UidSet;
 import com.android.email.mail.transport.MailTransport;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.VendorPolicyLoader;
@@ -617,9 +618,21 @@ public class ImapStore extends Store {
     }
 
     /**
-     * Returns UIDs of Messages joined with "," as the separator.
+     * Returns UIDs of Messages as a sequence set, with runs of consecutive UIDs written as
+     * ranges, e.g. "1:500,502", so that commands naming many messages stay short.  If any UID
+     * isn't a number, they're all just joined with "," as the separator.
      */
     static String joinMessageUids(Message[] messages) {
+        final UidSet uids = new UidSet();
+        for (Message m : messages) {
+            if (!uids.add(m.getUid())) {
+                return joinMessageUidsVerbatim(messages);
+            }
+        }
+        return uids.toString();
+    }
+
+    private static String joinMessageUidsVerbatim(Message[] messages) {
         StringBuilder sb = new StringBuilder();
         boolean notFirst = false;
         for (Message m : messages) {
@@ -47,6 +47,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 
 public class Pop3Store extends Store {
@@ -56,6 +57,12 @@ public class Pop3Store extends Store {
     private static boolean DEBUG_LOG_RAW_STREAM = false;
 
     private static final Flag[] PERMANENT_FLAGS = { Flag.DELETED };
+    /**
+     * The most commands sent ahead of their responses when the server supports PIPELINING.
+     * Enough to keep the connection busy, while few enough to fit in the server's receive
+     * window, so that we never block writing while its responses wait to be read (RFC 2449 6.6).
+     */
+    private static final int PIPELINE_DEPTH = 64;
     /** The name of the only mailbox available to POP3 accounts */
     private static final String POP3_MAILBOX_NAME = "INBOX";
     private final HashMap<String, Folder> mFolders = new HashMap<String, Folder>();
@@ -381,23 +388,34 @@ public class Pop3Store extends Store {
             if (!mMsgNumToMsgMap.isEmpty()) {
                 return;
             }
-            UidlParser parser = new UidlParser();
+            final UidlParser parser = new UidlParser();
             if (DEBUG_FORCE_SINGLE_LINE_UIDL || (mMessageCount > 5000)) {
                 /*
                  * In extreme cases we'll do a UIDL command per message instead of a bulk
                  * download.
                  */
+                final List<String> commands = new ArrayList<String>();
+                final List<Integer> msgNums = new ArrayList<Integer>();
                 for (int msgNum = start; msgNum <= end; msgNum++) {
-                    Pop3Message message = mMsgNumToMsgMap.get(msgNum);
-                    if (message == null) {
-                        String response = executeSimpleCommand("UIDL " + msgNum);
+                    if (mMsgNumToMsgMap.get(msgNum) == null) {
+                        commands.add("UIDL " + msgNum);
+                        msgNums.add(msgNum);
+                    }
+                }
+                executePipelined(commands, new ResponseHandler() {
+                    @Override
+                    public void handleResponse(int index, String response)
+                            throws IOException, MessagingException {
+                        if (isError(response)) {
+                            throw new MessagingException(response);
+                        }
                         if (!parser.parseSingleLine(response)) {
                             throw new IOException();
                         }
-                        message = new Pop3Message(parser.mUniqueId, this);
-                        indexMessage(msgNum, message);
+                        indexMessage(msgNums.get(index),
+                                new Pop3Message(parser.mUniqueId, Pop3Folder.this));
                     }
-                }
+                });
             } else {
                 String response = executeSimpleCommand("UIDL");
                 while ((response = mTransport.readLine(false)) != null) {
@@ -577,47 +595,119 @@ public class Pop3Store extends Store {
                 }
             }
             if (response != null)  {
-                try {
-                    int ok = response.indexOf("OK");
-                    if (ok > 0) {
-                        try {
-                            int start = ok + 3;
-                            if (start > response.length()) {
-                                // No length was supplied, this is a protocol error.
-                                LogUtils.e(Logging.LOG_TAG, "No body length supplied");
-                                message.setSize(0);
+                readBody(message, lines, response, callback);
+            }
+        }
+
+        /**
+         * Fetches the bodies of the given messages, as {@link #fetchBody} does for each of them,
+         * but with their commands pipelined if the server supports it, so that they arrive one
+         * after another rather than a round trip apart.
+         *
+         * @param messages the messages, fetched in this order
+         * @param lines the number of lines to fetch, or -1 for whole messages
+         * @param listener called with each message once its body is fetched; a message the
+         *     server wouldn't send is left out, as it is by {@link #fetchBody}
+         */
+        public void fetchBodies(List<Pop3Message> messages, int lines,
+                MessageRetrievalListener listener) throws IOException, MessagingException {
+            List<Pop3Message> refused = fetchBodiesPipelined(messages, lines, listener);
+            if (lines != -1 && !refused.isEmpty()) {
+                // The server may not support "TOP"; fall back to slower "RETR"
+                refused = fetchBodiesPipelined(refused, -1, listener);
+                for (Pop3Message message : refused) {
+                    LogUtils.w(Logging.LOG_TAG,
+                            "Can't read message " + mUidToMsgNumMap.get(message.getUid()));
+                }
+            } else if (!refused.isEmpty()) {
+                throw new MessagingException(
+                        "Can't read message " + mUidToMsgNumMap.get(refused.get(0).getUid()));
+            }
+        }
+
+        /**
+         * @return the messages for which the server answered with an error
+         */
+        private List<Pop3Message> fetchBodiesPipelined(final List<Pop3Message> messages,
+                final int lines, final MessageRetrievalListener listener)
+                throws IOException, MessagingException {
+            final List<String> commands = new ArrayList<String>(messages.size());
+            for (Pop3Message message : messages) {
+                final int messageId = mUidToMsgNumMap.get(message.getUid());
+                commands.add(lines == -1 ? String.format(Locale.US, "RETR %d", messageId)
+                        : String.format(Locale.US, "TOP %d %d", messageId, lines));
+            }
+            final List<Pop3Message> refused = new ArrayList<Pop3Message>();
+            executePipelined(commands, new ResponseHandler() {
+                @Override
+                public void handleResponse(int index, String response)
+                        throws IOException, MessagingException {
+                    final Pop3Message message = messages.get(index);
+                    if (isError(response)) {
+                        refused.add(message);
+                        return;
+                    }
+                    readBody(message, lines, response, null);
+                    if (listener != null) {
+                        listener.messageRetrieved(message);
+                    }
+                }
+            });
+            return refused;
+        }
+
+        /**
+         * Reads the body which follows a "+OK" response to RETR or TOP, up to and including the
+         * line which ends it, so that the next response can be read.
+         */
+        private void readBody(Pop3Message message, int lines, String response,
+                EOLConvertingInputStream.Callback callback) throws IOException, MessagingException {
+            InputStream in = mTransport.getInputStream();
+            if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
+                in = new LoggingInputStream(in);
+            }
+            final Pop3ResponseInputStream bodyIn = new Pop3ResponseInputStream(in);
+            try {
+                int ok = response.indexOf("OK");
+                if (ok > 0) {
+                    try {
+                        int start = ok + 3;
+                        if (start > response.length()) {
+                            // No length was supplied, this is a protocol error.
+                            LogUtils.e(Logging.LOG_TAG, "No body length supplied");
+                            message.setSize(0);
+                        } else {
+                            int end = response.indexOf(" ", start);
+                            final String intString;
+                            if (end > 0) {
+                                intString = response.substring(start, end);
                             } else {
-                                int end = response.indexOf(" ", start);
-                                final String intString;
-                                if (end > 0) {
-                                    intString = response.substring(start, end);
-                                } else {
-                                    intString = response.substring(start);
-                                }
-                                message.setSize(Integer.parseInt(intString));
+                                intString = response.substring(start);
                             }
-                        } catch (NumberFormatException e) {
-                            // We tried
+                            message.setSize(Integer.parseInt(intString));
                         }
+                    } catch (NumberFormatException e) {
+                        // We tried
                     }
-                    InputStream in = mTransport.getInputStream();
-                    if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
-                        in = new LoggingInputStream(in);
-                    }
-                    message.parse(new Pop3ResponseInputStream(in), callback);
                 }
-                catch (MessagingException me) {
-                    /*
-                     * If we're only downloading headers it's possible
-                     * we'll get a broken MIME message which we're not
-                     * real worried about. If we've downloaded the body
-                     * and can't parse it we need to let the user know.
-                     */
-                    if (lines == -1) {
-                        throw me;
-                    }
+                message.parse(bodyIn, callback);
+            }
+            catch (MessagingException me) {
+                /*
+                 * If we're only downloading headers it's possible
+                 * we'll get a broken MIME message which we're not
+                 * real worried about. If we've downloaded the body
+                 * and can't parse it we need to let the user know.
+                 */
+                if (lines == -1) {
+                    throw me;
                 }
             }
+            // Whatever the parser left unread, so that it isn't taken for the next response.
+            // (After an IOException, the connection is of no more use, so it's not read.)
+            while (bodyIn.read() != -1) {
+                // Skip it
+            }
         }
 
         @Override
@@ -640,11 +730,18 @@ public class Pop3Store extends Store {
 
         public void deleteMessage(Message message) throws MessagingException {
             mOneMessage[0] = message;
-            setFlags(mOneMessage, PERMANENT_FLAGS, true);
+            deleteMessages(mOneMessage);
+        }
+
+        /**
+         * Deletes the messages, with their DELE commands pipelined if the server supports it.
+         */
+        public void deleteMessages(Message[] messages) throws MessagingException {
+            setFlags(messages, PERMANENT_FLAGS, true);
         }
 
         @Override
-        public void setFlags(Message[] messages, Flag[] flags, boolean value)
+        public void setFlags(final Message[] messages, Flag[] flags, boolean value)
                 throws MessagingException {
             if (!value || !Utility.arrayContains(flags, Flag.DELETED)) {
                 /*
@@ -652,19 +749,24 @@ public class Pop3Store extends Store {
                  */
                 return;
             }
+            final List<String> commands = new ArrayList<String>(messages.length);
+            for (Message message : messages) {
+                int msgNum = mUidToMsgNumMap.get(message.getUid());
+                commands.add(String.format(Locale.US, "DELE %s", msgNum));
+            }
             try {
-                for (Message message : messages) {
-                    try {
-                        String uid = message.getUid();
-                        int msgNum = mUidToMsgNumMap.get(uid);
-                        executeSimpleCommand(String.format(Locale.US, "DELE %s", msgNum));
+                executePipelined(commands, new ResponseHandler() {
+                    @Override
+                    public void handleResponse(int index, String response) {
+                        if (isError(response)) {
+                            // A failed deletion isn't a problem
+                            return;
+                        }
                         // Remove from the maps
-                        mMsgNumToMsgMap.remove(msgNum);
-                        mUidToMsgNumMap.remove(uid);
-                    } catch (MessagingException e) {
-                        // A failed deletion isn't a problem
+                        String uid = messages[index].getUid();
+                        mMsgNumToMsgMap.remove(mUidToMsgNumMap.remove(uid));
                     }
-                }
+                });
             }
             catch (IOException ioe) {
                 mTransport.close();
@@ -689,6 +791,8 @@ public class Pop3Store extends Store {
                         break;
                     } else if (response.equalsIgnoreCase("STLS")){
                         capabilities.stls = true;
+                    } else if (response.equalsIgnoreCase("PIPELINING")) {
+                        capabilities.pipelining = true;
                     }
                 }
             }
@@ -731,13 +835,65 @@ public class Pop3Store extends Store {
 
             String response = mTransport.readLine(true);
 
-            if (response.length() > 1 && response.charAt(0) == '-') {
+            if (isError(response)) {
                 throw new MessagingException(response);
             }
 
             return response;
         }
 
+        /**
+         * Called with the first line of each response to the commands given to
+         * {@link #executePipelined}, in order.
+         */
+        private interface ResponseHandler {
+            /**
+             * @param index the index of the command answered
+             * @param response the first line of the response, which may be "-ERR"; the rest of a
+             *     multi-line response must be read before returning
+             */
+            void handleResponse(int index, String response) throws IOException, MessagingException;
+        }
+
+        /**
+         * Sends the commands, and hands their responses to the handler in order.  If the server
+         * supports PIPELINING, up to {@link #PIPELINE_DEPTH} commands are sent ahead of their
+         * responses, so that the responses arrive without a round trip between each; otherwise
+         * each command is sent once the one before it is answered.  Reopens the connection, if
+         * it is closed.  If the handler throws while responses are still to come, the connection
+         * is closed, as they can't be told from what's read next.
+         */
+        private void executePipelined(List<String> commands, ResponseHandler handler)
+                throws IOException, MessagingException {
+            if (commands.isEmpty()) {
+                return;
+            }
+            open(OpenMode.READ_WRITE);
+            final int depth = mCapabilities.pipelining ? PIPELINE_DEPTH : 1;
+            final int count = commands.size();
+            int sent = 0;
+            for (int i = 0; i < count; i++) {
+                final int limit = Math.min(i + depth, count);
+                while (sent < limit) {
+                    mTransport.writeLine(commands.get(sent), null, sent == limit - 1);
+                    sent++;
+                }
+                boolean handled = false;
+                try {
+                    handler.handleResponse(i, mTransport.readLine(true));
+                    handled = true;
+                } finally {
+                    if (!handled && sent > i + 1) {
+                        mTransport.close();
+                    }
+                }
+            }
+        }
+
+        private boolean isError(String response) {
+            return response.length() > 1 && response.charAt(0) == '-';
+        }
+
         @Override
         public boolean equals(Object o) {
             if (o instanceof Pop3Folder) {
@@ -793,10 +949,12 @@ public class Pop3Store extends Store {
     class Pop3Capabilities {
         /** The STLS (start TLS) command is supported */
         public boolean stls;
+        /** Commands may be sent without waiting for earlier responses (RFC 2449 6.6) */
+        public boolean pipelining;
 
         @Override
         public String toString() {
-            return String.format("STLS %b", stls);
+            return String.format("STLS %b, PIPELINING %b", stls, pipelining);
         }
     }
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.emailcommon.mail.MessagingException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * {@link ImapResponseParser.StreamingCallback} that builds the non-literal part of a streamed
+ * response as an {@link ImapList}, and lets subclasses consume literals directly from the
+ * stream.
+ *
+ * <p>A literal that the subclass consumes is replaced with {@link ImapString#EMPTY} in the
+ * built list, so that keyed lookups still line up.
+ */
+public abstract class ImapListBuilder implements ImapResponseParser.StreamingCallback {
+    /** Elements following "FETCH", i.e. usually a single list. */
+    private ImapList mElements;
+
+    /** Lists that have been started but not ended yet.  The last one is the current list. */
+    private final ArrayList<ImapList> mStack = new ArrayList<ImapList>();
+
+    private ImapResponse mResponse;
+
+    private ImapList currentList() {
+        return mStack.isEmpty() ? mElements : mStack.get(mStack.size() - 1);
+    }
+
+    @Override
+    public final void onResponseStart(ImapResponse response) {
+        mResponse = response;
+        mElements = new ImapList();
+        mStack.clear();
+    }
+
+    @Override
+    public final void onListStart() {
+        final ImapList list = new ImapList();
+        currentList().add(list);
+        mStack.add(list);
+    }
+
+    @Override
+    public final void onListEnd() {
+        if (!mStack.isEmpty()) {
+            mStack.remove(mStack.size() - 1);
+        }
+    }
+
+    @Override
+    public final void onString(ImapString s) {
+        currentList().add(s);
+    }
+
+    @Override
+    public final boolean onLiteral(InputStream in, int size)
+            throws IOException, MessagingException {
+        final ImapList list = currentList();
+        if (!consumeLiteral(list, in, size)) {
+            return false;
+        }
+        list.add(ImapString.EMPTY);
+        return true;
+    }
+
+    @Override
+    public final void onResponseEnd() throws IOException, MessagingException {
+        final ImapList elements = mElements;
+        mElements = null;
+        mStack.clear();
+        try {
+            onResponseBuilt(mResponse, elements);
+        } finally {
+            mResponse = null;
+            elements.destroy();
+        }
+    }
+
+    /**
+     * Called when a literal starts.
+     *
+     * @param list the list the literal belongs to, containing the elements preceding it.  For a
+     *     FETCH response, the last element is the key of the literal, e.g. "BODY[]".
+     * @return true if the literal has been read from {@code in}.  If false, the literal will be
+     *     added to {@code list} as an {@link ImapString}.
+     */
+    protected boolean consumeLiteral(ImapList list, InputStream in, int size)
+            throws IOException, MessagingException {
+        return false;
+    }
+
+    /**
+     * Called when the response has been parsed.
+     *
+     * @param response the response, containing the sequence number and "FETCH".
+     * @param elements the elements following "FETCH".  It'll be destroyed after this method
+     *     returns.
+     */
+    protected abstract void onResponseBuilt(ImapResponse response, ImapList elements)
+            throws IOException, MessagingException;
+}
@@ -44,6 +44,13 @@ public class ImapResponse extends ImapList {
         return mTag != null;
     }
 
+    /**
+     * @return the tag, or null if it's not a tagged response.
+     */
+    public String getTag() {
+        return mTag;
+    }
+
     /**
      * @return whether it's a continuation request.
      */
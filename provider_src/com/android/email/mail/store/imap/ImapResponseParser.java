@@ -20,7 +20,6 @@ import android.text.TextUtils;
 
 import com.android.email.DebugUtils;
 import com.android.email.FixedLengthInputStream;
-import com.android.email.PeekableInputStream;
 import com.android.email.mail.transport.DiscourseLogger;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.mail.MessagingException;
@@ -29,10 +28,16 @@ import com.android.mail.utils.LogUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * IMAP response parser.
+ *
+ * <p>Server bytes are read in bulk into {@link #mBuffer}, and atoms, quoted strings and literal
+ * headers are tokenized by scanning the buffer by index, rather than pulling one byte at a time
+ * through the stream.  Consumed bytes are passed to the {@link DiscourseLogger} in chunks.
  */
 public class ImapResponseParser {
     private static final boolean DEBUG_LOG_RAW_STREAM = false; // DO NOT RELEASE AS 'TRUE'
@@ -42,8 +47,45 @@ public class ImapResponseParser {
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+    /** Size of the read buffer. */
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    /** Response bytes are converted to chars one-to-one, as the parser always did. */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Bytes that end an atom.  See {@link #parseBareString()}.
+     */
+    private static final boolean[] ATOM_TERMINATORS = new boolean[256];
+
+    static {
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        // - ']' is not part of atom (it's in resp-specials)
+        // - docs claim that flags are \ atom but atom isn't supposed to contain * and some flags
+        //   contain *, so '*' is allowed.
+        // - TODO probably should not allow \ and should recognize it as a flag instead
+        for (int i = 0x00; i <= 0x1f; i++) {
+            ATOM_TERMINATORS[i] = true;
+        }
+        ATOM_TERMINATORS[0x7f] = true;
+        for (char c : "(){ ]%\"".toCharArray()) {
+            ATOM_TERMINATORS[c] = true;
+        }
+    }
+
     /** Input stream */
-    private final PeekableInputStream mIn;
+    private final InputStream mIn;
+
+    /** Read buffer, and the range of it that hasn't been consumed yet. */
+    private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+    private int mBufferPos;
+    private int mBufferLength;
+
+    /**
+     * Start of the bytes in {@link #mBuffer} that have been consumed but not yet passed to
+     * {@link #mDiscourseLogger}.
+     */
+    private int mLogPos;
 
     /**
      * To log network activities when the parser crashes.
@@ -54,11 +96,12 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /** Storage for a token that spans more than one buffer fill. */
+    private byte[] mToken = new byte[256];
+    private int mTokenLength;
 
-    /** StringBuilder used by parseBareString() */
-    private final StringBuilder mParseBareString = new StringBuilder();
+    /** Stream used to read literals; drains {@link #mBuffer} before reading {@link #mIn}. */
+    private final InputStream mLiteralSource = new LiteralSourceStream();
 
     /**
      * We store all {@link ImapResponse} in it.  {@link #destroyResponses()} must be called from
@@ -77,6 +120,44 @@ public class ImapResponseParser {
         }
     }
 
+    /**
+     * Callback to receive the contents of a FETCH response as a sequence of events, instead of
+     * having the whole response built as an {@link ImapList} tree.
+     *
+     * @see #readResponse(StreamingCallback)
+     */
+    public interface StreamingCallback {
+        /**
+         * Called when a FETCH response starts.  {@code response} contains only the message
+         * sequence number and "FETCH"; the rest will be reported by the other methods.
+         */
+        void onResponseStart(ImapResponse response) throws IOException, MessagingException;
+
+        /** Called on '(' or '['. */
+        void onListStart() throws IOException, MessagingException;
+
+        /** Called on ')' or ']'. */
+        void onListEnd() throws IOException, MessagingException;
+
+        /**
+         * Called for an atom or a quoted string, and for a literal that was not consumed by
+         * {@link #onLiteral}.  NIL is reported as {@link ImapString#EMPTY}.
+         */
+        void onString(ImapString s) throws IOException, MessagingException;
+
+        /**
+         * Called when a literal starts.  The callback may read the literal directly from
+         * {@code in}; the parser skips whatever is left unread afterwards.
+         *
+         * @return true if the literal has been consumed.  If false, the parser reads it into an
+         *     {@link ImapString} and passes it to {@link #onString}.
+         */
+        boolean onLiteral(InputStream in, int size) throws IOException, MessagingException;
+
+        /** Called when the FETCH response ends. */
+        void onResponseEnd() throws IOException, MessagingException;
+    }
+
     /**
      * Public constructor for normal use.
      */
@@ -92,7 +173,7 @@ public class ImapResponseParser {
         if (DEBUG_LOG_RAW_STREAM && DebugUtils.DEBUG) {
             in = new LoggingInputStream(in);
         }
-        mIn = new PeekableInputStream(in);
+        mIn = in;
         mDiscourseLogger = discourseLogger;
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
     }
@@ -106,32 +187,79 @@ public class ImapResponseParser {
     }
 
     /**
-     * Peek next one byte.
+     * Refill {@link #mBuffer} from {@link #mIn}.  Must only be called when the buffer has been
+     * fully consumed.
+     *
+     * @return false if reaches EOF.
+     */
+    private boolean fill() throws IOException {
+        flushDiscourseLog();
+        int read;
+        do {
+            read = mIn.read(mBuffer, 0, mBuffer.length);
+        } while (read == 0);
+        if (read < 0) {
+            return false;
+        }
+        mBufferPos = 0;
+        mBufferLength = read;
+        mLogPos = 0;
+        return true;
+    }
+
+    /**
+     * Make sure there's at least one unconsumed byte in {@link #mBuffer}.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
-    private int peek() throws IOException {
-        final int next = mIn.peek();
-        if (next == -1) {
+    private void ensureBuffered() throws IOException {
+        if (mBufferPos >= mBufferLength && !fill()) {
             throw newEOSException();
         }
-        return next;
     }
 
     /**
-     * Read and return one byte from {@link #mIn}, and put it in {@link #mDiscourseLogger}.
+     * Pass the bytes consumed since the last call to {@link #mDiscourseLogger}.
+     */
+    private void flushDiscourseLog() {
+        if (mBufferPos > mLogPos) {
+            mDiscourseLogger.addReceivedBytes(mBuffer, mLogPos, mBufferPos - mLogPos);
+        }
+        mLogPos = mBufferPos;
+    }
+
+    /**
+     * Peek next one byte.
+     *
+     * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
+     * we shouldn't see EOF during parsing.
+     */
+    private int peek() throws IOException {
+        ensureBuffered();
+        return mBuffer[mBufferPos] & 0xff;
+    }
+
+    /**
+     * Read and return one byte.  It'll be passed to {@link #mDiscourseLogger} along with the
+     * rest of the consumed bytes.
      *
      * Throws IOException() if reaches EOF.  As long as logical response lines end with \r\n,
      * we shouldn't see EOF during parsing.
      */
     private int readByte() throws IOException {
-        int next = mIn.read();
-        if (next == -1) {
-            throw newEOSException();
+        ensureBuffered();
+        return mBuffer[mBufferPos++] & 0xff;
+    }
+
+    /** Append bytes to {@link #mToken}, growing it as needed. */
+    private void appendToken(byte[] b, int offset, int length) {
+        final int newLength = mTokenLength + length;
+        if (newLength > mToken.length) {
+            mToken = Arrays.copyOf(mToken, Math.max(newLength, mToken.length * 2));
         }
-        mDiscourseLogger.addReceivedByte(next);
-        return next;
+        System.arraycopy(b, offset, mToken, mTokenLength, length);
+        mTokenLength = newLength;
     }
 
     /**
@@ -158,9 +286,32 @@ public class ImapResponseParser {
      * @exception ByeException when detects BYE.
      */
     public ImapResponse readResponse() throws IOException, MessagingException {
+        return readResponse(null);
+    }
+
+    /**
+     * Waits until the next response starts to arrive, without consuming any of it.  Unlike a
+     * read timeout in the middle of a response, which leaves the parser out of step with the
+     * server, a timeout here leaves the parser ready to read the response later.
+     */
+    public void waitForResponse() throws IOException {
+        peek();
+    }
+
+    /**
+     * Same as {@link #readResponse()}, but the body of a FETCH response is reported to
+     * {@code callback} as it's parsed, and literals in it can be streamed directly to their
+     * destination.  The returned {@link ImapResponse} for a FETCH response only contains the
+     * sequence number and "FETCH".  Other responses are returned as usual.
+     *
+     * @param callback the callback, or null to build all responses.
+     */
+    public ImapResponse readResponse(StreamingCallback callback)
+            throws IOException, MessagingException {
         ImapResponse response = null;
         try {
-            response = parseResponse();
+            response = parseResponse(callback);
+            flushDiscourseLog();
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, "<<< " + response.toString());
             }
@@ -201,6 +352,7 @@ public class ImapResponseParser {
             }
         } catch (IOException ignore) {
         }
+        flushDiscourseLog();
         LogUtils.w(Logging.LOG_TAG, "Exception detected: " + e.getMessage());
         mDiscourseLogger.logLastDiscourse();
     }
@@ -222,14 +374,44 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
+        ensureBuffered();
+        final byte[] buf = mBuffer;
+        final int start = mBufferPos;
+        final int limit = mBufferLength;
+        for (int i = start; i < limit; i++) {
+            if ((buf[i] & 0xff) == end) {
+                // Common case: the whole string is in the buffer.
+                mBufferPos = i + 1;
+                return new String(buf, start, i - start, ISO_8859_1);
+            }
+        }
+        mTokenLength = 0;
+        appendToken(buf, start, limit - start);
+        mBufferPos = limit;
+        appendUntil(end);
+        return new String(mToken, 0, mTokenLength, ISO_8859_1);
+    }
+
+    /**
+     * Read bytes until we find {@code end}, and append them to {@link #mToken}.
+     * The {@code end} will be read and won't be appended.
+     */
+    private void appendUntil(char end) throws IOException {
         for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
+            ensureBuffered();
+            final byte[] buf = mBuffer;
+            final int start = mBufferPos;
+            final int limit = mBufferLength;
+            int i = start;
+            while (i < limit && (buf[i] & 0xff) != end) {
+                i++;
+            }
+            appendToken(buf, start, i - start);
+            if (i < limit) {
+                mBufferPos = i + 1;
+                return;
             }
+            mBufferPos = limit;
         }
     }
 
@@ -245,7 +427,8 @@ public class ImapResponseParser {
     /**
      * Parse and return the response line.
      */
-    private ImapResponse parseResponse() throws IOException, MessagingException {
+    private ImapResponse parseResponse(StreamingCallback callback)
+            throws IOException, MessagingException {
         // We need to destroy the response if we get an exception.
         // So, we first store the response that's being built in responseToDestroy, until it's
         // completely built, at which point we copy it into responseToReturn and null out
@@ -306,7 +489,7 @@ public class ImapResponseParser {
                             responseToDestroy.add(new ImapSimpleString(rest));
                         }
                     } else { // It's a response data.
-                        parseElements(responseToDestroy, '\0');
+                        parseResponseData(responseToDestroy, callback);
                     }
                 } else {
                     expect('\r');
@@ -327,6 +510,34 @@ public class ImapResponseParser {
         return responseToReturn;
     }
 
+    /**
+     * Parse the rest of a response data.  If it's a FETCH response and {@code callback} is given,
+     * the elements following "FETCH" are reported to it rather than added to {@code response}.
+     */
+    private void parseResponseData(ImapResponse response, StreamingCallback callback)
+            throws IOException, MessagingException {
+        if (callback == null) {
+            parseElements(response, '\0');
+            return;
+        }
+        // Parse the element following the sequence number, to see if it's FETCH.
+        while (peek() == ' ') {
+            readByte();
+        }
+        final ImapElement el = parseElement();
+        if (el == null) { // EOL
+            return;
+        }
+        response.add(el);
+        if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+            parseElements(response, '\0');
+            return;
+        }
+        callback.onResponseStart(response);
+        streamElements(callback, '\0');
+        callback.onResponseEnd();
+    }
+
     private ImapElement parseElement() throws IOException, MessagingException {
         final int next = peek();
         switch (next) {
@@ -361,44 +572,57 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
+        mTokenLength = 0;
         for (;;) {
-            final int ch = peek();
-
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
-
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
+            ensureBuffered();
+            final byte[] buf = mBuffer;
+            final int start = mBufferPos;
+            final int limit = mBufferLength;
+            int i = start;
+            int ch = 0;
+            while (i < limit) {
+                ch = buf[i] & 0xff;
+                if (ATOM_TERMINATORS[ch] || ch == '[') {
+                    break;
                 }
-                return new ImapSimpleString(s);
+                i++;
+            }
+            if (i == limit) {
+                // The atom continues past the end of the buffer.
+                appendToken(buf, start, i - start);
+                mBufferPos = limit;
             } else if (ch == '[') {
                 // Eat all until next ']'
-                mParseBareString.append((char) readByte());
-                mParseBareString.append(readUntil(']'));
-                mParseBareString.append(']'); // readUntil won't include the end char.
+                appendToken(buf, start, i + 1 - start);
+                mBufferPos = i + 1;
+                appendUntil(']');
+                appendToken(buf, mBufferPos - 1, 1); // appendUntil won't include the end char.
             } else {
-                mParseBareString.append((char) readByte());
+                mBufferPos = i;
+                if (mTokenLength == 0) {
+                    // Common case: the whole atom is in the buffer.
+                    return createAtom(buf, start, i - start);
+                }
+                appendToken(buf, start, i - start);
+                return createAtom(mToken, 0, mTokenLength);
             }
         }
     }
 
+    private static ImapString createAtom(byte[] b, int offset, int length)
+            throws MessagingException {
+        if (length == 0) {
+            throw new MessagingException("Expected string, none found.");
+        }
+
+        // NIL will be always converted into the empty string.
+        if (length == 3 && (b[offset] | 0x20) == 'n' && (b[offset + 1] | 0x20) == 'i'
+                && (b[offset + 2] | 0x20) == 'l') {
+            return ImapString.EMPTY;
+        }
+        return new ImapSimpleString(new String(b, offset, length, ISO_8859_1));
+    }
+
     private void parseElements(ImapList list, char end)
             throws IOException, MessagingException {
         for (;;) {
@@ -430,7 +654,95 @@ public class ImapResponseParser {
         return list;
     }
 
+    /**
+     * Streaming version of {@link #parseElements}.
+     */
+    private void streamElements(StreamingCallback callback, char end)
+            throws IOException, MessagingException {
+        for (;;) {
+            for (;;) {
+                final int next = peek();
+                if (next == end) {
+                    return;
+                }
+                if (next != ' ') {
+                    break;
+                }
+                // Skip space
+                readByte();
+            }
+            if (!streamElement(callback)) { // EOL
+                return;
+            }
+        }
+    }
+
+    /**
+     * Streaming version of {@link #parseElement}.
+     *
+     * @return false if it reached EOL.
+     */
+    private boolean streamElement(StreamingCallback callback)
+            throws IOException, MessagingException {
+        final int next = peek();
+        switch (next) {
+            case '(':
+                streamList('(', ')', callback);
+                return true;
+            case '[':
+                streamList('[', ']', callback);
+                return true;
+            case '"':
+                readByte(); // Skip "
+                callback.onString(new ImapSimpleString(readUntil('"')));
+                return true;
+            case '{':
+                streamLiteral(callback);
+                return true;
+            case '\r':  // CR
+                readByte(); // Consume \r
+                expect('\n'); // Should be followed by LF.
+                return false;
+            case '\n': // LF // There shouldn't be a bare LF, but just in case.
+                readByte(); // Consume \n
+                return false;
+            default:
+                callback.onString(parseBareString());
+                return true;
+        }
+    }
+
+    private void streamList(char opening, char closing, StreamingCallback callback)
+            throws IOException, MessagingException {
+        expect(opening);
+        callback.onListStart();
+        streamElements(callback, closing);
+        expect(closing);
+        callback.onListEnd();
+    }
+
+    private void streamLiteral(StreamingCallback callback)
+            throws IOException, MessagingException {
+        final FixedLengthInputStream in = openLiteral();
+        if (callback.onLiteral(in, in.getLength())) {
+            // Skip whatever the callback didn't read.
+            final byte[] skipBuffer = mToken;
+            while (in.read(skipBuffer, 0, skipBuffer.length) > 0) {
+                // Discard.
+            }
+        } else {
+            callback.onString(createLiteral(in));
+        }
+    }
+
     private ImapString parseLiteral() throws IOException, MessagingException {
+        return createLiteral(openLiteral());
+    }
+
+    /**
+     * Parse a literal header, e.g. "{10}\r\n", and return a stream to read the literal from.
+     */
+    private FixedLengthInputStream openLiteral() throws IOException, MessagingException {
         expect('{');
         final int size;
         try {
@@ -443,11 +755,58 @@ public class ImapResponseParser {
         }
         expect('\r');
         expect('\n');
-        FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
+        // Literals aren't logged.
+        flushDiscourseLog();
+        return new FixedLengthInputStream(mLiteralSource, size);
+    }
+
+    private ImapString createLiteral(FixedLengthInputStream in) throws IOException {
+        if (in.getLength() > mLiteralKeepInMemoryThreshold) {
             return new ImapTempFileLiteral(in);
         } else {
             return new ImapMemoryLiteral(in);
         }
     }
+
+    /**
+     * {@link InputStream} that returns the unconsumed part of {@link #mBuffer} first, and then
+     * reads from {@link #mIn}.  Bytes read through it are not passed to the discourse logger.
+     */
+    private class LiteralSourceStream extends InputStream {
+        @Override
+        public int available() throws IOException {
+            return (mBufferLength - mBufferPos) + mIn.available();
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mBufferPos >= mBufferLength && !fill()) {
+                return -1;
+            }
+            final int b = mBuffer[mBufferPos++] & 0xff;
+            mLogPos = mBufferPos;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (mBufferPos >= mBufferLength) {
+                if (length >= mBuffer.length) {
+                    // Large read; no point copying through the buffer.
+                    return mIn.read(b, offset, length);
+                }
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            final int count = Math.min(length, mBufferLength - mBufferPos);
+            System.arraycopy(mBuffer, mBufferPos, b, offset, count);
+            mBufferPos += count;
+            mLogPos = mBufferPos;
+            return count;
+        }
+    }
 }
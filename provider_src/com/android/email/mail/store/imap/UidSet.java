@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import com.android.emailcommon.Logging;
+import com.android.mail.utils.LogUtils;
+
+/**
+ * A set of message UIDs, kept as sorted runs of consecutive UIDs rather than as one string per
+ * UID.  UIDs are unsigned 32-bit numbers per RFC 3501, hence the longs.  {@link #toString()}
+ * writes the set as a sequence set, e.g. "1:500,502,510:900", which keeps command lines short
+ * whatever the number of messages they name.
+ */
+public class UidSet {
+    /** The first and last UID of each run; runs are sorted, and never overlap or touch */
+    private long[] mStarts;
+    private long[] mEnds;
+    private int mRuns;
+
+    public UidSet() {
+        this(8);
+    }
+
+    /**
+     * @param capacity the number of runs to make room for
+     */
+    public UidSet(int capacity) {
+        capacity = Math.max(capacity, 1);
+        mStarts = new long[capacity];
+        mEnds = new long[capacity];
+    }
+
+    /**
+     * Parses a sequence set per RFC 3501, e.g. from a VANISHED response.  Invalid items, and
+     * "*", are skipped.
+     */
+    public static UidSet parse(String sequenceSet) {
+        final UidSet set = new UidSet();
+        if (sequenceSet == null) {
+            return set;
+        }
+        for (String item : sequenceSet.split(",")) {
+            try {
+                final int colonPos = item.indexOf(':');
+                if (colonPos == -1) {
+                    set.add(Long.parseLong(item));
+                } else {
+                    final long first = Long.parseLong(item.substring(0, colonPos));
+                    final long second = Long.parseLong(item.substring(colonPos + 1));
+                    set.addRange(Math.min(first, second), Math.max(first, second));
+                }
+            } catch (NumberFormatException e) {
+                LogUtils.d(Logging.LOG_TAG, "Invalid UID value", e);
+            }
+        }
+        return set;
+    }
+
+    public boolean isEmpty() {
+        return mRuns == 0;
+    }
+
+    /**
+     * @return the number of UIDs in the set
+     */
+    public long size() {
+        long size = 0;
+        for (int i = 0; i < mRuns; i++) {
+            size += mEnds[i] - mStarts[i] + 1;
+        }
+        return size;
+    }
+
+    /**
+     * Adds a UID.  Adding UIDs in ascending order is cheapest.
+     */
+    public void add(long uid) {
+        addRange(uid, uid);
+    }
+
+    /**
+     * Adds a UID given as a string.
+     *
+     * @return false if it isn't a valid UID, and wasn't added
+     */
+    public boolean add(String uid) {
+        final long value = parseUid(uid);
+        if (value < 0) {
+            return false;
+        }
+        add(value);
+        return true;
+    }
+
+    /**
+     * Adds the UIDs from {@code first} to {@code last}, inclusive.
+     */
+    public void addRange(long first, long last) {
+        if (first > last) {
+            return;
+        }
+        // The common case: beyond, or touching, the last run
+        if (mRuns == 0 || first > mEnds[mRuns - 1] + 1) {
+            insertRun(mRuns, first, last);
+            return;
+        }
+        // Find the first run which ends at or after first - 1; the new range joins it, or goes
+        // just before it
+        int index = findRun(first - 1);
+        if (index < 0 || mEnds[index] < first - 1) {
+            index++;
+        }
+        if (index == mRuns || mStarts[index] > last + 1) {
+            insertRun(index, first, last);
+            return;
+        }
+        // Merge the new range, and any other runs it reaches, into this run
+        mStarts[index] = Math.min(mStarts[index], first);
+        int lastMerged = index;
+        while (lastMerged + 1 < mRuns && mStarts[lastMerged + 1] <= last + 1) {
+            lastMerged++;
+        }
+        mEnds[index] = Math.max(last, mEnds[lastMerged]);
+        removeRuns(index + 1, lastMerged - index);
+    }
+
+    /**
+     * Adds every UID in {@code other}.
+     */
+    public void addAll(UidSet other) {
+        for (int i = 0; i < other.mRuns; i++) {
+            addRange(other.mStarts[i], other.mEnds[i]);
+        }
+    }
+
+    /**
+     * Removes a UID, if it's in the set.
+     *
+     * @return whether it was in the set
+     */
+    public boolean remove(long uid) {
+        final int index = findRun(uid);
+        if (index < 0 || mEnds[index] < uid) {
+            return false;
+        }
+        final long start = mStarts[index];
+        final long end = mEnds[index];
+        if (start == end) {
+            removeRuns(index, 1);
+        } else if (uid == start) {
+            mStarts[index] = uid + 1;
+        } else if (uid == end) {
+            mEnds[index] = uid - 1;
+        } else {
+            // Split the run in two
+            mEnds[index] = uid - 1;
+            insertRun(index + 1, uid + 1, end);
+        }
+        return true;
+    }
+
+    /**
+     * @see #remove(long)
+     */
+    public boolean remove(String uid) {
+        final long value = parseUid(uid);
+        return value >= 0 && remove(value);
+    }
+
+    public boolean contains(long uid) {
+        final int index = findRun(uid);
+        return index >= 0 && mEnds[index] >= uid;
+    }
+
+    /**
+     * @return whether the set contains the UID given as a string; false if it isn't valid
+     */
+    public boolean contains(String uid) {
+        final long value = parseUid(uid);
+        return value >= 0 && contains(value);
+    }
+
+    /**
+     * @return the set as a sequence set per RFC 3501, e.g. "1:500,502,510:900"
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < mRuns; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(mStarts[i]);
+            if (mEnds[i] != mStarts[i]) {
+                sb.append(':').append(mEnds[i]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the UID, or -1 if it isn't a valid one
+     */
+    private static long parseUid(String uid) {
+        if (uid == null || uid.length() == 0) {
+            return -1;
+        }
+        // Long.parseLong accepts signs, which UIDs never have
+        for (int i = 0, length = uid.length(); i < length; i++) {
+            final char c = uid.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the index of the last run starting at or before {@code uid}, or -1 if none does
+     */
+    private int findRun(long uid) {
+        int low = 0;
+        int high = mRuns - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= uid) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private void insertRun(int index, long start, long end) {
+        if (mRuns == mStarts.length) {
+            final int capacity = mRuns * 2;
+            final long[] starts = new long[capacity];
+            final long[] ends = new long[capacity];
+            System.arraycopy(mStarts, 0, starts, 0, mRuns);
+            System.arraycopy(mEnds, 0, ends, 0, mRuns);
+            mStarts = starts;
+            mEnds = ends;
+        }
+        System.arraycopy(mStarts, index, mStarts, index + 1, mRuns - index);
+        System.arraycopy(mEnds, index, mEnds, index + 1, mRuns - index);
+        mStarts[index] = start;
+        mEnds[index] = end;
+        mRuns++;
+    }
+
+    private void removeRuns(int index, int count) {
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(mStarts, index + count, mStarts, index, mRuns - index - count);
+        System.arraycopy(mEnds, index + count, mEnds, index, mRuns - index - count);
+        mRuns -= count;
+    }
+}
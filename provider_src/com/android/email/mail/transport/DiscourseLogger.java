@@ -74,6 +74,17 @@ public class DiscourseLogger {
         }
     }
 
+    /**
+     * Bulk version of {@link #addReceivedByte}, used by parsers that read the server stream
+     * into a buffer.
+     */
+    public void addReceivedBytes(byte[] b, int offset, int length) {
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            addReceivedByte(b[i] & 0xff);
+        }
+    }
+
     /** Add a line sent to the server to {@link #mBuffer}. */
     public void addSentCommand(String command) {
         addLine(command);
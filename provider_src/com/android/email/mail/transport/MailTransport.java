@@ -27,6 +27,9 @@ import com.android.emailcommon.utility.SSLUtils;
 import com.android.mail.analytics.Analytics;
 import com.android.mail.utils.LogUtils;
 
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
@@ -37,6 +40,10 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -62,6 +69,15 @@ public class MailTransport {
     private InputStream mIn;
     private OutputStream mOut;
 
+    /** Set once the session is compressed; see {@link #startCompression()} */
+    private Inflater mInflater;
+    private Deflater mDeflater;
+    /** Count the bytes on the wire, and before compression, once the session is compressed */
+    private CountingInputStream mCompressedIn;
+    private CountingInputStream mUncompressedIn;
+    private CountingOutputStream mCompressedOut;
+    private CountingOutputStream mUncompressedOut;
+
     public MailTransport(Context context, String debugLabel, HostAuth hostAuth) {
         super();
         mContext = context;
@@ -135,6 +151,13 @@ public class MailTransport {
             mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
+            // A new session starts uncompressed, whatever the last one on this transport was
+            mInflater = null;
+            mDeflater = null;
+            mCompressedIn = null;
+            mUncompressedIn = null;
+            mCompressedOut = null;
+            mUncompressedOut = null;
         } catch (SSLException e) {
             if (DebugUtils.DEBUG) {
                 LogUtils.d(Logging.LOG_TAG, e.toString());
@@ -247,6 +270,49 @@ public class MailTransport {
         mSocket.setSoTimeout(timeoutMilliseconds);
     }
 
+    /**
+     * Compresses the rest of the session with raw DEFLATE (RFC 1951), as negotiated by e.g. the
+     * IMAP COMPRESS command (RFC 4978).  Every flush of the output stream is a sync flush, so that
+     * a command is never left sitting in the compressor.  Callers must pick up the new streams
+     * from {@link #getInputStream()} and {@link #getOutputStream()}.
+     */
+    public void startCompression() {
+        mInflater = new Inflater(true);
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        mCompressedIn = new CountingInputStream(mIn);
+        mUncompressedIn = new CountingInputStream(
+                new InflaterInputStream(mCompressedIn, mInflater, 4096));
+        mCompressedOut = new CountingOutputStream(mOut);
+        mUncompressedOut = new CountingOutputStream(
+                new DeflaterOutputStream(mCompressedOut, mDeflater, 512, true));
+        mIn = mUncompressedIn;
+        mOut = mUncompressedOut;
+    }
+
+    public boolean isCompressed() {
+        return mInflater != null;
+    }
+
+    /** @return the number of bytes received over the wire since compression started */
+    public long getCompressedBytesRead() {
+        return (mCompressedIn != null) ? mCompressedIn.getByteCount() : 0;
+    }
+
+    /** @return the number of bytes received since compression started, once inflated */
+    public long getUncompressedBytesRead() {
+        return (mUncompressedIn != null) ? mUncompressedIn.getByteCount() : 0;
+    }
+
+    /** @return the number of bytes sent over the wire since compression started */
+    public long getCompressedBytesWritten() {
+        return (mCompressedOut != null) ? mCompressedOut.getByteCount() : 0;
+    }
+
+    /** @return the number of bytes sent since compression started, before deflating */
+    public long getUncompressedBytesWritten() {
+        return (mUncompressedOut != null) ? mUncompressedOut.getByteCount() : 0;
+    }
+
     public boolean isOpen() {
         return (mIn != null && mOut != null &&
                 mSocket != null && mSocket.isConnected() && !mSocket.isClosed());
@@ -271,6 +337,10 @@ public class MailTransport {
         } catch (Exception e) {
             // May fail if the connection is already closed.
         }
+        // The inflater and deflater aren't end()ed here, since close() may be called while another
+        // thread is still reading; they free their native state once collected.
+        mInflater = null;
+        mDeflater = null;
         mIn = null;
         mOut = null;
         mSocket = null;
@@ -288,6 +358,16 @@ public class MailTransport {
      * Writes a single line to the server using \r\n termination.
      */
     public void writeLine(String s, String sensitiveReplacement) throws IOException {
+        writeLine(s, sensitiveReplacement, true);
+    }
+
+    /**
+     * Writes a single line to the server using \r\n termination.  If {@code flush} is false, the
+     * line may stay buffered until the output stream is next flushed, so that several lines can
+     * be sent together.
+     */
+    public void writeLine(String s, String sensitiveReplacement, boolean flush)
+            throws IOException {
         if (DebugUtils.DEBUG) {
             if (sensitiveReplacement != null && !Logging.DEBUG_SENSITIVE) {
                 LogUtils.d(Logging.LOG_TAG, ">>> " + sensitiveReplacement);
@@ -300,7 +380,9 @@ public class MailTransport {
         out.write(s.getBytes());
         out.write('\r');
         out.write('\n');
-        out.flush();
+        if (flush) {
+            out.flush();
+        }
     }
 
     /**
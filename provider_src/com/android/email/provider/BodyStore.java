@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.text.TextUtils;
+
+import com.android.emailcommon.utility.EmailAsyncTask;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores the html and text bodies of messages in files, under body/l1/l2/ in the files dir,
+ * where l1 and l2 are taken from the message id.
+ *
+ * Bodies of at least {@link #COMPRESS_THRESHOLD} bytes are deflated, as quoted replies and
+ * html newsletters compress very well, and they're stored as "id.ext.z" instead of "id.ext".
+ * Smaller ones aren't worth it, as a file takes up a whole block of the file system anyway.
+ * Either way, a body is read back through {@link #openInputStream} or {@link #read}, or from
+ * another process through {@link #openFileDescriptor}.  Bodies written before there was any
+ * compression are compressed in the background by {@link #migrate}.
+ */
+final class BodyStore {
+    private static final String TAG = LogUtils.TAG;
+
+    static final String EXT_HTML = "html";
+    static final String EXT_TEXT = "txt";
+    private static final String EXT_COMPRESSED = ".z";
+    private static final String EXT_TEMP = ".tmp";
+    /** Holds the version of a body once it's been asked for, see {@link #getVersion} */
+    private static final String EXT_VERSION = ".sha1";
+    private static final String BODY_DIR = "body";
+    /** Created in {@link #BODY_DIR} once every body file there has been looked at by migrate() */
+    private static final String MIGRATED_MARKER = ".compressed";
+    /** The number of directories at the top level of {@link #BODY_DIR}, see getFile() */
+    private static final int L1_DIR_COUNT = 100;
+
+    @VisibleForTesting
+    static final int COMPRESS_THRESHOLD = 4096;
+    /** The most a compressed file may be, as a fraction of the original, to be worth keeping */
+    private static final float MAX_COMPRESSED_RATIO = 0.9f;
+
+    /**
+     * Held while replacing the files of a body, so that writes by the provider and migrate()
+     * don't leave a message with both a plain and a compressed file.
+     */
+    private static final Object sWriteLock = new Object();
+
+    private BodyStore() {
+    }
+
+    private static File getBodyDir(Context c) {
+        return new File(c.getFilesDir(), BODY_DIR);
+    }
+
+    /**
+     * @return the plain (uncompressed) file for a body; its directory is created if need be
+     */
+    static File getFile(Context c, long messageId, String ext) throws FileNotFoundException {
+        if (!TextUtils.equals(ext, EXT_HTML) && !TextUtils.equals(ext, EXT_TEXT)) {
+            throw new IllegalArgumentException("ext must be one of 'html' or 'txt'");
+        }
+        final long l1 = messageId / 100 % L1_DIR_COUNT;
+        final long l2 = messageId % 100;
+        final File dir = new File(getBodyDir(c),
+                Long.toString(l1) + "/" + Long.toString(l2) + "/");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new FileNotFoundException("Could not create directory for body file");
+        }
+        return new File(dir, Long.toString(messageId) + "." + ext);
+    }
+
+    private static File getCompressedFile(File file) {
+        return new File(file.getPath() + EXT_COMPRESSED);
+    }
+
+    private static File getVersionFile(File file) {
+        return new File(file.getPath() + EXT_VERSION);
+    }
+
+    /**
+     * Writes a body, replacing whatever was stored for it before.
+     *
+     * @param content the body, or null or empty to delete it
+     */
+    static void write(Context c, long messageId, String ext, String content) throws IOException {
+        final File file = getFile(c, messageId, ext);
+        final File compressedFile = getCompressedFile(file);
+        final File versionFile = getVersionFile(file);
+        synchronized (sWriteLock) {
+            // getVersion() works out the new version from the body when it's next asked for
+            versionFile.delete();
+            if (TextUtils.isEmpty(content)) {
+                final boolean deleted = file.delete() | compressedFile.delete();
+                if (!deleted) {
+                    LogUtils.v(TAG, "did not delete %s body for %d", ext, messageId);
+                }
+                return;
+            }
+            final byte[] bytes = content.getBytes("UTF-8");
+            final byte[] compressed = compress(bytes);
+            if (compressed != null) {
+                writeFile(compressedFile, compressed);
+                file.delete();
+            } else {
+                writeFile(file, bytes);
+                compressedFile.delete();
+            }
+        }
+    }
+
+    /**
+     * @return the body deflated, or null if it isn't worth compressing
+     */
+    private static byte[] compress(byte[] bytes) throws IOException {
+        if (bytes.length < COMPRESS_THRESHOLD) {
+            return null;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+        final DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+        deflater.write(bytes);
+        deflater.close();
+        return out.size() <= bytes.length * MAX_COMPRESSED_RATIO ? out.toByteArray() : null;
+    }
+
+    /**
+     * Writes a whole file, by way of a temporary file, so that a reader never sees half of it.
+     */
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        final File temp = new File(file.getPath() + EXT_TEMP);
+        final OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not rename " + temp);
+        }
+    }
+
+    /**
+     * Opens a body for reading, uncompressing it if need be.
+     *
+     * @throws FileNotFoundException if there's no such body
+     */
+    static InputStream openInputStream(Context c, long messageId, String ext)
+            throws FileNotFoundException {
+        final File file = getFile(c, messageId, ext);
+        final File compressedFile = getCompressedFile(file);
+        // A compressed file is always complete, and only replaced by renaming, so it's tried
+        // first; if it's been replaced by a plain file meanwhile, that's there by now
+        if (compressedFile.exists()) {
+            try {
+                return new InflaterInputStream(new FileInputStream(compressedFile));
+            } catch (FileNotFoundException e) {
+                // Replaced just now
+            }
+        }
+        return new FileInputStream(file);
+    }
+
+    /**
+     * @return a string which changes whenever a body is written with different content (a
+     *     SHA-1 of it), for caching what's made from it; or null if there's no such body.  It's
+     *     worked out the first time it's asked for, and kept next to the body until the body is
+     *     written again.
+     */
+    static String getVersion(Context c, long messageId, String ext)
+            throws FileNotFoundException {
+        final File file = getFile(c, messageId, ext);
+        File bodyFile = getCompressedFile(file);
+        if (!bodyFile.exists()) {
+            bodyFile = file;
+            if (!bodyFile.exists()) {
+                return null;
+            }
+        }
+        final File versionFile = getVersionFile(file);
+        // Unless the body has been written since, e.g. by way of openFileDescriptor()
+        final long bodyModified = bodyFile.lastModified();
+        if (versionFile.lastModified() > bodyModified) {
+            try {
+                final InputStream in = new FileInputStream(versionFile);
+                try {
+                    final String version = IOUtils.toString(in, "US-ASCII");
+                    if (!version.isEmpty()) {
+                        return version;
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                LogUtils.w(TAG, e, "Couldn't read version of %s body of message %d", ext,
+                        messageId);
+            }
+        }
+        final String version;
+        try {
+            final InputStream in = openInputStream(c, messageId, ext);
+            try {
+                final MessageDigest digest = newDigest();
+                final byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, count);
+                }
+                version = toHex(digest.digest());
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Deleted just now
+            return null;
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Couldn't read %s body of message %d", ext, messageId);
+            return null;
+        }
+        synchronized (sWriteLock) {
+            // Only if what was hashed is still the body
+            if (bodyFile.lastModified() == bodyModified && bodyFile.exists()) {
+                try {
+                    writeFile(versionFile, version.getBytes("US-ASCII"));
+                } catch (IOException e) {
+                    LogUtils.w(TAG, e, "Couldn't save version of %s body of message %d", ext,
+                            messageId);
+                }
+            }
+        }
+        return version;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.US, "%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the body, or null if there's no such body or it can't be read
+     */
+    static String read(Context c, long messageId, String ext) {
+        try {
+            final InputStream in = openInputStream(c, messageId, ext);
+            try {
+                return IOUtils.toString(in, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Couldn't read %s body of message %d", ext, messageId);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a body for {@link android.content.ContentProvider#openFile}.  A compressed body is
+     * uncompressed on the fly into a pipe.  A body opened for writing is left uncompressed
+     * (until the next time it's written by {@link #write}).
+     */
+    static ParcelFileDescriptor openFileDescriptor(final Context c, final long messageId,
+            final String ext, final int mode) throws FileNotFoundException {
+        final File file = getFile(c, messageId, ext);
+        if (mode != ParcelFileDescriptor.MODE_READ_ONLY) {
+            synchronized (sWriteLock) {
+                getCompressedFile(file).delete();
+                // What's written isn't known here, so getVersion() works it out from the body
+                getVersionFile(file).delete();
+            }
+            return ParcelFileDescriptor.open(file, mode);
+        }
+        final InputStream in = openInputStream(c, messageId, ext);
+        if (!(in instanceof InflaterInputStream)) {
+            IOUtils.closeQuietly(in);
+            return ParcelFileDescriptor.open(file, mode);
+        }
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw new FileNotFoundException("Could not create pipe: " + e);
+        }
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    IOUtils.copy(in, out);
+                } catch (IOException e) {
+                    // Most likely the reader closed its end early
+                    LogUtils.d(TAG, "Stopped copying %s body of message %d: %s", ext, messageId,
+                            e);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                    IOUtils.closeQuietly(out);
+                }
+            }
+        });
+        return pipe[0];
+    }
+
+    /**
+     * Compresses the body files written before there was compression, in one of the top level
+     * directories (l1 in {@link #getFile}) at a time, so that the caller can go a batch at a
+     * time.  This only has to be done once, and is safe to stop at any point; the next time,
+     * it carries on where it left off, as it only compresses plain files big enough to be
+     * worth it.
+     *
+     * @param l1 the directory to do, from 0 up to {@link #L1_DIR_COUNT}
+     * @param sizes the total size of the files compressed so far, before and after, to add to
+     * @return whether there are more directories to do
+     */
+    static boolean migrate(Context c, int l1, long[] sizes) {
+        final File bodyDir = getBodyDir(c);
+        final File marker = new File(bodyDir, MIGRATED_MARKER);
+        if (marker.exists() || !bodyDir.isDirectory()) {
+            return false;
+        }
+        final File[] l2Dirs = new File(bodyDir, Integer.toString(l1)).listFiles();
+        if (l2Dirs != null) {
+            for (File l2Dir : l2Dirs) {
+                final File[] files = l2Dir.listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    migrateFile(file, sizes);
+                }
+            }
+        }
+        if (l1 + 1 < L1_DIR_COUNT) {
+            return true;
+        }
+        LogUtils.i(TAG, "Body files compressed: %d bytes now take %d", sizes[0], sizes[1]);
+        try {
+            marker.createNewFile();
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Couldn't mark body files as compressed");
+        }
+        return false;
+    }
+
+    /**
+     * Compresses one plain body file, if it's worth it.
+     *
+     * @param sizes the total size of the files compressed, before and after, to add to
+     */
+    @VisibleForTesting
+    static void migrateFile(File file, long[] sizes) {
+        final String name = file.getName();
+        if (!name.endsWith("." + EXT_HTML) && !name.endsWith("." + EXT_TEXT)) {
+            if (name.endsWith(EXT_TEMP)) {
+                // Left over from a write which didn't finish
+                file.delete();
+            }
+            return;
+        }
+        try {
+            synchronized (sWriteLock) {
+                final long length = file.length();
+                if (length < COMPRESS_THRESHOLD) {
+                    return;
+                }
+                final byte[] bytes;
+                try {
+                    final InputStream in = new FileInputStream(file);
+                    try {
+                        bytes = IOUtils.toByteArray(in);
+                    } finally {
+                        in.close();
+                    }
+                } catch (FileNotFoundException e) {
+                    // Deleted meanwhile
+                    return;
+                }
+                final byte[] compressed = compress(bytes);
+                if (compressed != null) {
+                    writeFile(getCompressedFile(file), compressed);
+                    file.delete();
+                    sizes[0] += bytes.length;
+                    sizes[1] += compressed.length;
+                }
+            }
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Couldn't compress body file %s", file);
+        }
+    }
+}
@@ -63,8 +63,6 @@ import com.android.mail.utils.LogUtils;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
 
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Map;
 
@@ -184,7 +182,12 @@ public final class DBHelper {
     // Version 126: Decode address lists for To, From, Cc, Bcc and Reply-To columns in Message.
     // Version 127: Force mFlags to contain the correct flags for EAS accounts given a protocol
     //              version above 12.0
-    public static final int DATABASE_VERSION = 127;
+    // Version 128: Replace the mailboxKey index of Message with indexes on mailboxKey together
+    //              with timestamp, flagRead and syncServerId.
+    // Version 129: Add unseenCount to Mailbox, maintained by triggers like unreadCount.
+    // Version 130: Add the MessageSearch full text index.
+    // Version 131: Add syncModSeq to Mailbox, so that IMAP no longer keeps it in syncKey.
+    public static final int DATABASE_VERSION = 131;
 
     // Any changes to the database format *must* include update-in-place code.
     // Original version: 2
@@ -210,6 +213,38 @@ public final class DBHelper {
             + " on " + tableName + " (" + columnName + ");";
     }
 
+    /**
+     * Indexes of Message on more than one column, by name.  Each starts with mailboxKey, as
+     * nearly every query of messages is of one mailbox, and so they also serve any query which
+     * needs only that.  (A mailbox belongs to one account, so accountKey needn't come first
+     * even when it's in the query.)
+     * <ul>
+     * <li>timestamp, for the message list, which is sorted by it, and for sync, which looks for
+     * the messages in its window and the oldest one; accountKey is only there so that the
+     * latter can be answered from the index alone</li>
+     * <li>flagRead, for unread counts and senders</li>
+     * <li>syncServerId, for looking up a message sync has just downloaded</li>
+     * </ul>
+     */
+    @VisibleForTesting
+    static final String MESSAGE_INDEX_MAILBOX_TIMESTAMP = "message_mailbox_timestamp";
+    @VisibleForTesting
+    static final String MESSAGE_INDEX_MAILBOX_READ = "message_mailbox_read";
+    @VisibleForTesting
+    static final String MESSAGE_INDEX_MAILBOX_SERVER_ID = "message_mailbox_server_id";
+
+    private static void createMessageMailboxIndexes(final SQLiteDatabase db) {
+        db.execSQL("create index if not exists " + MESSAGE_INDEX_MAILBOX_TIMESTAMP
+                + " on " + Message.TABLE_NAME + " (" + MessageColumns.MAILBOX_KEY + ", "
+                + MessageColumns.TIMESTAMP + ", " + MessageColumns.ACCOUNT_KEY + ");");
+        db.execSQL("create index if not exists " + MESSAGE_INDEX_MAILBOX_READ
+                + " on " + Message.TABLE_NAME + " (" + MessageColumns.MAILBOX_KEY + ", "
+                + MessageColumns.FLAG_READ + ");");
+        db.execSQL("create index if not exists " + MESSAGE_INDEX_MAILBOX_SERVER_ID
+                + " on " + Message.TABLE_NAME + " (" + MessageColumns.MAILBOX_KEY + ", "
+                + SyncColumns.SERVER_ID + ");");
+    }
+
     static void createMessageCountTriggers(final SQLiteDatabase db) {
         // Insert a message.
         db.execSQL("create trigger message_count_message_insert after insert on " +
@@ -239,6 +274,81 @@ public final class DBHelper {
                 "; end");
     }
 
+    static void createUnseenCountTriggers(final SQLiteDatabase db) {
+        // Insert an unseen message.
+        db.execSQL("create trigger unseen_count_message_insert after insert on " +
+                Message.TABLE_NAME + " when NEW." + MessageColumns.FLAG_SEEN + "=0" +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNSEEN_COUNT +
+                '=' + MailboxColumns.UNSEEN_COUNT + "+1" +
+                "  where " + BaseColumns._ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Delete an unseen message.
+        db.execSQL("create trigger unseen_count_message_delete after delete on " +
+                Message.TABLE_NAME + " when OLD." + MessageColumns.FLAG_SEEN + "=0" +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNSEEN_COUNT +
+                '=' + MailboxColumns.UNSEEN_COUNT + "-1" +
+                "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
+                "; end");
+
+        // Change a message's mailbox, its seen flag, or both at once.
+        db.execSQL("create trigger unseen_count_message_update after update of " +
+                MessageColumns.MAILBOX_KEY + ", " + MessageColumns.FLAG_SEEN + " on " +
+                Message.TABLE_NAME +
+                " begin update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNSEEN_COUNT +
+                '=' + MailboxColumns.UNSEEN_COUNT + "-1" +
+                "  where " + BaseColumns._ID + "=OLD." + MessageColumns.MAILBOX_KEY +
+                " and OLD." + MessageColumns.FLAG_SEEN + "=0" +
+                "; update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNSEEN_COUNT +
+                '=' + MailboxColumns.UNSEEN_COUNT + "+1" +
+                " where " + BaseColumns._ID + "=NEW." + MessageColumns.MAILBOX_KEY +
+                " and NEW." + MessageColumns.FLAG_SEEN + "=0" +
+                "; end");
+    }
+
+    /**
+     * Creates the full text index of messages, and the triggers which index their subjects,
+     * addresses and snippets; see {@link MessageSearchIndex}.
+     */
+    static void createMessageSearchTable(final SQLiteDatabase db) {
+        db.execSQL("create virtual table " + MessageSearchIndex.TABLE_NAME + " using fts4("
+                + MessageSearchIndex.SUBJECT + ", " + MessageSearchIndex.ADDRESSES + ", "
+                + MessageSearchIndex.SNIPPET + ", " + MessageSearchIndex.BODY + ")");
+
+        // Insert a message.
+        db.execSQL("create trigger message_search_insert after insert on " +
+                Message.TABLE_NAME +
+                " begin insert into " + MessageSearchIndex.TABLE_NAME + " (docid, " +
+                MessageSearchIndex.SUBJECT + ", " + MessageSearchIndex.ADDRESSES + ", " +
+                MessageSearchIndex.SNIPPET + ") values (NEW." + BaseColumns._ID + ", NEW." +
+                MessageColumns.SUBJECT + ", " + MessageSearchIndex.addressesExpression("NEW") +
+                ", NEW." + MessageColumns.SNIPPET + "); end");
+
+        // Change what's indexed of a message; saving a message rewrites every column, so only
+        // a real change is worth updating the index for.
+        final String oldAddresses = MessageSearchIndex.addressesExpression("OLD");
+        final String newAddresses = MessageSearchIndex.addressesExpression("NEW");
+        db.execSQL("create trigger message_search_update after update of " +
+                MessageColumns.SUBJECT + ", " + MessageColumns.DISPLAY_NAME + ", " +
+                MessageColumns.FROM_LIST + ", " + MessageColumns.TO_LIST + ", " +
+                MessageColumns.CC_LIST + ", " + MessageColumns.SNIPPET + " on " +
+                Message.TABLE_NAME +
+                " when OLD." + MessageColumns.SUBJECT + " is not NEW." + MessageColumns.SUBJECT +
+                " or OLD." + MessageColumns.SNIPPET + " is not NEW." + MessageColumns.SNIPPET +
+                " or " + oldAddresses + "!=" + newAddresses +
+                " begin update " + MessageSearchIndex.TABLE_NAME + " set " +
+                MessageSearchIndex.SUBJECT + "=NEW." + MessageColumns.SUBJECT + ", " +
+                MessageSearchIndex.ADDRESSES + '=' + newAddresses + ", " +
+                MessageSearchIndex.SNIPPET + "=NEW." + MessageColumns.SNIPPET +
+                " where docid=NEW." + BaseColumns._ID + "; end");
+
+        // Delete a message.
+        db.execSQL("create trigger message_search_delete after delete on " +
+                Message.TABLE_NAME +
+                " begin delete from " + MessageSearchIndex.TABLE_NAME +
+                " where docid=OLD." + BaseColumns._ID + "; end");
+    }
+
     static void createCredentialsTable(SQLiteDatabase db) {
         String s = " (" + Credential._ID + " integer primary key autoincrement, "
                 + Credential.PROVIDER_COLUMN + " text,"
@@ -346,13 +456,13 @@ public final class DBHelper {
             MessageColumns.TIMESTAMP,
             MessageColumns.FLAG_READ,
             MessageColumns.FLAG_LOADED,
-            MessageColumns.MAILBOX_KEY,
             SyncColumns.SERVER_ID
         };
 
         for (String columnName : indexColumns) {
             db.execSQL(createIndex(Message.TABLE_NAME, columnName));
         }
+        createMessageMailboxIndexes(db);
 
         // Deleting a Message deletes all associated Attachments
         // Deleting the associated Body cannot be done in a trigger, because the Body is stored
@@ -407,6 +517,8 @@ public final class DBHelper {
 
         // Add triggers to maintain message_count.
         createMessageCountTriggers(db);
+        createUnseenCountTriggers(db);
+        createMessageSearchTable(db);
         createDeleteDuplicateMessagesTrigger(context, db);
     }
 
@@ -611,7 +723,9 @@ public final class DBHelper {
             + MailboxColumns.LAST_NOTIFIED_MESSAGE_COUNT + " integer not null default 0, "
             + MailboxColumns.TOTAL_COUNT + " integer, "
             + MailboxColumns.HIERARCHICAL_NAME + " text, "
-            + MailboxColumns.LAST_FULL_SYNC_TIME + " integer"
+            + MailboxColumns.LAST_FULL_SYNC_TIME + " integer, "
+            + MailboxColumns.UNSEEN_COUNT + " integer not null default 0, "
+            + MailboxColumns.SYNC_MOD_SEQ + " text"
             + ");";
         db.execSQL("create table " + Mailbox.TABLE_NAME + s);
         db.execSQL("create index mailbox_" + MailboxColumns.SERVER_ID
@@ -748,13 +862,7 @@ public final class DBHelper {
                 try {
                     final String htmlString = htmlSql.simpleQueryForString();
                     if (!TextUtils.isEmpty(htmlString)) {
-                        final File htmlFile = EmailProvider.getBodyFile(context, messageId, "html");
-                        final FileWriter w = new FileWriter(htmlFile);
-                        try {
-                            w.write(htmlString);
-                        } finally {
-                            w.close();
-                        }
+                        BodyStore.write(context, messageId, BodyStore.EXT_HTML, htmlString);
                     }
                 } catch (final SQLiteDoneException e) {
                     LogUtils.v(LogUtils.TAG, e, "Done with the HTML column");
@@ -763,13 +871,7 @@ public final class DBHelper {
                 try {
                     final String textString = textSql.simpleQueryForString();
                     if (!TextUtils.isEmpty(textString)) {
-                        final File textFile = EmailProvider.getBodyFile(context, messageId, "txt");
-                        final FileWriter w = new FileWriter(textFile);
-                        try {
-                            w.write(textString);
-                        } finally {
-                            w.close();
-                        }
+                        BodyStore.write(context, messageId, BodyStore.EXT_TEXT, textString);
                     }
                 } catch (final SQLiteDoneException e) {
                     LogUtils.v(LogUtils.TAG, e, "Done with the text column");
@@ -832,6 +934,35 @@ public final class DBHelper {
                     Mailbox.TABLE_NAME + "." + MailboxColumns._ID + ")");
     }
 
+    /**
+     * Checks the message, unread and unseen counts kept by triggers in each mailbox against the
+     * messages themselves, and rebuilds those that don't match.  Run once, by the upgrade which
+     * adds the unseen count; after that the triggers keep the counts right.  It costs a scan of
+     * every mailbox's messages, so it isn't run every time the database is opened.
+     *
+     * @return the number of mailboxes whose counts had to be fixed
+     */
+    @VisibleForTesting
+    static int checkMailboxCounts(SQLiteDatabase db) {
+        final String count = "(select count(*) from " + Message.TABLE_NAME + " where " +
+                MessageColumns.MAILBOX_KEY + "=" + Mailbox.TABLE_NAME + "." + MailboxColumns._ID;
+        final String messages = count + ")";
+        final String unread = count + " and " + MessageColumns.FLAG_READ + "=0)";
+        final String unseen = count + " and " + MessageColumns.FLAG_SEEN + "=0)";
+        final SQLiteStatement statement = db.compileStatement("update " + Mailbox.TABLE_NAME +
+                " set " + MailboxColumns.MESSAGE_COUNT + "=" + messages + ", " +
+                MailboxColumns.UNREAD_COUNT + "=" + unread + ", " +
+                MailboxColumns.UNSEEN_COUNT + "=" + unseen +
+                " where " + MailboxColumns.MESSAGE_COUNT + " is not " + messages +
+                " or " + MailboxColumns.UNREAD_COUNT + " is not " + unread +
+                " or " + MailboxColumns.UNSEEN_COUNT + " is not " + unseen);
+        try {
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
     protected static class DatabaseHelper extends SQLiteOpenHelper {
         final Context mContext;
 
@@ -1469,6 +1600,22 @@ public final class DBHelper {
             if (oldVersion <= 126) {
                 upgradeFromVersion126ToVersion127(mContext, db);
             }
+
+            if (oldVersion <= 127) {
+                upgradeFromVersion127ToVersion128(db);
+            }
+
+            if (oldVersion <= 128) {
+                upgradeFromVersion128ToVersion129(db);
+            }
+
+            if (oldVersion <= 129) {
+                upgradeFromVersion129ToVersion130(db);
+            }
+
+            if (oldVersion <= 130) {
+                upgradeFromVersion130ToVersion131(mContext, db);
+            }
         }
 
         @Override
@@ -1840,6 +1987,70 @@ public final class DBHelper {
         }
     }
 
+    /**
+     * Replace the mailboxKey index of Message with ones on mailboxKey and other columns
+     */
+    private static void upgradeFromVersion127ToVersion128(final SQLiteDatabase db) {
+        try {
+            db.execSQL("drop index if exists message_" + MessageColumns.MAILBOX_KEY);
+            createMessageMailboxIndexes(db);
+        } catch (SQLException e) {
+            LogUtils.w(TAG, "Exception upgrading EmailProvider.db from 127 to 128 " + e);
+        }
+    }
+
+    private static void upgradeFromVersion128ToVersion129(final SQLiteDatabase db) {
+        try {
+            db.execSQL("alter table " + Mailbox.TABLE_NAME + " add column "
+                    + MailboxColumns.UNSEEN_COUNT + " integer not null default 0;");
+            createUnseenCountTriggers(db);
+            final int mailboxesFixed = checkMailboxCounts(db);
+            if (mailboxesFixed > 0) {
+                LogUtils.w(TAG, "Fixed the message counts of %d mailboxes", mailboxesFixed);
+            }
+        } catch (SQLException e) {
+            LogUtils.w(TAG, "Exception upgrading EmailProvider.db from 128 to 129 " + e);
+        }
+    }
+
+    /** The messages already stored are indexed by {@link MessageSearchIndex#backfill} */
+    private static void upgradeFromVersion129ToVersion130(final SQLiteDatabase db) {
+        try {
+            createMessageSearchTable(db);
+        } catch (SQLException e) {
+            LogUtils.w(TAG, "Exception upgrading EmailProvider.db from 129 to 130 " + e);
+        }
+    }
+
+    /**
+     * IMAP kept "UIDVALIDITY:HIGHESTMODSEQ" in syncKey, where it made the mailbox look like one
+     * to push to; it's moved to the new column.
+     */
+    private static void upgradeFromVersion130ToVersion131(final Context context,
+            final SQLiteDatabase db) {
+        try {
+            db.execSQL("alter table " + Mailbox.TABLE_NAME + " add column "
+                    + MailboxColumns.SYNC_MOD_SEQ + " text;");
+            db.execSQL("update " + Mailbox.TABLE_NAME + " set "
+                    + MailboxColumns.SYNC_MOD_SEQ + "=" + MailboxColumns.SYNC_KEY + ", "
+                    + MailboxColumns.SYNC_KEY + "=null where "
+                    + MailboxColumns.SYNC_KEY + " glob '[0-9]*:[0-9]*' and "
+                    + MailboxColumns.ACCOUNT_KEY + " in (select "
+                    + Account.TABLE_NAME + "." + AccountColumns._ID + " from "
+                    + Account.TABLE_NAME + " join " + HostAuth.TABLE_NAME + " where "
+                    + HostAuth.TABLE_NAME + "." + HostAuthColumns._ID + "="
+                    + Account.TABLE_NAME + "." + AccountColumns.HOST_AUTH_KEY_RECV
+                    + " and (" + HostAuth.TABLE_NAME + "."
+                    + HostAuthColumns.PROTOCOL + "='"
+                    + context.getString(R.string.protocol_legacy_imap) + "' or "
+                    + HostAuth.TABLE_NAME + "." + HostAuthColumns.PROTOCOL + "='"
+                    + context.getString(R.string.protocol_imap) + "' or "
+                    + HostAuth.TABLE_NAME + "." + HostAuthColumns.PROTOCOL + "='imap'));");
+        } catch (SQLException e) {
+            LogUtils.w(TAG, "Exception upgrading EmailProvider.db from 130 to 131 " + e);
+        }
+    }
+
     private static void upgradeToEmail2(SQLiteDatabase db) {
         // Perform cleanup operations from Email1 to Email2; Email1 will have added new
         // data that won't conform to what's expected in Email2
@@ -16,101 +16,88 @@
 
 package com.android.email.provider;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.CursorWrapper;
-import android.net.Uri;
 import android.provider.BaseColumns;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
-import com.android.emailcommon.provider.EmailContent.Body;
-import com.android.mail.utils.HtmlSanitizer;
 import com.android.mail.utils.LogUtils;
 
-import org.apache.commons.io.IOUtils;
-
-import java.io.IOException;
-import java.io.InputStream;
-
 /**
  * This class wraps a cursor for the purpose of bypassing the CursorWindow object for the
  * potentially over-sized body content fields. The CursorWindow has a hard limit of 2MB and so a
  * large email message can exceed that limit and cause the cursor to fail to load.
  *
  * To get around this, we load null values in those columns, and then in this wrapper we directly
- * load the content from the provider, skipping the cursor window.
+ * load the content from the body files, skipping the cursor window.  Each body is only loaded
+ * (and its html sanitized) when it's asked for, so the UI can show the first message of a long
+ * conversation without waiting for the rest.
  *
  * This will still potentially blow up if this cursor gets wrapped in a CrossProcessCursorWrapper
  * which uses a CursorWindow to shuffle results between processes. Since we're only using this for
  * passing a cursor back to UnifiedEmail this shouldn't be an issue.
  */
 public class EmailMessageCursor extends CursorWrapper {
-
-    private final SparseArray<String> mTextParts;
-    private final SparseArray<String> mHtmlParts;
+    private final Context mContext;
+    /** The bodies loaded so far, by position; a body is only loaded when it's asked for */
+    private final SparseArray<String> mTextParts = new SparseArray<String>();
+    private final SparseArray<String> mHtmlParts = new SparseArray<String>();
+    /** The positions whose bodies have been loaded, including those which don't have one */
+    private final SparseBooleanArray mTextLoaded = new SparseBooleanArray();
+    private final SparseBooleanArray mHtmlLoaded = new SparseBooleanArray();
     private final int mTextColumnIndex;
     private final int mHtmlColumnIndex;
+    private final int mIdColumnIndex;
 
     public EmailMessageCursor(final Context c, final Cursor cursor, final String htmlColumn,
             final String textColumn) {
         super(cursor);
+        mContext = c;
         mHtmlColumnIndex = cursor.getColumnIndex(htmlColumn);
         mTextColumnIndex = cursor.getColumnIndex(textColumn);
-        final int cursorSize = cursor.getCount();
-        mHtmlParts = new SparseArray<String>(cursorSize);
-        mTextParts = new SparseArray<String>(cursorSize);
-
-        final ContentResolver cr = c.getContentResolver();
-
-        while (cursor.moveToNext()) {
-            final int position = cursor.getPosition();
-            final long messageId = cursor.getLong(cursor.getColumnIndex(BaseColumns._ID));
-            try {
-                if (mHtmlColumnIndex != -1) {
-                    final Uri htmlUri = Body.getBodyHtmlUriForMessageWithId(messageId);
-                    final InputStream in = cr.openInputStream(htmlUri);
-                    final String underlyingHtmlString;
-                    try {
-                        underlyingHtmlString = IOUtils.toString(in);
-                    } finally {
-                        in.close();
-                    }
-                    final String sanitizedHtml = HtmlSanitizer.sanitizeHtml(underlyingHtmlString);
-                    mHtmlParts.put(position, sanitizedHtml);
-                }
-            } catch (final IOException e) {
-                LogUtils.v(LogUtils.TAG, e, "Did not find html body for message %d", messageId);
-            }
-            try {
-                if (mTextColumnIndex != -1) {
-                    final Uri textUri = Body.getBodyTextUriForMessageWithId(messageId);
-                    final InputStream in = cr.openInputStream(textUri);
-                    final String underlyingTextString;
-                    try {
-                        underlyingTextString = IOUtils.toString(in);
-                    } finally {
-                        in.close();
-                    }
-                    mTextParts.put(position, underlyingTextString);
-                }
-            } catch (final IOException e) {
-                LogUtils.v(LogUtils.TAG, e, "Did not find text body for message %d", messageId);
-            }
-        }
-        cursor.moveToPosition(-1);
+        mIdColumnIndex = cursor.getColumnIndex(BaseColumns._ID);
     }
 
     @Override
     public String getString(final int columnIndex) {
+        final int position = getPosition();
         if (columnIndex == mHtmlColumnIndex) {
-            return mHtmlParts.get(getPosition());
+            if (!mHtmlLoaded.get(position)) {
+                mHtmlParts.put(position, loadHtml(getLong(mIdColumnIndex)));
+                mHtmlLoaded.put(position, true);
+            }
+            return mHtmlParts.get(position);
         } else if (columnIndex == mTextColumnIndex) {
-            return mTextParts.get(getPosition());
+            if (!mTextLoaded.get(position)) {
+                mTextParts.put(position, loadText(getLong(mIdColumnIndex)));
+                mTextLoaded.put(position, true);
+            }
+            return mTextParts.get(position);
         }
         return super.getString(columnIndex);
     }
 
+    private String loadHtml(final long messageId) {
+        // Sanitized the first time the message is viewed, and kept since
+        final SanitizedHtmlCache.Entry entry = SanitizedHtmlCache.get(mContext, messageId);
+        if (entry == null) {
+            LogUtils.v(LogUtils.TAG, "Did not find html body for message %d", messageId);
+            return null;
+        }
+        return entry.mHtml;
+    }
+
+    private String loadText(final long messageId) {
+        final String underlyingTextString =
+                BodyStore.read(mContext, messageId, BodyStore.EXT_TEXT);
+        if (underlyingTextString == null) {
+            LogUtils.v(LogUtils.TAG, "Did not find text body for message %d", messageId);
+        }
+        return underlyingTextString;
+    }
+
     @Override
     public int getType(int columnIndex) {
         if (columnIndex == mHtmlColumnIndex || columnIndex == mTextColumnIndex) {
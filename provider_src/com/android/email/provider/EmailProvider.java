@@ -52,9 +52,11 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Handler.Callback;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
@@ -136,18 +138,17 @@ import com.google.common.collect.Sets;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 public class EmailProvider extends ContentProvider
         implements SharedPreferences.OnSharedPreferenceChangeListener {
@@ -224,6 +225,7 @@ public class EmailProvider extends ContentProvider
     private static final int MESSAGE_SELECTION = MESSAGE_BASE + 3;
     private static final int MESSAGE_MOVE = MESSAGE_BASE + 4;
     private static final int MESSAGE_STATE_CHANGE = MESSAGE_BASE + 5;
+    private static final int MESSAGE_SEARCH = MESSAGE_BASE + 6;
 
     private static final int ATTACHMENT_BASE = 0x3000;
     private static final int ATTACHMENT = ATTACHMENT_BASE;
@@ -316,6 +318,9 @@ public class EmailProvider extends ContentProvider
      */
     private static final Object sDatabaseLock = new Object();
 
+    /** Created by {@link #getMaintenanceHandler} */
+    private static Handler sMaintenanceHandler;
+
     /**
      * Let's only generate these SQL strings once, as they are used frequently
      * Note that this isn't relevant for table creation strings, since they are used only once
@@ -355,6 +360,33 @@ public class EmailProvider extends ContentProvider
 
     private static final String SYNC_STATUS_CALLBACK_METHOD = "sync_status";
 
+    /**
+     * Method for {@link #call} which stores a batch of downloaded messages, with their bodies and
+     * attachments, see {@link Utilities#copyMessagesToProvider}.  The extras hold a list of
+     * bundles under {@link #SAVE_MESSAGES_EXTRA}, one per message, holding:
+     * <ul>
+     * <li>{@link #SAVE_MESSAGE_ID}: the id of the message, if it's already stored</li>
+     * <li>{@link #SAVE_MESSAGE_VALUES}: the message's {@link ContentValues}</li>
+     * <li>{@link #SAVE_MESSAGE_BODY}: {@link ContentValues} with the body's text and html</li>
+     * <li>{@link #SAVE_MESSAGE_ATTACHMENTS}: a list of the attachments' {@link ContentValues}
+     * </li>
+     * </ul>
+     * The result holds a list of bundles under {@link #SAVE_MESSAGES_EXTRA}, in the same order,
+     * with the message's id under {@link #SAVE_MESSAGE_ID}, and its attachments' ids, in the same
+     * order, under {@link #SAVE_MESSAGE_ATTACHMENTS}.
+     */
+    static final String SAVE_MESSAGES_METHOD = "save_messages";
+    static final String SAVE_MESSAGES_EXTRA = "messages";
+    static final String SAVE_MESSAGE_ID = "id";
+    static final String SAVE_MESSAGE_VALUES = "message";
+    static final String SAVE_MESSAGE_BODY = "body";
+    static final String SAVE_MESSAGE_ATTACHMENTS = "attachments";
+
+    /** The columns which tell whether an attachment is already stored, see saveAttachment() */
+    private static final String[] ATTACHMENT_MATCH_PROJECTION = { AttachmentColumns._ID,
+            AttachmentColumns.FILENAME, AttachmentColumns.MIME_TYPE,
+            AttachmentColumns.CONTENT_ID, AttachmentColumns.LOCATION };
+
     private static final String[] MIME_TYPE_PROJECTION = new String[]{AttachmentColumns.MIME_TYPE};
 
     private static final String[] CACHED_FILE_QUERY_PROJECTION = new String[]
@@ -384,6 +416,10 @@ public class EmailProvider extends ContentProvider
 
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
+    /** A read-only connection for queries, see {@link #getQueryDatabase} */
+    private SQLiteDatabase mQueryDatabase;
+    /** Whether the databases use write-ahead logging, and so mQueryDatabase can be used */
+    private boolean mWriteAheadLogging;
 
     private Handler mDelayedSyncHandler;
     private final Set<SyncRequestMessage> mDelayedSyncRequests = new HashSet<SyncRequestMessage>();
@@ -494,6 +530,7 @@ public class EmailProvider extends ContentProvider
                 String bodyFileName = mBodyDatabase.getPath();
                 mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
             }
+            mWriteAheadLogging = enableWriteAheadLogging(mDatabase);
 
             // Restore accounts if the database is corrupted...
             restoreIfNeeded(context, mDatabase);
@@ -508,11 +545,71 @@ public class EmailProvider extends ContentProvider
             deleteUnlinked(mDatabase, Policy.TABLE_NAME, PolicyColumns._ID,
                     AccountColumns.POLICY_KEY, Account.TABLE_NAME);
             fixParentKeys(mDatabase);
+            backfillSearchIndex(context, mDatabase);
+            compressBodyFiles(context);
             initUiProvider();
             return mDatabase;
         }
     }
 
+    /**
+     * Returns the database to query, which is a read-only connection of its own where possible.
+     * With write-ahead logging, queries on it read the last committed data, rather than waiting
+     * for a transaction on the main connection (e.g. a sync storing a batch of messages) to end,
+     * so that the UI doesn't stall while a sync is running.
+     */
+    private SQLiteDatabase getQueryDatabase(Context context) {
+        final SQLiteDatabase db = getDatabase(context);
+        // This thread's own transaction can only be seen on the connection it's on
+        if (db.inTransaction()) {
+            return db;
+        }
+        synchronized (sDatabaseLock) {
+            if (mQueryDatabase == null && mWriteAheadLogging) {
+                try {
+                    mQueryDatabase = SQLiteDatabase.openDatabase(db.getPath(), null,
+                            SQLiteDatabase.OPEN_READONLY);
+                    if (mBodyDatabase != null) {
+                        mQueryDatabase.execSQL(
+                                "attach \"" + mBodyDatabase.getPath() + "\" as BodyDatabase");
+                    }
+                } catch (SQLiteException e) {
+                    LogUtils.w(TAG, e, "Couldn't open query database, using the main one");
+                    if (mQueryDatabase != null) {
+                        mQueryDatabase.close();
+                        mQueryDatabase = null;
+                    }
+                    mWriteAheadLogging = false;
+                }
+            }
+            return mQueryDatabase != null ? mQueryDatabase : db;
+        }
+    }
+
+    /**
+     * Switches the database, and those attached to it, to write-ahead logging, so that they can
+     * be read from another connection while being written.
+     * {@link SQLiteDatabase#enableWriteAheadLogging} can't be used, as it refuses databases with
+     * others attached (the connections it pools wouldn't have them attached), so instead the
+     * journal mode is set directly, and queries get their own connection, see
+     * {@link #getQueryDatabase}.
+     *
+     * @return whether write-ahead logging is in use
+     */
+    private static boolean enableWriteAheadLogging(SQLiteDatabase db) {
+        try {
+            final Cursor c = db.rawQuery("PRAGMA journal_mode=WAL", null);
+            try {
+                return c.moveToFirst() && "wal".equalsIgnoreCase(c.getString(0));
+            } finally {
+                c.close();
+            }
+        } catch (SQLiteException e) {
+            LogUtils.w(TAG, e, "Couldn't enable write-ahead logging");
+            return false;
+        }
+    }
+
     /**
      * Perform startup actions related to UI
      */
@@ -575,6 +672,10 @@ public class EmailProvider extends ContentProvider
             mBodyDatabase.close();
             mBodyDatabase = null;
         }
+        if (mQueryDatabase != null) {
+            mQueryDatabase.close();
+            mQueryDatabase = null;
+        }
     }
 
     // exposed for testing
@@ -903,6 +1004,7 @@ public class EmailProvider extends ContentProvider
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.put(MailboxColumns.UNREAD_COUNT, 0);
             values.put(MailboxColumns.MESSAGE_COUNT, 0);
+            values.put(MailboxColumns.UNSEEN_COUNT, 0);
         }
 
         final Uri resultUri;
@@ -928,6 +1030,7 @@ public class EmailProvider extends ContentProvider
                     // Ensure that no pre-existing body files contaminate the message
                     deleteBodyFiles(context, messageId);
                     writeBodyFiles(getContext(), messageId, values);
+                    MessageSearchIndex.indexBody(db, messageId, values);
                     break;
                 // NOTE: It is NOT legal for production code to insert directly into UPDATED_MESSAGE
                 // or DELETED_MESSAGE; see the comment below for details
@@ -1134,6 +1237,8 @@ public class EmailProvider extends ContentProvider
             // A specific message
             // insert into this URI causes an attachment to be added to the message
             sURIMatcher.addURI(EmailContent.AUTHORITY, "message/#", MESSAGE_ID);
+            // Search the messages stored on the device
+            sURIMatcher.addURI(EmailContent.AUTHORITY, "messageSearch", MESSAGE_SEARCH);
 
             // A specific attachment
             sURIMatcher.addURI(EmailContent.AUTHORITY, "attachment", ATTACHMENT);
@@ -1251,6 +1356,11 @@ public class EmailProvider extends ContentProvider
             if (mBodyDatabase != null) {
                 mBodyDatabase = null;
             }
+            if (mQueryDatabase != null) {
+                // Opened here rather than by a DBHelper, so nothing else would close it
+                mQueryDatabase.close();
+                mQueryDatabase = null;
+            }
             // Look for orphans, and delete as necessary; these must always be in sync
             final File databaseFile = getContext().getDatabasePath(DATABASE_NAME);
             final File bodyFile = getContext().getDatabasePath(BODY_DATABASE_NAME);
@@ -1298,7 +1408,7 @@ public class EmailProvider extends ContentProvider
         }
         Context context = getContext();
         // See the comment at delete(), above
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getQueryDatabase(context);
         int table = match >> BASE_SHIFT;
         String limit = uri.getQueryParameter(EmailContent.PARAMETER_LIMIT);
         String id;
@@ -1362,6 +1472,9 @@ public class EmailProvider extends ContentProvider
                 case MAILBOX_MESSAGE_COUNT:
                     c = getMailboxMessageCount(uri);
                     return c;
+                case MESSAGE_SEARCH:
+                    c = searchMessages(db, uri, limit);
+                    return c;
                 case MESSAGE_MOVE:
                     return db.query(MessageMove.TABLE_NAME, projection, selection, selectionArgs,
                             null, null, sortOrder, limit);
@@ -1936,6 +2049,7 @@ public class EmailProvider extends ContentProvider
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.remove(MailboxColumns.UNREAD_COUNT);
             values.remove(MailboxColumns.MESSAGE_COUNT);
+            values.remove(MailboxColumns.UNSEEN_COUNT);
         }
 
         final String tableName = TABLE_NAMES.valueAt(table);
@@ -2138,6 +2252,7 @@ public class EmailProvider extends ContentProvider
                             messageId = sql.simpleQueryForLong();
                         }
                         writeBodyFiles(context, messageId, values);
+                        MessageSearchIndex.indexBody(db, messageId, values);
                     }
                     break;
                 }
@@ -2194,6 +2309,7 @@ public class EmailProvider extends ContentProvider
                             for (int i = 0; i < messageIds.length; i++) {
                                 final long messageId = messageIds[i];
                                 writeBodyFiles(context, messageId, values);
+                                MessageSearchIndex.indexBody(db, messageId, values);
                             }
                         }
                     }
@@ -2281,6 +2397,9 @@ public class EmailProvider extends ContentProvider
             fixParentKeys(getDatabase(getContext()));
             return null;
         }
+        if (TextUtils.equals(method, SAVE_MESSAGES_METHOD)) {
+            return saveMessages(extras);
+        }
 
         // Handle send & save.
         final Uri accountUri = Uri.parse(arg);
@@ -2310,6 +2429,151 @@ public class EmailProvider extends ContentProvider
         return result;
     }
 
+    /**
+     * Stores a batch of downloaded messages, see {@link #SAVE_MESSAGES_METHOD}.  Everything is
+     * written in one transaction, and observers are notified once at the end, rather than for
+     * every row of every message as when they're stored one at a time.
+     */
+    private Bundle saveMessages(final Bundle extras) {
+        final Context context = getContext();
+        final SQLiteDatabase db = getDatabase(context);
+        final ArrayList<Bundle> messages = extras.getParcelableArrayList(SAVE_MESSAGES_EXTRA);
+        final ArrayList<Bundle> results = new ArrayList<Bundle>(messages.size());
+        // The mailboxes written to, and their accounts
+        final Map<Long, Long> mailboxes = new HashMap<Long, Long>();
+        final ArrayList<ContentValues> newAttachments = new ArrayList<ContentValues>();
+
+        setBatchNotificationsSet(Sets.<Uri>newHashSet());
+        db.beginTransaction();
+        try {
+            for (final Bundle message : messages) {
+                results.add(saveMessage(context, db, message, mailboxes, newAttachments));
+            }
+            db.setTransactionSuccessful();
+
+            for (final Map.Entry<Long, Long> mailbox : mailboxes.entrySet()) {
+                notifyUIConversationMailbox(mailbox.getKey());
+                notifyUIFolder(mailbox.getKey(), mailbox.getValue());
+            }
+            sendNotifierChange(Message.NOTIFIER_URI, NOTIFICATION_OP_INSERT, null);
+            notifyUI(EmailContent.CONTENT_URI, null);
+        } catch (SQLiteException e) {
+            checkDatabases();
+            throw e;
+        } finally {
+            db.endTransaction();
+            final Set<Uri> notifications = getBatchNotificationsSet();
+            setBatchNotificationsSet(null);
+            for (final Uri uri : notifications) {
+                context.getContentResolver().notifyChange(uri, null);
+            }
+        }
+
+        // Report all new attachments to the download service, now that they can be read
+        for (final ContentValues attachment : newAttachments) {
+            final Integer flags = attachment.getAsInteger(AttachmentColumns.FLAGS);
+            mAttachmentService.attachmentChanged(context,
+                    attachment.getAsLong(AttachmentColumns._ID), flags != null ? flags : 0);
+        }
+
+        final Bundle result = new Bundle(1);
+        result.putParcelableArrayList(SAVE_MESSAGES_EXTRA, results);
+        return result;
+    }
+
+    /**
+     * Stores one message of a batch, within saveMessages()'s transaction.
+     *
+     * @param mailboxes the message's mailbox and account are added to this
+     * @param newAttachments the values of attachments inserted are added to this, with their ids
+     * @return the ids of the message and its attachments, see {@link #SAVE_MESSAGES_METHOD}
+     */
+    private Bundle saveMessage(final Context context, final SQLiteDatabase db,
+            final Bundle message, final Map<Long, Long> mailboxes,
+            final ArrayList<ContentValues> newAttachments) {
+        final ContentValues values = message.getParcelable(SAVE_MESSAGE_VALUES);
+        decodeEmailAddresses(values);
+        final boolean isNew = !message.containsKey(SAVE_MESSAGE_ID);
+        final long messageId;
+        if (isNew) {
+            messageId = db.insertOrThrow(Message.TABLE_NAME, "foo", values);
+        } else {
+            messageId = message.getLong(SAVE_MESSAGE_ID);
+            final String[] idArgs = { Long.toString(messageId) };
+            // As for an update by the sync adapter, the server now has this version
+            db.delete(Message.UPDATED_TABLE_NAME, WHERE_ID, idArgs);
+            db.update(Message.TABLE_NAME, values, WHERE_ID, idArgs);
+            notifyUIMessage(messageId);
+        }
+        mailboxes.put(values.getAsLong(MessageColumns.MAILBOX_KEY),
+                values.getAsLong(MessageColumns.ACCOUNT_KEY));
+
+        // The body's content goes in files; its row only links it to the message
+        final ContentValues bodyRow = new ContentValues(1);
+        bodyRow.put(BodyColumns.MESSAGE_KEY, messageId);
+        if (isNew) {
+            db.insertOrThrow(Body.TABLE_NAME, "foo", bodyRow);
+            // Ensure that no pre-existing body files contaminate the message
+            deleteBodyFiles(context, messageId);
+        } else if (db.update(Body.TABLE_NAME, bodyRow, Body.SELECTION_BY_MESSAGE_KEY,
+                new String[] { Long.toString(messageId) }) == 0) {
+            db.insertOrThrow(Body.TABLE_NAME, "foo", bodyRow);
+        }
+        final ContentValues body = message.getParcelable(SAVE_MESSAGE_BODY);
+        writeBodyFiles(context, messageId, body);
+        MessageSearchIndex.indexBody(db, messageId, body);
+
+        final ArrayList<ContentValues> attachments =
+                message.getParcelableArrayList(SAVE_MESSAGE_ATTACHMENTS);
+        final long[] attachmentIds = new long[attachments.size()];
+        for (int i = 0; i < attachmentIds.length; i++) {
+            final ContentValues attachment = attachments.get(i);
+            attachment.put(AttachmentColumns.MESSAGE_KEY, messageId);
+            long attachmentId = isNew ? -1 : findAttachment(db, messageId, attachment);
+            if (attachmentId == -1) {
+                attachmentId = db.insertOrThrow(Attachment.TABLE_NAME, "foo", attachment);
+                attachment.put(AttachmentColumns._ID, attachmentId);
+                newAttachments.add(attachment);
+            }
+            attachmentIds[i] = attachmentId;
+        }
+
+        final Bundle result = new Bundle(2);
+        result.putLong(SAVE_MESSAGE_ID, messageId);
+        result.putLongArray(SAVE_MESSAGE_ATTACHMENTS, attachmentIds);
+        return result;
+    }
+
+    /**
+     * Finds an attachment of a message which is already stored, matching on the same fields as
+     * {@link com.android.email.LegacyConversions#addOneAttachment}.
+     *
+     * @return the id of the stored attachment, or -1 if there isn't one
+     */
+    private static long findAttachment(final SQLiteDatabase db, final long messageId,
+            final ContentValues attachment) {
+        final Cursor c = db.query(Attachment.TABLE_NAME, ATTACHMENT_MATCH_PROJECTION,
+                AttachmentColumns.MESSAGE_KEY + "=?", new String[] { Long.toString(messageId) },
+                null, null, null);
+        try {
+            while (c.moveToNext()) {
+                if (TextUtils.equals(c.getString(1),
+                                attachment.getAsString(AttachmentColumns.FILENAME)) &&
+                        TextUtils.equals(c.getString(2),
+                                attachment.getAsString(AttachmentColumns.MIME_TYPE)) &&
+                        TextUtils.equals(c.getString(3),
+                                attachment.getAsString(AttachmentColumns.CONTENT_ID)) &&
+                        TextUtils.equals(c.getString(4),
+                                attachment.getAsString(AttachmentColumns.LOCATION))) {
+                    return c.getLong(0);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return -1;
+    }
+
     private static void deleteBodyFiles(final Context c, final long messageId)
             throws IllegalStateException {
         final ContentValues emptyValues = new ContentValues(2);
@@ -2333,7 +2597,7 @@ public class EmailProvider extends ContentProvider
         if (cv.containsKey(BodyColumns.HTML_CONTENT)) {
             final String htmlContent = cv.getAsString(BodyColumns.HTML_CONTENT);
             try {
-                writeBodyFile(c, messageId, "html", htmlContent);
+                writeBodyFile(c, messageId, BodyStore.EXT_HTML, htmlContent);
             } catch (final IOException e) {
                 throw new IllegalStateException("IOException while writing html body " +
                         "for message id " + Long.toString(messageId), e);
@@ -2342,7 +2606,7 @@ public class EmailProvider extends ContentProvider
         if (cv.containsKey(BodyColumns.TEXT_CONTENT)) {
             final String textContent = cv.getAsString(BodyColumns.TEXT_CONTENT);
             try {
-                writeBodyFile(c, messageId, "txt", textContent);
+                writeBodyFile(c, messageId, BodyStore.EXT_TEXT, textContent);
             } catch (final IOException e) {
                 throw new IllegalStateException("IOException while writing text body " +
                         "for message id " + Long.toString(messageId), e);
@@ -2361,42 +2625,7 @@ public class EmailProvider extends ContentProvider
      */
     private static void writeBodyFile(final Context c, final long messageId, final String ext,
             final String content) throws IOException {
-        final File textFile = getBodyFile(c, messageId, ext);
-        if (TextUtils.isEmpty(content)) {
-            if (!textFile.delete()) {
-                LogUtils.v(LogUtils.TAG, "did not delete text body for %d", messageId);
-            }
-        } else {
-            final FileWriter w = new FileWriter(textFile);
-            try {
-                w.write(content);
-            } finally {
-                w.close();
-            }
-        }
-    }
-
-    /**
-     * Returns a {@link java.io.File} object pointing to the body content file for the message
-     *
-     * @param c Context for finding files dir
-     * @param messageId id of message to locate
-     * @param ext "html" or "txt"
-     * @return File ready for operating upon
-     */
-    protected static File getBodyFile(final Context c, final long messageId, final String ext)
-            throws FileNotFoundException {
-        if (!TextUtils.equals(ext, "html") && !TextUtils.equals(ext, "txt")) {
-            throw new IllegalArgumentException("ext must be one of 'html' or 'txt'");
-        }
-        long l1 = messageId / 100 % 100;
-        long l2 = messageId % 100;
-        final File dir = new File(c.getFilesDir(),
-                "body/" + Long.toString(l1) + "/" + Long.toString(l2) + "/");
-        if (!dir.isDirectory() && !dir.mkdirs()) {
-            throw new FileNotFoundException("Could not create directory for body file");
-        }
-        return new File(dir, Long.toString(messageId) + "." + ext);
+        BodyStore.write(c, messageId, ext, content);
     }
 
     @Override
@@ -2429,12 +2658,12 @@ public class EmailProvider extends ContentProvider
                 break;
             case BODY_HTML: {
                 final long messageKey = Long.valueOf(uri.getLastPathSegment());
-                return ParcelFileDescriptor.open(getBodyFile(getContext(), messageKey, "html"),
+                return BodyStore.openFileDescriptor(getContext(), messageKey, BodyStore.EXT_HTML,
                         Utilities.parseMode(mode));
             }
             case BODY_TEXT:{
                 final long messageKey = Long.valueOf(uri.getLastPathSegment());
-                return ParcelFileDescriptor.open(getBodyFile(getContext(), messageKey, "txt"),
+                return BodyStore.openFileDescriptor(getContext(), messageKey, BodyStore.EXT_TEXT,
                         Utilities.parseMode(mode));
             }
         }
@@ -2576,12 +2805,12 @@ public class EmailProvider extends ContentProvider
         final SQLiteDatabase db = getDatabase(getContext());
         final String accountId = uri.getLastPathSegment();
 
-        final String sql = "SELECT " + MessageColumns.MAILBOX_KEY + ", " +
-                "SUM(CASE " + MessageColumns.FLAG_READ + " WHEN 0 THEN 1 ELSE 0 END), " +
-                "SUM(CASE " + MessageColumns.FLAG_SEEN + " WHEN 0 THEN 1 ELSE 0 END)\n" +
-                "FROM " + Message.TABLE_NAME + "\n" +
-                "WHERE " + MessageColumns.ACCOUNT_KEY + " = ?\n" +
-                "GROUP BY " + MessageColumns.MAILBOX_KEY;
+        // The counts are kept up to date in each mailbox by triggers, see DBHelper
+        final String sql = "SELECT " + MailboxColumns._ID + ", " +
+                MailboxColumns.UNREAD_COUNT + ", " + MailboxColumns.UNSEEN_COUNT + "\n" +
+                "FROM " + Mailbox.TABLE_NAME + "\n" +
+                "WHERE " + MailboxColumns.ACCOUNT_KEY + " = ?\n" +
+                "AND " + MailboxColumns.MESSAGE_COUNT + " > 0";
 
         final String[] selectionArgs = {accountId};
 
@@ -2595,10 +2824,81 @@ public class EmailProvider extends ContentProvider
                 new String[] {mailboxId});
     }
 
+    /**
+     * @return the handler for upkeep of the database and files, which runs on a thread of its
+     *     own at background priority, so that it holds up neither the UI nor syncs
+     */
+    private static synchronized Handler getMaintenanceHandler() {
+        if (sMaintenanceHandler == null) {
+            final HandlerThread thread = new HandlerThread("EmailProvider maintenance",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sMaintenanceHandler = new Handler(thread.getLooper());
+        }
+        return sMaintenanceHandler;
+    }
+
+    /**
+     * Indexes the messages stored before there was a search index, if there are any, in the
+     * background.  Each batch is posted after the last one, so as not to hold up other upkeep
+     * or the database for long.
+     */
+    private static void backfillSearchIndex(final Context context, final SQLiteDatabase db) {
+        getMaintenanceHandler().post(new Runnable() {
+            private int mBatches;
+
+            @Override
+            public void run() {
+                try {
+                    if (MessageSearchIndex.backfill(context, db)) {
+                        mBatches++;
+                        getMaintenanceHandler().post(this);
+                    } else if (mBatches > 0) {
+                        LogUtils.i(TAG, "Search index backfill done, %d batches", mBatches + 1);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. the database was closed; the rest are done the next time it's opened
+                    LogUtils.w(TAG, e, "Search index backfill stopped");
+                }
+            }
+        });
+    }
+
+    /**
+     * Compresses the body files written before they were compressed, in the background, if
+     * that hasn't been done already.  This goes a directory at a time, as the search index
+     * backfill goes a batch at a time.
+     */
+    private static void compressBodyFiles(final Context context) {
+        getMaintenanceHandler().post(new Runnable() {
+            private final long[] mSizes = new long[2];
+            private int mDir;
+
+            @Override
+            public void run() {
+                if (BodyStore.migrate(context, mDir, mSizes)) {
+                    mDir++;
+                    getMaintenanceHandler().post(this);
+                }
+            }
+        });
+    }
+
+    private Cursor searchMessages(final SQLiteDatabase db, final Uri uri, final String limit) {
+        final String accountId = uri.getQueryParameter(Message.SEARCH_PARAMETER_ACCOUNT);
+        final String mailboxId = uri.getQueryParameter(Message.SEARCH_PARAMETER_MAILBOX);
+        final Cursor c = MessageSearchIndex.search(db,
+                uri.getQueryParameter(Message.SEARCH_PARAMETER_QUERY),
+                accountId == null ? -1 : Long.parseLong(accountId),
+                mailboxId == null ? -1 : Long.parseLong(mailboxId), limit);
+        c.setNotificationUri(getContext().getContentResolver(), Message.NOTIFIER_URI);
+        return c;
+    }
+
     private Cursor getMailboxMessageCount(Uri uri) {
         SQLiteDatabase db = getDatabase(getContext());
         String mailboxId = uri.getLastPathSegment();
-        return db.rawQuery("select count(*) from Message where mailboxKey=?",
+        return db.rawQuery("select ifnull((select messageCount from Mailbox where _id=?), 0)",
                 new String[] {mailboxId});
     }
 
@@ -3042,9 +3342,6 @@ public class EmailProvider extends ContentProvider
         return "'content://" + EmailContent.AUTHORITY + "/" + type + "/' || " + tableName + "._id";
     }
 
-    // Regex that matches start of img tag. '<(?i)img\s+'.
-    private static final Pattern IMG_TAG_START_REGEX = Pattern.compile("<(?i)img\\s+");
-
     /**
      * Class that holds the sqlite query and the attachment (JSON) value (which might be null)
      */
@@ -3071,13 +3368,10 @@ public class EmailProvider extends ContentProvider
         ContentValues values = new ContentValues();
         String attachmentJson = null;
         if (msg != null) {
-            Body body = Body.restoreBodyWithMessageId(context, messageId);
-            if (body != null) {
-                if (body.mHtmlContent != null) {
-                    if (IMG_TAG_START_REGEX.matcher(body.mHtmlContent).find()) {
-                        values.put(UIProvider.MessageColumns.EMBEDS_EXTERNAL_RESOURCES, 1);
-                    }
-                }
+            // Worked out when the html was sanitized, see SanitizedHtmlCache
+            final SanitizedHtmlCache.Entry html = SanitizedHtmlCache.get(context, messageId);
+            if (html != null && html.mHasImages) {
+                values.put(UIProvider.MessageColumns.EMBEDS_EXTERNAL_RESOURCES, 1);
             }
             Address[] fromList = Address.fromHeader(msg.mFrom);
             int autoShowImages = 0;
@@ -3865,6 +4159,21 @@ public class EmailProvider extends ContentProvider
         return mc;
     }
 
+    /**
+     * Adds up one of the counts kept in each mailbox (e.g. the unread count) over the mailboxes
+     * selected, which is much cheaper than counting their messages.
+     */
+    private int sumMailboxCounts(final String column, final String selection,
+            final String[] selectionArgs) {
+        final Cursor c = getQueryDatabase(getContext()).rawQuery("select sum(" + column
+                + ") from " + Mailbox.TABLE_NAME + " where " + selection, selectionArgs);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
     private Object[] getVirtualMailboxRow(long accountId, int mailboxType, String[] projection) {
         final long id = getVirtualMailboxId(accountId, mailboxType);
         final String idString = Long.toString(id);
@@ -3889,12 +4198,8 @@ public class EmailProvider extends ContentProvider
                 values[i] = combinedUriString("uimessages", idString);
             } else if (column.equals(UIProvider.FolderColumns.UNREAD_COUNT)) {
                 if (mailboxType == Mailbox.TYPE_INBOX && accountId == COMBINED_ACCOUNT_ID) {
-                    final int unreadCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            MessageColumns.MAILBOX_KEY + " IN (SELECT " + MailboxColumns._ID
-                            + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE
-                            + "=" + Mailbox.TYPE_INBOX + ") AND " + MessageColumns.FLAG_READ + "=0",
-                            null);
-                    values[i] = unreadCount;
+                    values[i] = sumMailboxCounts(MailboxColumns.UNREAD_COUNT,
+                            MailboxColumns.TYPE + "=" + Mailbox.TYPE_INBOX, null);
                 } else if (mailboxType == Mailbox.TYPE_UNREAD) {
                     final String accountKeyClause;
                     final String[] whereArgs;
@@ -3902,15 +4207,11 @@ public class EmailProvider extends ContentProvider
                         accountKeyClause = "";
                         whereArgs = null;
                     } else {
-                        accountKeyClause = MessageColumns.ACCOUNT_KEY + "= ? AND ";
+                        accountKeyClause = MailboxColumns.ACCOUNT_KEY + "= ? AND ";
                         whereArgs = new String[] { Long.toString(accountId) };
                     }
-                    final int unreadCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                            accountKeyClause + MessageColumns.FLAG_READ + "=0 AND "
-                            + MessageColumns.MAILBOX_KEY + " NOT IN (SELECT " + MailboxColumns._ID
-                            + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "="
-                            + Mailbox.TYPE_TRASH + ")", whereArgs);
-                    values[i] = unreadCount;
+                    values[i] = sumMailboxCounts(MailboxColumns.UNREAD_COUNT, accountKeyClause
+                            + MailboxColumns.TYPE + "!=" + Mailbox.TYPE_TRASH, whereArgs);
                 } else if (mailboxType == Mailbox.TYPE_STARRED) {
                     final String accountKeyClause;
                     final String[] whereArgs;
@@ -4619,7 +4920,7 @@ public class EmailProvider extends ContentProvider
     private Cursor uiQuery(int match, Uri uri, String[] uiProjection, final boolean unseenOnly) {
         Context context = getContext();
         ContentResolver resolver = context.getContentResolver();
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getQueryDatabase(context);
         // Should we ever return null, or throw an exception??
         Cursor c = null;
         String id = uri.getPathSegments().get(1);
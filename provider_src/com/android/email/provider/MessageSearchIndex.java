@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
+
+import com.android.emailcommon.provider.EmailContent.BodyColumns;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.EmailContent.MessageColumns;
+import com.android.mail.utils.MatrixCursorWithCachedColumns;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * The full text index of the messages stored on the device, so that they can be searched
+ * without going to the server (which POP3 servers can't do anyway).
+ *
+ * It's an FTS4 table, {@link #TABLE_NAME}, whose docids are the ids of the messages.  The
+ * subject, addresses and snippet are indexed by triggers on the Message table, see
+ * {@link DBHelper#createMessageSearchTable}.  The bodies are kept in files, so
+ * {@link EmailProvider} indexes them itself as it writes them, see {@link #indexBody}.  Mail
+ * stored before the index existed is indexed in the background by {@link #backfill}.
+ */
+final class MessageSearchIndex {
+    static final String TABLE_NAME = "MessageSearch";
+    static final String SUBJECT = "subject";
+    static final String ADDRESSES = "addresses";
+    static final String SNIPPET = "snippet";
+    static final String BODY = "body";
+
+    /** Only the start of a long body is indexed, to keep the index a sensible size */
+    @VisibleForTesting
+    static final int MAX_BODY_LENGTH = 64 * 1024;
+    /** A shorter prefix matches so many words that searching for it would take too long */
+    private static final int MIN_PREFIX_LENGTH = 3;
+    private static final int BACKFILL_BATCH_SIZE = 100;
+
+    /** What matchinfo() returns for ranking, see {@link #getRankExpression} */
+    private static final String MATCHINFO_FORMAT = "pcx";
+    /** Only the first words searched for count for the rank, to keep its SQL a sensible size */
+    private static final int MAX_RANKED_PHRASES = 8;
+    /** The name {@link #search} gives to the hex of matchinfo() */
+    @VisibleForTesting
+    static final String MATCHINFO_COLUMN = "matchinfoHex";
+    /** How much a hit counts for in each column, in the order they're created in DBHelper */
+    private static final double[] COLUMN_WEIGHTS = {
+        4.0,  // SUBJECT
+        2.0,  // ADDRESSES
+        1.0,  // SNIPPET
+        1.0   // BODY
+    };
+
+    private static final Pattern HTML_INVISIBLE =
+            Pattern.compile("<(style|script)[^>]*>.*?</\\1\\s*>",
+                    Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    private static final Pattern HTML_TAG_OR_ENTITY = Pattern.compile("<[^>]*>|&#?\\w+;");
+
+    private static final String[] BACKFILL_PROJECTION = {
+        MessageColumns._ID, MessageColumns.SUBJECT, MessageColumns.DISPLAY_NAME,
+        MessageColumns.FROM_LIST, MessageColumns.TO_LIST, MessageColumns.CC_LIST,
+        MessageColumns.SNIPPET
+    };
+
+    private MessageSearchIndex() {
+    }
+
+    /**
+     * @return the SQL expression for the addresses to index, from the columns of the message
+     *     named by {@code row}, e.g. "NEW"
+     */
+    static String addressesExpression(String row) {
+        final String[] columns = { MessageColumns.DISPLAY_NAME, MessageColumns.FROM_LIST,
+                MessageColumns.TO_LIST, MessageColumns.CC_LIST };
+        final StringBuilder sb = new StringBuilder();
+        for (String column : columns) {
+            if (sb.length() > 0) {
+                sb.append("||' '||");
+            }
+            sb.append("ifnull(").append(row).append('.').append(column).append(",'')");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Indexes the body of a message, from the values written to its body files.  Does nothing
+     * if the message hasn't been indexed yet, as {@link #backfill} will then read the files.
+     *
+     * @param values containing {@link BodyColumns#TEXT_CONTENT} and/or
+     *     {@link BodyColumns#HTML_CONTENT}
+     */
+    static void indexBody(SQLiteDatabase db, long messageId, ContentValues values) {
+        if (!values.containsKey(BodyColumns.TEXT_CONTENT)
+                && !values.containsKey(BodyColumns.HTML_CONTENT)) {
+            return;
+        }
+        final ContentValues indexValues = new ContentValues(1);
+        indexValues.put(BODY, getBodyText(values.getAsString(BodyColumns.TEXT_CONTENT),
+                values.getAsString(BodyColumns.HTML_CONTENT)));
+        db.update(TABLE_NAME, indexValues, "docid=?", new String[] { Long.toString(messageId) });
+    }
+
+    /**
+     * @return the text to index for a body: the plain text if there is any, else the html
+     *     without its markup, cut short at {@link #MAX_BODY_LENGTH}
+     */
+    @VisibleForTesting
+    static String getBodyText(String text, String html) {
+        if (TextUtils.isEmpty(text)) {
+            if (TextUtils.isEmpty(html)) {
+                return null;
+            }
+            text = HTML_INVISIBLE.matcher(html).replaceAll(" ");
+            text = HTML_TAG_OR_ENTITY.matcher(text).replaceAll(" ");
+        }
+        return text.length() > MAX_BODY_LENGTH ? text.substring(0, MAX_BODY_LENGTH) : text;
+    }
+
+    /**
+     * Indexes a batch of the messages stored before the index existed, newest first.  Messages
+     * stored since are indexed by the triggers, and so all of those older than the oldest
+     * message indexed are yet to be done.  The bodies are read before the batch's transaction,
+     * so that the database isn't held up by the files.
+     *
+     * @return whether there are more messages to index
+     */
+    static boolean backfill(Context context, SQLiteDatabase db) {
+        long oldestId;
+        final SQLiteStatement oldest = db.compileStatement(
+                "select docid from " + TABLE_NAME + " order by docid limit 1");
+        try {
+            oldestId = oldest.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // Nothing indexed yet, so every message is to be done
+            oldestId = Long.MAX_VALUE;
+        } finally {
+            oldest.close();
+        }
+        final HashMap<Long, String> bodies = new HashMap<Long, String>();
+        long newestId = -1;
+        long batchOldestId = -1;
+        final Cursor ids = db.query(Message.TABLE_NAME, new String[] { MessageColumns._ID },
+                MessageColumns._ID + "<?", new String[] { Long.toString(oldestId) },
+                null, null, MessageColumns._ID + " desc", Integer.toString(BACKFILL_BATCH_SIZE));
+        try {
+            while (ids.moveToNext()) {
+                final long messageId = ids.getLong(0);
+                newestId = Math.max(newestId, messageId);
+                batchOldestId = messageId;
+                bodies.put(messageId, getBodyText(
+                        BodyStore.read(context, messageId, BodyStore.EXT_TEXT),
+                        BodyStore.read(context, messageId, BodyStore.EXT_HTML)));
+            }
+        } finally {
+            ids.close();
+        }
+        if (bodies.isEmpty()) {
+            return false;
+        }
+
+        // The rest of each message is read again here, as it may have changed (or the message
+        // been deleted) while its body was read, before the index had a row to update
+        db.beginTransaction();
+        try {
+            final Cursor c = db.query(Message.TABLE_NAME, BACKFILL_PROJECTION,
+                    MessageColumns._ID + " between ? and ?", new String[] {
+                            Long.toString(batchOldestId), Long.toString(newestId) },
+                    null, null, null);
+            try {
+                final ContentValues values = new ContentValues(5);
+                final ArrayList<String> addresses = new ArrayList<String>(4);
+                while (c.moveToNext()) {
+                    final long messageId = c.getLong(0);
+                    addresses.clear();
+                    for (int i = 2; i <= 5; i++) {
+                        addresses.add(c.isNull(i) ? "" : c.getString(i));
+                    }
+                    values.clear();
+                    values.put("docid", messageId);
+                    values.put(SUBJECT, c.getString(1));
+                    values.put(ADDRESSES, TextUtils.join(" ", addresses));
+                    values.put(SNIPPET, c.getString(6));
+                    values.put(BODY, bodies.get(messageId));
+                    db.insert(TABLE_NAME, null, values);
+                }
+            } finally {
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return bodies.size() == BACKFILL_BATCH_SIZE;
+    }
+
+    /**
+     * Turns the words typed by the user into an FTS query which matches messages with all of
+     * them, and, as the user may not have finished typing, words starting with the last one.
+     *
+     * @return the query, or null if there's nothing to search for
+     */
+    @VisibleForTesting
+    static String buildMatchQuery(String text) {
+        final StringBuilder sb = new StringBuilder();
+        final String[] words = text.trim().split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            // Quoted, so that nothing typed is taken as query syntax
+            final String word = words[i].replace("\"", "");
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append('"').append(word);
+            if (i == words.length - 1 && word.length() >= MIN_PREFIX_LENGTH) {
+                sb.append('*');
+            }
+            sb.append('"');
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Searches the index.
+     *
+     * @param text the words to search for
+     * @param accountId the account to search, or -1 for all
+     * @param mailboxId the mailbox to search, or -1 for all
+     * @param limit the most results to return, or null for all
+     * @return a cursor of the matching message ids, best match first (see
+     *     {@link #getRankExpression}), and newest first among equally good matches
+     */
+    static Cursor search(SQLiteDatabase db, String text, long accountId, long mailboxId,
+            String limit) {
+        final String match = text == null ? null : buildMatchQuery(text);
+        if (match == null) {
+            return new MatrixCursorWithCachedColumns(new String[] { MessageColumns._ID });
+        }
+        // Each word is a quoted phrase
+        int phrases = 0;
+        for (int i = match.indexOf('"'); i >= 0; i = match.indexOf('"', i + 1)) {
+            phrases++;
+        }
+        phrases = Math.min(phrases / 2, MAX_RANKED_PHRASES);
+
+        final ArrayList<String> args = new ArrayList<String>(4);
+        args.add(match);
+        // The limit on the subquery keeps SQLite from flattening it, which would call
+        // matchinfo() again for each use of its result in the rank
+        final StringBuilder sql = new StringBuilder("select ").append(MessageColumns._ID)
+                .append(" from (select m.").append(MessageColumns._ID).append(" as ")
+                .append(MessageColumns._ID).append(", m.").append(MessageColumns.TIMESTAMP)
+                .append(" as ").append(MessageColumns.TIMESTAMP)
+                .append(", hex(matchinfo(").append(TABLE_NAME).append(", '")
+                .append(MATCHINFO_FORMAT).append("')) as ").append(MATCHINFO_COLUMN)
+                .append(" from ").append(TABLE_NAME).append(" s join ")
+                .append(Message.TABLE_NAME).append(" m on m.").append(MessageColumns._ID)
+                .append("=s.docid where ").append(TABLE_NAME).append(" match ?");
+        if (accountId != -1) {
+            sql.append(" and m.").append(MessageColumns.ACCOUNT_KEY).append("=?");
+            args.add(Long.toString(accountId));
+        }
+        if (mailboxId != -1) {
+            sql.append(" and m.").append(MessageColumns.MAILBOX_KEY).append("=?");
+            args.add(Long.toString(mailboxId));
+        }
+        sql.append(" limit -1) order by ").append(getRankExpression(phrases))
+                .append(" desc, ").append(MessageColumns.TIMESTAMP).append(" desc limit ?");
+        args.add(limit != null && TextUtils.isDigitsOnly(limit) ? limit : "-1");
+        return db.rawQuery(sql.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Builds the SQL for the rank of a match: how often each word searched for is found in
+     * each column, as a share of how often it's found in all the messages (so that rarer words
+     * count for more), weighted by {@link #COLUMN_WEIGHTS}.  This is the ranking given as an
+     * example in the SQLite FTS documentation.  Android's SQLite has no bm25(), and no way to
+     * add functions, so the result of matchinfo() is taken apart in SQL.
+     *
+     * @param phrases the number of phrases in the query to rank by, from the first
+     * @return an expression of {@link #MATCHINFO_COLUMN}, the hex of matchinfo() with
+     *     {@link #MATCHINFO_FORMAT}: the number of phrases and of columns, then for each phrase
+     *     and column, the hits in this row, the hits in all rows, and the rows with hits, as
+     *     native-endian 32-bit integers.  The higher the rank, the better the match.
+     */
+    @VisibleForTesting
+    static String getRankExpression(int phrases) {
+        final int columns = COLUMN_WEIGHTS.length;
+        final StringBuilder sb = new StringBuilder("(0");
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                final int index = 2 + 3 * (phrase * columns + column);
+                // rowHits is 0 whenever allHits is, so max() only keeps it from dividing by 0
+                sb.append("+").append(COLUMN_WEIGHTS[column]).append('*');
+                appendInt(sb, index);
+                sb.append("/max(");
+                appendInt(sb, index + 1);
+                sb.append(",1)");
+            }
+        }
+        return sb.append(')').toString();
+    }
+
+    /**
+     * Appends the SQL for the {@code index}th integer in {@link #MATCHINFO_COLUMN}.
+     */
+    private static void appendInt(StringBuilder sb, int index) {
+        final boolean bigEndian = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN;
+        sb.append('(');
+        for (int i = 0; i < 4; i++) {
+            final int b = bigEndian ? 3 - i : i;
+            if (i > 0) {
+                sb.append("+256*(");
+            }
+            // Each of the byte's hex digits: '0'-'9' are 30-39 in hex, and 'A'-'F' are 41-46
+            final int digit = 8 * index + 2 * b + 1;
+            for (int d = digit; d <= digit + 1; d++) {
+                sb.append(d == digit ? "16*" : "+");
+                sb.append("(hex(substr(").append(MATCHINFO_COLUMN).append(',').append(d)
+                        .append(",1))-30-(substr(").append(MATCHINFO_COLUMN).append(',')
+                        .append(d).append(",1)>'9'))");
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            sb.append(')');
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.content.Context;
+import android.util.LruCache;
+
+import com.android.mail.utils.HtmlSanitizer;
+import com.android.mail.utils.LogUtils;
+import com.google.common.annotations.VisibleForTesting;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps what showing a message's html body takes, i.e. the sanitized html and whether it has
+ * images, so that it's only worked out the first time the message is viewed, rather than every
+ * time.  Entries are kept in memory, and in files in the cache dir, which survive the process;
+ * either way, they're keyed by message id and checked against the version of the body file
+ * (see {@link BodyStore#getVersion}), so a body which has been written since is done again.
+ *
+ * The files take up at most {@link #MAX_DISK_SIZE} bytes; the ones used longest ago are
+ * deleted to make room.  As it's the cache dir, the system may also delete them.
+ */
+final class SanitizedHtmlCache {
+    private static final String TAG = LogUtils.TAG;
+
+    /** Sanitized html, and whether the original had images */
+    static final class Entry {
+        final String mVersion;
+        final String mHtml;
+        final boolean mHasImages;
+
+        Entry(String version, String html, boolean hasImages) {
+            mVersion = version;
+            mHtml = html;
+            mHasImages = hasImages;
+        }
+    }
+
+    private static final String CACHE_DIR = "sanitized_html";
+    /** Written at the start of each file; change it whenever what's in the file changes */
+    private static final int FILE_FORMAT = 1;
+    /** The most chars of html to keep in memory */
+    private static final int MAX_MEMORY_SIZE = 1024 * 1024;
+    @VisibleForTesting
+    static final long MAX_DISK_SIZE = 8 * 1024 * 1024;
+    /** How far below MAX_DISK_SIZE to trim the files to, so as not to trim on every write */
+    private static final float TRIM_TO = 0.75f;
+
+    // Regex that matches start of img tag. '<(?i)img\s+'.
+    private static final Pattern IMG_TAG_START_REGEX = Pattern.compile("<(?i)img\\s+");
+
+    private static final LruCache<Long, Entry> sMemoryCache =
+            new LruCache<Long, Entry>(MAX_MEMORY_SIZE) {
+                @Override
+                protected int sizeOf(Long key, Entry value) {
+                    return value.mHtml.length();
+                }
+            };
+
+    /** The total size of the files, or -1 if not yet known; guarded by sDiskLock */
+    private static long sDiskSize = -1;
+    private static final Object sDiskLock = new Object();
+
+    private SanitizedHtmlCache() {
+    }
+
+    private static File getDir(Context c) {
+        return new File(c.getCacheDir(), CACHE_DIR);
+    }
+
+    private static File getFile(Context c, long messageId) {
+        return new File(getDir(c), Long.toString(messageId));
+    }
+
+    /**
+     * Gets the sanitized html body of a message, sanitizing it (and keeping the result) if
+     * that hasn't been done since the body was last written.
+     *
+     * @return the entry, or null if the message has no html body
+     */
+    static Entry get(Context c, long messageId) {
+        final String version;
+        try {
+            version = BodyStore.getVersion(c, messageId, BodyStore.EXT_HTML);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        if (version == null) {
+            sMemoryCache.remove(messageId);
+            getFile(c, messageId).delete();
+            return null;
+        }
+        Entry entry = sMemoryCache.get(messageId);
+        if (entry != null && entry.mVersion.equals(version)) {
+            return entry;
+        }
+        entry = readFile(c, messageId);
+        if (entry == null || !entry.mVersion.equals(version)) {
+            final String html = BodyStore.read(c, messageId, BodyStore.EXT_HTML);
+            if (html == null) {
+                return null;
+            }
+            entry = new Entry(version, HtmlSanitizer.sanitizeHtml(html),
+                    IMG_TAG_START_REGEX.matcher(html).find());
+            writeFile(c, messageId, entry);
+        }
+        sMemoryCache.put(messageId, entry);
+        return entry;
+    }
+
+    private static Entry readFile(Context c, long messageId) {
+        final File file = getFile(c, messageId);
+        try {
+            final DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_FORMAT) {
+                    return null;
+                }
+                final String version = in.readUTF();
+                final boolean hasImages = in.readBoolean();
+                final Entry entry = new Entry(version, IOUtils.toString(in, "UTF-8"), hasImages);
+                // Used just now, as far as trimming goes
+                file.setLastModified(System.currentTimeMillis());
+                return entry;
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Couldn't read sanitized html of message %d", messageId);
+            return null;
+        }
+    }
+
+    private static void writeFile(Context c, long messageId, Entry entry) {
+        final File dir = getDir(c);
+        File temp = null;
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            temp = File.createTempFile(Long.toString(messageId), null, dir);
+            final DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(FILE_FORMAT);
+                out.writeUTF(entry.mVersion);
+                out.writeBoolean(entry.mHasImages);
+                out.write(entry.mHtml.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            final File file = getFile(c, messageId);
+            final long oldLength = file.length();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp);
+            }
+            temp = null;
+            addToDiskSize(dir, file.length() - oldLength);
+        } catch (IOException e) {
+            // Only a cache; it's done again next time
+            LogUtils.w(TAG, e, "Couldn't write sanitized html of message %d", messageId);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the total size of the files, and trims them when there's too much.
+     */
+    private static void addToDiskSize(File dir, long delta) {
+        synchronized (sDiskLock) {
+            if (sDiskSize < 0) {
+                sDiskSize = 0;
+                final File[] files = dir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        sDiskSize += file.length();
+                    }
+                }
+            } else {
+                sDiskSize += delta;
+            }
+            if (sDiskSize > MAX_DISK_SIZE) {
+                sDiskSize = trim(dir, (long) (MAX_DISK_SIZE * TRIM_TO));
+            }
+        }
+    }
+
+    /**
+     * Deletes the files used longest ago until they take up no more than {@code maxSize}.
+     *
+     * @return the size of the files left
+     */
+    @VisibleForTesting
+    static long trim(File dir, long maxSize) {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        final long[] lastModified = new long[files.length];
+        long size = 0;
+        for (int i = 0; i < files.length; i++) {
+            size += files[i].length();
+        }
+        // Sorted on a snapshot of the times, which may change while sorting
+        final Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            order[i] = i;
+            lastModified[i] = files[i].lastModified();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Long.valueOf(lastModified[lhs]).compareTo(lastModified[rhs]);
+            }
+        });
+        for (int i = 0; i < order.length && size > maxSize; i++) {
+            final File file = files[order[i]];
+            final long length = file.length();
+            if (file.delete()) {
+                size -= length;
+            }
+        }
+        return size;
+    }
+}
@@ -22,6 +22,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 
 import com.android.email.LegacyConversions;
@@ -42,6 +43,8 @@ import com.android.mail.utils.Utils;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 public class Utilities {
     /**
@@ -187,6 +190,178 @@ public class Utilities {
         }
     }
 
+    /** The most server ids to look up in one query, well within SQLite's limit on arguments */
+    private static final int MAX_SERVER_IDS_PER_QUERY = 500;
+
+    /**
+     * Copy a batch of downloaded messages (which may have partially-loaded sections) into the
+     * EmailProvider, given the account and mailbox.  Unlike copying them one at a time, this
+     * writes them all in one transaction, and notifies observers once.
+     *
+     * @param messages the remote messages we've just downloaded
+     * @param account the account they will be stored into
+     * @param folder the mailbox they will be stored into
+     * @param loadStatus when complete, the messages will be marked with this status (e.g.
+     *        EmailContent.Message.LOADED)
+     */
+    public static void copyMessagesToProvider(Context context, List<Message> messages,
+            Account account, Mailbox folder, int loadStatus) {
+        final boolean loadAttachments = loadStatus != EmailContent.Message.FLAG_LOADED_PARTIAL
+                && loadStatus != EmailContent.Message.FLAG_LOADED_UNKNOWN;
+        final HashMap<String, EmailContent.Message> localMessages =
+                restoreMessagesWithServerIds(context, messages, account, folder);
+
+        final ArrayList<Bundle> saves = new ArrayList<Bundle>(messages.size());
+        // For each message saved, its attachment parts, in the same order as their values
+        final ArrayList<ArrayList<Part>> savedAttachmentParts =
+                new ArrayList<ArrayList<Part>>(messages.size());
+        for (Message message : messages) {
+            EmailContent.Message localMessage = localMessages.get(message.getUid());
+            final Bundle save = new Bundle(4);
+            if (localMessage == null) {
+                localMessage = new EmailContent.Message();
+            } else {
+                save.putLong(EmailProvider.SAVE_MESSAGE_ID, localMessage.mId);
+            }
+            final ArrayList<ContentValues> attachmentValues = new ArrayList<ContentValues>();
+            final ArrayList<Part> attachmentParts = new ArrayList<Part>();
+            try {
+                // Copy the fields that are available into the message object
+                LegacyConversions.updateMessageFields(localMessage, message,
+                        account.mId, folder.mId);
+
+                // Now process body parts & attachments
+                final ArrayList<Part> viewables = new ArrayList<Part>();
+                final ArrayList<Part> attachments = new ArrayList<Part>();
+                MimeUtility.collectParts(message, viewables, attachments);
+
+                final ConversionUtilities.BodyFieldData data =
+                        ConversionUtilities.parseBodyFields(viewables);
+                localMessage.setFlags(data.isQuotedReply, data.isQuotedForward);
+                localMessage.mSnippet = data.snippet;
+                final ContentValues body = new ContentValues(2);
+                body.put(EmailContent.BodyColumns.TEXT_CONTENT, data.textContent);
+                body.put(EmailContent.BodyColumns.HTML_CONTENT, data.htmlContent);
+
+                if (loadAttachments) {
+                    for (Part viewable : viewables) {
+                        if (LegacyConversions.isInlineAttachment(viewable)) {
+                            attachments.add(viewable);
+                        }
+                    }
+                    for (Part part : attachments) {
+                        final Attachment att = LegacyConversions.mimePartToAttachment(part);
+                        att.mAccountKey = account.mId;
+                        attachmentValues.add(att.toContentValues());
+                        attachmentParts.add(part);
+                        localMessage.mFlagAttachment = true;
+                    }
+                } else {
+                    // A dummy placeholder, as in copyOneMessageToProvider() above
+                    final Attachment att = new Attachment();
+                    att.mFileName = "";
+                    att.mSize = message.getSize();
+                    att.mMimeType = "text/plain";
+                    att.mAccountKey = account.mId;
+                    att.mFlags = Attachment.FLAG_DUMMY_ATTACHMENT;
+                    attachmentValues.add(att.toContentValues());
+                    attachmentParts.add(null);
+                    localMessage.mFlagAttachment = true;
+                }
+                localMessage.mFlagLoaded = loadStatus;
+
+                save.putParcelable(EmailProvider.SAVE_MESSAGE_VALUES,
+                        localMessage.toContentValues());
+                save.putParcelable(EmailProvider.SAVE_MESSAGE_BODY, body);
+                save.putParcelableArrayList(EmailProvider.SAVE_MESSAGE_ATTACHMENTS,
+                        attachmentValues);
+                saves.add(save);
+                savedAttachmentParts.add(attachmentParts);
+            } catch (MessagingException me) {
+                LogUtils.e(Logging.LOG_TAG, "Error while copying downloaded message." + me);
+            }
+        }
+        if (saves.isEmpty()) {
+            return;
+        }
+
+        final ArrayList<Bundle> results;
+        try {
+            final Bundle extras = new Bundle(1);
+            extras.putParcelableArrayList(EmailProvider.SAVE_MESSAGES_EXTRA, saves);
+            // The provider runs in this process, so the batch isn't copied through a parcel
+            final Bundle result = context.getContentResolver().call(EmailContent.CONTENT_URI,
+                    EmailProvider.SAVE_MESSAGES_METHOD, null, extras);
+            results = result.getParcelableArrayList(EmailProvider.SAVE_MESSAGES_EXTRA);
+        } catch (RuntimeException rte) {
+            LogUtils.e(Logging.LOG_TAG, "Error while storing downloaded messages." +
+                    rte.toString());
+            return;
+        }
+
+        // Lastly, write the attachments which were downloaded along with their messages
+        for (int i = 0; i < results.size(); i++) {
+            final long[] attachmentIds =
+                    results.get(i).getLongArray(EmailProvider.SAVE_MESSAGE_ATTACHMENTS);
+            final ArrayList<ContentValues> attachmentValues =
+                    saves.get(i).getParcelableArrayList(EmailProvider.SAVE_MESSAGE_ATTACHMENTS);
+            final ArrayList<Part> attachmentParts = savedAttachmentParts.get(i);
+            try {
+                for (int j = 0; j < attachmentIds.length; j++) {
+                    final Part part = attachmentParts.get(j);
+                    if (part != null && part.getBody() != null) {
+                        final Attachment att = new Attachment();
+                        att.mId = attachmentIds[j];
+                        LegacyConversions.saveAttachmentBody(context, part, att, account.mId);
+                    }
+                }
+            } catch (MessagingException me) {
+                LogUtils.e(Logging.LOG_TAG, "Error while copying downloaded message." + me);
+            } catch (IOException ioe) {
+                LogUtils.e(Logging.LOG_TAG, "Error while storing attachment." + ioe.toString());
+            }
+        }
+    }
+
+    /**
+     * @return the messages already stored in the mailbox with the same server ids as any of
+     *     {@code messages}, by server id
+     */
+    private static HashMap<String, EmailContent.Message> restoreMessagesWithServerIds(
+            Context context, List<Message> messages, Account account, Mailbox folder) {
+        final HashMap<String, EmailContent.Message> localMessages =
+                new HashMap<String, EmailContent.Message>();
+        for (int start = 0; start < messages.size(); start += MAX_SERVER_IDS_PER_QUERY) {
+            final int end = Math.min(start + MAX_SERVER_IDS_PER_QUERY, messages.size());
+            final String[] args = new String[end - start + 2];
+            args[0] = String.valueOf(account.mId);
+            args[1] = String.valueOf(folder.mId);
+            final StringBuilder selection = new StringBuilder(
+                    MessageColumns.ACCOUNT_KEY + "=? AND " + MessageColumns.MAILBOX_KEY + "=?" +
+                    " AND " + SyncColumns.SERVER_ID + " IN (");
+            for (int i = start; i < end; i++) {
+                selection.append(i == start ? "?" : ",?");
+                args[i - start + 2] = messages.get(i).getUid();
+            }
+            selection.append(')');
+            final Cursor c = context.getContentResolver().query(EmailContent.Message.CONTENT_URI,
+                    EmailContent.Message.CONTENT_PROJECTION, selection.toString(), args, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    final EmailContent.Message localMessage =
+                            EmailContent.getContent(context, c, EmailContent.Message.class);
+                    localMessages.put(localMessage.mServerId, localMessage);
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return localMessages;
+    }
+
     public static void saveOrUpdate(EmailContent content, Context context) {
         if (content.isSaved()) {
             content.update(context, content.toContentValues());
@@ -28,6 +28,7 @@ import android.os.RemoteException;
 import com.android.email.DebugUtils;
 import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
+import com.android.email.mail.MessageSpool;
 import com.android.email.mail.Sender;
 import com.android.email.mail.Store;
 import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
@@ -444,12 +445,13 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                 EmailContent.Message.ID_COLUMN_PROJECTION,
                 MessageColumns.MAILBOX_KEY + "=?", new String[] { Long.toString(outboxId)},
                 null);
+        Sender sender = null;
         try {
             // 2.  exit early
             if (c.getCount() <= 0) {
                 return;
             }
-            final Sender sender = Sender.getInstance(context, account);
+            sender = Sender.getInstance(context, account);
             final Store remoteStore = Store.getInstance(account, context);
             final ContentValues moveToSentValues;
             if (remoteStore.requireCopyMessageToSentFolder()) {
@@ -460,8 +462,12 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
             } else {
                 moveToSentValues = null;
             }
+            // The rendering sent is kept for the upload to Sent, if there's going to be one
+            final boolean uploadsSent = moveToSentValues != null
+                    && remoteStore.canSyncFolderType(Mailbox.TYPE_SENT);
 
-            // 3.  loop through the available messages and send them
+            // 3.  loop through the available messages and send them, over one connection
+            sender.beginSession();
             while (c.moveToNext()) {
                 final long messageId;
                 if (moveToSentValues != null) {
@@ -507,9 +513,13 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
 
                     moveToSentValues.put(EmailContent.MessageColumns.FLAGS, flags);
                     resolver.update(syncedUri, moveToSentValues, null, null);
+                    if (!uploadsSent) {
+                        MessageSpool.evict(context, messageId);
+                    }
                 } else {
                     AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId,
                             messageId);
+                    MessageSpool.evict(context, messageId);
                     final Uri uri =
                         ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, messageId);
                     resolver.delete(uri, null, null);
@@ -524,6 +534,9 @@ public abstract class EmailServiceStub extends IEmailService.Stub implements IEm
                 nc.showLoginFailedNotificationSynchronous(account.mId, false /* incoming */);
             }
         } finally {
+            if (sender != null) {
+                sender.endSession();
+            }
             c.close();
         }
     }
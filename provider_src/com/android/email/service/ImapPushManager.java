@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Bundle;
+import android.text.format.DateUtils;
+
+import com.android.email.R;
+import com.android.email.mail.store.ImapFolder;
+import com.android.email.mail.store.ImapStore;
+import com.android.email.service.EmailServiceUtils.EmailServiceInfo;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.AuthenticationFailedException;
+import com.android.emailcommon.mail.Folder.OpenMode;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.AccountColumns;
+import com.android.emailcommon.provider.Mailbox;
+import com.android.mail.utils.LogUtils;
+
+import java.util.HashMap;
+
+/**
+ * Keeps the inbox of each IMAP account that is set to push open in IDLE (RFC 2177), on a
+ * connection of its own, and requests a sync of the inbox as soon as the server reports a
+ * change to it.
+ */
+public class ImapPushManager {
+    /** Servers may drop clients which have been idle for 30 minutes; idle again before that. */
+    private static final long IDLE_TIMEOUT_MILLIS = 25 * DateUtils.MINUTE_IN_MILLIS;
+    /** Delay before reconnecting after an error; doubled after every consecutive error. */
+    private static final long MIN_RETRY_DELAY_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+    private static final long MAX_RETRY_DELAY_MILLIS = 30 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final String PUSH_ACCOUNTS_SELECTION =
+            AccountColumns.SYNC_INTERVAL + "=" + Account.CHECK_INTERVAL_PUSH;
+
+    private static ImapPushManager sInstance;
+
+    private final Context mContext;
+    /** The threads idling on behalf of each account, by account id */
+    private final HashMap<Long, PushThread> mPushThreads = new HashMap<Long, PushThread>();
+
+    public static synchronized ImapPushManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImapPushManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ImapPushManager(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Starts push for every IMAP account which is set to push.
+     */
+    public void startAll() {
+        final Cursor c = mContext.getContentResolver().query(Account.CONTENT_URI,
+                EmailContent.ID_PROJECTION, PUSH_ACCOUNTS_SELECTION, null, null);
+        if (c == null) return;
+        try {
+            while (c.moveToNext()) {
+                updateAccount(c.getLong(EmailContent.ID_PROJECTION_COLUMN));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Starts, restarts or stops push for an account, according to its current settings.  This
+     * should be called whenever the account changes, including when it's deleted.
+     */
+    public synchronized void updateAccount(long accountId) {
+        final PushThread oldThread = mPushThreads.remove(accountId);
+        if (oldThread != null) {
+            oldThread.shutdown();
+        }
+        final Account account = Account.restoreAccountWithId(mContext, accountId);
+        if (account == null || account.mSyncInterval != Account.CHECK_INTERVAL_PUSH
+                || !mContext.getString(R.string.protocol_legacy_imap).equals(
+                        account.getProtocol(mContext))) {
+            return;
+        }
+        final PushThread thread = new PushThread(accountId);
+        mPushThreads.put(accountId, thread);
+        thread.start();
+    }
+
+    /**
+     * Stops push for all accounts.
+     */
+    public synchronized void stopAll() {
+        for (PushThread thread : mPushThreads.values()) {
+            thread.shutdown();
+        }
+        mPushThreads.clear();
+    }
+
+    /**
+     * Requests a sync of the given mailbox.  Since the mailbox sync only asks for what has
+     * changed since the last sync, this is cheap.
+     */
+    private void requestSync(Account account, Mailbox mailbox) {
+        final EmailServiceInfo info =
+                EmailServiceUtils.getServiceInfoForAccount(mContext, account.mId);
+        if (info == null) return;
+        final android.accounts.Account acct =
+                new android.accounts.Account(account.mEmailAddress, info.accountType);
+        final Bundle extras = Mailbox.createSyncBundle(mailbox.mId);
+        ContentResolver.requestSync(acct, EmailContent.AUTHORITY, extras);
+        LogUtils.d(Logging.LOG_TAG, "push: requestSync %s, %s", account.toString(),
+                extras.toString());
+    }
+
+    /**
+     * The thread that keeps the inbox of one account in IDLE.  It reconnects, with a growing
+     * delay, whenever the connection fails, and exits when it's shut down, or when the account
+     * can't (or may no longer) push.
+     */
+    private class PushThread extends Thread {
+        private final long mAccountId;
+        private volatile boolean mStopped;
+        private volatile ImapFolder mFolder;
+
+        PushThread(long accountId) {
+            super("ImapPush-" + accountId);
+            mAccountId = accountId;
+        }
+
+        void shutdown() {
+            mStopped = true;
+            interrupt();
+            final ImapFolder folder = mFolder;
+            if (folder != null) {
+                folder.abortIdle();
+            }
+        }
+
+        @Override
+        public void run() {
+            long retryDelay = MIN_RETRY_DELAY_MILLIS;
+            while (!mStopped) {
+                final Account account = Account.restoreAccountWithId(mContext, mAccountId);
+                final Mailbox inbox = Mailbox.restoreMailboxOfType(mContext, mAccountId,
+                        Mailbox.TYPE_INBOX);
+                if (account == null || inbox == null) {
+                    return;
+                }
+                // A store of our own, so that the idling connection is never shared
+                ImapStore store = null;
+                ImapFolder folder = null;
+                try {
+                    store = (ImapStore) ImapStore.newInstance(account, mContext);
+                    folder = (ImapFolder) store.getFolder(inbox.mServerId);
+                    folder.open(OpenMode.READ_WRITE);
+                    if (!folder.canIdle()) {
+                        LogUtils.i(Logging.LOG_TAG, "push: server doesn't support IDLE for %d",
+                                mAccountId);
+                        return;
+                    }
+                    mFolder = folder;
+                    if (mStopped) {
+                        return;
+                    }
+                    // Catch up on anything that happened while we weren't idling.
+                    requestSync(account, inbox);
+                    retryDelay = MIN_RETRY_DELAY_MILLIS;
+                    while (!mStopped) {
+                        if (folder.idle(IDLE_TIMEOUT_MILLIS) && !mStopped) {
+                            requestSync(account, inbox);
+                        }
+                    }
+                } catch (AuthenticationFailedException e) {
+                    // Retrying won't help; the next sync will notify the user.
+                    LogUtils.w(Logging.LOG_TAG, e, "push: authentication failed for %d",
+                            mAccountId);
+                    return;
+                } catch (MessagingException e) {
+                    if (!mStopped) {
+                        LogUtils.w(Logging.LOG_TAG, e, "push: error for %d", mAccountId);
+                    }
+                } catch (RuntimeException e) {
+                    // e.g. the connection being torn down under us by stop(); not worth a crash
+                    LogUtils.w(Logging.LOG_TAG, e, "push: unexpected error for %d", mAccountId);
+                    return;
+                } finally {
+                    mFolder = null;
+                    if (folder != null) {
+                        folder.close(false);
+                    }
+                    if (store != null) {
+                        store.closeConnections();
+                    }
+                }
+
+                if (!mStopped) {
+                    try {
+                        Thread.sleep(retryDelay);
+                    } catch (InterruptedException e) {
+                        // Shut down, or retry right away
+                    }
+                    retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY_MILLIS);
+                }
+            }
+        }
+    }
+}
@@ -17,15 +17,19 @@
 package com.android.email.service;
 
 import android.app.Service;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.RemoteException;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
@@ -35,17 +39,21 @@ import com.android.email.LegacyConversions;
 import com.android.email.NotificationController;
 import com.android.email.NotificationControllerCreatorHolder;
 import com.android.email.R;
+import com.android.email.mail.MessageSpool;
 import com.android.email.mail.Store;
+import com.android.email.mail.store.ImapFolder;
+import com.android.email.mail.store.imap.UidSet;
 import com.android.email.provider.Utilities;
 import com.android.emailcommon.Logging;
 import com.android.emailcommon.TrafficFlags;
+import com.android.emailcommon.internet.MimeMessage;
 import com.android.emailcommon.internet.MimeUtility;
+import com.android.emailcommon.internet.Rfc822Output;
 import com.android.emailcommon.mail.AuthenticationFailedException;
 import com.android.emailcommon.mail.FetchProfile;
 import com.android.emailcommon.mail.Flag;
 import com.android.emailcommon.mail.Folder;
 import com.android.emailcommon.mail.Folder.FolderType;
-import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
 import com.android.emailcommon.mail.Folder.MessageUpdateCallbacks;
 import com.android.emailcommon.mail.Folder.OpenMode;
 import com.android.emailcommon.mail.Message;
@@ -53,6 +61,7 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.mail.Part;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
+import com.android.emailcommon.provider.EmailContent.AttachmentColumns;
 import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.SyncColumns;
@@ -61,15 +70,23 @@ import com.android.emailcommon.service.EmailServiceStatus;
 import com.android.emailcommon.service.SearchParams;
 import com.android.emailcommon.service.SyncWindow;
 import com.android.emailcommon.utility.AttachmentUtilities;
+import com.android.emailcommon.utility.EOLConvertingOutputStream;
+import com.android.emailcommon.utility.EmailAsyncTask;
 import com.android.mail.providers.UIProvider;
 import com.android.mail.utils.LogUtils;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 public class ImapService extends Service {
     // TODO get these from configurations or settings.
@@ -79,14 +96,25 @@ public class ImapService extends Service {
 
     // The maximum number of messages to fetch in a single command.
     private static final int MAX_MESSAGES_TO_FETCH = 500;
+    /** The most messages to change with a single UID STORE or UID MOVE */
+    private static final int MAX_MESSAGES_PER_UPDATE = 500;
+    /** The most messages to download the viewable parts of at once */
+    private static final int LOAD_MESSAGES_BATCH_SIZE = 50;
+    /** The most new messages to store in a single transaction */
+    private static final int STORE_MESSAGES_BATCH_SIZE = 50;
     private static final int MINIMUM_MESSAGES_TO_SYNC = 10;
     private static final int LOAD_MORE_MIN_INCREMENT = 10;
     private static final int LOAD_MORE_MAX_INCREMENT = 20;
     private static final long INITIAL_WINDOW_SIZE_INCREASE = 24 * 60 * 60 * 1000;
+    /**
+     * The most mailboxes of an account to sync at once, as each needs a connection of its own,
+     * and servers limit the connections per user.
+     */
+    private static final int MAX_MAILBOXES_SYNCING_PER_ACCOUNT = 3;
+
+    /** Lets different accounts, and different mailboxes of an account, sync at the same time */
+    private static final SyncLocks sSyncLocks = new SyncLocks(MAX_MAILBOXES_SYNCING_PER_ACCOUNT);
 
-    private static final Flag[] FLAG_LIST_SEEN = new Flag[] { Flag.SEEN };
-    private static final Flag[] FLAG_LIST_FLAGGED = new Flag[] { Flag.FLAGGED };
-    private static final Flag[] FLAG_LIST_ANSWERED = new Flag[] { Flag.ANSWERED };
 
     /**
      * Simple cache for last search result mailbox by account and serverId, since the most common
@@ -125,6 +153,14 @@ public class ImapService extends Service {
         super.onCreate();
 
         sMessageDecodeErrorString = getString(R.string.message_decode_error);
+
+        // Resume push for the accounts that want it
+        EmailAsyncTask.runAsyncParallel(new Runnable() {
+            @Override
+            public void run() {
+                ImapPushManager.getInstance(ImapService.this).startAll();
+            }
+        });
     }
 
     @Override
@@ -146,6 +182,11 @@ public class ImapService extends Service {
             }
             return 0;
         }
+
+        @Override
+        public void pushModify(long accountId) {
+            ImapPushManager.getInstance(getApplicationContext()).updateAccount(accountId);
+        }
     };
 
     @Override
@@ -161,7 +202,7 @@ public class ImapService extends Service {
      * @return The status code for whether this operation succeeded.
      * @throws MessagingException
      */
-    public static synchronized int synchronizeMailboxSynchronous(Context context,
+    public static int synchronizeMailboxSynchronous(Context context,
             final Account account, final Mailbox folder, final boolean loadMore,
             final boolean uiRefresh) throws MessagingException {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
@@ -170,8 +211,21 @@ public class ImapService extends Service {
         Store remoteStore = null;
         try {
             remoteStore = Store.getInstance(account, context);
-            processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
-            synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore, uiRefresh);
+            // Pending changes may be to any mailbox, so nothing else of the account may sync
+            // while they're uploaded
+            sSyncLocks.lockAccount(account.mId);
+            try {
+                processPendingActionsSynchronous(context, account, remoteStore, uiRefresh);
+            } finally {
+                sSyncLocks.unlockAccount(account.mId);
+            }
+            sSyncLocks.lockMailbox(account.mId, folder.mId);
+            try {
+                synchronizeMailboxGeneric(context, account, remoteStore, folder, loadMore,
+                        uiRefresh);
+            } finally {
+                sSyncLocks.unlockMailbox(account.mId, folder.mId);
+            }
             // Clear authentication notification for this account
             nc.cancelLoginFailedNotification(account.mId);
         } catch (MessagingException e) {
@@ -258,24 +312,59 @@ public class ImapService extends Service {
         FetchProfile fp = new FetchProfile();
         fp.add(FetchProfile.Item.STRUCTURE);
         remoteFolder.fetch(messages.toArray(new Message[messages.size()]), fp, null);
-        Message [] oneMessageArray = new Message[1];
-        for (Message message : messages) {
-            // Build a list of parts we are interested in. Text parts will be downloaded
-            // right now, attachments will be left for later.
-            ArrayList<Part> viewables = new ArrayList<Part>();
-            ArrayList<Part> attachments = new ArrayList<Part>();
-            MimeUtility.collectParts(message, viewables, attachments);
-            // Download the viewables immediately
-            oneMessageArray[0] = message;
-            for (Part part : viewables) {
-                fp.clear();
-                fp.add(part);
-                remoteFolder.fetch(oneMessageArray, fp, null);
+        // Each batch is stored on another thread while the next one is being downloaded
+        final MessagePipeline pipeline = new MessagePipeline("ImapService body store",
+                LOAD_MESSAGES_BATCH_SIZE, new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<Message> batch) {
+                        // Store the updated messages locally and mark them fully loaded
+                        Utilities.copyMessagesToProvider(context, batch, account, toMailbox,
+                                EmailContent.Message.FLAG_LOADED_COMPLETE);
+                    }
+                });
+        boolean fetched = false;
+        try {
+            final int count = messages.size();
+            for (int start = 0; start < count && !pipeline.isStopped();
+                    start += LOAD_MESSAGES_BATCH_SIZE) {
+                final List<Message> batch = messages.subList(start,
+                        Math.min(start + LOAD_MESSAGES_BATCH_SIZE, count));
+                // Build a list of parts we are interested in. Text parts will be downloaded
+                // right now, attachments will be left for later.
+                final LinkedHashMap<Message, List<Part>> viewablesMap =
+                        new LinkedHashMap<Message, List<Part>>();
+                for (Message message : batch) {
+                    ArrayList<Part> viewables = new ArrayList<Part>();
+                    ArrayList<Part> attachments = new ArrayList<Part>();
+                    MimeUtility.collectParts(message, viewables, attachments);
+                    viewablesMap.put(message, viewables);
+                }
+                // Download the viewables immediately
+                if (remoteFolder instanceof ImapFolder) {
+                    // All of the batch's viewables in a single round trip
+                    ((ImapFolder) remoteFolder).fetchParts(viewablesMap);
+                } else {
+                    Message [] oneMessageArray = new Message[1];
+                    for (Map.Entry<Message, List<Part>> entry : viewablesMap.entrySet()) {
+                        oneMessageArray[0] = entry.getKey();
+                        for (Part part : entry.getValue()) {
+                            fp.clear();
+                            fp.add(part);
+                            remoteFolder.fetch(oneMessageArray, fp, null);
+                        }
+                    }
+                }
+                for (Message message : batch) {
+                    pipeline.put(message);
+                }
+            }
+            fetched = true;
+        } finally {
+            if (!fetched) {
+                pipeline.finishAfterError();
             }
-            // Store the updated message locally and mark it fully loaded
-            Utilities.copyOneMessageToProvider(context, message, account, toMailbox,
-                    EmailContent.Message.FLAG_LOADED_COMPLETE);
         }
+        pipeline.finish();
     }
 
     public static void downloadFlagAndEnvelope(final Context context, final Account account,
@@ -293,11 +382,16 @@ public class ImapService extends Service {
             localMapCopy = new HashMap<String, LocalMessageInfo>();
         }
 
-        remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]), fp,
-                new MessageRetrievalListener() {
+        // The messages are stored on another thread as they arrive
+        final MessagePipeline pipeline = new MessagePipeline("ImapService envelope store",
+                STORE_MESSAGES_BATCH_SIZE, new MessagePipeline.BatchWriter() {
                     @Override
-                    public void messageRetrieved(Message message) {
-                        try {
+                    public void write(List<Message> messages) throws MessagingException {
+                        final ArrayList<EmailContent.Message> localMessages =
+                                new ArrayList<EmailContent.Message>(messages.size());
+                        final ArrayList<EmailContent.Message> unseenLocalMessages =
+                                new ArrayList<EmailContent.Message>();
+                        for (Message message : messages) {
                             // Determine if the new message was already known (e.g. partial)
                             // And create or reload the full message info
                             final LocalMessageInfo localMessageInfo =
@@ -307,7 +401,7 @@ public class ImapService extends Service {
                             if (!localExists && message.isSet(Flag.DELETED)) {
                                 // This is a deleted message that we don't have locally, so don't
                                 // create it
-                                return;
+                                continue;
                             }
 
                             final EmailContent.Message localMessage;
@@ -323,29 +417,71 @@ public class ImapService extends Service {
                                     // Copy the fields that are available into the message
                                     LegacyConversions.updateMessageFields(localMessage,
                                             message, account.mId, mailbox.mId);
-                                    // Commit the message to the local store
-                                    Utilities.saveOrUpdate(localMessage, context);
-                                    // Track the "new" ness of the downloaded message
-                                    if (!message.isSet(Flag.SEEN) && unseenMessages != null) {
-                                        unseenMessages.add(localMessage.mId);
-                                    }
                                 } catch (MessagingException me) {
                                     LogUtils.e(Logging.LOG_TAG,
                                             "Error while copying downloaded message." + me);
+                                    continue;
+                                }
+                                localMessages.add(localMessage);
+                                // Track the "new" ness of the downloaded message
+                                if (!message.isSet(Flag.SEEN)) {
+                                    unseenLocalMessages.add(localMessage);
                                 }
                             }
                         }
-                        catch (Exception e) {
-                            LogUtils.e(Logging.LOG_TAG,
-                                    "Error while storing downloaded message." + e.toString());
+                        // Commit the batch to the local store
+                        saveMessages(context, localMessages);
+                        if (unseenMessages != null) {
+                            for (EmailContent.Message localMessage : unseenLocalMessages) {
+                                unseenMessages.add(localMessage.mId);
+                            }
                         }
                     }
-
-                    @Override
-                    public void loadAttachmentProgress(int progress) {
-                    }
                 });
+        boolean fetched = false;
+        try {
+            remoteFolder.fetch(unsyncedMessages.toArray(new Message[unsyncedMessages.size()]),
+                    fp, pipeline.getListener());
+            fetched = true;
+        } finally {
+            if (!fetched) {
+                pipeline.finishAfterError();
+            }
+        }
+        // The messages are fetched again later on, so they must be stored by now
+        pipeline.finish();
+    }
 
+    /**
+     * Saves new messages, or updates existing ones, along with any body or attachments they
+     * carry, in a single transaction.  The new messages get their ids.
+     */
+    private static void saveMessages(Context context, List<EmailContent.Message> localMessages)
+            throws MessagingException {
+        if (localMessages.isEmpty()) {
+            return;
+        }
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        // The index of the operation saving each message
+        final int[] messageOps = new int[localMessages.size()];
+        for (int i = 0; i < messageOps.length; i++) {
+            messageOps[i] = ops.size();
+            localMessages.get(i).addSaveOps(ops);
+        }
+        final ContentProviderResult[] results;
+        try {
+            results = context.getContentResolver().applyBatch(EmailContent.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new MessagingException("Error while storing messages", e);
+        } catch (OperationApplicationException e) {
+            throw new MessagingException("Error while storing messages", e);
+        }
+        for (int i = 0; i < messageOps.length; i++) {
+            final EmailContent.Message localMessage = localMessages.get(i);
+            if (!localMessage.isSaved() && results[messageOps[i]].uri != null) {
+                localMessage.mId = ContentUris.parseId(results[messageOps[i]].uri);
+            }
+        }
     }
 
     /**
@@ -359,7 +495,7 @@ public class ImapService extends Service {
      * @param uiRefresh whether this request is in response to a user action
      * @throws MessagingException
      */
-    private synchronized static void synchronizeMailboxGeneric(final Context context,
+    private static void synchronizeMailboxGeneric(final Context context,
             final Account account, Store remoteStore, final Mailbox mailbox, final boolean loadMore,
             final boolean uiRefresh)
             throws MessagingException {
@@ -465,6 +601,29 @@ public class ImapService extends Service {
         // 5. Save folder message count locally.
         mailbox.updateMessageCount(context, remoteMessageCount);
 
+        // 5.5 If the server supports CONDSTORE, find the mod-sequence of our last sync. If
+        // nothing at all has changed since then, a quick sync only has to retry the messages
+        // which failed to download last time.
+        final ImapFolder imapFolder =
+                (remoteFolder instanceof ImapFolder) ? (ImapFolder) remoteFolder : null;
+        final long syncedModSeq = getSyncedModSeq(mailbox, imapFolder);
+        if (!fullSync && syncedModSeq > 0 && syncedModSeq == imapFolder.getHighestModSeq()) {
+            LogUtils.d(Logging.LOG_TAG, "quick sync: no changes since modseq " + syncedModSeq);
+            final HashMap<String, LocalMessageInfo> unloadedMessageMap =
+                    getUnloadedMessages(context, account, mailbox);
+            if (!unloadedMessageMap.isEmpty()) {
+                final ArrayList<Message> unloadedMessages = new ArrayList<Message>();
+                for (String uid : unloadedMessageMap.keySet()) {
+                    unloadedMessages.add(remoteFolder.createMessage(uid));
+                }
+                downloadFlagAndEnvelope(context, account, mailbox, remoteFolder,
+                        unloadedMessages, unloadedMessageMap, unseenMessages);
+                loadUnsyncedMessages(context, account, remoteFolder, unloadedMessages, mailbox);
+            }
+            remoteFolder.close(false);
+            return;
+        }
+
         // 6. Get all message Ids in our sync window:
         Message[] remoteMessages;
         remoteMessages = remoteFolder.getMessages(0, endDate, null);
@@ -588,13 +747,14 @@ public class ImapService extends Service {
         // because they are locally deleted and we don't need or want the old message from
         // the server.
         final ArrayList<Message> unsyncedMessages = new ArrayList<Message>();
-        final HashMap<String, Message> remoteUidMap = new HashMap<String, Message>();
+        // The UIDs of the remote messages, held as ranges rather than a map of strings
+        final UidSet remoteUids = new UidSet();
         // Process the messages in the reverse order we received them in. This means that
         // we load the most recent one first, which gives a better user experience.
         for (int i = remoteMessages.length - 1; i >= 0; i--) {
             Message message = remoteMessages[i];
             LogUtils.d(Logging.LOG_TAG, "remote message " + message.getUid());
-            remoteUidMap.put(message.getUid(), message);
+            remoteUids.add(message.getUid());
 
             LocalMessageInfo localMessage = localMessageMap.get(message.getUid());
 
@@ -624,24 +784,67 @@ public class ImapService extends Service {
         // 11. Refresh the flags for any messages in the local store that we didn't just download.
         // TODO This is a bit wasteful because we're also updating any messages we already did get
         // the flags and envelope for previously.
+        // If we know the mod-sequence of our last sync, only the flags that changed since then
+        // are fetched (for any local message, not just those in the window), along with the
+        // messages expunged since then if QRESYNC is enabled.
+        // Local changes are collected, and made together once the sync knows them all
+        final LocalChangeBatch localChanges = new LocalChangeBatch();
+        List<Message> flagMessages = null;
+        if (syncedModSeq > 0) {
+            final UidSet vanishedUids = new UidSet();
+            try {
+                flagMessages =
+                        imapFolder.fetchChangedFlags(remoteMessages, syncedModSeq, vanishedUids);
+            } catch (MessagingException me) {
+                if (me.getExceptionType() == MessagingException.IOERROR) {
+                    throw me;
+                }
+                LogUtils.w(Logging.LOG_TAG, me, "Can't fetch changed flags, fetching all");
+            }
+            if (flagMessages != null && !vanishedUids.isEmpty()) {
+                // The vanished set may name far more UIDs than we have (e.g. "1:90000"), so
+                // check what we have against it rather than the other way round.
+                final Iterator<LocalMessageInfo> localMessages =
+                        localMessageMap.values().iterator();
+                while (localMessages.hasNext()) {
+                    final LocalMessageInfo info = localMessages.next();
+                    if (vanishedUids.contains(info.mServerId)) {
+                        localMessages.remove();
+                        localChanges.delete(info.mId);
+                    }
+                }
+                final Iterator<Message> unsynced = unsyncedMessages.iterator();
+                while (unsynced.hasNext()) {
+                    final Message remoteMessage = unsynced.next();
+                    if (vanishedUids.contains(remoteMessage.getUid())) {
+                        unsynced.remove();
+                        remoteUids.remove(remoteMessage.getUid());
+                    }
+                }
+            }
+        }
         // TODO: the fetch() function, and others, should take List<>s of messages, not
         // arrays of messages.
-        FetchProfile fp = new FetchProfile();
-        fp.add(FetchProfile.Item.FLAGS);
-        if (remoteMessages.length > MAX_MESSAGES_TO_FETCH) {
-            List<Message> remoteMessageList = Arrays.asList(remoteMessages);
-            for (int start = 0; start < remoteMessageList.size(); start += MAX_MESSAGES_TO_FETCH) {
-                int end = start + MAX_MESSAGES_TO_FETCH;
-                if (end >= remoteMessageList.size()) {
-                    end = remoteMessageList.size() - 1;
+        if (flagMessages == null) {
+            FetchProfile fp = new FetchProfile();
+            fp.add(FetchProfile.Item.FLAGS);
+            if (remoteMessages.length > MAX_MESSAGES_TO_FETCH) {
+                List<Message> remoteMessageList = Arrays.asList(remoteMessages);
+                for (int start = 0; start < remoteMessageList.size();
+                        start += MAX_MESSAGES_TO_FETCH) {
+                    int end = start + MAX_MESSAGES_TO_FETCH;
+                    if (end >= remoteMessageList.size()) {
+                        end = remoteMessageList.size() - 1;
+                    }
+                    List<Message> chunk = remoteMessageList.subList(start, end);
+                    final Message[] partialArray = chunk.toArray(new Message[chunk.size()]);
+                    // Fetch this one chunk of messages
+                    remoteFolder.fetch(partialArray, fp, null);
                 }
-                List<Message> chunk = remoteMessageList.subList(start, end);
-                final Message[] partialArray = chunk.toArray(new Message[chunk.size()]);
-                // Fetch this one chunk of messages
-                remoteFolder.fetch(partialArray, fp, null);
+            } else {
+                remoteFolder.fetch(remoteMessages, fp, null);
             }
-        } else {
-            remoteFolder.fetch(remoteMessages, fp, null);
+            flagMessages = Arrays.asList(remoteMessages);
         }
         boolean remoteSupportsSeen = false;
         boolean remoteSupportsFlagged = false;
@@ -660,7 +863,7 @@ public class ImapService extends Service {
 
         // 12. Update SEEN/FLAGGED/ANSWERED (star) flags (if supported remotely - e.g. not for POP3)
         if (remoteSupportsSeen || remoteSupportsFlagged || remoteSupportsAnswered) {
-            for (Message remoteMessage : remoteMessages) {
+            for (Message remoteMessage : flagMessages) {
                 LocalMessageInfo localMessageInfo = localMessageMap.get(remoteMessage.getUid());
                 if (localMessageInfo == null) {
                     continue;
@@ -676,8 +879,6 @@ public class ImapService extends Service {
                 boolean remoteAnswered = remoteMessage.isSet(Flag.ANSWERED);
                 boolean newAnswered = (remoteSupportsAnswered && (localAnswered != remoteAnswered));
                 if (newSeen || newFlagged || newAnswered) {
-                    Uri uri = ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, localMessageInfo.mId);
                     ContentValues updateValues = new ContentValues();
                     updateValues.put(MessageColumns.FLAG_READ, remoteSeen);
                     updateValues.put(MessageColumns.FLAG_FAVORITE, remoteFlagged);
@@ -687,16 +888,16 @@ public class ImapService extends Service {
                         localFlags &= ~EmailContent.Message.FLAG_REPLIED_TO;
                     }
                     updateValues.put(MessageColumns.FLAGS, localFlags);
-                    resolver.update(uri, updateValues, null, null);
+                    localChanges.update(localMessageInfo.mId, updateValues);
                 }
             }
         }
 
         // 12.5 Remove messages that are marked as deleted so that we drop them from the DB in the
         // next step
-        for (final Message remoteMessage : remoteMessages) {
+        for (final Message remoteMessage : flagMessages) {
             if (remoteMessage.isSet(Flag.DELETED)) {
-                remoteUidMap.remove(remoteMessage.getUid());
+                remoteUids.remove(remoteMessage.getUid());
                 unsyncedMessages.remove(remoteMessage);
             }
         }
@@ -708,25 +909,11 @@ public class ImapService extends Service {
         for (final LocalMessageInfo info : localMessageMap.values()) {
             // If this message is inside our sync window, and we cannot find it in our list
             // of remote messages, then we know it's been deleted from the server.
-            if (info.mTimestamp >= endDate && !remoteUidMap.containsKey(info.mServerId)) {
-                // Delete associated data (attachment files)
-                // Attachment & Body records are auto-deleted when we delete the Message record
-                AttachmentUtilities.deleteAllAttachmentFiles(context, account.mId, info.mId);
-
-                // Delete the message itself
-                final Uri uriToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.CONTENT_URI, info.mId);
-                resolver.delete(uriToDelete, null, null);
-
-                // Delete extra rows (e.g. updated or deleted)
-                final Uri updateRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.UPDATED_CONTENT_URI, info.mId);
-                resolver.delete(updateRowToDelete, null, null);
-                final Uri deleteRowToDelete = ContentUris.withAppendedId(
-                        EmailContent.Message.DELETED_CONTENT_URI, info.mId);
-                resolver.delete(deleteRowToDelete, null, null);
+            if (info.mTimestamp >= endDate && !remoteUids.contains(info.mServerId)) {
+                localChanges.delete(info.mId);
             }
         }
+        localChanges.apply(context, account.mId);
 
         loadUnsyncedMessages(context, account, remoteFolder, unsyncedMessages, mailbox);
 
@@ -734,10 +921,185 @@ public class ImapService extends Service {
             mailbox.updateLastFullSyncTime(context, SystemClock.elapsedRealtime());
         }
 
+        // Remember where this sync left off, so that the next one can ask for changes only.
+        if (imapFolder != null) {
+            mailbox.updateSyncModSeq(context, makeSyncModSeq(imapFolder));
+        }
+
         // 14. Clean up and report results
         remoteFolder.close(false);
     }
 
+    /**
+     * Changes to local messages made by a sync, collected so that they're made in a single
+     * transaction, with a single round of notifications, rather than one per message.
+     */
+    private static class LocalChangeBatch {
+        /** The most message ids to name in one attachment query */
+        private static final int MAX_IDS_PER_QUERY = 500;
+
+        private final ArrayList<ContentProviderOperation> mOps =
+                new ArrayList<ContentProviderOperation>();
+        private final ArrayList<Long> mDeletedMessageIds = new ArrayList<Long>();
+
+        /**
+         * Updates a message's columns, e.g. its flags.
+         */
+        void update(long messageId, ContentValues values) {
+            mOps.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(EmailContent.Message.CONTENT_URI, messageId))
+                    .withValues(values).build());
+        }
+
+        /**
+         * Deletes a local message that no longer exists on the server, along with its attachment
+         * files and any pending updates or deletes.
+         */
+        void delete(long messageId) {
+            // Attachment & Body records are auto-deleted when we delete the Message record
+            mOps.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    EmailContent.Message.CONTENT_URI, messageId)).build());
+            // Delete extra rows (e.g. updated or deleted)
+            mOps.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    EmailContent.Message.UPDATED_CONTENT_URI, messageId)).build());
+            mOps.add(ContentProviderOperation.newDelete(ContentUris.withAppendedId(
+                    EmailContent.Message.DELETED_CONTENT_URI, messageId)).build());
+            mDeletedMessageIds.add(messageId);
+        }
+
+        /**
+         * Makes the changes collected so far.  The attachment files of deleted messages are
+         * deleted afterwards, on the calling (sync) thread.
+         */
+        void apply(Context context, long accountId) throws MessagingException {
+            if (mOps.isEmpty()) {
+                return;
+            }
+            // The attachments have to be found before their records are deleted along with the
+            // messages
+            final ArrayList<Long> attachmentIds = findAttachments(context);
+            try {
+                context.getContentResolver().applyBatch(EmailContent.AUTHORITY, mOps);
+            } catch (RemoteException e) {
+                throw new MessagingException("Error while updating local messages", e);
+            } catch (OperationApplicationException e) {
+                throw new MessagingException("Error while updating local messages", e);
+            } finally {
+                mOps.clear();
+                mDeletedMessageIds.clear();
+            }
+            for (long attachmentId : attachmentIds) {
+                // This is best-effort only; delete() doesn't throw for basic FS errors (e.g. file
+                // not found)
+                AttachmentUtilities.getAttachmentFilename(context, accountId, attachmentId)
+                        .delete();
+            }
+        }
+
+        /**
+         * @return the ids of the attachments of the messages to be deleted
+         */
+        private ArrayList<Long> findAttachments(Context context) {
+            final ArrayList<Long> attachmentIds = new ArrayList<Long>();
+            final int count = mDeletedMessageIds.size();
+            for (int start = 0; start < count; start += MAX_IDS_PER_QUERY) {
+                final List<Long> messageIds = mDeletedMessageIds.subList(start,
+                        Math.min(start + MAX_IDS_PER_QUERY, count));
+                final Cursor c = context.getContentResolver().query(
+                        EmailContent.Attachment.CONTENT_URI, EmailContent.Attachment.ID_PROJECTION,
+                        AttachmentColumns.MESSAGE_KEY + " IN ("
+                                + TextUtils.join(",", messageIds) + ")",
+                        null, null);
+                if (c == null) {
+                    continue;
+                }
+                try {
+                    while (c.moveToNext()) {
+                        attachmentIds.add(c.getLong(EmailContent.Attachment.ID_PROJECTION_COLUMN));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            return attachmentIds;
+        }
+    }
+
+    /**
+     * Returns the local messages of {@code mailbox} whose bodies haven't been (fully) loaded,
+     * e.g. because downloading them failed, by server id.
+     */
+    private static HashMap<String, LocalMessageInfo> getUnloadedMessages(final Context context,
+            final Account account, final Mailbox mailbox) {
+        final HashMap<String, LocalMessageInfo> messageMap =
+                new HashMap<String, LocalMessageInfo>();
+        final Cursor c = context.getContentResolver().query(
+                EmailContent.Message.CONTENT_URI,
+                LocalMessageInfo.PROJECTION,
+                EmailContent.MessageColumns.ACCOUNT_KEY + "=?"
+                        + " AND " + MessageColumns.MAILBOX_KEY + "=?"
+                        + " AND " + MessageColumns.FLAG_LOADED + " IN ("
+                        + EmailContent.Message.FLAG_LOADED_UNLOADED + ","
+                        + EmailContent.Message.FLAG_LOADED_PARTIAL + ")",
+                new String[] {
+                        String.valueOf(account.mId),
+                        String.valueOf(mailbox.mId) },
+                null);
+        if (c == null) {
+            return messageMap;
+        }
+        try {
+            while (c.moveToNext()) {
+                final LocalMessageInfo info = new LocalMessageInfo(c);
+                // Local-only messages are left for the upsync
+                if (!TextUtils.isEmpty(info.mServerId)) {
+                    messageMap.put(info.mServerId, info);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return messageMap;
+    }
+
+    /**
+     * Returns the state of {@code imapFolder} when it was opened, as
+     * "UIDVALIDITY:HIGHESTMODSEQ", or null if the server doesn't support CONDSTORE.
+     */
+    private static String makeSyncModSeq(final ImapFolder imapFolder) {
+        if (imapFolder.getUidValidity() < 0 || imapFolder.getHighestModSeq() <= 0) {
+            return null;
+        }
+        return imapFolder.getUidValidity() + ":" + imapFolder.getHighestModSeq();
+    }
+
+    /**
+     * Returns the HIGHESTMODSEQ recorded by the last sync of {@code mailbox}, if it can still be
+     * used to ask {@code imapFolder} for changes, or 0 otherwise.
+     */
+    private static long getSyncedModSeq(final Mailbox mailbox, final ImapFolder imapFolder) {
+        final String syncModSeq = mailbox.mSyncModSeq;
+        if (imapFolder == null || imapFolder.getHighestModSeq() <= 0
+                || TextUtils.isEmpty(syncModSeq)) {
+            return 0;
+        }
+        final int colon = syncModSeq.indexOf(':');
+        if (colon < 0) {
+            return 0;
+        }
+        try {
+            final long uidValidity = Long.parseLong(syncModSeq.substring(0, colon));
+            final long modSeq = Long.parseLong(syncModSeq.substring(colon + 1));
+            if (uidValidity != imapFolder.getUidValidity()
+                    || modSeq > imapFolder.getHighestModSeq()) {
+                return 0;
+            }
+            return modSeq;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Find messages in the updated table that need to be written back to server.
      *
@@ -951,6 +1313,7 @@ public class ImapService extends Service {
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 EmailContent.MessageColumns.MAILBOX_KEY);
         long lastMessageId = -1;
+        final PendingUpdateBatch batch = new PendingUpdateBatch();
         try {
             // Demand load mailbox (note order-by to reduce thrashing here)
             Mailbox mailbox = null;
@@ -985,27 +1348,29 @@ public class ImapService extends Service {
                             (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO);
                 }
 
-                // Load the remote store if it will be needed
-                if (remoteStore == null &&
-                        (changeMoveToTrash || changeRead || changeFlagged || changeMailbox ||
-                                changeAnswered)) {
-                    remoteStore = Store.getInstance(account, context);
-                }
-
                 // Dispatch here for specific change types
                 if (changeMoveToTrash) {
                     // Move message to trash
-                    processPendingMoveToTrash(context, remoteStore, mailbox, oldMessage,
-                            newMessage);
+                    batch.addMoveToTrash(context, mailbox, oldMessage, newMessage);
                 } else if (changeRead || changeFlagged || changeMailbox || changeAnswered) {
-                    processPendingDataChange(context, remoteStore, mailbox, changeRead,
-                            changeFlagged, changeMailbox, changeAnswered, oldMessage, newMessage);
+                    batch.addDataChange(context, mailbox, changeRead, changeFlagged,
+                            changeMailbox, changeAnswered, oldMessage, newMessage);
                 }
 
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI,
-                        oldMessage.mId);
-                resolver.delete(uri, null, null);
+                // Finally, delete the update, unless it's waiting for the batch to be applied
+                if (!batch.isPending(oldMessage.mId)) {
+                    Uri uri = ContentUris.withAppendedId(
+                            EmailContent.Message.UPDATED_CONTENT_URI, oldMessage.mId);
+                    resolver.delete(uri, null, null);
+                }
+            }
+
+            if (!batch.isEmpty()) {
+                // Load the remote store now that it's needed
+                if (remoteStore == null) {
+                    remoteStore = Store.getInstance(account, context);
+                }
+                batch.apply(context, remoteStore);
             }
 
         } catch (MessagingException me) {
@@ -1069,203 +1434,368 @@ public class ImapService extends Service {
     }
 
     /**
-     * Upsync changes to read, flagged, or mailbox
-     *
-     * @param remoteStore the remote store for this mailbox
-     * @param mailbox the mailbox the message is stored in
-     * @param changeRead whether the message's read state has changed
-     * @param changeFlagged whether the message's flagged state has changed
-     * @param changeMailbox whether the message's mailbox has changed
-     * @param oldMessage the message in it's pre-change state
-     * @param newMessage the current version of the message
+     * Pending changes to messages on the server, grouped so that each group can be applied with
+     * a single command (or a few, for very large groups): changes of a flag to the same value
+     * in the same mailbox, and moves from the same mailbox to the same mailbox.  Each message's
+     * update record is deleted once all of its changes have been applied.  If applying one
+     * fails, the records left are processed again on the next sync; that's harmless, since
+     * setting a flag or moving a message twice has the same effect as doing it once.
      */
-    private static void processPendingDataChange(final Context context, Store remoteStore,
-            Mailbox mailbox, boolean changeRead, boolean changeFlagged, boolean changeMailbox,
-            boolean changeAnswered, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
-        // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if it isn't
-        // being moved
-        Mailbox newMailbox = mailbox;
-        // Mailbox is the original remote mailbox (the one we're acting on)
-        mailbox = getRemoteMailboxForMessage(context, oldMessage);
-
-        // 0. No remote update if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX) || (mailbox == null)) {
-            return;
+    private static class PendingUpdateBatch {
+        /** The changes to messages in each mailbox on the server, by mailbox id */
+        private final LinkedHashMap<Long, MailboxChanges> mMailboxChanges =
+                new LinkedHashMap<Long, MailboxChanges>();
+        /** For each message with changes in the batch, the number of groups yet to apply */
+        private final HashMap<Long, Integer> mPendingGroupCounts = new HashMap<Long, Integer>();
+
+        /** The changes to messages in one mailbox on the server */
+        private static class MailboxChanges {
+            final Mailbox mMailbox;
+            final LinkedHashMap<String, UpdateGroup> mFlagGroups =
+                    new LinkedHashMap<String, UpdateGroup>();
+            final LinkedHashMap<Long, UpdateGroup> mMoveGroups =
+                    new LinkedHashMap<Long, UpdateGroup>();
+
+            MailboxChanges(Mailbox mailbox) {
+                mMailbox = mailbox;
+            }
         }
 
-        // 1. No remote update for DRAFTS or OUTBOX
-        if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
-            return;
+        /** Messages which get the same change */
+        private static class UpdateGroup {
+            /** The flag to set or clear, or null for a move */
+            final Flag mFlag;
+            final boolean mValue;
+            /** The mailbox to move to, or null for a flag change */
+            final Mailbox mToMailbox;
+            final ArrayList<String> mServerIds = new ArrayList<String>();
+            final ArrayList<EmailContent.Message> mMessages =
+                    new ArrayList<EmailContent.Message>();
+
+            UpdateGroup(Flag flag, boolean value, Mailbox toMailbox) {
+                mFlag = flag;
+                mValue = value;
+                mToMailbox = toMailbox;
+            }
         }
 
-        // 2. Open the remote store & folder
-        Folder remoteFolder = remoteStore.getFolder(mailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
-        }
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            return;
+        boolean isEmpty() {
+            return mPendingGroupCounts.isEmpty();
         }
 
-        // 3. Finally, apply the changes to the message
-        Message remoteMessage = remoteFolder.getMessage(newMessage.mServerId);
-        if (remoteMessage == null) {
-            return;
-        }
-        if (DebugUtils.DEBUG) {
-            LogUtils.d(Logging.LOG_TAG,
-                    "Update for msg id=" + newMessage.mId
-                    + " read=" + newMessage.mFlagRead
-                    + " flagged=" + newMessage.mFlagFavorite
-                    + " answered="
-                    + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0)
-                    + " new mailbox=" + newMessage.mMailboxKey);
-        }
-        Message[] messages = new Message[] { remoteMessage };
-        if (changeRead) {
-            remoteFolder.setFlags(messages, FLAG_LIST_SEEN, newMessage.mFlagRead);
-        }
-        if (changeFlagged) {
-            remoteFolder.setFlags(messages, FLAG_LIST_FLAGGED, newMessage.mFlagFavorite);
-        }
-        if (changeAnswered) {
-            remoteFolder.setFlags(messages, FLAG_LIST_ANSWERED,
-                    (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0);
+        /**
+         * @return whether the message has changes in the batch, which haven't been applied yet
+         */
+        boolean isPending(long messageId) {
+            return mPendingGroupCounts.containsKey(messageId);
         }
-        if (changeMailbox) {
-            Folder toFolder = remoteStore.getFolder(newMailbox.mServerId);
-            if (!remoteFolder.exists()) {
+
+        /**
+         * Adds changes to read, flagged, answered, or mailbox
+         *
+         * @param mailbox the mailbox the message is stored in
+         * @param changeRead whether the message's read state has changed
+         * @param changeFlagged whether the message's flagged state has changed
+         * @param changeMailbox whether the message's mailbox has changed
+         * @param changeAnswered whether the message's answered state has changed
+         * @param oldMessage the message in it's pre-change state
+         * @param newMessage the current version of the message
+         */
+        void addDataChange(Context context, Mailbox mailbox, boolean changeRead,
+                boolean changeFlagged, boolean changeMailbox, boolean changeAnswered,
+                EmailContent.Message oldMessage, EmailContent.Message newMessage) {
+            // New mailbox is the mailbox this message WILL be in (same as the one it WAS in if
+            // it isn't being moved)
+            final Mailbox newMailbox = mailbox;
+            // Mailbox is the original remote mailbox (the one we're acting on)
+            mailbox = getRemoteMailboxForMessage(context, oldMessage);
+
+            // 0. No remote update if the message is local-only
+            if (isLocalOnly(newMessage) || (mailbox == null)) {
                 return;
             }
-            // We may need the message id to search for the message in the destination folder
-            remoteMessage.setMessageId(newMessage.mMessageId);
-            // Copy the message to its new folder
-            remoteFolder.copyMessages(messages, toFolder, new MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    // We only have one message, so, any updates _must_ be for it. Otherwise,
-                    // we'd have to cycle through to find the one with the same server ID.
-                    context.getContentResolver().update(ContentUris.withAppendedId(
-                            EmailContent.Message.CONTENT_URI, newMessage.mId), cv, null, null);
-                }
 
-                @Override
-                public void onMessageNotFound(Message message) {
-                }
-            });
-            // Delete the message from the remote source folder
-            remoteMessage.setFlag(Flag.DELETED, true);
-            remoteFolder.expunge();
+            // 1. No remote update for DRAFTS or OUTBOX
+            if (mailbox.mType == Mailbox.TYPE_DRAFTS || mailbox.mType == Mailbox.TYPE_OUTBOX) {
+                return;
+            }
+
+            if (DebugUtils.DEBUG) {
+                LogUtils.d(Logging.LOG_TAG,
+                        "Update for msg id=" + newMessage.mId
+                        + " read=" + newMessage.mFlagRead
+                        + " flagged=" + newMessage.mFlagFavorite
+                        + " answered="
+                        + ((newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0)
+                        + " new mailbox=" + newMessage.mMailboxKey);
+            }
+            final String serverId = newMessage.mServerId;
+            if (changeRead) {
+                addFlagChange(mailbox, Flag.SEEN, newMessage.mFlagRead, serverId, newMessage);
+            }
+            if (changeFlagged) {
+                addFlagChange(mailbox, Flag.FLAGGED, newMessage.mFlagFavorite, serverId,
+                        newMessage);
+            }
+            if (changeAnswered) {
+                addFlagChange(mailbox, Flag.ANSWERED,
+                        (newMessage.mFlags & EmailContent.Message.FLAG_REPLIED_TO) != 0,
+                        serverId, newMessage);
+            }
+            if (changeMailbox) {
+                addMove(mailbox, newMailbox, serverId, newMessage);
+            }
         }
-        remoteFolder.close(false);
-    }
 
-    /**
-     * Process a pending trash message command.
-     *
-     * @param remoteStore the remote store we're working in
-     * @param newMailbox The local trash mailbox
-     * @param oldMessage The message copy that was saved in the updates shadow table
-     * @param newMessage The message that was moved to the mailbox
-     */
-    private static void processPendingMoveToTrash(final Context context, Store remoteStore,
-            Mailbox newMailbox, EmailContent.Message oldMessage,
-            final EmailContent.Message newMessage) throws MessagingException {
+        /**
+         * Adds a move to the trash
+         *
+         * @param newMailbox The local trash mailbox
+         * @param oldMessage The message copy that was saved in the updates shadow table
+         * @param newMessage The message that was moved to the mailbox
+         */
+        void addMoveToTrash(Context context, Mailbox newMailbox,
+                EmailContent.Message oldMessage, EmailContent.Message newMessage) {
+            // 0. No remote move if the message is local-only
+            if (isLocalOnly(newMessage)) {
+                return;
+            }
 
-        // 0. No remote move if the message is local-only
-        if (newMessage.mServerId == null || newMessage.mServerId.equals("")
-                || newMessage.mServerId.startsWith(LOCAL_SERVERID_PREFIX)) {
-            return;
+            // 1. Escape early if we can't find the local mailbox
+            Mailbox oldMailbox = getRemoteMailboxForMessage(context, oldMessage);
+            if (oldMailbox == null) {
+                // can't find old mailbox, it may have been deleted.  just return.
+                return;
+            }
+            // 2. We don't support delete-from-trash here
+            if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
+                return;
+            }
+
+            addMove(oldMailbox, newMailbox, oldMessage.mServerId, newMessage);
         }
 
-        // 1. Escape early if we can't find the local mailbox
-        // TODO smaller projection here
-        Mailbox oldMailbox = getRemoteMailboxForMessage(context, oldMessage);
-        if (oldMailbox == null) {
-            // can't find old mailbox, it may have been deleted.  just return.
-            return;
+        private static boolean isLocalOnly(EmailContent.Message message) {
+            return message.mServerId == null || message.mServerId.equals("")
+                    || message.mServerId.startsWith(LOCAL_SERVERID_PREFIX);
         }
-        // 2. We don't support delete-from-trash here
-        if (oldMailbox.mType == Mailbox.TYPE_TRASH) {
-            return;
+
+        private MailboxChanges getMailboxChanges(Mailbox mailbox) {
+            MailboxChanges changes = mMailboxChanges.get(mailbox.mId);
+            if (changes == null) {
+                changes = new MailboxChanges(mailbox);
+                mMailboxChanges.put(mailbox.mId, changes);
+            }
+            return changes;
         }
 
-        // The rest of this method handles server-side deletion
+        private void addFlagChange(Mailbox mailbox, Flag flag, boolean value, String serverId,
+                EmailContent.Message message) {
+            final MailboxChanges changes = getMailboxChanges(mailbox);
+            final String key = flag.name() + "=" + value;
+            UpdateGroup group = changes.mFlagGroups.get(key);
+            if (group == null) {
+                group = new UpdateGroup(flag, value, null);
+                changes.mFlagGroups.put(key, group);
+            }
+            addToGroup(group, serverId, message);
+        }
 
-        // 4.  Find the remote mailbox (that we deleted from), and open it
-        Folder remoteFolder = remoteStore.getFolder(oldMailbox.mServerId);
-        if (!remoteFolder.exists()) {
-            return;
+        private void addMove(Mailbox mailbox, Mailbox toMailbox, String serverId,
+                EmailContent.Message message) {
+            final MailboxChanges changes = getMailboxChanges(mailbox);
+            UpdateGroup group = changes.mMoveGroups.get(toMailbox.mId);
+            if (group == null) {
+                group = new UpdateGroup(null, false, toMailbox);
+                changes.mMoveGroups.put(toMailbox.mId, group);
+            }
+            addToGroup(group, serverId, message);
         }
 
-        remoteFolder.open(OpenMode.READ_WRITE);
-        if (remoteFolder.getMode() != OpenMode.READ_WRITE) {
-            remoteFolder.close(false);
-            return;
+        private void addToGroup(UpdateGroup group, String serverId,
+                EmailContent.Message message) {
+            group.mServerIds.add(serverId);
+            group.mMessages.add(message);
+            final Integer count = mPendingGroupCounts.get(message.mId);
+            mPendingGroupCounts.put(message.mId, (count == null) ? 1 : count + 1);
         }
 
-        // 5. Find the remote original message
-        Message remoteMessage = remoteFolder.getMessage(oldMessage.mServerId);
-        if (remoteMessage == null) {
-            remoteFolder.close(false);
-            return;
+        /**
+         * Applies the changes, one mailbox at a time.  In each mailbox, flags are changed
+         * before any of the messages are moved out of it.
+         */
+        void apply(Context context, Store remoteStore) throws MessagingException {
+            for (MailboxChanges changes : mMailboxChanges.values()) {
+                final Folder remoteFolder = remoteStore.getFolder(changes.mMailbox.mServerId);
+                if (!remoteFolder.exists()) {
+                    onMailboxApplied(context, changes);
+                    continue;
+                }
+                remoteFolder.open(OpenMode.READ_WRITE);
+                try {
+                    if (remoteFolder.getMode() == OpenMode.READ_WRITE) {
+                        for (UpdateGroup group : changes.mFlagGroups.values()) {
+                            applyFlagChange(remoteFolder, group);
+                            onGroupApplied(context, group);
+                        }
+                        for (UpdateGroup group : changes.mMoveGroups.values()) {
+                            applyMove(context, remoteStore, remoteFolder, group);
+                            onGroupApplied(context, group);
+                        }
+                    } else {
+                        onMailboxApplied(context, changes);
+                    }
+                } finally {
+                    remoteFolder.close(false);
+                }
+            }
         }
 
-        // 6. Find the remote trash folder, and create it if not found
-        Folder remoteTrashFolder = remoteStore.getFolder(newMailbox.mServerId);
-        if (!remoteTrashFolder.exists()) {
-            /*
-             * If the remote trash folder doesn't exist we try to create it.
-             */
-            remoteTrashFolder.create(FolderType.HOLDS_MESSAGES);
-        }
-
-        // 7. Try to copy the message into the remote trash folder
-        // Note, this entire section will be skipped for POP3 because there's no remote trash
-        if (remoteTrashFolder.exists()) {
-            /*
-             * Because remoteTrashFolder may be new, we need to explicitly open it
-             */
-            remoteTrashFolder.open(OpenMode.READ_WRITE);
-            if (remoteTrashFolder.getMode() != OpenMode.READ_WRITE) {
-                remoteFolder.close(false);
-                remoteTrashFolder.close(false);
+        private static void applyFlagChange(Folder remoteFolder, UpdateGroup group)
+                throws MessagingException {
+            final Flag[] flags = new Flag[] { group.mFlag };
+            final int count = group.mServerIds.size();
+            for (int start = 0; start < count; start += MAX_MESSAGES_PER_UPDATE) {
+                final int end = Math.min(start + MAX_MESSAGES_PER_UPDATE, count);
+                final Message[] messages = new Message[end - start];
+                for (int i = start; i < end; i++) {
+                    messages[i - start] = remoteFolder.createMessage(group.mServerIds.get(i));
+                }
+                remoteFolder.setFlags(messages, flags, group.mValue);
+            }
+        }
+
+        private static void applyMove(final Context context, Store remoteStore,
+                Folder remoteFolder, UpdateGroup group) throws MessagingException {
+            final Mailbox toMailbox = group.mToMailbox;
+            final boolean toTrash = toMailbox.mType == Mailbox.TYPE_TRASH;
+            final Folder toFolder = remoteStore.getFolder(toMailbox.mServerId);
+            if (!toFolder.exists() && toTrash) {
+                // If the remote trash folder doesn't exist we try to create it.
+                toFolder.create(FolderType.HOLDS_MESSAGES);
+            }
+            if (!toFolder.exists()) {
+                // Messages moved to the trash are still deleted from the server, e.g. for POP3,
+                // which has no remote trash; any other move has nowhere to go
+                if (toTrash) {
+                    applyDelete(remoteFolder, group);
+                }
                 return;
             }
+            // Because toFolder may be new, we need to explicitly open it
+            toFolder.open(OpenMode.READ_WRITE);
+            try {
+                if (toFolder.getMode() == OpenMode.READ_WRITE) {
+                    moveGroup(context, remoteFolder, toFolder, toTrash, group);
+                }
+            } finally {
+                toFolder.close(false);
+            }
+        }
 
-            remoteFolder.copyMessages(new Message[] { remoteMessage }, remoteTrashFolder,
-                    new Folder.MessageUpdateCallbacks() {
-                @Override
-                public void onMessageUidChange(Message message, String newUid) {
-                    // update the UID in the local trash folder, because some stores will
-                    // have to change it when copying to remoteTrashFolder
-                    ContentValues cv = new ContentValues();
-                    cv.put(MessageColumns.SERVER_ID, newUid);
-                    context.getContentResolver().update(newMessage.getUri(), cv, null, null);
+        /**
+         * Flags the messages of the group \Deleted in {@code remoteFolder}, and expunges them.
+         */
+        private static void applyDelete(Folder remoteFolder, UpdateGroup group)
+                throws MessagingException {
+            final int count = group.mServerIds.size();
+            for (int start = 0; start < count; start += MAX_MESSAGES_PER_UPDATE) {
+                final int end = Math.min(start + MAX_MESSAGES_PER_UPDATE, count);
+                final Message[] messages = new Message[end - start];
+                for (int i = start; i < end; i++) {
+                    messages[i - start] = remoteFolder.createMessage(group.mServerIds.get(i));
                 }
+                remoteFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+            }
+            remoteFolder.expunge();
+        }
 
-                /**
-                 * This will be called if the deleted message doesn't exist and can't be
-                 * deleted (e.g. it was already deleted from the server.)  In this case,
-                 * attempt to delete the local copy as well.
-                 */
-                @Override
-                public void onMessageNotFound(Message message) {
-                    context.getContentResolver().delete(newMessage.getUri(), null, null);
+        private static void moveGroup(final Context context, Folder remoteFolder,
+                Folder toFolder, final boolean toTrash, UpdateGroup group)
+                throws MessagingException {
+            final int count = group.mServerIds.size();
+            for (int start = 0; start < count; start += MAX_MESSAGES_PER_UPDATE) {
+                final int end = Math.min(start + MAX_MESSAGES_PER_UPDATE, count);
+                final Message[] messages = new Message[end - start];
+                // The local message for each remote one, to update its server id
+                final HashMap<Message, EmailContent.Message> localMessages =
+                        new HashMap<Message, EmailContent.Message>();
+                for (int i = start; i < end; i++) {
+                    final Message remoteMessage =
+                            remoteFolder.createMessage(group.mServerIds.get(i));
+                    final EmailContent.Message localMessage = group.mMessages.get(i);
+                    // We may need the message id to search for the message in the destination
+                    // folder
+                    remoteMessage.setMessageId(localMessage.mMessageId);
+                    messages[i - start] = remoteMessage;
+                    localMessages.put(remoteMessage, localMessage);
                 }
-            });
-            remoteTrashFolder.close(false);
+                final MessageUpdateCallbacks callbacks = new MessageUpdateCallbacks() {
+                    @Override
+                    public void onMessageUidChange(Message message, String newUid) {
+                        final EmailContent.Message localMessage = localMessages.get(message);
+                        if (localMessage != null) {
+                            ContentValues cv = new ContentValues();
+                            cv.put(MessageColumns.SERVER_ID, newUid);
+                            context.getContentResolver().update(
+                                    localMessage.getUri(), cv, null, null);
+                        }
+                    }
+
+                    /**
+                     * The message was already deleted from the server, so a copy moved to the
+                     * trash would never be deleted from it; delete the local copy as well.
+                     */
+                    @Override
+                    public void onMessageNotFound(Message message) {
+                        final EmailContent.Message localMessage = localMessages.get(message);
+                        if (toTrash && localMessage != null) {
+                            context.getContentResolver().delete(
+                                    localMessage.getUri(), null, null);
+                        }
+                    }
+                };
+                if (remoteFolder instanceof ImapFolder) {
+                    ((ImapFolder) remoteFolder).moveMessages(messages, toFolder, callbacks);
+                } else {
+                    remoteFolder.copyMessages(messages, toFolder, callbacks);
+                    remoteFolder.setFlags(messages, new Flag[] { Flag.DELETED }, true);
+                    remoteFolder.expunge();
+                }
+            }
         }
 
-        // 8. Delete the message from the remote source folder
-        remoteMessage.setFlag(Flag.DELETED, true);
-        remoteFolder.expunge();
-        remoteFolder.close(false);
+        /**
+         * Deletes the update records of the messages whose changes have all been applied.
+         */
+        private void onGroupApplied(Context context, UpdateGroup group) {
+            for (EmailContent.Message message : group.mMessages) {
+                final Integer count = mPendingGroupCounts.get(message.mId);
+                if (count == null) {
+                    continue;
+                }
+                if (count > 1) {
+                    mPendingGroupCounts.put(message.mId, count - 1);
+                } else {
+                    mPendingGroupCounts.remove(message.mId);
+                    Uri uri = ContentUris.withAppendedId(
+                            EmailContent.Message.UPDATED_CONTENT_URI, message.mId);
+                    context.getContentResolver().delete(uri, null, null);
+                }
+            }
+        }
+
+        /**
+         * Treats every change in the mailbox as applied, when there's nothing we can do there.
+         */
+        private void onMailboxApplied(Context context, MailboxChanges changes) {
+            for (UpdateGroup group : changes.mFlagGroups.values()) {
+                onGroupApplied(context, group);
+            }
+            for (UpdateGroup group : changes.mMoveGroups.values()) {
+                onGroupApplied(context, group);
+            }
+        }
     }
 
     /**
@@ -1351,13 +1881,12 @@ public class ImapService extends Service {
             // TODO:
             // if we have a serverId and remoteMessage is still null, then probably the message
             // has been deleted and we should delete locally.
-            // 3a. Create a legacy message to upload
-            Message localMessage = LegacyConversions.makeMessage(context, message);
-            // 3b. Upload it
+            // 3a. Create a legacy message to upload, and 3b. upload it
             //FetchProfile fp = new FetchProfile();
             //fp.add(FetchProfile.Item.BODY);
             // Note that this operation will assign the Uid to localMessage
-            remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
+            Message localMessage =
+                    uploadMessage(context, remoteFolder, mailbox, message, manualSync);
 
             // 3b. And record the UID from the server
             message.mServerId = localMessage.getUid();
@@ -1386,13 +1915,13 @@ public class ImapService extends Service {
                 // TODO: This strategy has a problem: This will create a second message,
                 // so that at least temporarily, we will have two messages for what the
                 // user would think of as one.
-                Message localMessage = LegacyConversions.makeMessage(context, message);
 
                 // 4c. Upload it
                 fp.clear();
                 fp = new FetchProfile();
                 fp.add(FetchProfile.Item.BODY);
-                remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
+                Message localMessage =
+                        uploadMessage(context, remoteFolder, mailbox, message, manualSync);
 
                 // 4d. Record the UID and new internalDate from the server
                 message.mServerId = localMessage.getUid();
@@ -1440,6 +1969,82 @@ public class ImapService extends Service {
         return true;
     }
 
+    /**
+     * Uploads a local message to a remote folder.  A message in the Sent folder is uploaded as
+     * it was sent, from the rendering kept by {@link MessageSpool}, which is then of no more use;
+     * if that's gone, it's rendered again as it's uploaded.
+     *
+     * @return the legacy message uploaded, which holds its UID on the server, if known
+     */
+    private static Message uploadMessage(final Context context, Folder remoteFolder,
+            Mailbox mailbox, final EmailContent.Message message, boolean manualSync)
+            throws MessagingException {
+        if (mailbox.mType != Mailbox.TYPE_SENT || !(remoteFolder instanceof ImapFolder)) {
+            final Message localMessage = LegacyConversions.makeMessage(context, message);
+            remoteFolder.appendMessage(context, localMessage, manualSync /* no timeout */);
+            return localMessage;
+        }
+        final ImapFolder imapFolder = (ImapFolder) remoteFolder;
+        // Only the flags and Message-ID are needed, as the content is rendered separately
+        final MimeMessage localMessage = new MimeMessage();
+        localMessage.setFlag(Flag.SEEN, message.mFlagRead);
+        localMessage.setFlag(Flag.FLAGGED, message.mFlagFavorite);
+        localMessage.setMessageId(message.mMessageId);
+        try {
+            // A literal may have 8-bit text in it, but not binary
+            File content = MessageSpool.find(context, message, Rfc822Output.ALLOW_8BIT);
+            if (content == null) {
+                final String boundary = Rfc822Output.getNextBoundary();
+                final long size = Rfc822Output.getSize(context, message,
+                        false /* do not use smart reply */, true /* send BCC */,
+                        null /* attachments are in the message itself */,
+                        Rfc822Output.ALLOW_8BIT, boundary);
+                if (size >= 0) {
+                    // Measured, so it can be rendered straight to the server
+                    final ImapFolder.MessageContent rendering = new ImapFolder.MessageContent() {
+                        @Override
+                        public long getSize() {
+                            return size;
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out)
+                                throws IOException, MessagingException {
+                            final OutputStream eolOut = new EOLConvertingOutputStream(out);
+                            Rfc822Output.writeTo(context, message, eolOut, false, true, null,
+                                    Rfc822Output.ALLOW_8BIT, boundary);
+                            eolOut.flush();
+                        }
+                    };
+                    try {
+                        imapFolder.appendMessage(context, localMessage, rendering,
+                                manualSync /* no timeout */);
+                    } catch (MessagingException me) {
+                        if (!(me.getCause() instanceof ImapFolder.LiteralSizeException)) {
+                            throw me;
+                        }
+                        // Measured wrong, e.g. as an attachment changed in between; a spooled
+                        // rendering is sent with the size of its file, which can't disagree
+                        LogUtils.w(Logging.LOG_TAG, "Message %d wasn't the size measured; "
+                                + "spooling it to upload", message.mId);
+                        imapFolder.open(OpenMode.READ_WRITE);
+                        content = MessageSpool.get(context, message, Rfc822Output.ALLOW_8BIT);
+                    }
+                } else {
+                    content = MessageSpool.get(context, message, Rfc822Output.ALLOW_8BIT);
+                }
+            }
+            if (content != null) {
+                imapFolder.appendMessage(context, localMessage, content,
+                        MessageSpool.getSentCopyHeaders(message), manualSync /* no timeout */);
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Unable to render message", e);
+        }
+        MessageSpool.evict(context, message.mId);
+        return localMessage;
+    }
+
     /**
      * A message and numeric uid that's easily sortable
      */
@@ -1526,81 +2131,56 @@ public class ImapService extends Service {
 
             Message[] messageArray = messageList.toArray(new Message[messageList.size()]);
 
-            // TODO: We are purposely processing messages with a MessageRetrievalListener here,
-            // rather than just walking the messageArray after the operation completes. This is so
-            // that we can immediately update the database so the user can see something useful
-            // happening, even if the message body has not yet been fetched.
-            // There are some issues with this approach:
-            // 1. It means that we have a single thread doing both network and database operations,
-            // and either can block the other. The database updates could slow down the network
-            // reads, keeping our network connection open longer than is really necessary.
-            // 2. We still load all of this data into messageArray, even though it's not used.
-            // It would be nicer if we had one thread doing the network operation, and a separate
-            // thread consuming that data and performing the appropriate database work, then
-            // discarding the data as soon as it is no longer needed. This would reduce our memory
-            // footprint and potentially allow our network operation to complete faster.
-            remoteFolder.fetch(messageArray, fp, new MessageRetrievalListener() {
+            // The messages are stored on another thread as they arrive, so that the user sees
+            // something useful happening even before the bodies have been fetched, and so that
+            // the database and the network don't wait for each other.
+            final MessagePipeline pipeline = new MessagePipeline("ImapService search store",
+                    STORE_MESSAGES_BATCH_SIZE, new MessagePipeline.BatchWriter() {
                 @Override
-                public void messageRetrieved(Message message) {
-                    try {
+                public void write(List<Message> messages) throws MessagingException {
+                    final ArrayList<EmailContent.Message> localMessages =
+                            new ArrayList<EmailContent.Message>(messages.size());
+                    for (Message message : messages) {
                         EmailContent.Message localMessage = new EmailContent.Message();
-
-                        // Copy the fields that are available into the message
-                        LegacyConversions.updateMessageFields(localMessage,
-                                message, account.mId, mailbox.mId);
+                        try {
+                            // Copy the fields that are available into the message
+                            LegacyConversions.updateMessageFields(localMessage,
+                                    message, account.mId, mailbox.mId);
+                        } catch (MessagingException me) {
+                            LogUtils.e(Logging.LOG_TAG, me,
+                                    "Error while copying downloaded message.");
+                            continue;
+                        }
                         // Save off the mailbox that this message *really* belongs in.
                         // We need this information if we need to do more lookups
                         // (like loading attachments) for this message. See b/11294681
                         localMessage.mMainMailboxKey = localMessage.mMailboxKey;
                         localMessage.mMailboxKey = destMailboxId;
-                        // We load 50k or so; maybe it's complete, maybe not...
-                        int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
                         // We store the serverId of the source mailbox into protocolSearchInfo
-                        // This will be used by loadMessageForView, etc. to use the proper remote
-                        // folder
+                        // This will be used by loadMessageForView, etc. to use the proper
+                        // remote folder
                         localMessage.mProtocolSearchInfo = mailbox.mServerId;
-                        // Commit the message to the local store
-                        Utilities.saveOrUpdate(localMessage, context);
-                    } catch (MessagingException me) {
-                        LogUtils.e(Logging.LOG_TAG, me,
-                                "Error while copying downloaded message.");
-                    } catch (Exception e) {
-                        LogUtils.e(Logging.LOG_TAG, e,
-                                "Error while storing downloaded message.");
+                        localMessages.add(localMessage);
                     }
-                }
-
-                @Override
-                public void loadAttachmentProgress(int progress) {
+                    // Commit the batch to the local store
+                    saveMessages(context, localMessages);
                 }
             });
-
-            // Now load the structure for all of the messages:
-            fp.clear();
-            fp.add(FetchProfile.Item.STRUCTURE);
-            remoteFolder.fetch(messageArray, fp, null);
-
-            // Finally, load the first body part (i.e. message text).
-            // This means attachment contents are not yet loaded, but that's okay,
-            // we'll load them as needed, same as in synced messages.
-            Message[] oneMessageArray = new Message[1];
-            for (Message message : messageArray) {
-                // Build a list of parts we are interested in. Text parts will be downloaded
-                // right now, attachments will be left for later.
-                ArrayList<Part> viewables = new ArrayList<>();
-                ArrayList<Part> attachments = new ArrayList<>();
-                MimeUtility.collectParts(message, viewables, attachments);
-                // Download the viewables immediately
-                oneMessageArray[0] = message;
-                for (Part part : viewables) {
-                    fp.clear();
-                    fp.add(part);
-                    remoteFolder.fetch(oneMessageArray, fp, null);
+            boolean fetched = false;
+            try {
+                remoteFolder.fetch(messageArray, fp, pipeline.getListener());
+                fetched = true;
+            } finally {
+                if (!fetched) {
+                    pipeline.finishAfterError();
                 }
-                // Store the updated message locally and mark it fully loaded
-                Utilities.copyOneMessageToProvider(context, message, account, destMailbox,
-                        EmailContent.Message.FLAG_LOADED_COMPLETE);
             }
+            pipeline.finish();
+
+            // Now load the structure and the viewable parts (i.e. message text) of all of the
+            // messages. Attachment contents are not yet loaded, but that's okay, we'll load them
+            // as needed, same as in synced messages.
+            loadUnsyncedMessages(context, account, remoteFolder, messageList, destMailbox);
 
         } finally {
             if (remoteStore != null) {
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Folder.MessageRetrievalListener;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
+import com.android.mail.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands messages read from the network over to a thread of its own, which stores them in
+ * batches.  This way the network reads don't wait for the database, and vice versa, so the
+ * connection is done with sooner, and the rows show up in the UI sooner.
+ *
+ * The network side calls {@link #put} for each message (or passes {@link #getListener()} to
+ * {@link com.android.emailcommon.mail.Folder#fetch}), and must always end with {@link #finish}
+ * (or {@link #finishAfterError}), which waits until everything queued has been stored.  Only
+ * a few batches are queued at a time, so the network side waits if the database falls behind.
+ * Once a message has been queued, the network side mustn't touch it again.
+ */
+class MessagePipeline implements Runnable {
+    /**
+     * Stores a batch of messages.  Called on the pipeline's thread.
+     */
+    interface BatchWriter {
+        void write(List<Message> messages) throws MessagingException;
+    }
+
+    /** Queued by {@link #finish} to tell the pipeline's thread there's nothing more coming */
+    private static final Object END = new Object();
+    private static final long QUEUE_WAIT_MILLIS = 100;
+
+    /** Runs the pipelines, each on a thread of its own, reused by later pipelines */
+    private static final ExecutorService sExecutor = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "MessagePipeline #" + mCount.incrementAndGet());
+                }
+            });
+
+    private final String mName;
+    private final BatchWriter mWriter;
+    private final int mBatchSize;
+    private final ArrayBlockingQueue<Object> mQueue;
+    private final Future<?> mTask;
+
+    /** Set once messages are to be dropped rather than stored, on failure or cancellation */
+    private volatile boolean mStopped;
+    private volatile boolean mCancelled;
+    private volatile MessagingException mFailure;
+
+    private final MessageRetrievalListener mListener = new MessageRetrievalListener() {
+        @Override
+        public void messageRetrieved(Message message) {
+            put(message);
+        }
+
+        @Override
+        public void loadAttachmentProgress(int progress) {
+        }
+    };
+
+    /**
+     * Creates a pipeline and starts its thread.
+     *
+     * @param name the name of the pipeline, given to its thread while it runs, for debugging
+     * @param batchSize the most messages to hand to {@code writer} at once
+     */
+    MessagePipeline(String name, int batchSize, BatchWriter writer) {
+        mName = name;
+        mWriter = writer;
+        mBatchSize = batchSize;
+        // Room for the batch being stored, and the next one
+        mQueue = new ArrayBlockingQueue<Object>(batchSize * 2);
+        mTask = sExecutor.submit(this);
+    }
+
+    /**
+     * Queues a message to be stored, waiting while the queue is full.
+     *
+     * @return false if the message was dropped, as the pipeline has failed or been cancelled
+     */
+    boolean put(Message message) {
+        try {
+            // Waits in steps, so as not to wait forever if the pipeline's thread has stopped
+            while (!mStopped) {
+                if (mQueue.offer(message, QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            return false;
+        }
+    }
+
+    /**
+     * @return a listener which queues each message retrieved
+     */
+    MessageRetrievalListener getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return whether messages are being dropped, as the pipeline has failed or been cancelled;
+     *     there's no point in fetching any more
+     */
+    boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * Drops the messages queued but not yet stored, and any queued later.  May be called from
+     * any thread, but {@link #finish} must still be called by the network side.
+     */
+    void cancel() {
+        mCancelled = true;
+        mStopped = true;
+    }
+
+    /**
+     * Waits until all of the messages queued have been stored, and stops the pipeline's thread.
+     *
+     * @throws MessagingException if a batch couldn't be stored, unless the pipeline has been
+     *     cancelled
+     */
+    void finish() throws MessagingException {
+        try {
+            while (!mQueue.offer(END, QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)
+                    && !mTask.isDone()) {
+                // The pipeline's thread is still busy; keep waiting
+            }
+            mTask.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new MessagingException("Interrupted while storing messages", e);
+        } catch (ExecutionException e) {
+            // e.g. an OutOfMemoryError storing a large body; run() has stopped the pipeline
+            if (!mCancelled) {
+                throw new MessagingException("Error while storing messages", e.getCause());
+            }
+        }
+        if (mFailure != null && !mCancelled) {
+            throw mFailure;
+        }
+    }
+
+    /**
+     * Like {@link #finish}, for when the network side has failed: what was queued is still
+     * stored, but a failure to do so is only logged, so as not to hide the network failure.
+     */
+    void finishAfterError() {
+        try {
+            finish();
+        } catch (MessagingException me) {
+            LogUtils.w(Logging.LOG_TAG, me, "Error while storing messages");
+        }
+    }
+
+    @Override
+    public void run() {
+        final Thread thread = Thread.currentThread();
+        final String threadName = thread.getName();
+        thread.setName(mName);
+        final ArrayList<Message> batch = new ArrayList<Message>(mBatchSize);
+        boolean ended = false;
+        try {
+            Object item;
+            do {
+                item = mQueue.take();
+                // Whatever else has been queued meanwhile goes in the same batch
+                while (item != END) {
+                    batch.add((Message) item);
+                    if (batch.size() == mBatchSize || (item = mQueue.poll()) == null) {
+                        break;
+                    }
+                }
+                if (!batch.isEmpty() && !mStopped) {
+                    write(batch);
+                }
+                batch.clear();
+            } while (item != END);
+            ended = true;
+        } catch (InterruptedException e) {
+            // Nobody interrupts this thread, but if they did, the network side must stop waiting
+            LogUtils.w(Logging.LOG_TAG, "MessagePipeline interrupted");
+            cancel();
+        } finally {
+            if (!ended) {
+                // Whatever went wrong, put() mustn't wait for this thread any more
+                mStopped = true;
+            }
+            thread.setName(threadName);
+        }
+    }
+
+    private void write(List<Message> batch) {
+        try {
+            mWriter.write(batch);
+        } catch (MessagingException me) {
+            fail(me);
+        } catch (RuntimeException e) {
+            fail(new MessagingException("Error while storing messages", e));
+        }
+    }
+
+    private void fail(MessagingException me) {
+        LogUtils.w(Logging.LOG_TAG, me, "Error while storing messages, dropping the rest");
+        mFailure = me;
+        // The rest are still taken from the queue, but dropped
+        mStopped = true;
+    }
+}
@@ -62,10 +62,19 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 public class Pop3Service extends Service {
     private static final String TAG = "Pop3Service";
     private static final int DEFAULT_SYNC_COUNT = 100;
+    /**
+     * The most downloaded messages to store in a single transaction (or two, if some of them
+     * were only partly loaded)
+     */
+    private static final int STORE_MESSAGES_BATCH_SIZE = 20;
+
+    /** Lets different accounts sync at the same time */
+    private static final SyncLocks sSyncLocks = new SyncLocks(1);
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -110,6 +119,8 @@ public class Pop3Service extends Service {
         TrafficStats.setThreadStatsTag(TrafficFlags.getSyncFlags(context, account));
         final NotificationController nc =
                 NotificationControllerCreatorHolder.getInstance(context);
+        // There's a single POP3 mailbox, and servers let only one session at a time use it
+        sSyncLocks.lockAccount(account.mId);
         try {
             synchronizePop3Mailbox(context, account, folder, deltaMessageCount);
             // Clear authentication notification for this account
@@ -125,6 +136,8 @@ public class Pop3Service extends Service {
                 nc.showLoginFailedNotificationSynchronous(account.mId, true /* incoming */);
             }
             throw e;
+        } finally {
+            sSyncLocks.unlockAccount(account.mId);
         }
         // TODO: Rather than use exceptions as logic aobve, return the status and handle it
         // correctly in caller.
@@ -174,32 +187,60 @@ public class Pop3Service extends Service {
             LogUtils.d(TAG, "Loading " + unsyncedMessages.size() + " unsynced messages");
         }
 
+        // Messages are stored on another thread while the next ones are being downloaded
+        final MessagePipeline pipeline = new MessagePipeline("Pop3Service body store",
+                STORE_MESSAGES_BATCH_SIZE, new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<com.android.emailcommon.mail.Message> batch) {
+                        // Each load status is stored in a transaction of its own
+                        final ArrayList<com.android.emailcommon.mail.Message> complete =
+                                new ArrayList<com.android.emailcommon.mail.Message>(batch.size());
+                        final ArrayList<com.android.emailcommon.mail.Message> partial =
+                                new ArrayList<com.android.emailcommon.mail.Message>();
+                        for (com.android.emailcommon.mail.Message m : batch) {
+                            final Pop3Message message = (Pop3Message) m;
+                            if (DebugUtils.DEBUG) {
+                                LogUtils.d(TAG, "Message is "
+                                        + (message.isComplete() ? "" : "NOT ") + "complete");
+                            }
+                            if (message.isComplete()) {
+                                complete.add(message);
+                            } else {
+                                // TODO: when the message is not complete, this should mark the
+                                // message as partial.  When that change is made, we need to make
+                                // sure that:
+                                // 1) Partial messages are shown in the conversation list
+                                // 2) We are able to download the rest of the message/attachment
+                                //    when the user requests it.
+                                partial.add(message);
+                            }
+                        }
+                        if (!complete.isEmpty()) {
+                            Utilities.copyMessagesToProvider(context, complete, account,
+                                    toMailbox, EmailContent.Message.FLAG_LOADED_COMPLETE);
+                        }
+                        // If message is incomplete, create a "fake" attachment
+                        if (!partial.isEmpty()) {
+                            Utilities.copyMessagesToProvider(context, partial, account,
+                                    toMailbox, EmailContent.Message.FLAG_LOADED_PARTIAL);
+                        }
+                    }
+                });
+        boolean fetched = false;
         try {
-            int cnt = unsyncedMessages.size();
-            // They are in most recent to least recent order, process them that way.
-            for (int i = 0; i < cnt; i++) {
-                final Pop3Message message = unsyncedMessages.get(i);
-                remoteFolder.fetchBody(message, Pop3Store.FETCH_BODY_SANE_SUGGESTED_SIZE / 76,
-                        null);
-                int flag = EmailContent.Message.FLAG_LOADED_COMPLETE;
-                if (!message.isComplete()) {
-                    // TODO: when the message is not complete, this should mark the message as
-                    // partial.  When that change is made, we need to make sure that:
-                    // 1) Partial messages are shown in the conversation list
-                    // 2) We are able to download the rest of the message/attachment when the
-                    //    user requests it.
-                     flag = EmailContent.Message.FLAG_LOADED_PARTIAL;
-                }
-                if (DebugUtils.DEBUG) {
-                    LogUtils.d(TAG, "Message is " + (message.isComplete() ? "" : "NOT ")
-                            + "complete");
-                }
-                // If message is incomplete, create a "fake" attachment
-                Utilities.copyOneMessageToProvider(context, message, account, toMailbox, flag);
-            }
+            // They are in most recent to least recent order, process them that way.  With
+            // PIPELINING, they're requested without waiting for each to arrive in turn.
+            remoteFolder.fetchBodies(unsyncedMessages,
+                    Pop3Store.FETCH_BODY_SANE_SUGGESTED_SIZE / 76, pipeline.getListener());
+            fetched = true;
         } catch (IOException e) {
             throw new MessagingException(MessagingException.IOERROR);
+        } finally {
+            if (!fetched) {
+                pipeline.finishAfterError();
+            }
         }
+        pipeline.finish();
     }
 
     private static class FetchCallback implements EOLConvertingInputStream.Callback {
@@ -227,7 +268,7 @@ public class Pop3Service extends Service {
      * @param deltaMessageCount the requested change to number of messages to sync
      * @throws MessagingException
      */
-    private synchronized static void synchronizePop3Mailbox(final Context context, final Account account,
+    private static void synchronizePop3Mailbox(final Context context, final Account account,
             final Mailbox mailbox, final int deltaMessageCount) throws MessagingException {
         // TODO Break this into smaller pieces
         ContentResolver resolver = context.getContentResolver();
@@ -280,6 +321,8 @@ public class Pop3Service extends Service {
                 EmailContent.Message.ID_COLUMN_PROJECTION,
                 EmailContent.MessageColumns.ACCOUNT_KEY + "=?", accountIdArgs,
                 null);
+        final ArrayList<Long> updateIds = new ArrayList<Long>();
+        final ArrayList<Pop3Message> popMessagesToDelete = new ArrayList<Pop3Message>();
         try {
             // loop through messages marked as deleted
             while (updates.moveToNext()) {
@@ -291,16 +334,22 @@ public class Pop3Service extends Service {
                     Pop3Message popMessage =
                             (Pop3Message)remoteFolder.getMessage(currentMsg.mServerId);
                     if (popMessage != null) {
-                        remoteFolder.deleteMessage(popMessage);
+                        popMessagesToDelete.add(popMessage);
                     }
                 }
-                // Finally, delete the update
-                Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI, id);
-                context.getContentResolver().delete(uri, null, null);
+                updateIds.add(id);
             }
         } finally {
             updates.close();
         }
+        // All of the deletions at once, so that they can be pipelined
+        remoteFolder.deleteMessages(
+                popMessagesToDelete.toArray(new Pop3Message[popMessagesToDelete.size()]));
+        // Finally, delete the updates
+        for (long id : updateIds) {
+            Uri uri = ContentUris.withAppendedId(EmailContent.Message.UPDATED_CONTENT_URI, id);
+            context.getContentResolver().delete(uri, null, null);
+        }
 
         // Get the remote message count.
         final int remoteMessageCount = remoteFolder.getMessageCount();
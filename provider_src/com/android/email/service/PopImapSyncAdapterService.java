@@ -56,7 +56,8 @@ public class PopImapSyncAdapterService extends Service {
 
     private static class SyncAdapterImpl extends AbstractThreadedSyncAdapter {
         public SyncAdapterImpl(Context context) {
-            super(context, true /* autoInitialize */);
+            // Accounts are kept apart by SyncLocks, so they may sync in parallel
+            super(context, true /* autoInitialize */, true /* allowParallelSyncs */);
         }
 
         @Override
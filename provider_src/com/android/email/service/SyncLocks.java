@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decides which syncs may run at the same time.  Syncs of different accounts never wait for
+ * each other, so one slow server doesn't hold up every other account.  Within an account:
+ * <ul>
+ * <li>work on the account as a whole (e.g. uploading pending changes, which may touch any of
+ * its mailboxes) runs alone, see {@link #lockAccount}</li>
+ * <li>otherwise, different mailboxes may sync at the same time, but each mailbox syncs one at
+ * a time, and no more than a few sync at once, so as to stay within the connections a server
+ * will allow a user, see {@link #lockMailbox}</li>
+ * </ul>
+ * The locks are held by threads, and are reentrant, but a thread holding a mailbox lock mustn't
+ * then lock the account.
+ */
+class SyncLocks {
+    private static class AccountLocks {
+        final ReentrantReadWriteLock mAccountLock = new ReentrantReadWriteLock();
+        final Semaphore mMailboxPermits;
+        /** The number of threads holding, or waiting for, any of these locks */
+        int mUsers;
+
+        AccountLocks(int maxMailboxes) {
+            mMailboxPermits = new Semaphore(maxMailboxes, true);
+        }
+    }
+
+    private static class MailboxLock {
+        final ReentrantLock mLock = new ReentrantLock();
+        int mUsers;
+    }
+
+    private final int mMaxMailboxesPerAccount;
+    /** Locks in use, by account id; guarded by itself, as is mMailboxLocks */
+    private final HashMap<Long, AccountLocks> mAccountLocks = new HashMap<Long, AccountLocks>();
+    private final HashMap<Long, MailboxLock> mMailboxLocks = new HashMap<Long, MailboxLock>();
+
+    /**
+     * @param maxMailboxesPerAccount the most mailboxes of one account to sync at once
+     */
+    SyncLocks(int maxMailboxesPerAccount) {
+        mMaxMailboxesPerAccount = maxMailboxesPerAccount;
+    }
+
+    /**
+     * Waits until nothing else is syncing the account, and keeps it that way until
+     * {@link #unlockAccount} is called.
+     */
+    void lockAccount(long accountId) {
+        acquireAccountLocks(accountId).mAccountLock.writeLock().lock();
+    }
+
+    void unlockAccount(long accountId) {
+        synchronized (mAccountLocks) {
+            mAccountLocks.get(accountId).mAccountLock.writeLock().unlock();
+            releaseAccountLocks(accountId);
+        }
+    }
+
+    /**
+     * Waits until the mailbox may be synced, i.e. nothing is syncing the mailbox or the account
+     * as a whole, and fewer than the maximum number of the account's mailboxes are syncing.
+     * This lasts until {@link #unlockMailbox} is called.
+     */
+    void lockMailbox(long accountId, long mailboxId) {
+        final AccountLocks accountLocks = acquireAccountLocks(accountId);
+        final MailboxLock mailboxLock;
+        synchronized (mAccountLocks) {
+            MailboxLock lock = mMailboxLocks.get(mailboxId);
+            if (lock == null) {
+                lock = new MailboxLock();
+                mMailboxLocks.put(mailboxId, lock);
+            }
+            lock.mUsers++;
+            mailboxLock = lock;
+        }
+        // Always locked in this order, so that nobody can end up waiting for each other
+        accountLocks.mAccountLock.readLock().lock();
+        mailboxLock.mLock.lock();
+        // A reentrant lock doesn't need another permit
+        if (mailboxLock.mLock.getHoldCount() == 1) {
+            accountLocks.mMailboxPermits.acquireUninterruptibly();
+        }
+    }
+
+    void unlockMailbox(long accountId, long mailboxId) {
+        synchronized (mAccountLocks) {
+            final AccountLocks accountLocks = mAccountLocks.get(accountId);
+            final MailboxLock mailboxLock = mMailboxLocks.get(mailboxId);
+            if (mailboxLock.mLock.getHoldCount() == 1) {
+                accountLocks.mMailboxPermits.release();
+            }
+            mailboxLock.mLock.unlock();
+            if (--mailboxLock.mUsers == 0) {
+                mMailboxLocks.remove(mailboxId);
+            }
+            accountLocks.mAccountLock.readLock().unlock();
+            releaseAccountLocks(accountId);
+        }
+    }
+
+    private AccountLocks acquireAccountLocks(long accountId) {
+        synchronized (mAccountLocks) {
+            AccountLocks locks = mAccountLocks.get(accountId);
+            if (locks == null) {
+                locks = new AccountLocks(mMaxMailboxesPerAccount);
+                mAccountLocks.put(accountId, locks);
+            }
+            locks.mUsers++;
+            return locks;
+        }
+    }
+
+    /** Must be called holding mAccountLocks */
+    private void releaseAccountLocks(long accountId) {
+        final AccountLocks locks = mAccountLocks.get(accountId);
+        if (--locks.mUsers == 0) {
+            mAccountLocks.remove(accountId);
+        }
+    }
+}
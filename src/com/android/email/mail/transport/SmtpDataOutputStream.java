@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the content of a message for SMTP: a bare LF becomes CRLF, and, after DATA, a '.' at
+ * the start of a line is doubled (RFC 5321 4.5.2), so that it can't end the content early.
+ * Arrays are worked through in a single pass, and written on a run of bytes at a time, rather
+ * than a byte at a time.
+ */
+class SmtpDataOutputStream extends FilterOutputStream {
+    private final boolean mDotStuffing;
+    /** The last byte written; at the start, as if at the start of a line */
+    private int mLastByte = '\n';
+
+    /**
+     * @param dotStuffing true for content sent after DATA; false for BDAT, which has no need
+     */
+    SmtpDataOutputStream(OutputStream out, boolean dotStuffing) {
+        super(out);
+        mDotStuffing = dotStuffing;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (oneByte == '\n' && mLastByte != '\r') {
+            out.write('\r');
+        } else if (oneByte == '.' && mDotStuffing && mLastByte == '\n') {
+            out.write('.');
+        }
+        out.write(oneByte);
+        mLastByte = oneByte;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        final int end = offset + count;
+        // The start of what's yet to be written
+        int start = offset;
+        int last = mLastByte;
+        for (int i = offset; i < end; i++) {
+            final int b = buffer[i];
+            if (b == '\n' && last != '\r') {
+                out.write(buffer, start, i - start);
+                out.write('\r');
+                start = i;
+            } else if (b == '.' && mDotStuffing && last == '\n') {
+                out.write(buffer, start, i - start);
+                out.write('.');
+                start = i;
+            }
+            last = b;
+        }
+        out.write(buffer, start, end - start);
+        mLastByte = last;
+    }
+
+    /**
+     * Ends the content: ends its last line, if it doesn't end in one, and after DATA, writes the
+     * '.' line that marks the end.  Then flushes, but doesn't close, the stream below.
+     */
+    void finish() throws IOException {
+        if (mLastByte == '\r') {
+            out.write('\n');
+        } else if (mLastByte != '\n') {
+            out.write('\r');
+            out.write('\n');
+        }
+        if (mDotStuffing) {
+            out.write('.');
+            out.write('\r');
+            out.write('\n');
+        }
+        mLastByte = '\n';
+        out.flush();
+    }
+}
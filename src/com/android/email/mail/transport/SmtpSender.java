@@ -20,6 +20,7 @@ import android.content.Context;
 import android.util.Base64;
 
 import com.android.email.DebugUtils;
+import com.android.email.mail.MessageSpool;
 import com.android.email.mail.Sender;
 import com.android.email.mail.internet.AuthenticationCache;
 import com.android.emailcommon.Logging;
@@ -32,12 +33,23 @@ import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.Credential;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.HostAuth;
-import com.android.emailcommon.utility.EOLConvertingOutputStream;
 import com.android.mail.utils.LogUtils;
 
+import org.apache.commons.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 
 import javax.net.ssl.SSLException;
 
@@ -46,12 +58,28 @@ import javax.net.ssl.SSLException;
  */
 public class SmtpSender extends Sender {
 
+    /** RFC 2920: the envelope commands may be sent without waiting for each reply */
+    private static final String CAPABILITY_PIPELINING = "PIPELINING";
+    /** RFC 6152: the content may have 8-bit text in it */
+    private static final String CAPABILITY_8BITMIME = "8BITMIME";
+    /** RFC 3030: the content may be sent in chunks with BDAT, rather than with DATA */
+    private static final String CAPABILITY_CHUNKING = "CHUNKING";
+    /** RFC 3030: the content may be binary, if sent with BDAT */
+    private static final String CAPABILITY_BINARYMIME = "BINARYMIME";
+
+    /** Between the content and the transport, whose own buffer is small */
+    private static final int DATA_BUFFER_SIZE = 16 * 1024;
+
     private final Context mContext;
     private MailTransport mTransport;
     private Account mAccount;
     private String mUsername;
     private String mPassword;
     private boolean mUseOAuth;
+    /** The extensions the server listed in its reply to EHLO, in upper case */
+    private final Set<String> mCapabilities = new HashSet<String>();
+    /** Whether the connection is kept open between messages; see {@link #beginSession} */
+    private boolean mInSession;
 
     /**
      * Static named constructor.
@@ -108,7 +136,7 @@ public class SmtpSender extends Sender {
                 sb.append(']');
                 localHost = sb.toString();
             }
-            String result = executeSimpleCommand("EHLO " + localHost);
+            String result = executeEhlo(localHost);
 
             /*
              * TODO may need to add code to fall back to HELO I switched it from
@@ -126,7 +154,7 @@ public class SmtpSender extends Sender {
                      * Now resend the EHLO. Required by RFC2487 Sec. 5.2, and more specifically,
                      * Exim.
                      */
-                    result = executeSimpleCommand("EHLO " + localHost);
+                    result = executeEhlo(localHost);
                 } else {
                     if (DebugUtils.DEBUG) {
                         LogUtils.d(Logging.LOG_TAG, "TLS not supported but required");
@@ -177,44 +205,160 @@ public class SmtpSender extends Sender {
     }
 
     @Override
-    public void sendMessage(long messageId) throws MessagingException {
+    public void beginSession() {
+        mInSession = true;
+    }
+
+    @Override
+    public void endSession() {
+        mInSession = false;
         close();
-        open();
+    }
 
+    @Override
+    public void sendMessage(long messageId) throws MessagingException {
         Message message = Message.restoreMessageWithId(mContext, messageId);
         if (message == null) {
             throw new MessagingException("Trying to send non-existent message id="
                     + Long.toString(messageId));
         }
+
+        // In a session, the connection left open by the last message is reset and used again
+        final boolean reuse = mInSession && mTransport.isOpen();
+        if (!reuse) {
+            close();
+            open();
+        }
         Address from = Address.firstAddress(message.mFrom);
         Address[] to = Address.fromHeader(message.mTo);
         Address[] cc = Address.fromHeader(message.mCc);
         Address[] bcc = Address.fromHeader(message.mBcc);
 
+        final boolean chunking = mCapabilities.contains(CAPABILITY_CHUNKING);
+        final boolean binary = chunking && mCapabilities.contains(CAPABILITY_BINARYMIME);
+        final boolean eightBit = binary || mCapabilities.contains(CAPABILITY_8BITMIME);
+        int encodings = 0;
+        if (eightBit) {
+            encodings |= Rfc822Output.ALLOW_8BIT;
+        }
+        if (binary) {
+            encodings |= Rfc822Output.ALLOW_BINARY;
+        }
+
+        final List<String> envelope = new ArrayList<String>();
+        envelope.add("MAIL FROM:" + "<" + from.getAddress() + ">"
+                + (binary ? " BODY=BINARYMIME" : (eightBit ? " BODY=8BITMIME" : "")));
+        for (Address address : to) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        for (Address address : cc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+        for (Address address : bcc) {
+            envelope.add("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+        }
+
+        boolean sent = false;
         try {
-            executeSimpleCommand("MAIL FROM:" + "<" + from.getAddress() + ">");
-            for (Address address : to) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            // Rendered before the envelope is sent, so as not to keep the server waiting after
+            // it; if this is a retry, it's most likely rendered already
+            final File content = MessageSpool.get(mContext, message, encodings);
+            if (!sendEnvelope(envelope, reuse)) {
+                // The server has dropped the connection since the last message
+                close();
+                open();
+                sendEnvelope(envelope, false);
             }
-            for (Address address : cc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
-            }
-            for (Address address : bcc) {
-                executeSimpleCommand("RCPT TO:" + "<" + address.getAddress().trim() + ">");
+            if (chunking) {
+                // The size is known, so it all goes in a single chunk
+                mTransport.writeLine("BDAT " + content.length() + " LAST", null, false);
+                final OutputStream out = mTransport.getOutputStream();
+                copyFile(content, out);
+                out.flush();
+            } else {
+                executeSimpleCommand("DATA");
+                final SmtpDataOutputStream dataOut = new SmtpDataOutputStream(
+                        new BufferedOutputStream(mTransport.getOutputStream(), DATA_BUFFER_SIZE),
+                        true);
+                copyFile(content, dataOut);
+                dataOut.finish();
             }
-            executeSimpleCommand("DATA");
-            // TODO byte stuffing
-            Rfc822Output.writeTo(mContext, message,
-                    new EOLConvertingOutputStream(mTransport.getOutputStream()),
-                    false /* do not use smart reply */,
-                    false /* do not send BCC */,
-                    null  /* attachments are in the message itself */);
-            executeSimpleCommand("\r\n.");
+            readResponse(null);
+            sent = true;
         } catch (IOException ioe) {
             throw new MessagingException("Unable to send message", ioe);
+        } finally {
+            if (!sent && mInSession) {
+                // Where the failure left the conversation isn't known, so start afresh
+                close();
+            }
+        }
+    }
+
+    private static void copyFile(File file, OutputStream out) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            IOUtils.copyLarge(in, out);
+        } finally {
+            in.close();
         }
     }
 
+    /**
+     * Sends MAIL FROM and the RCPT TOs of a message.  If the server supports PIPELINING, they
+     * all go out together, and the replies are read afterwards, so that this takes a single
+     * round trip however many recipients there are.  DATA isn't pipelined along with them, as
+     * once the server has accepted it, there's no way of backing out if a recipient was refused.
+     *
+     * @param envelope the commands to send
+     * @param reset whether to send RSET first, to start afresh on a connection used before
+     * @return false if the reply to RSET shows the connection can't be used any more, in which
+     *     case nothing has been sent that matters; otherwise true
+     */
+    private boolean sendEnvelope(List<String> envelope, boolean reset)
+            throws IOException, MessagingException {
+        final boolean pipelining = mCapabilities.contains(CAPABILITY_PIPELINING);
+        if (reset) {
+            // A connection which timed out while idle either fails here or gives no reply
+            String reply;
+            try {
+                mTransport.writeLine("RSET", null, !pipelining);
+                if (pipelining) {
+                    writeEnvelope(envelope);
+                }
+                reply = readResponse(null);
+            } catch (IOException e) {
+                reply = e.toString();
+            } catch (MessagingException e) {
+                reply = e.getMessage();
+            }
+            if (!reply.startsWith("2")) {
+                LogUtils.d(Logging.LOG_TAG, "SMTP connection can't be reused: " + reply);
+                return false;
+            }
+        } else if (pipelining) {
+            writeEnvelope(envelope);
+        }
+        for (String command : envelope) {
+            if (pipelining) {
+                readResponse(null);
+            } else {
+                executeSimpleCommand(command);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the envelope commands without waiting for replies, and sends them all together.
+     */
+    private void writeEnvelope(List<String> envelope) throws IOException {
+        for (String command : envelope) {
+            mTransport.writeLine(command, null, false);
+        }
+        mTransport.getOutputStream().flush();
+    }
+
     /**
      * Close the protocol (and the transport below it).
      *
@@ -223,6 +367,25 @@ public class SmtpSender extends Sender {
     @Override
     public void close() {
         mTransport.close();
+        mCapabilities.clear();
+    }
+
+    /**
+     * Sends EHLO, and keeps the list of extensions the server replies with.
+     *
+     * @return the reply, as from {@link #executeSimpleCommand}
+     */
+    private String executeEhlo(String localHost) throws IOException, MessagingException {
+        mTransport.writeLine("EHLO " + localHost, null);
+        final List<String> lines = new ArrayList<String>();
+        final String result = readResponse(lines);
+        mCapabilities.clear();
+        // The first line is the greeting; each of the rest starts with an extension's keyword
+        for (int i = 1; i < lines.size(); i++) {
+            final String keyword = lines.get(i).trim().split(" ", 2)[0];
+            mCapabilities.add(keyword.toUpperCase(Locale.US));
+        }
+        return result;
     }
 
     /**
@@ -251,14 +414,26 @@ public class SmtpSender extends Sender {
         if (command != null) {
             mTransport.writeLine(command, sensitiveReplacement);
         }
+        return readResponse(null);
+    }
 
+    /**
+     * Reads a single response, which may continue onto multiple lines.  Throws
+     * MessagingException if the response code is 4xx or 5xx.
+     *
+     * @param lines if not null, the text of each line (without the response code) is added
+     * @return Returns the response string from the server.
+     */
+    private String readResponse(List<String> lines) throws IOException, MessagingException {
         String line = mTransport.readLine(true);
 
         String result = line;
+        addResponseLine(lines, line);
 
         while (line.length() >= 4 && line.charAt(3) == '-') {
             line = mTransport.readLine(true);
             result += line.substring(3);
+            addResponseLine(lines, line);
         }
 
         if (result.length() > 0) {
@@ -271,6 +446,12 @@ public class SmtpSender extends Sender {
         return result;
     }
 
+    private static void addResponseLine(List<String> lines, String line) {
+        if (lines != null) {
+            lines.add(line.length() >= 4 ? line.substring(4) : "");
+        }
+    }
+
 
 //    C: AUTH LOGIN
 //    S: 334 VXNlcm5hbWU6
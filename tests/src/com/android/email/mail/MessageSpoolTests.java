@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.email.DBTestHelper;
+import com.android.emailcommon.internet.Rfc822Output;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.Message;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+@SmallTest
+public class MessageSpoolTests extends AndroidTestCase {
+    private Context mProviderContext;
+    private Message mMessage;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+
+        mMessage = new Message();
+        mMessage.mTimeStamp = System.currentTimeMillis();
+        mMessage.mFrom = Address.parseToHeader("Jones@Registry.Org");
+        mMessage.mTo = Address.parseToHeader("Smith@Registry.Org");
+        mMessage.mBcc = Address.parseToHeader("Hidden@Registry.Org");
+        mMessage.mSubject = "Spooled";
+        mMessage.mMessageId = "1234567890";
+        mMessage.save(mProviderContext);
+
+        final Body body = new Body();
+        body.mMessageKey = mMessage.mId;
+        body.mTextContent = "Here it is";
+        body.save(mProviderContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MessageSpool.evict(mProviderContext, mMessage.mId);
+        super.tearDown();
+    }
+
+    private static String read(File file) throws Exception {
+        final InputStream in = new FileInputStream(file);
+        try {
+            return new String(IOUtils.toByteArray(in), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testGet() throws Exception {
+        final File file = MessageSpool.get(mProviderContext, mMessage, Rfc822Output.ALLOW_8BIT);
+        assertTrue(file.exists());
+        final String content = read(file);
+        assertTrue(content.contains("Subject: Spooled\r\n"));
+        assertTrue(content.contains("Here it is"));
+        assertFalse(content.contains("Bcc:"));
+        assertFalse(content.replace("\r\n", "").contains("\n"));
+
+        // Rendered already, and with nothing more than may be used
+        assertEquals(file,
+                MessageSpool.find(mProviderContext, mMessage, Rfc822Output.ALLOW_8BIT));
+        assertNull(MessageSpool.find(mProviderContext, mMessage, 0));
+        assertEquals(file,
+                MessageSpool.get(mProviderContext, mMessage, Rfc822Output.ALLOW_8BIT));
+        assertEquals(file, MessageSpool.get(mProviderContext, mMessage,
+                Rfc822Output.ALLOW_8BIT | Rfc822Output.ALLOW_BINARY));
+
+        // Rendered again, as the message has changed since
+        mMessage.mSubject = "Spooled again";
+        mMessage.save(mProviderContext);
+        final File changed =
+                MessageSpool.get(mProviderContext, mMessage, Rfc822Output.ALLOW_8BIT);
+        assertFalse(file.equals(changed));
+        assertFalse(file.exists());
+        assertTrue(read(changed).contains("Subject: Spooled again\r\n"));
+
+        MessageSpool.evict(mProviderContext, mMessage.mId);
+        assertFalse(changed.exists());
+        assertNull(MessageSpool.find(mProviderContext, mMessage, Rfc822Output.ALLOW_8BIT));
+    }
+
+    public void testGetSentCopyHeaders() throws Exception {
+        assertEquals("Bcc: Hidden@Registry.Org\r\n",
+                new String(MessageSpool.getSentCopyHeaders(mMessage), "UTF-8"));
+        mMessage.mBcc = null;
+        assertEquals(0, MessageSpool.getSentCopyHeaders(mMessage).length);
+    }
+}
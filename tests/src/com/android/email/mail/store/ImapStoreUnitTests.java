@@ -22,6 +22,7 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.test.InstrumentationTestCase;
 import android.test.MoreAsserts;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -30,13 +31,17 @@ import android.test.suitebuilder.annotation.Suppress;
 import com.android.email.DBTestHelper;
 import com.android.email.MockSharedPreferences;
 import com.android.email.MockVendorPolicy;
+import com.android.email.mail.store.ImapStore.ImapException;
 import com.android.email.mail.store.ImapStore.ImapMessage;
 import com.android.email.mail.store.imap.ImapResponse;
 import com.android.email.mail.store.imap.ImapTestUtils;
+import com.android.email.mail.store.imap.UidSet;
+import com.android.email.mail.transport.MockIdleTransport;
 import com.android.email.mail.transport.MockTransport;
 import com.android.emailcommon.TempDirectory;
 import com.android.emailcommon.VendorPolicyLoader;
 import com.android.emailcommon.internet.MimeBodyPart;
+import com.android.emailcommon.internet.MimeHeader;
 import com.android.emailcommon.internet.MimeMultipart;
 import com.android.emailcommon.internet.MimeUtility;
 import com.android.emailcommon.internet.TextBody;
@@ -59,8 +64,13 @@ import com.android.emailcommon.utility.Utility;
 
 import org.apache.commons.io.IOUtils;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -170,6 +180,13 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
                 mFolder.createMessage("a"),
                 mFolder.createMessage("XX"),
                 }));
+        // Numeric UIDs are sorted, and runs of them become ranges
+        assertEquals("1:3,7", ImapStore.joinMessageUids(new Message[] {
+                mFolder.createMessage("7"),
+                mFolder.createMessage("2"),
+                mFolder.createMessage("1"),
+                mFolder.createMessage("3"),
+                }));
     }
 
     /**
@@ -562,6 +579,17 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         return mockTransport;
     }
 
+    /**
+     * Set up a MockIdleTransport, which can also send unsolicited responses
+     */
+    private MockIdleTransport openAndInjectIdleTransport() {
+        MockIdleTransport mockTransport = new MockIdleTransport(mTestContext);
+        mockTransport.setSecurity(HostAuth.FLAG_NONE, false);
+        mockTransport.setHost("mock.server.com");
+        mStore.setTransportForTest(mockTransport);
+        return mockTransport;
+    }
+
     /**
      * Helper which stuffs the mock with enough strings to satisfy a call to ImapFolder.open()
      *
@@ -707,6 +735,45 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         return oldTag;
     }
 
+    /**
+     * Test that the session is compressed once the server has accepted COMPRESS DEFLATE.
+     */
+    public void testCompressDeflate() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 cOMPRESS=dEFLATE] user authenticated (Success)");
+        mock.expect(getNextTag(false) + " COMPRESS DEFLATE",
+                getNextTag(true) + " oK DEFLATE active");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertTrue(mock.isCompressed());
+    }
+
+    /**
+     * Test that the session carries on uncompressed when the server refuses COMPRESS DEFLATE.
+     */
+    public void testCompressDeflateRefused() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 cOMPRESS=dEFLATE] user authenticated (Success)");
+        mock.expect(getNextTag(false) + " COMPRESS DEFLATE",
+                getNextTag(true) + " nO compression not available");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertFalse(mock.isCompressed());
+        assertEquals(OpenMode.READ_WRITE, mFolder.getMode());
+    }
+
+    /**
+     * Test that COMPRESS isn't sent to a server which doesn't advertise it.
+     */
+    public void testNoCompressWithoutCapability() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock, "rEAD-WRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+        assertFalse(mock.isCompressed());
+    }
+
     /**
      * Test that servers reporting READ-WRITE mode are parsed properly
      * Note: the READ_WRITE mode passed to folder.open() does not affect the test
@@ -729,6 +796,188 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(OpenMode.READ_ONLY, mFolder.getMode());
     }
 
+    /**
+     * Test that UIDVALIDITY and HIGHESTMODSEQ are parsed from the SELECT response
+     */
+    public void testSelectModSeq() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        mock.expect(
+                getNextTag(false) + " SELECT \"" + FOLDER_ENCODED + "\"", new String[] {
+                "* fLAGS (\\Answered \\Flagged \\Draft \\Deleted \\Seen)",
+                "* 3 eXISTS",
+                "* oK [uIDVALIDITY 3857529045] UIDs valid",
+                "* oK [hIGHESTMODSEQ 715194045007] Highest",
+                getNextTag(true) + " oK [rEAD-wRITE] " + FOLDER_ENCODED + " selected."});
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(3857529045L, mFolder.getUidValidity());
+        assertEquals(715194045007L, mFolder.getHighestModSeq());
+    }
+
+    /**
+     * Test that a server without CONDSTORE reports no mod-sequence
+     */
+    public void testSelectNoModSeq() throws MessagingException {
+        MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        assertEquals(-1, mFolder.getUidValidity());
+        assertEquals(0, mFolder.getHighestModSeq());
+    }
+
+    /**
+     * Test for fetching the flags changed since a mod-sequence
+     */
+    public void testFetchChangedFlags() throws MessagingException {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+        final Message message1 = mFolder.createMessage("1");
+        final Message message2 = mFolder.createMessage("2");
+
+        mock.expect(getNextTag(false)
+                + " UID FETCH 1:\\* \\(UID FLAGS\\) \\(CHANGEDSINCE 12345\\)",
+                new String[] {
+                "* 2 fETCH (uID 2 fLAGS (\\Seen \\Flagged) mODSEQ (12350))",
+                "* 7 fETCH (uID 9 fLAGS (\\Deleted) mODSEQ (12346))",
+                "* vANISHED (eARLIER) 3:5,8",
+                getNextTag(true) + " oK SUCCESS"
+        });
+        final UidSet vanishedUids = new UidSet();
+        final List<Message> changed = mFolder.fetchChangedFlags(
+                new Message[] { message1, message2 }, 12345, vanishedUids);
+
+        assertEquals(2, changed.size());
+        assertSame(message2, changed.get(0));
+        assertTrue(message2.isSet(Flag.SEEN));
+        assertTrue(message2.isSet(Flag.FLAGGED));
+        assertFalse(message1.isSet(Flag.SEEN));
+        assertEquals("9", changed.get(1).getUid());
+        assertTrue(changed.get(1).isSet(Flag.DELETED));
+        assertEquals("3:5,8", vanishedUids.toString());
+    }
+
+    /**
+     * Test that the connection is closed, rather than left half set up, when the pipelined
+     * commands sent after login fail with an IO error
+     */
+    public void testOpenSetupIOException() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 nAMESPACE] user authenticated (Success)");
+        mock.expectIOException();
+        final ImapConnection conn = mStore.getConnection();
+        try {
+            conn.open();
+            fail("Didn't throw IOException");
+        } catch (IOException expected) {
+        }
+        assertFalse(mock.isOpen());
+    }
+
+    /**
+     * Test that pipelined commands each get their own responses, even when they complete out
+     * of order, and that one failing doesn't affect the others
+     */
+    public void testExecutePipelined() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock);
+        final ImapConnection conn = mStore.getConnection();
+        conn.open();
+
+        final String tag1 = getNextTag(false);
+        final String tag2 = getNextTag(true);
+        final String tag3 = getNextTag(true);
+        getNextTag(true);
+        mock.expect(tag1 + " NOOP");
+        mock.expect(tag2 + " CHECK");
+        mock.expect(tag3 + " EXAMINE \"nothere\"", new String[] {
+                "* 3 eXISTS",
+                tag2 + " oK CHECK completed",
+                tag3 + " nO no such mailbox",
+                tag1 + " oK NOOP completed"});
+        final ImapConnection.PipelinedCommand noop =
+                new ImapConnection.PipelinedCommand("NOOP", false);
+        final ImapConnection.PipelinedCommand check =
+                new ImapConnection.PipelinedCommand("CHECK", false);
+        final ImapConnection.PipelinedCommand examine =
+                new ImapConnection.PipelinedCommand("EXAMINE \"nothere\"", false);
+        conn.executePipelined(Arrays.asList(noop, check, examine));
+
+        // The untagged response goes to the oldest command still running
+        final List<ImapResponse> noopResponses = noop.getResponses();
+        assertEquals(2, noopResponses.size());
+        assertTrue(noopResponses.get(0).isDataResponse(1, "EXISTS"));
+        assertEquals(tag1, noopResponses.get(1).getTag());
+        assertEquals(1, check.getResponses().size());
+        try {
+            examine.getResponses();
+            fail("Didn't throw ImapException");
+        } catch (ImapException expected) {
+        }
+
+        // The connection is still in sync
+        expectNoop(mock, true);
+        conn.executeSimpleCommand("NOOP");
+    }
+
+    /**
+     * Test that a new message reported while idling is picked up right away
+     */
+    public void testIdleExists() throws MessagingException {
+        final MockIdleTransport mock = openAndInjectIdleTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " IDLE", "+ idling");
+        mock.expectLiterally("DONE", new String[] {getNextTag(true) + " oK IDLE terminated"});
+        mock.pushLater("* 1 eXISTS", 100);
+
+        final long start = SystemClock.elapsedRealtime();
+        assertTrue(mFolder.idle(60 * 1000));
+        final long latency = SystemClock.elapsedRealtime() - start;
+        assertTrue("latency: " + latency, latency < 5000);
+        assertEquals(1, mFolder.getMessageCount());
+    }
+
+    /**
+     * Test that idling ends once the timeout is up, and the connection is still usable
+     */
+    public void testIdleTimeout() throws MessagingException {
+        final MockIdleTransport mock = openAndInjectIdleTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " IDLE", "+ idling");
+        mock.expectLiterally("DONE", new String[] {getNextTag(true) + " oK IDLE terminated"});
+        assertFalse(mFolder.idle(100));
+
+        mock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {getNextTag(true) + " oK success"});
+        mFolder.expunge();
+    }
+
+    /**
+     * Test that a response which starts arriving while idling is read to its end, even if the
+     * rest of it only arrives after the idle timeout, so that the connection stays in sync
+     */
+    public void testIdleTimeoutMidResponse() throws MessagingException {
+        final MockIdleTransport mock = openAndInjectIdleTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        mock.expect(getNextTag(false) + " IDLE", "+ idling");
+        mock.expectLiterally("DONE", new String[] {getNextTag(true) + " oK IDLE terminated"});
+        // A literal, the rest of which arrives after idling should have ended
+        mock.pushLater("* lIST () \"/\" {5}", 50);
+        mock.pushLater("inbox", 600);
+        assertFalse(mFolder.idle(300));
+
+        mock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {getNextTag(true) + " oK success"});
+        mFolder.expunge();
+    }
+
     /**
      * Test for getUnreadMessageCount with quoted string in the middle of response.
      */
@@ -1010,6 +1259,61 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // TODO: Test NO response.
     }
 
+    /**
+     * Test that the parts of several messages are fetched with one command per set of sections,
+     * and that each fetched section ends up in the right part
+     */
+    public void testFetchParts() throws Exception {
+        final MockTransport mock = openAndInjectMockTransport();
+        setupOpenFolder(mock);
+        mFolder.open(OpenMode.READ_WRITE);
+
+        final LinkedHashMap<Message, List<Part>> parts = new LinkedHashMap<Message, List<Part>>();
+        final MimeBodyPart[] partsOf1 = {createFetchPart("1"), createFetchPart("2")};
+        final MimeBodyPart[] partsOf2 = {createFetchPart("2"), createFetchPart("1")};
+        final MimeBodyPart partOf3 = createFetchPart("TEXT");
+        parts.put(mFolder.createMessage("1"), Arrays.<Part>asList(partsOf1));
+        parts.put(mFolder.createMessage("2"), Arrays.<Part>asList(partsOf2));
+        parts.put(mFolder.createMessage("3"), Arrays.<Part>asList(partOf3));
+        // Not fetched, as it has no section
+        parts.put(mFolder.createMessage("4"), Arrays.<Part>asList(new MimeBodyPart()));
+
+        final String tag1 = getNextTag(false);
+        final String tag2 = getNextTag(true);
+        getNextTag(true);
+        mock.expect(tag1 + " UID FETCH 1:2 \\(UID BODY.PEEK\\[1\\] BODY.PEEK\\[2\\]\\)");
+        mock.expect(tag2 + " UID FETCH 3 \\(UID BODY.PEEK\\[TEXT\\]\\)",
+                new String[] {
+                "* 1 fETCH (uID 1 bODY[1] {3}",
+                "abc bODY[2] {3}",
+                "def)",
+                "* 2 fETCH (uID 2 bODY[1] \"ghi\" bODY[2] {3}",
+                "jkl)",
+                tag1 + " oK SUCCESS",
+                // The UID may come after the section
+                "* 3 fETCH (bODY[tEXT] {3}",
+                "mno uID 3)",
+                tag2 + " oK SUCCESS"
+        });
+        mFolder.fetchParts(parts);
+
+        assertEquals("abc", getFetchedText(partsOf1[0]));
+        assertEquals("def", getFetchedText(partsOf1[1]));
+        assertEquals("jkl", getFetchedText(partsOf2[0]));
+        assertEquals("ghi", getFetchedText(partsOf2[1]));
+        assertEquals("mno", getFetchedText(partOf3));
+    }
+
+    private static MimeBodyPart createFetchPart(String section) throws MessagingException {
+        final MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, section);
+        return part;
+    }
+
+    private static String getFetchedText(Part part) throws Exception {
+        return Utility.fromUtf8(IOUtils.toByteArray(part.getBody().getInputStream()));
+    }
+
     public void testFetchAttachment() throws Exception {
         MockTransport mock = openAndInjectMockTransport();
         setupOpenFolder(mock);
@@ -1145,6 +1449,15 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
 
     private ImapMessage prepareForAppendTest(MockTransport mock, String response) throws Exception {
+        return prepareForAppendTest(mock, response, false);
+    }
+
+    /**
+     * @param nonSync whether the message is expected as a non-synchronizing literal, written
+     *     without waiting for the server to ask for it
+     */
+    private ImapMessage prepareForAppendTest(MockTransport mock, String response,
+            boolean nonSync) throws Exception {
         ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
         message.setFrom(new Address("me@test.com"));
         message.setRecipient(RecipientType.TO, new Address("you@test.com"));
@@ -1157,8 +1470,9 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         // OK [APPENDUID 627684530 17] (Success)
 
         mock.expect(getNextTag(false) +
-                " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{166\\}",
-                new String[] {"+ gO aHead"});
+                " APPEND \\\"" + FOLDER_ENCODED + "\\\" \\(\\\\SEEN\\) \\{166"
+                        + (nonSync ? "\\+" : "") + "\\}",
+                nonSync ? NO_REPLY : new String[] {"+ gO aHead"});
 
         mock.expectLiterally("From: me@test.com", NO_REPLY);
         mock.expectLiterally("To: you@test.com", NO_REPLY);
@@ -1191,6 +1505,116 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         assertEquals(7, mFolder.getMessageCount());
     }
 
+    /**
+     * Test for APPEND with LITERAL+, where the message follows the command without a round trip.
+     */
+    public void testAppendMessagesLiteralPlus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 lITERAL+] user authenticated (Success)");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message =
+                prepareForAppendTest(mock, "oK [aPPENDUID 1234567 13] (Success)", true);
+
+        mFolder.appendMessage(getInstrumentation().getTargetContext(), message, false);
+
+        assertEquals("13", message.getUid());
+    }
+
+    /**
+     * Test for APPEND with LITERAL-, where a message as small as this one can follow the command
+     * without a round trip too.
+     */
+    public void testAppendMessagesLiteralMinus() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 lITERAL-] user authenticated (Success)");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message =
+                prepareForAppendTest(mock, "oK [aPPENDUID 1234567 13] (Success)", true);
+
+        mFolder.appendMessage(getInstrumentation().getTargetContext(), message, false);
+
+        assertEquals("13", message.getUid());
+    }
+
+    /**
+     * Test for APPEND when rendering the message fails part way through its literal: the
+     * connection has to be dropped, as the server would take the next command for the rest.
+     */
+    public void testAppendMessagesContentFailure() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 lITERAL+] user authenticated (Success)");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
+        mock.expect(getNextTag(false) + " APPEND \\\"" + FOLDER_ENCODED
+                + "\\\" \\(\\) \\{100\\+\\}", NO_REPLY);
+        mock.expectClose();
+
+        try {
+            mFolder.appendMessage(getInstrumentation().getTargetContext(), message,
+                    new ImapFolder.MessageContent() {
+                        @Override
+                        public long getSize() {
+                            return 100;
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out)
+                                throws IOException, MessagingException {
+                            out.write("From: me".getBytes("US-ASCII"));
+                            throw new MessagingException("Attachment is gone");
+                        }
+                    }, false);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+        }
+        assertFalse(mFolder.isOpen());
+    }
+
+    /**
+     * Test for APPEND when the message comes out shorter than the size given for it: the
+     * connection is dropped, and the failure says why, so that it can be sent another way.
+     */
+    public void testAppendMessagesSizeMismatch() throws Exception {
+        MockTransport mock = openAndInjectMockTransport();
+        expectLogin(mock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 lITERAL+] user authenticated (Success)");
+        expectSelect(mock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        ImapMessage message = (ImapMessage) mFolder.createMessage("initial uid");
+        mock.expect(getNextTag(false) + " APPEND \\\"" + FOLDER_ENCODED
+                + "\\\" \\(\\) \\{100\\+\\}", NO_REPLY);
+        mock.expectClose();
+
+        try {
+            mFolder.appendMessage(getInstrumentation().getTargetContext(), message,
+                    new ImapFolder.MessageContent() {
+                        @Override
+                        public long getSize() {
+                            return 100;
+                        }
+
+                        @Override
+                        public void writeTo(OutputStream out) throws IOException {
+                            out.write("From: me".getBytes("US-ASCII"));
+                        }
+                    }, false);
+            fail("MessagingException expected");
+        } catch (MessagingException expected) {
+            assertTrue(expected.getCause() instanceof ImapFolder.LiteralSizeException);
+        }
+        assertFalse(mFolder.isOpen());
+    }
+
     /**
      * Test for APPEND when the response doesn't have APPENDUID.
      */
@@ -1576,7 +2000,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
      * Returns the pattern for the IMAP request to copy messages.
      */
     private String getCopyMessagesPattern() {
-        return getNextTag(false) + " UID COPY 11\\,12 \\\"&ZeVnLIqe-\\\"";
+        return getNextTag(false) + " UID COPY 11:12 \\\"&ZeVnLIqe-\\\"";
     }
 
     /**
@@ -1685,6 +2109,52 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
         }
     }
 
+    // Golden case; UID MOVE, getting UIDs from an untagged COPYUID
+    public void testMoveMessages() throws Exception {
+        mCopyMock = openAndInjectMockTransport();
+        expectLogin(mCopyMock, false, false, false, null,
+                "oK [cAPABILITY iMAP4rev1 uIDPLUS mOVE] user authenticated (Success)");
+        expectSelect(mCopyMock, FOLDER_ENCODED, "rEAD-wRITE");
+        mFolder.open(OpenMode.READ_WRITE);
+        mCopyToFolder = mStore.getFolder("\u65E5\u672C\u8A9E");
+        mCopyMessages = new Message[] {
+                mFolder.createMessage("11"), mFolder.createMessage("12") };
+
+        mCopyMock.expect(getNextTag(false) + " UID MOVE 11:12 \\\"&ZeVnLIqe-\\\"",
+                new String[] {
+                    "* oK [cOPYUID 777 11,12 45,46] Moved UIDs.",
+                    "* 1 eXPUNGE",
+                    "* 1 eXPUNGE",
+                    getNextTag(true) + " oK UID MOVE completed"
+                });
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
+    // Without MOVE, messages are copied, deleted and expunged
+    public void testMoveMessagesWithoutMove() throws Exception {
+        setupCopyMessages(true);
+        mCopyMock.expect(getCopyMessagesPattern(),
+                new String[] {
+                    getNextTag(true) + " oK [COPYUID 777 11,12 45,46] UID COPY completed"
+                });
+        mCopyMock.expect(
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\DELETED\\)",
+                new String[] {getNextTag(true) + " oK success"});
+        mCopyMock.expect(getNextTag(false) + " EXPUNGE",
+                new String[] {getNextTag(true) + " oK success"});
+
+        MessageUpdateCallbackCounter cb = new MessageUpdateCallbackCounter();
+        mFolder.moveMessages(mCopyMessages, mCopyToFolder, cb);
+
+        assertEquals(0, cb.messageNotFoundCalled);
+        assertEquals(2, cb.messageUidChangeCalled);
+    }
+
     // Golden case; successful copy getting UIDs via search
     public void testCopyMessages6() throws Exception {
         setupCopyMessages(false);
@@ -1829,7 +2299,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Set
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
+                getNextTag(false) + " UID STORE 11:12 \\+FLAGS.SILENT \\(\\\\FLAGGED \\\\SEEN\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
@@ -1837,7 +2307,7 @@ public class ImapStoreUnitTests extends InstrumentationTestCase {
 
         // Clear
         mock.expect(
-                getNextTag(false) + " UID STORE 11\\,12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
+                getNextTag(false) + " UID STORE 11:12 \\-FLAGS.SILENT \\(\\\\DELETED\\)",
                 new String[] {
                 getNextTag(true) + " oK success"
                 });
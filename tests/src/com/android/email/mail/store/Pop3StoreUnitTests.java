@@ -38,6 +38,11 @@ import com.android.emailcommon.mail.MessagingException;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.HostAuth;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * This is a series of unit tests for the POP3 Store class.  These tests must be locally
  * complete - no server(s) required.
@@ -863,6 +868,62 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         checkFetchedMessage(singleMessage[0], 2, false);
     }
 
+    /**
+     * Test fetching bodies with PIPELINING: every TOP is answered in order, and one which the
+     * server refuses is fetched with RETR afterwards.
+     */
+    public void testPipelinedFetchBodies() throws MessagingException, IOException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 3, "PIPELINING");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        setupUidlSequence(mockTransport, 3);
+        Pop3Store.Pop3Message[] messages = mFolder.getMessages(3, 3);
+        assertEquals(3, messages.length);
+
+        setupPipelinedMessage(mockTransport, "TOP 3 673");
+        mockTransport.expect("TOP 2 673", "-ERR unsupported command");
+        setupPipelinedMessage(mockTransport, "TOP 1 673");
+        setupPipelinedMessage(mockTransport, "RETR 2");
+        final List<Message> retrieved = new ArrayList<Message>();
+        mFolder.fetchBodies(Arrays.asList(messages), 673, new Folder.MessageRetrievalListener() {
+            @Override
+            public void messageRetrieved(Message message) {
+                retrieved.add(message);
+            }
+
+            @Override
+            public void loadAttachmentProgress(int progress) {
+            }
+        });
+
+        assertEquals(3, retrieved.size());
+        assertEquals(getSingleMessageUID(3), retrieved.get(0).getUid());
+        assertEquals(getSingleMessageUID(1), retrieved.get(1).getUid());
+        assertEquals(getSingleMessageUID(2), retrieved.get(2).getUid());
+        for (Message message : retrieved) {
+            checkFetchedMessage(message, 0, false);
+        }
+    }
+
+    /**
+     * Test deleting messages with PIPELINING: a deletion the server refuses is no problem.
+     */
+    public void testPipelinedDeleteMessages() throws MessagingException {
+        MockTransport mockTransport = openAndInjectMockTransport();
+        setupOpenFolder(mockTransport, 3, "PIPELINING");
+        mFolder.open(OpenMode.READ_WRITE);
+
+        setupUidlSequence(mockTransport, 3);
+        Pop3Store.Pop3Message[] messages = mFolder.getMessages(3, 3);
+        assertEquals(3, messages.length);
+
+        mockTransport.expect("DELE 3", "+OK message 3 deleted");
+        mockTransport.expect("DELE 2", "-ERR message 2 already deleted");
+        mockTransport.expect("DELE 1", "+OK message 1 deleted");
+        mFolder.deleteMessages(messages);
+    }
+
     /**
      * Set up a basic MockTransport. open it, and inject it into mStore
      */
@@ -1054,6 +1115,25 @@ public class Pop3StoreUnitTests extends AndroidTestCase {
         transport.expect(null, ".");
     }
 
+    /**
+     * Setup a single message to be retrieved, as in setupSingleMessageTop(), but with all of
+     * the response given for the command, as it must be when commands are pipelined ahead of
+     * their responses.
+     * @param transport the mock transport
+     * @param command the RETR or TOP command to expect
+     */
+    private static void setupPipelinedMessage(MockTransport transport, String command) {
+        transport.expect(command, new String[] {
+                "+OK message follows",
+                "Date: 26 Aug 76 1429 EDT",
+                "From: Jones@Registry.Org",
+                "To:   Smith@Registry.Org",
+                "CC:   Chris@Registry.Org",
+                "Reply-To: Roger@Registry.Org",
+                "",
+                "." });
+    }
+
     /**
      * Generates a simple unique code for each message.  Repeatable.
      * @param msgNum The message number
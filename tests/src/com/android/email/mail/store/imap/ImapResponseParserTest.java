@@ -32,6 +32,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 @SmallTest
 public class ImapResponseParserTest extends AndroidTestCase {
@@ -41,6 +42,21 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 new DiscourseLogger(4), literalKeepInMemoryThreshold);
     }
 
+    /**
+     * Same as {@link #generateParser}, but the stream returns at most one byte per bulk read, so
+     * every token straddles a read boundary.
+     */
+    private static ImapResponseParser generateTrickleParser(int literalKeepInMemoryThreshold,
+            String responses) {
+        final InputStream in = new ByteArrayInputStream(Utility.toAscii(responses)) {
+            @Override
+            public synchronized int read(byte[] b, int offset, int length) {
+                return super.read(b, offset, Math.min(length, 1));
+            }
+        };
+        return new ImapResponseParser(in, new DiscourseLogger(4), literalKeepInMemoryThreshold);
+    }
+
     @Override
     protected void setUp() throws Exception {
         super.setUp();
@@ -318,6 +334,123 @@ public class ImapResponseParserTest extends AndroidTestCase {
                 ), r);
     }
 
+    /**
+     * Tokens must be parsed correctly even if they're split across reads from the stream.
+     */
+    public void testTrickleStream() throws Exception {
+        ImapResponse r;
+        final ImapResponseParser p = generateTrickleParser(3,
+                "* STATUS \"INBOX\" (UNSEEN 2) nil BODY[HEADER.FIELDS (\"DATE\")] {3}\r\n" +
+                "ABC {4}\r\n" +
+                "wxyz\r\n" +
+                "100 OK [ALERT] STATUS completed\r\n");
+        r = p.readResponse();
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("STATUS"),
+                new ImapSimpleString("INBOX"),
+                buildList(
+                        new ImapSimpleString("UNSEEN"),
+                        new ImapSimpleString("2")
+                        ),
+                ImapString.EMPTY,
+                new ImapSimpleString("BODY[HEADER.FIELDS (\"DATE\")]"),
+                new ImapMemoryLiteral(createFixedLengthInputStream("ABC")),
+                new ImapTempFileLiteral(createFixedLengthInputStream("wxyz"))
+                ), r);
+
+        r = p.readResponse();
+        assertTrue(r.isOk());
+        assertEquals("STATUS completed", r.getAlertTextOrEmpty().getString());
+    }
+
+    /**
+     * Tokens and literals longer than the parser's internal buffer.
+     */
+    public void testLongTokens() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            sb.append((char) ('a' + (i % 26)));
+        }
+        final String longString = sb.toString();
+
+        ImapResponse r;
+        final ImapResponseParser p = generateParser(100000,
+                "* " + longString + " \"" + longString + "\" {" + longString.length() + "}\r\n" +
+                longString + " x\r\n");
+        r = p.readResponse();
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString(longString),
+                new ImapSimpleString(longString),
+                new ImapMemoryLiteral(createFixedLengthInputStream(longString)),
+                new ImapSimpleString("x")
+                ), r);
+    }
+
+    /**
+     * FETCH responses reported to a {@link ImapResponseParser.StreamingCallback}.
+     */
+    public void testStreamingFetch() throws Exception {
+        final ImapResponseParser p = generateParser(100000,
+                "* 1 FETCH (UID 10 FLAGS (\\Seen) BODY[] {5}\r\n" +
+                "abcde BODY[1] {3}\r\n" +
+                "xyz)\r\n" +
+                "* 2 EXISTS\r\n" +
+                "1 OK\r\n");
+        final StringBuilder consumed = new StringBuilder();
+        final ImapList[] built = new ImapList[1];
+        final ImapListBuilder builder = new ImapListBuilder() {
+            @Override
+            protected boolean consumeLiteral(ImapList list, InputStream in, int size)
+                    throws IOException {
+                if (!list.is(list.size() - 1, "BODY[]")) {
+                    return false;
+                }
+                // Only read a part of it; the parser should skip the rest.
+                consumed.append((char) in.read());
+                consumed.append(size);
+                return true;
+            }
+
+            @Override
+            protected void onResponseBuilt(ImapResponse response, ImapList elements)
+                    throws IOException {
+                assertTrue(response.isDataResponse(1, ImapConstants.FETCH));
+                // Check it here, as the elements will be destroyed after this method returns.
+                assertElement(buildList(
+                        buildList(
+                                new ImapSimpleString("UID"),
+                                new ImapSimpleString("10"),
+                                new ImapSimpleString("FLAGS"),
+                                buildList(new ImapSimpleString("\\Seen")),
+                                new ImapSimpleString("BODY[]"),
+                                ImapString.EMPTY,
+                                new ImapSimpleString("BODY[1]"),
+                                new ImapMemoryLiteral(createFixedLengthInputStream("xyz"))
+                                )
+                        ), elements);
+                built[0] = elements;
+            }
+        };
+
+        ImapResponse r = p.readResponse(builder);
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("1"),
+                new ImapSimpleString("FETCH")
+                ), r);
+        assertNotNull(built[0]);
+        assertEquals("a5", consumed.toString());
+
+        // Non-FETCH responses are built as usual.
+        r = p.readResponse(builder);
+        assertElement(buildResponse(null, false,
+                new ImapSimpleString("2"),
+                new ImapSimpleString("EXISTS")
+                ), r);
+        r = p.readResponse(builder);
+        assertTrue(r.isTagged());
+        assertTrue(r.isOk());
+    }
+
     /**
      * Parser shouldn't crash for any response.  Should just throw IO/MessagingException.
      */
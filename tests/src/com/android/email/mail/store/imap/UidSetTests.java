@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.store.imap;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+@SmallTest
+public class UidSetTests extends AndroidTestCase {
+
+    public void testEmpty() {
+        final UidSet set = new UidSet();
+        assertTrue(set.isEmpty());
+        assertEquals(0, set.size());
+        assertEquals("", set.toString());
+        assertFalse(set.contains(1));
+    }
+
+    /**
+     * Test that consecutive UIDs are written as ranges
+     */
+    public void testRanges() {
+        final UidSet set = new UidSet();
+        for (long uid = 1; uid <= 500; uid++) {
+            set.add(uid);
+        }
+        set.add(502);
+        for (long uid = 510; uid <= 900; uid++) {
+            set.add(uid);
+        }
+        assertEquals("1:500,502,510:900", set.toString());
+        assertEquals(892, set.size());
+    }
+
+    /**
+     * Test that UIDs added out of order, or twice, end up in the right runs
+     */
+    public void testAddOutOfOrder() {
+        final UidSet set = new UidSet(1);
+        set.add(10);
+        set.add(3);
+        set.add(5);
+        set.add(4);
+        set.add(10);
+        set.add(1);
+        assertEquals("1,3:5,10", set.toString());
+        set.add(2);
+        assertEquals("1:5,10", set.toString());
+        set.addRange(7, 9);
+        assertEquals("1:5,7:10", set.toString());
+        set.addRange(6, 20);
+        assertEquals("1:20", set.toString());
+        assertEquals(20, set.size());
+    }
+
+    public void testContains() {
+        final UidSet set = UidSet.parse("2:4,8,4294967295");
+        assertFalse(set.contains(1));
+        assertTrue(set.contains(2));
+        assertTrue(set.contains(3));
+        assertTrue(set.contains(4));
+        assertFalse(set.contains(5));
+        assertTrue(set.contains(8));
+        assertFalse(set.contains(9));
+        assertTrue(set.contains(4294967295L));
+        assertTrue(set.contains("3"));
+        assertFalse(set.contains("x"));
+        assertFalse(set.contains("-3"));
+        assertFalse(set.contains((String) null));
+    }
+
+    public void testRemove() {
+        final UidSet set = UidSet.parse("1:10");
+        assertTrue(set.remove(5));
+        assertEquals("1:4,6:10", set.toString());
+        assertFalse(set.remove(5));
+        assertTrue(set.remove(1));
+        assertTrue(set.remove("10"));
+        assertEquals("2:4,6:9", set.toString());
+        set.add(5);
+        assertEquals("2:9", set.toString());
+        assertFalse(set.remove("a"));
+    }
+
+    public void testParse() {
+        assertEquals("1:3,5", UidSet.parse("3:1,5").toString());
+        assertEquals("1,5", UidSet.parse("1,x,5").toString());
+        assertEquals("", UidSet.parse("").toString());
+        assertEquals("", UidSet.parse(null).toString());
+        assertEquals("", UidSet.parse("1:x").toString());
+    }
+
+    public void testAddString() {
+        final UidSet set = new UidSet();
+        assertTrue(set.add("7"));
+        assertFalse(set.add("Local-7"));
+        assertFalse(set.add(""));
+        assertEquals("7", set.toString());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.content.Context;
+
+import com.android.emailcommon.provider.HostAuth;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link MockTransport} which, like a real server, can also send lines nobody asked for,
+ * e.g. "* 5 EXISTS" while the client is idling.  Such lines may be pushed from any thread;
+ * until one arrives, reads block for no longer than the socket timeout, and then fail with a
+ * {@link SocketTimeoutException}.
+ */
+public class MockIdleTransport extends MockTransport {
+
+    private final LinkedBlockingQueue<String> mUnsolicitedLines =
+            new LinkedBlockingQueue<String>();
+    private volatile int mSoTimeout;
+
+    public MockIdleTransport(Context context) {
+        super(context, new HostAuth());
+    }
+
+    /**
+     * Sends a line to the client, without waiting for any command.
+     */
+    public void push(String line) {
+        mUnsolicitedLines.add(line);
+    }
+
+    /**
+     * Sends a line to the client after {@code delayMillis}, from another thread.
+     */
+    public void pushLater(final String line, final long delayMillis) {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    // Push it now, then
+                }
+                push(line);
+            }
+        }.start();
+    }
+
+    @Override
+    public void setSoTimeout(int timeoutMilliseconds) {
+        mSoTimeout = timeoutMilliseconds;
+    }
+
+    @Override
+    protected String readUnsolicitedLine() throws IOException {
+        final String line;
+        try {
+            line = (mSoTimeout > 0)
+                    ? mUnsolicitedLines.poll(mSoTimeout, TimeUnit.MILLISECONDS)
+                    : mUnsolicitedLines.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (line == null) {
+            throw new SocketTimeoutException("Read timed out");
+        }
+        return line;
+    }
+}
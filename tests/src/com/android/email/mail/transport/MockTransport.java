@@ -48,6 +48,7 @@ public class MockTransport extends MailTransport {
 
     private boolean mOpen;
     private boolean mInputOpen;
+    private boolean mCompressed;
     private InetAddress mLocalAddress;
 
     private ArrayList<String> mQueuedInput = new ArrayList<String>();
@@ -187,6 +188,7 @@ public class MockTransport extends MailTransport {
     public void close() {
         mOpen = false;
         mInputOpen = false;
+        mCompressed = false;
         // unless it was expected as part of a test, reset the stream
         if (mPairs.size() > 0) {
             Transaction expect = mPairs.remove(0);
@@ -237,6 +239,25 @@ public class MockTransport extends MailTransport {
                         */{
         mOpen = true;
         mInputOpen = true;
+        mCompressed = false;
+    }
+
+    /**
+     * Records that the session is compressed; the text going each way stays as it is.  As with
+     * a real server, nothing may be waiting to be read when compression starts, as it would
+     * have been sent uncompressed.
+     */
+    @Override
+    public void startCompression() {
+        SmtpSenderUnitTests.assertTrue(mOpen);
+        SmtpSenderUnitTests.assertTrue("Input left unread when compression started",
+                mQueuedInput.isEmpty());
+        mCompressed = true;
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return mCompressed;
     }
 
     /**
@@ -255,18 +276,16 @@ public class MockTransport extends MailTransport {
             throw new IOException("Reading from MockTransport with closed input");
         }
         // if there's nothing to read, see if we can find a null-pattern
-        // response
+        // response (an expected close is left for close() to find)
         if ((mQueuedInput.size() == 0) && (mPairs.size() > 0)) {
             Transaction pair = mPairs.get(0);
-            if (pair.mPattern == null) {
+            if (pair.mPattern == null && pair.mAction != Transaction.ACTION_CLIENT_CLOSE) {
                 mPairs.remove(0);
                 sendResponse(pair);
             }
         }
         if (mQueuedInput.size() == 0) {
-            // MailTransport returns "" at EOS.
-            LogUtils.w(LOG_TAG, "Underflow reading from MockTransport");
-            return "";
+            return readUnsolicitedLine();
         }
         String line = mQueuedInput.remove(0);
         if (DEBUG_LOG_STREAMS) {
@@ -278,6 +297,16 @@ public class MockTransport extends MailTransport {
         return line;
     }
 
+    /**
+     * Called by readLine() when there is no response to the last command left to read.  A real
+     * server could still send something unsolicited; here, we report an underflow.
+     */
+    protected String readUnsolicitedLine() throws IOException {
+        // MailTransport returns "" at EOS.
+        LogUtils.w(LOG_TAG, "Underflow reading from MockTransport");
+        return "";
+    }
+
     @Override
     public void reopenTls() /* throws MessagingException */{
         SmtpSenderUnitTests.assertTrue(mOpen);
@@ -362,6 +391,23 @@ public class MockTransport extends MailTransport {
             // no joy - throw an exception
             throw new IOException();
         }
+
+        /**
+         * Like a socket, returns no more than what's been received, i.e. the rest of the current
+         * line.  (The default implementation would keep calling read() and underflow.)
+         */
+        @Override
+        public int read(byte[] b, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            b[offset] = (byte) read();
+            int count = 1;
+            while (count < length && mNextIndex < mNextLine.length) {
+                b[offset + count++] = mNextLine[mNextIndex++];
+            }
+            return count;
+        }
     }
 
     /**
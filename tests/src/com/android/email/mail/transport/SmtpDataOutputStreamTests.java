@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class SmtpDataOutputStreamTests extends TestCase {
+
+    private static String encode(String content, boolean dotStuffing, boolean oneByteAtATime)
+            throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final SmtpDataOutputStream dataOut = new SmtpDataOutputStream(out, dotStuffing);
+        final byte[] bytes = content.getBytes("US-ASCII");
+        if (oneByteAtATime) {
+            for (byte b : bytes) {
+                dataOut.write(b);
+            }
+        } else {
+            // In two pieces, to check that the state is kept between them
+            final int half = bytes.length / 2;
+            dataOut.write(bytes, 0, half);
+            dataOut.write(bytes, half, bytes.length - half);
+        }
+        dataOut.finish();
+        return out.toString("US-ASCII");
+    }
+
+    private static void checkEncode(String expected, String content, boolean dotStuffing)
+            throws IOException {
+        assertEquals(expected, encode(content, dotStuffing, false));
+        assertEquals(expected, encode(content, dotStuffing, true));
+    }
+
+    public void testLineEndings() throws IOException {
+        checkEncode("a\r\nb\r\nc\r\n", "a\nb\r\nc", false);
+        checkEncode("a\r\n\r\n", "a\n\n", false);
+        checkEncode("a\r\n", "a\r", false);
+        checkEncode("", "", false);
+    }
+
+    public void testDotStuffing() throws IOException {
+        checkEncode("..a\r\nb.c\r\n..\r\n...\r\n.\r\n", ".a\nb.c\n.\r\n..", true);
+        checkEncode("a\r\n.\r\n", "a\r\n", true);
+        checkEncode(".\r\n", "", true);
+        // Not for BDAT
+        checkEncode(".a\r\n", ".a", false);
+    }
+}
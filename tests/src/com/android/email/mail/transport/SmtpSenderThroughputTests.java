@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.mail.transport;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import com.android.email.DBTestHelper;
+import com.android.email.mail.MessageSpool;
+import com.android.emailcommon.Logging;
+import com.android.emailcommon.mail.Address;
+import com.android.emailcommon.provider.Account;
+import com.android.emailcommon.provider.EmailContent.Attachment;
+import com.android.emailcommon.provider.EmailContent.Body;
+import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.provider.HostAuth;
+import com.android.mail.utils.LogUtils;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * A micro-benchmark of sending a message with a 20MB attachment to a fake SMTP server on this
+ * device, with DATA and with BDAT.  The time taken is logged.
+ *
+ * These tests can be run with the following command:
+ *   runtest -c com.android.email.mail.transport.SmtpSenderThroughputTests email
+ */
+@LargeTest
+public class SmtpSenderThroughputTests extends AndroidTestCase {
+    private static final int ATTACHMENT_SIZE = 20 * 1024 * 1024;
+
+    private Context mProviderContext;
+    private File mAttachmentFile;
+    private long mMessageId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProviderContext = DBTestHelper.ProviderContextSetupHelper.getProviderContext(
+                getContext());
+
+        // Random bytes, so that there's nothing special about the base64 or binary
+        mAttachmentFile = new File(getContext().getCacheDir(), "SmtpSenderThroughputTests");
+        final Random random = new Random(1);
+        final byte[] buffer = new byte[64 * 1024];
+        final OutputStream out = new FileOutputStream(mAttachmentFile);
+        try {
+            for (int written = 0; written < ATTACHMENT_SIZE; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer);
+            }
+        } finally {
+            out.close();
+        }
+
+        final Message message = new Message();
+        message.mTimeStamp = System.currentTimeMillis();
+        message.mFrom = Address.parseToHeader("Jones@Registry.Org");
+        message.mTo = Address.parseToHeader("Smith@Registry.Org");
+        message.mMessageId = "1234567890";
+        message.save(mProviderContext);
+        mMessageId = message.mId;
+
+        final Body body = new Body();
+        body.mMessageKey = mMessageId;
+        body.mTextContent = "Here it is";
+        body.save(mProviderContext);
+
+        final Attachment attachment = new Attachment();
+        attachment.mFileName = "random.bin";
+        attachment.mMimeType = "application/octet-stream";
+        attachment.mSize = ATTACHMENT_SIZE;
+        attachment.setContentUri(Uri.fromFile(mAttachmentFile).toString());
+        attachment.mMessageKey = mMessageId;
+        attachment.save(mProviderContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAttachmentFile.delete();
+        MessageSpool.evict(mProviderContext, mMessageId);
+        super.tearDown();
+    }
+
+    /**
+     * Sends the message to a fake server with the given extensions.
+     *
+     * @return the size of the content the server received
+     */
+    private long send(String label, String... capabilities) throws Exception {
+        final FakeSmtpServer server = new FakeSmtpServer(capabilities);
+        server.start();
+
+        final HostAuth hostAuth = new HostAuth();
+        hostAuth.setConnection("smtp", "127.0.0.1", server.getPort());
+        final Account account = new Account();
+        account.mHostAuthSend = hostAuth;
+        final SmtpSender sender = new SmtpSender(mProviderContext, account);
+
+        final long start = SystemClock.elapsedRealtime();
+        sender.beginSession();
+        try {
+            sender.sendMessage(mMessageId);
+        } finally {
+            sender.endSession();
+        }
+        server.join();
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertNull(server.mError);
+        LogUtils.i(Logging.LOG_TAG, "%s: %d bytes of content in %d ms (%d KB/s)", label,
+                server.mContentLength, elapsed,
+                server.mContentLength * 1000 / 1024 / Math.max(elapsed, 1));
+        return server.mContentLength;
+    }
+
+    public void testDataThroughput() throws Exception {
+        final long length = send("DATA", "PIPELINING", "8BITMIME");
+        // The attachment goes in base64
+        assertTrue(length > ATTACHMENT_SIZE / 3 * 4);
+    }
+
+    public void testBdatBinaryThroughput() throws Exception {
+        final long length = send("BDAT", "PIPELINING", "8BITMIME", "CHUNKING", "BINARYMIME");
+        // The attachment goes as it is
+        assertTrue(length > ATTACHMENT_SIZE);
+        assertTrue(length < ATTACHMENT_SIZE + 4096);
+    }
+
+    /**
+     * Just enough of an SMTP server to take one connection, and count the size of the content
+     * of the messages sent on it.
+     */
+    private static class FakeSmtpServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private final String[] mCapabilities;
+        volatile long mContentLength;
+        volatile IOException mError;
+
+        FakeSmtpServer(String... capabilities) throws IOException {
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            mCapabilities = capabilities;
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Socket socket = mServerSocket.accept();
+                try {
+                    serve(new BufferedInputStream(socket.getInputStream(), 64 * 1024),
+                            socket.getOutputStream());
+                } finally {
+                    socket.close();
+                }
+            } catch (IOException e) {
+                mError = e;
+            } finally {
+                try {
+                    mServerSocket.close();
+                } catch (IOException e) {
+                    // Nothing more to do with it
+                }
+            }
+        }
+
+        private void serve(InputStream in, OutputStream out) throws IOException {
+            reply(out, "220 localhost ready");
+            String line;
+            while ((line = readLine(in)) != null) {
+                final String command = line.toUpperCase(Locale.US);
+                if (command.startsWith("EHLO")) {
+                    final StringBuilder sb = new StringBuilder("250-localhost");
+                    for (String capability : mCapabilities) {
+                        sb.append("\r\n250-").append(capability);
+                    }
+                    reply(out, sb.append("\r\n250 OK").toString());
+                } else if (command.equals("DATA")) {
+                    reply(out, "354 go ahead");
+                    while ((line = readLine(in)) != null && !line.equals(".")) {
+                        mContentLength += line.length() + 2;
+                    }
+                    reply(out, "250 OK");
+                } else if (command.startsWith("BDAT ")) {
+                    long length = Long.parseLong(command.split(" ")[1]);
+                    mContentLength += length;
+                    while (length > 0) {
+                        final long skipped = in.skip(length);
+                        if (skipped <= 0 && in.read() < 0) {
+                            throw new IOException("Connection closed within a chunk");
+                        }
+                        length -= Math.max(skipped, 1);
+                    }
+                    reply(out, "250 OK");
+                } else {
+                    reply(out, "250 OK");
+                }
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            final StringBuilder sb = new StringBuilder();
+            int b;
+            while ((b = in.read()) != '\n') {
+                if (b < 0) {
+                    return null;
+                }
+                if (b != '\r') {
+                    sb.append((char) b);
+                }
+            }
+            return sb.toString();
+        }
+
+        private static void reply(OutputStream out, String reply) throws IOException {
+            out.write((reply + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+}
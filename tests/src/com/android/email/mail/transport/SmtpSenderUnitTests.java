@@ -121,15 +121,166 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         // TODO The test is a bit fragile, as we are order-dependent (and headers are not)
         expectSimpleMessage(mockTransport);
         mockTransport.expect("Content-Type: text/plain; charset=utf-8");
-        mockTransport.expect("Content-Transfer-Encoding: base64");
+        // As the server supports 8BITMIME, ascii text goes as it is
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
         mockTransport.expect("");
-        mockTransport.expect(TEST_STRING_BASE64);
-        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        mockTransport.expect(TEST_STRING);
+        mockTransport.expect("\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
         // Now trigger the transmission
         mSender.sendMessage(message.mId);
     }
 
+    /**
+     * Test:  Send two messages in a session; the second one reuses the connection, after RSET,
+     * and the envelope commands are pipelined
+     */
+    public void testSendMessagesInSession() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        // Only the first message opens the connection
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN,PIPELINING");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        mSender.beginSession();
+        for (int i = 0; i < 2; i++) {
+            if (i > 0) {
+                mockTransport.expect("RSET", "250 2.0.0 ok");
+            }
+            expectSimpleMessage(mockTransport);
+            mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+            mockTransport.expect("Content-Transfer-Encoding: base64");
+            mockTransport.expect("");
+            mockTransport.expect(TEST_STRING_BASE64);
+            mockTransport.expect("\\.",
+                    "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+            mSender.sendMessage(message.mId);
+        }
+        mSender.endSession();
+        assertFalse(mockTransport.isOpen());
+    }
+
+    /**
+     * Test:  In a session, a connection which gives no reply to RSET, or can't even be written
+     * to, is dropped, and the message is sent over a new one
+     */
+    public void testSendMessagesInSessionReconnect() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN,PIPELINING");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING;
+        body.save(mProviderContext);
+
+        mSender.beginSession();
+        for (int i = 0; i < 3; i++) {
+            if (i == 1) {
+                // The envelope is pipelined after RSET, but none of it is answered
+                mockTransport.expect("RSET");
+                mockTransport.expect("MAIL FROM:<Jones@Registry.Org>");
+                mockTransport.expect("RCPT TO:<Smith@Registry.Org>");
+            } else if (i == 2) {
+                mockTransport.expectIOException();
+            }
+            if (i > 0) {
+                mockTransport.expectClose();
+                setupOpen(mockTransport, "AUTH LOGIN PLAIN,PIPELINING");
+            }
+            expectSimpleMessage(mockTransport);
+            mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+            mockTransport.expect("Content-Transfer-Encoding: base64");
+            mockTransport.expect("");
+            mockTransport.expect(TEST_STRING_BASE64);
+            mockTransport.expect("\\.",
+                    "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+            mSender.sendMessage(message.mId);
+        }
+        mSender.endSession();
+        assertFalse(mockTransport.isOpen());
+    }
+
+    /**
+     * Test:  A recipient refused in a pipelined envelope fails the message, and closes the
+     * connection, as it's not known where the conversation was left
+     */
+    public void testSendMessageInSessionRecipientRefused() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN,PIPELINING");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
+                "550 5.1.1 <Smith@Registry.Org> no such user");
+        mockTransport.expectClose();
+
+        mSender.beginSession();
+        try {
+            mSender.sendMessage(message.mId);
+            fail("Should not be able to send to a refused recipient");
+        } catch (MessagingException me) {
+            // good - expected
+        }
+        assertFalse(mockTransport.isOpen());
+        mSender.endSession();
+    }
+
+    /**
+     * Test:  Send a message with BDAT, as the server supports CHUNKING
+     */
+    public void testSendMessageWithChunking() throws Exception {
+        MockTransport mockTransport = openAndInjectMockTransport();
+
+        mockTransport.expectClose();
+        setupOpen(mockTransport, "AUTH LOGIN PLAIN,PIPELINING,CHUNKING,BINARYMIME");
+
+        Message message = setupSimpleMessage();
+        message.save(mProviderContext);
+
+        Body body = new Body();
+        body.mMessageKey = message.mId;
+        body.mTextContent = TEST_STRING + "\n.hidden";
+        body.save(mProviderContext);
+
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org> BODY=BINARYMIME",
+                "250 2.1.0 <Jones@Registry.Org> sender ok");
+        mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
+                "250 2.1.5 <Smith@Registry.Org> recipient ok");
+        // The whole message fits in one chunk; its reply is read once it's all been sent
+        mockTransport.expect("BDAT \\d+ LAST", "250 2.0.0 mail accepted for delivery");
+        mockTransport.expect("Date: .*");
+        mockTransport.expect("Message-ID: .*");
+        mockTransport.expect("From: Jones@Registry.Org");
+        mockTransport.expect("To: Smith@Registry.Org");
+        mockTransport.expect("MIME-Version: 1.0");
+        mockTransport.expect("Content-Type: text/plain; charset=utf-8");
+        mockTransport.expect("Content-Transfer-Encoding: 7bit");
+        mockTransport.expect("");
+        mockTransport.expect(TEST_STRING);
+        // Not dot-stuffed, as there's no end marker
+        mockTransport.expect("\\.hidden");
+
+        mSender.sendMessage(message.mId);
+    }
+
     /**
      * Test:  Open and send a single message with an empty attachment (no file) (sunny day)
      */
@@ -154,7 +305,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
         expectSimpleAttachment(mockTransport, attachment);
         mockTransport.expect("");
         mockTransport.expect("----.*--");
-        mockTransport.expect("\r\n\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
+        mockTransport.expect("\\.", "250 2.0.0 kv2f1a00C02Rf8w3Vv mail accepted for delivery");
 
         // Now trigger the transmission
         mSender.sendMessage(message.mId);
@@ -176,7 +327,7 @@ public class SmtpSenderUnitTests extends AndroidTestCase {
      * Prepare to receive a simple message (see setupSimpleMessage)
      */
     private void expectSimpleMessage(MockTransport mockTransport) {
-        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>",
+        mockTransport.expect("MAIL FROM:<Jones@Registry.Org>( BODY=8BITMIME)?",
                 "250 2.1.0 <Jones@Registry.Org> sender ok");
         mockTransport.expect("RCPT TO:<Smith@Registry.Org>",
                 "250 2.1.5 <Smith@Registry.Org> recipient ok");
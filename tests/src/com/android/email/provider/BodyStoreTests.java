@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.os.ParcelFileDescriptor;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+
+@SmallTest
+public class BodyStoreTests extends AndroidTestCase {
+    // Well away from the ids of any real messages of the test app
+    private static final long MESSAGE_ID = 987654321L;
+
+    @Override
+    protected void tearDown() throws Exception {
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, null);
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_TEXT, null);
+        super.tearDown();
+    }
+
+    private static String makeBody(int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append("<p>&gt; Quoted reply é ").append(sb.length() % 7).append("</p>\n");
+        }
+        return sb.toString();
+    }
+
+    private File getFile(String ext) throws IOException {
+        return BodyStore.getFile(getContext(), MESSAGE_ID, ext);
+    }
+
+    private File getCompressedFile(String ext) throws IOException {
+        return new File(getFile(ext).getPath() + ".z");
+    }
+
+    public void testSmallBodyIsNotCompressed() throws IOException {
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_TEXT, "small é");
+        assertTrue(getFile(BodyStore.EXT_TEXT).exists());
+        assertFalse(getCompressedFile(BodyStore.EXT_TEXT).exists());
+        assertEquals("small é", BodyStore.read(getContext(), MESSAGE_ID, BodyStore.EXT_TEXT));
+    }
+
+    public void testLargeBodyIsCompressed() throws IOException {
+        final String body = makeBody(BodyStore.COMPRESS_THRESHOLD * 4);
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, body);
+        assertFalse(getFile(BodyStore.EXT_HTML).exists());
+        final File compressed = getCompressedFile(BodyStore.EXT_HTML);
+        assertTrue(compressed.exists());
+        assertTrue(compressed.length() < body.length() / 2);
+        assertEquals(body, BodyStore.read(getContext(), MESSAGE_ID, BodyStore.EXT_HTML));
+
+        // Replaced by a small one, and then deleted
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, "small");
+        assertFalse(compressed.exists());
+        assertEquals("small", BodyStore.read(getContext(), MESSAGE_ID, BodyStore.EXT_HTML));
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, "");
+        assertNull(BodyStore.read(getContext(), MESSAGE_ID, BodyStore.EXT_HTML));
+    }
+
+    public void testVersion() throws IOException {
+        assertNull(BodyStore.getVersion(getContext(), MESSAGE_ID, BodyStore.EXT_HTML));
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, "<p>one</p>");
+        // Only kept once it's been asked for
+        final File versionFile = new File(getFile(BodyStore.EXT_HTML).getPath() + ".sha1");
+        assertFalse(versionFile.exists());
+        final String version = BodyStore.getVersion(getContext(), MESSAGE_ID, BodyStore.EXT_HTML);
+        assertNotNull(version);
+        assertTrue(versionFile.exists());
+        assertEquals(version,
+                BodyStore.getVersion(getContext(), MESSAGE_ID, BodyStore.EXT_HTML));
+
+        // Written again, with content of the same length
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, "<p>two</p>");
+        assertFalse(versionFile.exists());
+        assertFalse(version.equals(
+                BodyStore.getVersion(getContext(), MESSAGE_ID, BodyStore.EXT_HTML)));
+
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, null);
+        assertNull(BodyStore.getVersion(getContext(), MESSAGE_ID, BodyStore.EXT_HTML));
+        assertFalse(versionFile.exists());
+    }
+
+    public void testOpenFileDescriptor() throws IOException {
+        final String body = makeBody(BodyStore.COMPRESS_THRESHOLD * 4);
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, body);
+        final ParcelFileDescriptor pfd = BodyStore.openFileDescriptor(getContext(), MESSAGE_ID,
+                BodyStore.EXT_HTML, ParcelFileDescriptor.MODE_READ_ONLY);
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        try {
+            assertEquals(body, IOUtils.toString(in, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testMigrateFile() throws IOException {
+        // As written before there was compression
+        final String body = makeBody(BodyStore.COMPRESS_THRESHOLD * 4);
+        final File file = getFile(BodyStore.EXT_TEXT);
+        final FileWriter w = new FileWriter(file);
+        try {
+            w.write(body);
+        } finally {
+            w.close();
+        }
+        final long[] sizes = new long[2];
+        BodyStore.migrateFile(file, sizes);
+        assertFalse(file.exists());
+        assertTrue(getCompressedFile(BodyStore.EXT_TEXT).exists());
+        assertEquals(body.getBytes("UTF-8").length, sizes[0]);
+        assertTrue(sizes[1] < sizes[0] / 2);
+        assertEquals(body, BodyStore.read(getContext(), MESSAGE_ID, BodyStore.EXT_TEXT));
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.provider.BaseColumns;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.IOException;
+
+@SmallTest
+public class EmailMessageCursorTests extends AndroidTestCase {
+    // Well away from the ids of any real messages of the test app
+    private static final long MESSAGE_ID_1 = 987654331L;
+    private static final long MESSAGE_ID_2 = 987654332L;
+    private static final String HTML = "bodyHtml";
+    private static final String TEXT = "bodyText";
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (long id : new long[] {MESSAGE_ID_1, MESSAGE_ID_2}) {
+            BodyStore.write(getContext(), id, BodyStore.EXT_HTML, null);
+            BodyStore.write(getContext(), id, BodyStore.EXT_TEXT, null);
+        }
+        super.tearDown();
+    }
+
+    private Cursor createCursor() {
+        final MatrixCursor c = new MatrixCursor(new String[] {BaseColumns._ID, HTML, TEXT});
+        c.addRow(new Object[] {MESSAGE_ID_1, null, null});
+        c.addRow(new Object[] {MESSAGE_ID_2, null, null});
+        return new EmailMessageCursor(getContext(), c, HTML, TEXT);
+    }
+
+    public void testLoadsBodiesAsAsked() throws IOException {
+        BodyStore.write(getContext(), MESSAGE_ID_1, BodyStore.EXT_HTML, "<p>first</p>");
+        BodyStore.write(getContext(), MESSAGE_ID_1, BodyStore.EXT_TEXT, "first");
+        // The second message has no body yet
+        final Cursor c = createCursor();
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(c.getString(1).contains("first"));
+            assertEquals("first", c.getString(2));
+            assertEquals(Cursor.FIELD_TYPE_STRING, c.getType(1));
+
+            assertTrue(c.moveToNext());
+            assertNull(c.getString(1));
+            assertNull(c.getString(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testRewrittenBodyIsNotStale() throws IOException {
+        BodyStore.write(getContext(), MESSAGE_ID_1, BodyStore.EXT_HTML, "<p>before</p>");
+        Cursor c = createCursor();
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(c.getString(1).contains("before"));
+        } finally {
+            c.close();
+        }
+
+        // The same length, and most likely within the same second
+        BodyStore.write(getContext(), MESSAGE_ID_1, BodyStore.EXT_HTML, "<p>after!</p>");
+        c = createCursor();
+        try {
+            assertTrue(c.moveToFirst());
+            assertTrue(c.getString(1).contains("after!"));
+        } finally {
+            c.close();
+        }
+    }
+}
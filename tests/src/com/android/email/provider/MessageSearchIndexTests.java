@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+@SmallTest
+public class MessageSearchIndexTests extends AndroidTestCase {
+
+    public void testBuildMatchQuery() {
+        assertNull(MessageSearchIndex.buildMatchQuery(""));
+        assertNull(MessageSearchIndex.buildMatchQuery("  \" "));
+        assertEquals("\"lunch*\"", MessageSearchIndex.buildMatchQuery("lunch"));
+        // Only the last word is a prefix, and only if it's long enough
+        assertEquals("\"lunch\" \"fri*\"", MessageSearchIndex.buildMatchQuery(" lunch  fri "));
+        assertEquals("\"lunch\" \"fr\"", MessageSearchIndex.buildMatchQuery("lunch fr"));
+        // Nothing is taken as query syntax
+        assertEquals("\"a\" \"OR\" \"b-c*\"", MessageSearchIndex.buildMatchQuery("a OR \"b-c"));
+    }
+
+    /** Makes a matchinfo() result, in the format of MessageSearchIndex.MATCHINFO_FORMAT */
+    private static byte[] matchinfo(int... ints) {
+        final ByteBuffer buffer = ByteBuffer.allocate(ints.length * 4)
+                .order(ByteOrder.nativeOrder());
+        for (int i : ints) {
+            buffer.putInt(i);
+        }
+        return buffer.array();
+    }
+
+    /** Ranks a matchinfo() result with MessageSearchIndex.getRankExpression */
+    private static double getRank(byte[] matchinfo) {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        try {
+            final SQLiteStatement rank = db.compileStatement("select "
+                    + MessageSearchIndex.getRankExpression(1) + " from (select hex(?) as "
+                    + MessageSearchIndex.MATCHINFO_COLUMN + ")");
+            try {
+                rank.bindBlob(1, matchinfo);
+                return Double.parseDouble(rank.simpleQueryForString());
+            } finally {
+                rank.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    public void testGetRank() {
+        // One phrase, four columns: hits in this row, hits in all rows, rows with hits
+        final double inSubject = getRank(matchinfo(1, 4,
+                1, 2, 2,  0, 0, 0,  0, 0, 0,  0, 0, 0));
+        final double inBody = getRank(matchinfo(1, 4,
+                0, 2, 2,  0, 0, 0,  0, 0, 0,  1, 2, 2));
+        final double twiceInBody = getRank(matchinfo(1, 4,
+                0, 2, 2,  0, 0, 0,  0, 0, 0,  2, 3, 2));
+        assertTrue(inSubject > inBody);
+        assertTrue(twiceInBody > inBody);
+        assertEquals(0.0, getRank(matchinfo(1, 4,
+                0, 2, 2,  0, 0, 0,  0, 0, 0,  0, 2, 2)));
+        // Every byte of the integers counts
+        assertEquals(4.0 * 0x10203 / 0x1020304, getRank(matchinfo(1, 4,
+                0x10203, 0x1020304, 1,  0, 0, 0,  0, 0, 0,  0, 0, 0)), 1e-9);
+    }
+
+    public void testGetBodyText() {
+        assertNull(MessageSearchIndex.getBodyText(null, null));
+        assertNull(MessageSearchIndex.getBodyText("", ""));
+        assertEquals("plain", MessageSearchIndex.getBodyText("plain", "<b>html</b>"));
+        final String text = MessageSearchIndex.getBodyText(null,
+                "<style>p { color: red }</style><p>Hello&nbsp;<b>world</b></p>");
+        assertEquals("Hello world", text.trim().replaceAll("\\s+", " "));
+
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() <= MessageSearchIndex.MAX_BODY_LENGTH) {
+            sb.append("word ");
+        }
+        assertEquals(MessageSearchIndex.MAX_BODY_LENGTH,
+                MessageSearchIndex.getBodyText(sb.toString(), null).length());
+    }
+}
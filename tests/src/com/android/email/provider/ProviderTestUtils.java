@@ -364,6 +364,7 @@ public class ProviderTestUtils extends Assert {
         assertEquals(caller + " mTotalCount", expect.mTotalCount, actual.mTotalCount);
         assertEquals(caller + " mHierarchicalName", expect.mHierarchicalName, actual.mHierarchicalName);
         assertEquals(caller + " mLastFullSyncTime", expect.mLastFullSyncTime, actual.mLastFullSyncTime);
+        assertEquals(caller + " mSyncModSeq", expect.mSyncModSeq, actual.mSyncModSeq);
     }
 
     /**
@@ -16,11 +16,13 @@
 
 package com.android.email.provider;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
@@ -35,6 +37,7 @@ import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
 
 import com.android.email.provider.EmailProvider.EmailAttachmentService;
+import com.android.emailcommon.Logging;
 import com.android.emailcommon.provider.Account;
 import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.AccountColumns;
@@ -46,15 +49,21 @@ import com.android.emailcommon.provider.EmailContent.MailboxColumns;
 import com.android.emailcommon.provider.EmailContent.Message;
 import com.android.emailcommon.provider.EmailContent.MessageColumns;
 import com.android.emailcommon.provider.EmailContent.PolicyColumns;
+import com.android.emailcommon.provider.EmailContent.SyncColumns;
 import com.android.emailcommon.provider.HostAuth;
 import com.android.emailcommon.provider.Mailbox;
 import com.android.emailcommon.provider.Policy;
 import com.android.emailcommon.utility.TextUtilities;
 import com.android.emailcommon.utility.Utility;
+import com.android.mail.utils.LogUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests of the Email provider.
@@ -736,6 +745,82 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(body2.mSourceKey, 17);
     }
 
+    private static Bundle createSave(Message message, String text, Attachment attachment) {
+        final Bundle save = new Bundle();
+        if (message.isSaved()) {
+            save.putLong(EmailProvider.SAVE_MESSAGE_ID, message.mId);
+        }
+        save.putParcelable(EmailProvider.SAVE_MESSAGE_VALUES, message.toContentValues());
+        final ContentValues body = new ContentValues();
+        body.put(BodyColumns.TEXT_CONTENT, text);
+        body.putNull(BodyColumns.HTML_CONTENT);
+        save.putParcelable(EmailProvider.SAVE_MESSAGE_BODY, body);
+        final ArrayList<ContentValues> attachments = new ArrayList<ContentValues>();
+        if (attachment != null) {
+            attachments.add(attachment.toContentValues());
+        }
+        save.putParcelableArrayList(EmailProvider.SAVE_MESSAGE_ATTACHMENTS, attachments);
+        return save;
+    }
+
+    private ArrayList<Bundle> saveMessages(Bundle... saves) {
+        final Bundle extras = new Bundle();
+        extras.putParcelableArrayList(EmailProvider.SAVE_MESSAGES_EXTRA,
+                new ArrayList<Bundle>(Arrays.asList(saves)));
+        final Bundle result = mProvider.call(EmailProvider.SAVE_MESSAGES_METHOD, null, extras);
+        return result.getParcelableArrayList(EmailProvider.SAVE_MESSAGES_EXTRA);
+    }
+
+    /**
+     * Test storing a batch of downloaded messages, some new and some already stored, with their
+     * bodies and attachments
+     */
+    public void testSaveMessages() {
+        Account account1 = ProviderTestUtils.setupAccount("save messages", true, mMockContext);
+        long account1Id = account1.mId;
+        Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1Id, true, mMockContext);
+        long box1Id = box1.mId;
+
+        Message message1 = ProviderTestUtils.setupMessage("message1", account1Id, box1Id,
+                false, false, mMockContext);
+        Message message2 = ProviderTestUtils.setupMessage("message2", account1Id, box1Id,
+                true, true, mMockContext);
+        Attachment attachment = ProviderTestUtils.setupAttachment(-1, "file", 100, false,
+                mMockContext);
+        attachment.mAccountKey = account1Id;
+
+        ArrayList<Bundle> results = saveMessages(createSave(message1, "text1", attachment),
+                createSave(message2, "text2", attachment));
+        assertEquals(2, results.size());
+        message1.mId = results.get(0).getLong(EmailProvider.SAVE_MESSAGE_ID);
+        assertEquals(message2.mId, results.get(1).getLong(EmailProvider.SAVE_MESSAGE_ID));
+
+        Message stored1 = Message.restoreMessageWithId(mMockContext, message1.mId);
+        assertNotNull(stored1);
+        assertEquals("message1", stored1.mDisplayName);
+        assertEquals("text1", loadBodyForMessageId(message1.mId).mTextContent);
+        assertEquals("text2", loadBodyForMessageId(message2.mId).mTextContent);
+
+        long[] attachmentIds1 = results.get(0).getLongArray(EmailProvider.SAVE_MESSAGE_ATTACHMENTS);
+        assertEquals(1, attachmentIds1.length);
+        Attachment stored = Attachment.restoreAttachmentWithId(mMockContext, attachmentIds1[0]);
+        assertEquals(message1.mId, stored.mMessageKey);
+        assertEquals("file", stored.mFileName);
+        long attachmentId2 =
+                results.get(1).getLongArray(EmailProvider.SAVE_MESSAGE_ATTACHMENTS)[0];
+
+        // Storing a message again updates it, and keeps its attachments
+        message2.mSubject = "new subject";
+        results = saveMessages(createSave(message2, "text3", attachment));
+        assertEquals("new subject",
+                Message.restoreMessageWithId(mMockContext, message2.mId).mSubject);
+        assertEquals("text3", loadBodyForMessageId(message2.mId).mTextContent);
+        assertEquals(attachmentId2,
+                results.get(0).getLongArray(EmailProvider.SAVE_MESSAGE_ATTACHMENTS)[0]);
+        assertEquals(1,
+                Attachment.restoreAttachmentsWithMessageId(mMockContext, message2.mId).length);
+    }
+
     /**
      * Test body retrieve methods
      */
@@ -1805,6 +1890,111 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(2, getUnreadCount(boxC.mId));
     }
 
+    /**
+     * Test that a query doesn't wait for another thread's transaction to end, and reads what was
+     * committed before it.
+     */
+    public void testQueryDuringTransaction() throws InterruptedException {
+        final Account account1 = ProviderTestUtils.setupAccount("query", true, mMockContext);
+        final Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true,
+                mMockContext);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                final SQLiteDatabase db = mProvider.getDatabase(mMockContext);
+                db.beginTransaction();
+                try {
+                    ProviderTestUtils.setupMessage("message1", account1.mId, box1.mId, false,
+                            true, mMockContext);
+                    started.countDown();
+                    release.await();
+                    db.setTransactionSuccessful();
+                } catch (InterruptedException e) {
+                    // Roll back, then
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        };
+        writer.start();
+        try {
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            final CountDownLatch queried = new CountDownLatch(1);
+            new Thread() {
+                @Override
+                public void run() {
+                    assertEquals(0, EmailContent.count(mMockContext, Message.CONTENT_URI));
+                    queried.countDown();
+                }
+            }.start();
+            assertTrue(queried.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        writer.join();
+        assertEquals(1, EmailContent.count(mMockContext, Message.CONTENT_URI));
+    }
+
+    /**
+     * Measures the latency of the message list query while another thread stores messages in
+     * batches, as a sync does; the results are logged.  Without a connection of their own, the
+     * queries would wait for each batch's transaction.
+     */
+    @LargeTest
+    public void testQueryLatencyDuringBulkInsert() throws Exception {
+        final int batches = 40;
+        final int batchSize = 50;
+        final Account account1 = ProviderTestUtils.setupAccount("latency", true, mMockContext);
+        final Mailbox box1 = ProviderTestUtils.setupMailbox("box1", account1.mId, true,
+                mMockContext);
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < batches; i++) {
+                    final ArrayList<ContentProviderOperation> ops =
+                            new ArrayList<ContentProviderOperation>();
+                    for (int j = 0; j < batchSize; j++) {
+                        ProviderTestUtils.setupMessage("message" + j, account1.mId, box1.mId,
+                                true, false, mMockContext).addSaveOps(ops);
+                    }
+                    try {
+                        mProvider.applyBatch(ops);
+                    } catch (OperationApplicationException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+        };
+
+        final ArrayList<Long> latencies = new ArrayList<Long>();
+        final String[] args = { Long.toString(box1.mId) };
+        writer.start();
+        // At least one query is measured, however quickly the writer finishes
+        do {
+            final long start = System.nanoTime();
+            final Cursor c = mMockContext.getContentResolver().query(Message.CONTENT_URI,
+                    Message.LIST_PROJECTION, MessageColumns.MAILBOX_KEY + "=?", args,
+                    MessageColumns.TIMESTAMP + " DESC");
+            try {
+                c.moveToLast();
+            } finally {
+                c.close();
+            }
+            latencies.add(System.nanoTime() - start);
+        } while (writer.isAlive());
+        writer.join();
+
+        assertEquals(batches * batchSize, EmailContent.count(mMockContext, Message.CONTENT_URI));
+        Collections.sort(latencies);
+        final int count = latencies.size();
+        LogUtils.d(Logging.LOG_TAG, "Query latency during bulk insert: %d queries, "
+                + "p50 %d us, p99 %d us, max %d us", count,
+                latencies.get(count / 2) / 1000, latencies.get(count * 99 / 100) / 1000,
+                latencies.get(count - 1) / 1000);
+    }
+
     /**
      * Test for EmailProvider.createIndex().
      * Check that it returns exacly the same string as the one used previously for index creation.
@@ -1816,6 +2006,68 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(newStr, oldStr);
     }
 
+    /**
+     * Returns SQLite's plan for a query of the provider's database, one step per line.
+     */
+    private String explainQueryPlan(String sql, String... args) {
+        final SQLiteDatabase db = mProvider.getDatabase(mMockContext);
+        final Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        final StringBuilder plan = new StringBuilder();
+        try {
+            final int detailColumn = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                plan.append(c.getString(detailColumn)).append('\n');
+            }
+        } finally {
+            c.close();
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Test that the frequent queries of messages use the indexes meant for them, rather than
+     * scanning the whole table, or sorting it.
+     */
+    public void testMessageQueryPlans() {
+        final String byMailbox = MessageColumns.ACCOUNT_KEY + "=? AND "
+                + MessageColumns.MAILBOX_KEY + "=?";
+
+        // Sync, looking for the messages in its window
+        String plan = explainQueryPlan("SELECT " + MessageColumns._ID + ","
+                + MessageColumns.FLAG_READ + "," + SyncColumns.SERVER_ID + " FROM "
+                + Message.TABLE_NAME + " WHERE " + byMailbox + " AND "
+                + MessageColumns.TIMESTAMP + ">=?", "1", "2", "0");
+        assertTrue(plan, plan.contains("INDEX " + DBHelper.MESSAGE_INDEX_MAILBOX_TIMESTAMP));
+
+        // Sync, looking for the oldest message; this needn't read the table at all
+        plan = explainQueryPlan("SELECT MIN(" + MessageColumns.TIMESTAMP + ") FROM "
+                + Message.TABLE_NAME + " WHERE " + byMailbox + " AND "
+                + MessageColumns.TIMESTAMP + "!=0", "1", "2");
+        assertTrue(plan,
+                plan.contains("COVERING INDEX " + DBHelper.MESSAGE_INDEX_MAILBOX_TIMESTAMP));
+
+        // Unread count
+        plan = explainQueryPlan("SELECT COUNT(*) FROM " + Message.TABLE_NAME + " WHERE "
+                + MessageColumns.MAILBOX_KEY + "=? AND " + MessageColumns.FLAG_READ + "=0", "2");
+        assertTrue(plan, plan.contains("COVERING INDEX " + DBHelper.MESSAGE_INDEX_MAILBOX_READ));
+
+        // Looking up downloaded messages
+        plan = explainQueryPlan("SELECT * FROM " + Message.TABLE_NAME + " WHERE " + byMailbox
+                + " AND " + SyncColumns.SERVER_ID + "=?", "1", "2", "100");
+        assertTrue(plan, plan.contains("INDEX " + DBHelper.MESSAGE_INDEX_MAILBOX_SERVER_ID));
+        plan = explainQueryPlan("SELECT * FROM " + Message.TABLE_NAME + " WHERE " + byMailbox
+                + " AND " + SyncColumns.SERVER_ID + " IN (?,?)", "1", "2", "100", "101");
+        assertTrue(plan, plan.contains("INDEX " + DBHelper.MESSAGE_INDEX_MAILBOX_SERVER_ID));
+
+        // The message list, which is read in timestamp order straight from the index
+        plan = explainQueryPlan("SELECT " + MessageColumns._ID + " FROM " + Message.TABLE_NAME
+                + " WHERE " + Message.FLAG_LOADED_SELECTION + " AND "
+                + MessageColumns.MAILBOX_KEY + "=? ORDER BY " + MessageColumns.TIMESTAMP
+                + " DESC", "2");
+        assertTrue(plan, plan.contains("INDEX " + DBHelper.MESSAGE_INDEX_MAILBOX_TIMESTAMP));
+        assertFalse(plan, plan.contains("TEMP B-TREE"));
+    }
+
     public void testDatabaseCorruptionRecovery() {
         final ContentResolver resolver = mMockContext.getContentResolver();
         final Context context = mMockContext;
@@ -2087,6 +2339,100 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         c.close();
     }
 
+    /** Searches the messages on the device, returning the ids found in order. */
+    private long[] searchMessages(String query, long accountId) {
+        Uri.Builder builder = Message.SEARCH_URI.buildUpon()
+                .appendQueryParameter(Message.SEARCH_PARAMETER_QUERY, query);
+        if (accountId != -1) {
+            builder.appendQueryParameter(Message.SEARCH_PARAMETER_ACCOUNT,
+                    Long.toString(accountId));
+        }
+        Cursor c = mMockContext.getContentResolver().query(builder.build(), null, null, null,
+                null);
+        try {
+            long[] ids = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Test that messages can be found by their subjects and bodies as they are stored, changed
+     * and deleted
+     */
+    public void testMessageSearch() {
+        final Context c = mMockContext;
+        Account a1 = ProviderTestUtils.setupAccount("search-1", true, c);
+        Account a2 = ProviderTestUtils.setupAccount("search-2", true, c);
+        Mailbox b1 = ProviderTestUtils.setupMailbox("box1", a1.mId, true, c);
+        Mailbox b2 = ProviderTestUtils.setupMailbox("box2", a2.mId, true, c);
+        // The timestamp goes with the length of the name, so m2 is the newest
+        Message m1 = ProviderTestUtils.setupMessage("zebra", a1.mId, b1.mId, true, true, c);
+        Message m2 = ProviderTestUtils.setupMessage("zebras", a2.mId, b2.mId, true, true, c);
+
+        // Found by subject ("subject zebra") and by body ("body text zebra")
+        assertTrue(Arrays.equals(new long[] {m2.mId, m1.mId}, searchMessages("subject", -1)));
+        assertTrue(Arrays.equals(new long[] {m1.mId}, searchMessages("text zebra", a1.mId)));
+        // The last word is a prefix, the others are not
+        assertTrue(Arrays.equals(new long[] {m2.mId, m1.mId}, searchMessages("zeb", -1)));
+        assertEquals(0, searchMessages("zeb text", -1).length);
+        assertEquals(0, searchMessages("", -1).length);
+
+        ContentValues values = new ContentValues();
+        values.put(MessageColumns.SUBJECT, "giraffe");
+        c.getContentResolver().update(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m1.mId), values, null, null);
+        assertTrue(Arrays.equals(new long[] {m1.mId}, searchMessages("giraffe", -1)));
+        // The body is still indexed
+        assertTrue(Arrays.equals(new long[] {m1.mId}, searchMessages("text zebra", a1.mId)));
+
+        c.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m1.mId), null, null);
+        assertEquals(0, searchMessages("giraffe", -1).length);
+    }
+
+    /**
+     * Test that better matches come first, and only then newer ones
+     */
+    public void testMessageSearchRanking() {
+        final Context c = mMockContext;
+        Account a = ProviderTestUtils.setupAccount("ranking", true, c);
+        Mailbox b = ProviderTestUtils.setupMailbox("box", a.mId, true, c);
+        // m1 has the word twice as often, but m2 is newer
+        Message m1 = ProviderTestUtils.setupMessage("ox ox", a.mId, b.mId, true, true, c);
+        Message m2 = ProviderTestUtils.setupMessage("ox beetle", a.mId, b.mId, true, true, c);
+        assertTrue(m2.mTimeStamp > m1.mTimeStamp);
+
+        assertTrue(Arrays.equals(new long[] {m1.mId, m2.mId}, searchMessages("ox", -1)));
+        // Equally good matches, newest first
+        assertTrue(Arrays.equals(new long[] {m2.mId, m1.mId}, searchMessages("subject", -1)));
+    }
+
+    /**
+     * Test that messages stored before the search index existed are indexed by the backfill
+     */
+    public void testMessageSearchBackfill() {
+        final Context c = mMockContext;
+        Account a = ProviderTestUtils.setupAccount("backfill", true, c);
+        Mailbox b = ProviderTestUtils.setupMailbox("box", a.mId, true, c);
+        Message m1 = ProviderTestUtils.setupMessage("aardvark", a.mId, b.mId, true, true, c);
+        Message m2 = ProviderTestUtils.setupMessage("aardvarks", a.mId, b.mId, true, true, c);
+
+        SQLiteDatabase db = getProvider().getDatabase(c);
+        db.delete(MessageSearchIndex.TABLE_NAME, null, null);
+        assertEquals(0, searchMessages("aardvark", -1).length);
+
+        assertFalse(MessageSearchIndex.backfill(c, db));
+        assertTrue(Arrays.equals(new long[] {m2.mId, m1.mId}, searchMessages("aardvark", -1)));
+        assertTrue(Arrays.equals(new long[] {m2.mId, m1.mId}, searchMessages("body text", -1)));
+        // Nothing more to do
+        assertFalse(MessageSearchIndex.backfill(c, db));
+    }
+
     /**
      * Verify {@link EmailProvider#recalculateMessageCount(android.database.sqlite.SQLiteDatabase)}
      */
@@ -2153,6 +2499,87 @@ public class ProviderTests extends ProviderTestCase2<EmailProvider> {
         assertEquals(3, getMessageCount(bt.mId));
     }
 
+    /** Returns the message, unread and unseen counts kept in a mailbox. */
+    private int[] getMailboxCounts(long mailboxId) {
+        final Cursor c = getProvider().getDatabase(mMockContext).rawQuery("select "
+                + MailboxColumns.MESSAGE_COUNT + ", " + MailboxColumns.UNREAD_COUNT + ", "
+                + MailboxColumns.UNSEEN_COUNT + " from " + Mailbox.TABLE_NAME + " where "
+                + MailboxColumns._ID + "=?", new String[] {Long.toString(mailboxId)});
+        try {
+            assertTrue(c.moveToFirst());
+            return new int[] {c.getInt(0), c.getInt(1), c.getInt(2)};
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Test that the unseen count follows messages as they are added, seen, moved and deleted
+     */
+    public void testUnseenCount() {
+        final Context c = mMockContext;
+        final Account a = ProviderTestUtils.setupAccount("unseen", true, c);
+        final Mailbox b1 = ProviderTestUtils.setupMailbox("box1", a.mId, true, c);
+        final Mailbox b2 = ProviderTestUtils.setupMailbox("box2", a.mId, true, c);
+
+        final Message m1 = createMessage(c, b1, false, false, Message.FLAG_LOADED_COMPLETE);
+        final Message m2 = createMessage(c, b1, false, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, b1, false, true, Message.FLAG_LOADED_COMPLETE);
+        assertEquals(2, getMailboxCounts(b1.mId)[2]);
+
+        final ContentValues values = new ContentValues();
+        values.put(MessageColumns.FLAG_SEEN, 1);
+        c.getContentResolver().update(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m1.mId), values, null, null);
+        assertEquals(1, getMailboxCounts(b1.mId)[2]);
+
+        // Moved and seen at once
+        values.put(MessageColumns.MAILBOX_KEY, b2.mId);
+        c.getContentResolver().update(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m2.mId), values, null, null);
+        assertEquals(0, getMailboxCounts(b1.mId)[2]);
+        assertEquals(0, getMailboxCounts(b2.mId)[2]);
+
+        values.clear();
+        values.put(MessageColumns.FLAG_SEEN, 0);
+        c.getContentResolver().update(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m2.mId), values, null, null);
+        assertEquals(1, getMailboxCounts(b2.mId)[2]);
+
+        c.getContentResolver().delete(
+                ContentUris.withAppendedId(Message.CONTENT_URI, m2.mId), null, null);
+        assertEquals(0, getMailboxCounts(b2.mId)[2]);
+    }
+
+    /**
+     * Test that checkMailboxCounts() rebuilds counts which are off, and only those
+     */
+    public void testCheckMailboxCounts() {
+        final Context c = mMockContext;
+        final Account a = ProviderTestUtils.setupAccount("check", true, c);
+        final Mailbox b1 = ProviderTestUtils.setupMailbox("box1", a.mId, true, c);
+        final Mailbox b2 = ProviderTestUtils.setupMailbox("box2", a.mId, true, c);
+        final Mailbox b3 = ProviderTestUtils.setupMailbox("box3", a.mId, true, c);
+        createMessage(c, b1, false, false, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, b1, false, true, Message.FLAG_LOADED_COMPLETE);
+        createMessage(c, b2, false, false, Message.FLAG_LOADED_COMPLETE);
+
+        final SQLiteDatabase db = getProvider().getDatabase(mMockContext);
+        assertEquals(0, DBHelper.checkMailboxCounts(db));
+
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.UNREAD_COUNT
+                + "=5, " + MailboxColumns.UNSEEN_COUNT + "=-1 where " + MailboxColumns._ID
+                + "=" + b1.mId);
+        db.execSQL("update " + Mailbox.TABLE_NAME + " set " + MailboxColumns.MESSAGE_COUNT
+                + "=7 where " + MailboxColumns._ID + "=" + b3.mId);
+        assertEquals(2, DBHelper.checkMailboxCounts(db));
+
+        assertTrue(Arrays.equals(new int[] {2, 1, 1}, getMailboxCounts(b1.mId)));
+        assertTrue(Arrays.equals(new int[] {1, 1, 1}, getMailboxCounts(b2.mId)));
+        assertTrue(Arrays.equals(new int[] {0, 0, 0}, getMailboxCounts(b3.mId)));
+        assertEquals(0, DBHelper.checkMailboxCounts(db));
+    }
+
     /** Creates an account */
     private Account createAccount(Context c, String name, HostAuth recvAuth, HostAuth sendAuth) {
         Account account = ProviderTestUtils.setupAccount(name, false, c);
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.provider;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@SmallTest
+public class SanitizedHtmlCacheTests extends AndroidTestCase {
+    // Well away from the ids of any real messages of the test app
+    private static final long MESSAGE_ID = 987654341L;
+
+    @Override
+    protected void tearDown() throws Exception {
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, null);
+        SanitizedHtmlCache.get(getContext(), MESSAGE_ID);
+        super.tearDown();
+    }
+
+    private File getCacheFile() {
+        return new File(new File(getContext().getCacheDir(), "sanitized_html"),
+                Long.toString(MESSAGE_ID));
+    }
+
+    public void testGet() throws IOException {
+        assertNull(SanitizedHtmlCache.get(getContext(), MESSAGE_ID));
+
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML,
+                "<p>hello</p><script>alert(1)</script>");
+        SanitizedHtmlCache.Entry entry = SanitizedHtmlCache.get(getContext(), MESSAGE_ID);
+        assertTrue(entry.mHtml.contains("hello"));
+        assertFalse(entry.mHtml.contains("alert"));
+        assertFalse(entry.mHasImages);
+        assertTrue(getCacheFile().exists());
+        assertSame(entry, SanitizedHtmlCache.get(getContext(), MESSAGE_ID));
+
+        // Written again, so done again
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML,
+                "<p>hello again</p><IMG src=\"http://example.com/a.png\">");
+        entry = SanitizedHtmlCache.get(getContext(), MESSAGE_ID);
+        assertTrue(entry.mHtml.contains("hello again"));
+        assertTrue(entry.mHasImages);
+
+        // Deleted, and so is what was kept of it
+        BodyStore.write(getContext(), MESSAGE_ID, BodyStore.EXT_HTML, null);
+        assertNull(SanitizedHtmlCache.get(getContext(), MESSAGE_ID));
+        assertFalse(getCacheFile().exists());
+    }
+
+    public void testTrim() throws IOException {
+        final File dir = new File(getContext().getCacheDir(), "SanitizedHtmlCacheTests");
+        dir.mkdirs();
+        final File[] files = new File[4];
+        try {
+            for (int i = 0; i < files.length; i++) {
+                files[i] = new File(dir, Integer.toString(i));
+                final FileOutputStream out = new FileOutputStream(files[i]);
+                try {
+                    out.write(new byte[100]);
+                } finally {
+                    out.close();
+                }
+            }
+            // Oldest first: 2, 0, 3, 1
+            files[2].setLastModified(1000000000000L);
+            files[0].setLastModified(1000000100000L);
+            files[3].setLastModified(1000000200000L);
+            files[1].setLastModified(1000000300000L);
+
+            assertEquals(200, SanitizedHtmlCache.trim(dir, 250));
+            assertFalse(files[2].exists());
+            assertFalse(files[0].exists());
+            assertTrue(files[3].exists());
+            assertTrue(files[1].exists());
+        } finally {
+            for (File file : files) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
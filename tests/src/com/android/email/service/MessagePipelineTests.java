@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.emailcommon.internet.MimeMessage;
+import com.android.emailcommon.mail.Message;
+import com.android.emailcommon.mail.MessagingException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class MessagePipelineTests extends AndroidTestCase {
+
+    private static Message createMessage(int uid) {
+        final MimeMessage message = new MimeMessage();
+        message.setUid(Integer.toString(uid));
+        return message;
+    }
+
+    /**
+     * Test that every message is stored, in order, in batches no bigger than asked for
+     */
+    public void testStoresInOrder() throws MessagingException {
+        final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final MessagePipeline pipeline = new MessagePipeline("test", 3,
+                new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<Message> messages) {
+                        batchSizes.add(messages.size());
+                        for (Message message : messages) {
+                            stored.add(message.getUid());
+                        }
+                    }
+                });
+        for (int uid = 1; uid <= 10; uid++) {
+            assertTrue(pipeline.put(createMessage(uid)));
+        }
+        pipeline.finish();
+
+        assertEquals(10, stored.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Integer.toString(i + 1), stored.get(i));
+        }
+        for (int size : batchSizes) {
+            assertTrue(size <= 3);
+        }
+    }
+
+    /**
+     * Test that the network side waits while the queue is full
+     */
+    public void testBackpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final MessagePipeline pipeline = new MessagePipeline("test", 1,
+                new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<Message> messages) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+        final CountDownLatch queued = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                // One being stored, two queued, and one which has to wait
+                for (int uid = 1; uid <= 4; uid++) {
+                    pipeline.put(createMessage(uid));
+                }
+                queued.countDown();
+            }
+        }.start();
+        assertFalse(queued.await(300, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        pipeline.finish();
+    }
+
+    /**
+     * Test that a failure to store drops the rest, and is reported by finish()
+     */
+    public void testFailure() {
+        final MessagePipeline pipeline = new MessagePipeline("test", 1,
+                new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<Message> messages) throws MessagingException {
+                        throw new MessagingException("failed");
+                    }
+                });
+        pipeline.put(createMessage(1));
+        // The network side soon stops waiting, however many more there are
+        for (int uid = 2; uid <= 20; uid++) {
+            pipeline.put(createMessage(uid));
+        }
+        assertTrue(pipeline.isStopped());
+        try {
+            pipeline.finish();
+            fail("Didn't throw MessagingException");
+        } catch (MessagingException expected) {
+        }
+    }
+
+    /**
+     * Test that an Error from the writer, e.g. running out of memory, stops the pipeline rather
+     * than leaving the network side waiting forever, and is reported by finish()
+     */
+    public void testWriterError() {
+        final MessagePipeline pipeline = new MessagePipeline("test", 1,
+                new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<Message> messages) {
+                        throw new OutOfMemoryError("test");
+                    }
+                });
+        for (int uid = 1; uid <= 20; uid++) {
+            pipeline.put(createMessage(uid));
+        }
+        assertTrue(pipeline.isStopped());
+        try {
+            pipeline.finish();
+            fail("Didn't throw MessagingException");
+        } catch (MessagingException expected) {
+            assertTrue(expected.getCause() instanceof OutOfMemoryError);
+        }
+    }
+
+    /**
+     * Test that once cancelled, nothing more is stored and finish() doesn't throw
+     */
+    public void testCancel() throws MessagingException {
+        final List<String> stored = Collections.synchronizedList(new ArrayList<String>());
+        final MessagePipeline pipeline = new MessagePipeline("test", 5,
+                new MessagePipeline.BatchWriter() {
+                    @Override
+                    public void write(List<Message> messages) {
+                        for (Message message : messages) {
+                            stored.add(message.getUid());
+                        }
+                    }
+                });
+        pipeline.cancel();
+        assertFalse(pipeline.put(createMessage(1)));
+        pipeline.finish();
+        assertTrue(stored.isEmpty());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.email.service;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@SmallTest
+public class SyncLocksTests extends AndroidTestCase {
+    private static final long WAIT_MILLIS = 300;
+
+    private final SyncLocks mLocks = new SyncLocks(2);
+
+    /**
+     * Locks a mailbox (or, if mailboxId is -1, the account) on another thread, and holds it
+     * until {@code release} is counted down.
+     *
+     * @return a latch counted down once the lock has been taken
+     */
+    private CountDownLatch lockOnThread(final long accountId, final long mailboxId,
+            final CountDownLatch release) {
+        final CountDownLatch locked = new CountDownLatch(1);
+        new Thread() {
+            @Override
+            public void run() {
+                if (mailboxId == -1) {
+                    mLocks.lockAccount(accountId);
+                } else {
+                    mLocks.lockMailbox(accountId, mailboxId);
+                }
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // Unlock now, then
+                }
+                if (mailboxId == -1) {
+                    mLocks.unlockAccount(accountId);
+                } else {
+                    mLocks.unlockMailbox(accountId, mailboxId);
+                }
+            }
+        }.start();
+        return locked;
+    }
+
+    public void testAccountsDontWait() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        assertTrue(lockOnThread(1, -1, release).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(lockOnThread(2, -1, release).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(lockOnThread(3, 30, release).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release.countDown();
+    }
+
+    public void testMailboxSyncsOneAtATime() throws InterruptedException {
+        final CountDownLatch release1 = new CountDownLatch(1);
+        final CountDownLatch release2 = new CountDownLatch(1);
+        assertTrue(lockOnThread(1, 10, release1).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        // Another mailbox of the account may sync meanwhile, but not the same one
+        assertTrue(lockOnThread(1, 11, release2).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        final CountDownLatch locked = lockOnThread(1, 10, release2);
+        assertFalse(locked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release1.countDown();
+        assertTrue(locked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release2.countDown();
+    }
+
+    public void testMailboxLimit() throws InterruptedException {
+        final CountDownLatch release1 = new CountDownLatch(1);
+        final CountDownLatch release2 = new CountDownLatch(1);
+        assertTrue(lockOnThread(1, 10, release1).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(lockOnThread(1, 11, release2).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        final CountDownLatch locked = lockOnThread(1, 12, release2);
+        assertFalse(locked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release1.countDown();
+        assertTrue(locked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release2.countDown();
+    }
+
+    public void testAccountExcludesMailboxes() throws InterruptedException {
+        final CountDownLatch release1 = new CountDownLatch(1);
+        final CountDownLatch release2 = new CountDownLatch(1);
+        assertTrue(lockOnThread(1, 10, release1).await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        final CountDownLatch accountLocked = lockOnThread(1, -1, release2);
+        assertFalse(accountLocked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release1.countDown();
+        assertTrue(accountLocked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        final CountDownLatch mailboxLocked = lockOnThread(1, 11, release2);
+        assertFalse(mailboxLocked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        release2.countDown();
+        assertTrue(mailboxLocked.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    public void testReentrant() {
+        mLocks.lockMailbox(1, 10);
+        mLocks.lockMailbox(1, 10);
+        mLocks.unlockMailbox(1, 10);
+        mLocks.unlockMailbox(1, 10);
+        mLocks.lockAccount(1);
+        mLocks.lockAccount(1);
+        mLocks.unlockAccount(1);
+        mLocks.unlockAccount(1);
+    }
+}
@@ -27,6 +27,7 @@ import com.android.emailcommon.provider.EmailContent;
 import com.android.emailcommon.provider.EmailContent.Attachment;
 import com.android.emailcommon.provider.EmailContent.Body;
 import com.android.emailcommon.provider.EmailContent.Message;
+import com.android.emailcommon.utility.EOLConvertingOutputStream;
 
 import org.apache.james.mime4j.field.Field;
 import org.apache.james.mime4j.message.BodyPart;
@@ -37,6 +38,7 @@ import org.apache.james.mime4j.message.Multipart;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -288,6 +290,70 @@ public class Rfc822OutputTests extends ProviderTestCase2<EmailProvider> {
         }
     }
 
+    public void testGetTextEncoding() throws IOException {
+        assertEquals("7bit", Rfc822Output.getTextEncoding("a\r\nb\nc".getBytes("UTF-8")));
+        assertEquals("8bit", Rfc822Output.getTextEncoding("caf\u00e9\n".getBytes("UTF-8")));
+        // Bare CRs and NULs
+        assertNull(Rfc822Output.getTextEncoding("a\rb".getBytes("UTF-8")));
+        assertNull(Rfc822Output.getTextEncoding("a\r".getBytes("UTF-8")));
+        assertNull(Rfc822Output.getTextEncoding("a\u0000b".getBytes("UTF-8")));
+        // A line of at most 998 bytes is fine, but not one longer
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 998; i++) {
+            line.append('x');
+        }
+        assertEquals("7bit", Rfc822Output.getTextEncoding((line + "\r\n").getBytes("UTF-8")));
+        assertNull(Rfc822Output.getTextEncoding((line + "x\r\n").getBytes("UTF-8")));
+    }
+
+    public void testGetBase64Length() {
+        assertEquals(0, Rfc822Output.getBase64Length(0));
+        assertEquals(4 + 2, Rfc822Output.getBase64Length(1));
+        assertEquals(4 + 2, Rfc822Output.getBase64Length(3));
+        assertEquals(76 + 2, Rfc822Output.getBase64Length(57));
+        assertEquals(76 + 2 + 4 + 2, Rfc822Output.getBase64Length(58));
+    }
+
+    /**
+     * Test that getSize() measures, without reading the attachments, just what writeTo() writes
+     */
+    public void testGetSize() throws IOException, MessagingException {
+        Message msg = new Message();
+        msg.mText = TEXT;
+        msg.mFrom = SENDER;
+        msg.mTo = RECIPIENT_TO;
+        msg.mBcc = RECIPIENT_CC;
+        msg.mSubject = SUBJECT;
+        msg.mAttachments = new ArrayList<Attachment>();
+        // Sizes either side of a line of base64, and of a chunk of lines
+        for (int size : new int[] { 0, 1, 56, 57, 58, 57 * 256, 57 * 256 + 1, 100000 }) {
+            Attachment att = new Attachment();
+            att.mContentBytes = new byte[size];
+            for (int i = 0; i < size; i++) {
+                att.mContentBytes[i] = (byte) (i * 31);
+            }
+            att.mMimeType = "application/octet-stream";
+            att.mFileName = "file" + size;
+            att.mSize = size;
+            msg.mAttachments.add(att);
+        }
+        msg.save(mMockContext);
+
+        for (int encodings : new int[] { 0, Rfc822Output.ALLOW_8BIT,
+                Rfc822Output.ALLOW_8BIT | Rfc822Output.ALLOW_BINARY }) {
+            final String boundary = Rfc822Output.getNextBoundary();
+            final long size = Rfc822Output.getSize(mMockContext, msg, false, true, null,
+                    encodings, boundary);
+
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            OutputStream out = (encodings & Rfc822Output.ALLOW_BINARY) != 0
+                    ? byteStream : new EOLConvertingOutputStream(byteStream);
+            Rfc822Output.writeTo(mMockContext, msg, out, false, true, null, encodings, boundary);
+            out.flush();
+            assertEquals(byteStream.size(), size);
+        }
+    }
+
     /**
      * Confirm that the constructed message includes "MIME-VERSION: 1.0"
      */